@@ -0,0 +1,329 @@
+package tvestergaard.treemap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * Ordered map over binary keys, backed by a {@link TreeMap}. The keys are ordered lexicographically by their unsigned
+ * bytes, where a key that is a prefix of another key is the smaller key. Keys are compared eight bytes at a time: the
+ * bytes are read as big-endian <code>long</code> words, and the first differing word locates the first differing
+ * byte, which decides the order of the keys. Only the trailing bytes of keys shorter than a word are compared one at
+ * a time.
+ * <p>
+ * The keys are stored as the <code>byte[]</code> instances passed to {@link #put(byte[], Object)}, which must not be
+ * modified afterwards. Lookups accept either a <code>byte[]</code> or a {@link ByteBuffer}, whose remaining bytes,
+ * from its position to its limit, are used as the key. The buffer is compared in place using absolute reads, so a
+ * slice of a larger heap or direct buffer can be used to look up an entry without copying the key into a new array,
+ * and without changing the position of the buffer. The byte order of the buffer does not affect the comparison.
+ * <p>
+ * Lookups match keys using the comparison alone, so a lookup with a different array holding the same bytes finds the
+ * entry. As the keys are arrays, the {@link #equals(Object)} and {@link #hashCode()} methods inherited from {@link
+ * AbstractMap} compare the keys by identity.
+ *
+ * @param <V> The value type.
+ */
+public class ByteKeyTreeMap<V> extends AbstractMap<byte[], V>
+{
+
+	/**
+	 * The {@link TreeMap} holding the entries. The keys in the map are always <code>byte[]</code> instances, while the
+	 * keys passed to its lookups can also be {@link ByteBuffer} instances.
+	 */
+	private final TreeMap<Object, V> map = new TreeMap<>(ByteKeyTreeMap::compareKeys);
+
+	/**
+	 * Creates a new empty {@link ByteKeyTreeMap}.
+	 */
+	public ByteKeyTreeMap()
+	{
+
+	}
+
+	/**
+	 * Creates a new {@link ByteKeyTreeMap} containing the entries of the provided map.
+	 *
+	 * @param map The map to copy the entries from.
+	 *
+	 * @throws NullPointerException if the map contains a <code>null</code> key
+	 */
+	public ByteKeyTreeMap(Map<byte[], ? extends V> map)
+	{
+		putAll(map);
+	}
+
+	/**
+	 * Returns the number of entries in the map.
+	 *
+	 * @return The number of entries in the map.
+	 */
+	@Override public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * Returns the value mapped to the provided key, or <code>null</code> if the map contains no entry with the key.
+	 *
+	 * @param key The key, either a <code>byte[]</code> or a {@link ByteBuffer}.
+	 *
+	 * @return The value mapped to the provided key, or <code>null</code> if the map contains no entry with the key.
+	 * @throws ClassCastException   if the key is neither a <code>byte[]</code> nor a {@link ByteBuffer}
+	 * @throws NullPointerException if the key is <code>null</code>
+	 */
+	@Override public V get(Object key)
+	{
+		TreeMap.Node<Object, V> node = map.getNodeByComparator(Objects.requireNonNull(key));
+
+		return node == null ? null : node.getValue();
+	}
+
+	/**
+	 * Returns the value mapped to the remaining bytes of the provided buffer, or <code>null</code> if the map contains
+	 * no entry with the key. The position of the buffer is not changed.
+	 *
+	 * @param key The buffer containing the key.
+	 *
+	 * @return The value mapped to the key, or <code>null</code> if the map contains no entry with the key.
+	 * @throws NullPointerException if the key is <code>null</code>
+	 */
+	public V get(ByteBuffer key)
+	{
+		return get((Object) key);
+	}
+
+	/**
+	 * Returns <code>true</code> if the map contains an entry with the provided key.
+	 *
+	 * @param key The key, either a <code>byte[]</code> or a {@link ByteBuffer}.
+	 *
+	 * @return <code>true</code> if the map contains an entry with the provided key.
+	 * @throws ClassCastException   if the key is neither a <code>byte[]</code> nor a {@link ByteBuffer}
+	 * @throws NullPointerException if the key is <code>null</code>
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		return map.getNodeByComparator(Objects.requireNonNull(key)) != null;
+	}
+
+	/**
+	 * Maps the provided key to the provided value. The array is stored in the map, and must not be modified
+	 * afterwards.
+	 *
+	 * @param key   The key.
+	 * @param value The value.
+	 *
+	 * @return The value previously mapped to the key, or <code>null</code> if the map contained no entry with the key.
+	 * @throws NullPointerException if the key is <code>null</code>
+	 */
+	@Override public V put(byte[] key, V value)
+	{
+		return map.put(Objects.requireNonNull(key), value);
+	}
+
+	/**
+	 * Removes the entry with the provided key.
+	 *
+	 * @param key The key, either a <code>byte[]</code> or a {@link ByteBuffer}.
+	 *
+	 * @return The value of the removed entry, or <code>null</code> if the map contained no entry with the key.
+	 * @throws ClassCastException   if the key is neither a <code>byte[]</code> nor a {@link ByteBuffer}
+	 * @throws NullPointerException if the key is <code>null</code>
+	 */
+	@Override public V remove(Object key)
+	{
+		TreeMap.Node<Object, V> node = map.getNodeByComparator(Objects.requireNonNull(key));
+
+		return node == null ? null : map.cursor(node).remove();
+	}
+
+	/**
+	 * Removes all entries from the map.
+	 */
+	@Override public void clear()
+	{
+		map.clear();
+	}
+
+	/**
+	 * Returns the entry with the smallest key, or <code>null</code> if the map is empty. The entry is backed by the
+	 * map.
+	 *
+	 * @return The entry with the smallest key, or <code>null</code> if the map is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public Entry<byte[], V> firstEntry()
+	{
+		return (Entry<byte[], V>) (Entry<?, V>) map.firstEntry();
+	}
+
+	/**
+	 * Returns the entry with the greatest key, or <code>null</code> if the map is empty. The entry is backed by the
+	 * map.
+	 *
+	 * @return The entry with the greatest key, or <code>null</code> if the map is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public Entry<byte[], V> lastEntry()
+	{
+		return (Entry<byte[], V>) (Entry<?, V>) map.lastEntry();
+	}
+
+	/**
+	 * Returns the entries with keys from <code>from</code>, inclusive, to <code>to</code>, exclusive, in ascending
+	 * order. The bounds are the remaining bytes of the provided buffers, whose positions are not changed.
+	 *
+	 * @param from The smallest key to include.
+	 * @param to   The key to stop at.
+	 *
+	 * @return The entries in the range.
+	 * @throws NullPointerException if a bound is <code>null</code>
+	 */
+	public List<Entry<byte[], V>> range(ByteBuffer from, ByteBuffer to)
+	{
+		Objects.requireNonNull(to);
+
+		List<Entry<byte[], V>>           range  = new ArrayList<>();
+		TreeMap.Node<Object, V>          start  = map.getCeilingNodeByComparator(Objects.requireNonNull(from));
+		TreeMap<Object, V>.TreeMapCursor cursor = map.cursor(start);
+		while (cursor.isPositioned()) {
+			byte[] key = (byte[]) cursor.getKey();
+			if (compare(key, to) >= 0)
+				break;
+
+			range.add(new AbstractMap.SimpleImmutableEntry<>(key, cursor.getValue()));
+			cursor.next();
+		}
+
+		return range;
+	}
+
+	/**
+	 * Returns a set view of the entries in the map, in ascending order of their keys.
+	 *
+	 * @return The set view of the entries in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public Set<Entry<byte[], V>> entrySet()
+	{
+		return (Set<Entry<byte[], V>>) (Set<?>) map.entrySet();
+	}
+
+	/**
+	 * Compares two keys lexicographically by their unsigned bytes.
+	 *
+	 * @param a The first key.
+	 * @param b The second key.
+	 *
+	 * @return A negative number, zero or a positive number if the first key is less than, equal to or greater than the
+	 * second key.
+	 */
+	public static int compare(byte[] a, byte[] b)
+	{
+		int index = mismatch(a, b);
+		if (index < 0)
+			return 0;
+		if (index == Math.min(a.length, b.length))
+			return a.length - b.length;
+
+		return (a[index] & 0xFF) - (b[index] & 0xFF);
+	}
+
+	/**
+	 * Compares a key to the remaining bytes of a buffer lexicographically by their unsigned bytes. The position of the
+	 * buffer is not changed.
+	 *
+	 * @param a The key.
+	 * @param b The buffer containing the second key.
+	 *
+	 * @return A negative number, zero or a positive number if the first key is less than, equal to or greater than the
+	 * second key.
+	 */
+	public static int compare(byte[] a, ByteBuffer b)
+	{
+		int     offset   = b.position();
+		int     length   = Math.min(a.length, b.remaining());
+		boolean reversed = b.order() == ByteOrder.LITTLE_ENDIAN;
+		int     x        = 0;
+		for (; x + Long.BYTES <= length; x += Long.BYTES) {
+			long wordA = word(a, x);
+			long wordB = reversed ? Long.reverseBytes(b.getLong(offset + x)) : b.getLong(offset + x);
+			if (wordA != wordB)
+				return Long.compareUnsigned(wordA, wordB);
+		}
+
+		for (; x < length; x++) {
+			int compare = (a[x] & 0xFF) - (b.get(offset + x) & 0xFF);
+			if (compare != 0)
+				return compare;
+		}
+
+		return a.length - b.remaining();
+	}
+
+	/**
+	 * Returns the index of the first byte that differs between the two keys. When one key is a prefix of the other,
+	 * the length of the shorter key is returned.
+	 *
+	 * @param a The first key.
+	 * @param b The second key.
+	 *
+	 * @return The index of the first differing byte, or <code>-1</code> if the keys are equal.
+	 */
+	public static int mismatch(byte[] a, byte[] b)
+	{
+		int length = Math.min(a.length, b.length);
+		int x      = 0;
+		for (; x + Long.BYTES <= length; x += Long.BYTES) {
+			long difference = word(a, x) ^ word(b, x);
+			if (difference != 0)
+				return x + Long.numberOfLeadingZeros(difference) / Byte.SIZE;
+		}
+
+		for (; x < length; x++)
+			if (a[x] != b[x])
+				return x;
+
+		return a.length == b.length ? -1 : length;
+	}
+
+	/**
+	 * Compares two keys passed to the backing {@link TreeMap}. The keys in the tree are <code>byte[]</code> instances,
+	 * so a {@link ByteBuffer} is only ever compared to an array.
+	 *
+	 * @param a The first key.
+	 * @param b The second key.
+	 *
+	 * @return A negative number, zero or a positive number if the first key is less than, equal to or greater than the
+	 * second key.
+	 */
+	private static int compareKeys(Object a, Object b)
+	{
+		if (a instanceof ByteBuffer)
+			return -compare((byte[]) b, (ByteBuffer) a);
+		if (b instanceof ByteBuffer)
+			return compare((byte[]) a, (ByteBuffer) b);
+
+		return compare((byte[]) a, (byte[]) b);
+	}
+
+	/**
+	 * Reads the eight bytes starting at the provided index as a big-endian <code>long</code>.
+	 *
+	 * @param bytes The array to read from.
+	 * @param index The index of the first byte.
+	 *
+	 * @return The word.
+	 */
+	private static long word(byte[] bytes, int index)
+	{
+		return (bytes[index] & 0xFFL) << 56
+				| (bytes[index + 1] & 0xFFL) << 48
+				| (bytes[index + 2] & 0xFFL) << 40
+				| (bytes[index + 3] & 0xFFL) << 32
+				| (bytes[index + 4] & 0xFFL) << 24
+				| (bytes[index + 5] & 0xFFL) << 16
+				| (bytes[index + 6] & 0xFFL) << 8
+				| (bytes[index + 7] & 0xFFL);
+	}
+}
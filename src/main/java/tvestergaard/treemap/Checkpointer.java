@@ -0,0 +1,350 @@
+package tvestergaard.treemap;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Persists a {@link TreeMap} to a directory using incremental checkpoints. The directory holds an image containing all
+ * entries of the map at some point, and a sequence of deltas, each containing the entries inserted or updated and the
+ * keys removed since the previous checkpoint. When the {@link Checkpointer} is opened, the image is read and the
+ * deltas are applied in order.
+ * <p>
+ * A checkpoint only writes the changes, so its cost is proportional to the number of changes rather than to the size
+ * of the map. The changes are found using the change flags maintained by the {@link TreeMap}, which mark the changed
+ * nodes and the subtrees containing them, so unchanged subtrees are skipped without being visited. Since the deltas
+ * accumulate, {@link #compact()} writes a new image of the whole map and deletes the deltas it replaces.
+ * <p>
+ * Deltas and images are written to temporary files, forced to the storage device and then atomically renamed, and the
+ * directory is forced after the rename, so a crash leaves either the old or the new file, and a checkpoint that has
+ * returned survives the crash. Changes made after the last checkpoint are lost in a crash. The deltas must be numbered
+ * consecutively from the image, so a missing delta is reported when the {@link Checkpointer} is opened instead of
+ * restoring a wrong map. The {@link Checkpointer} is not thread-safe.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class Checkpointer<K, V>
+{
+
+	/**
+	 * The value at the start of an image file.
+	 */
+	private static final int IMAGE_MAGIC = 0x494D4147;
+
+	/**
+	 * The value at the start of a delta file.
+	 */
+	private static final int DELTA_MAGIC = 0x44454C54;
+
+	/**
+	 * The name of the image file.
+	 */
+	private static final String IMAGE = "image";
+
+	/**
+	 * The prefix of the names of the delta files, which is followed by the sequence number of the delta.
+	 */
+	private static final String DELTA = "delta-";
+
+	/**
+	 * The suffix of the names of files that are being written.
+	 */
+	private static final String TEMPORARY = ".tmp";
+
+	/**
+	 * The directory containing the image and deltas.
+	 */
+	private final Path directory;
+
+	/**
+	 * The checkpointed map.
+	 */
+	private final TreeMap<K, V> map;
+
+	/**
+	 * The codec writing and reading the keys.
+	 */
+	private final Codec<K> keyCodec;
+
+	/**
+	 * The codec writing and reading the values.
+	 */
+	private final Codec<V> valueCodec;
+
+	/**
+	 * The sequence number of the last delta included in the image.
+	 */
+	private long imageDelta;
+
+	/**
+	 * The sequence number of the last written delta.
+	 */
+	private long lastDelta;
+
+	/**
+	 * Whether a checkpoint failed after the changes were drained from the map. The drained changes are then in
+	 * neither the map nor a delta, so the next checkpoint writes a new image instead.
+	 */
+	private boolean imageRequired;
+
+	/**
+	 * Opens the {@link Checkpointer} for the provided directory, restoring the map from the image and deltas in the
+	 * directory. The directory is created when it does not exist.
+	 *
+	 * @param directory  The directory containing the image and deltas.
+	 * @param comparator The comparator used when comparing the keys in the map.
+	 * @param keyCodec   The codec writing and reading the keys.
+	 * @param valueCodec The codec writing and reading the values.
+	 *
+	 * @throws IOException if an I/O error occurs, or if the image or a delta is invalid or missing
+	 */
+	public Checkpointer(Path directory, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec)
+			throws IOException
+	{
+		this.directory = Files.createDirectories(directory);
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+
+		Path image = directory.resolve(IMAGE);
+		if (Files.exists(image)) {
+			try (DataInputStream in = open(image)) {
+				if (in.readInt() != IMAGE_MAGIC)
+					throw new IOException("Invalid image " + image);
+				this.imageDelta = in.readLong();
+				this.map = TreeMap.readFrom(in, comparator, keyCodec, valueCodec);
+			}
+		} else
+			this.map = new TreeMap<>(comparator);
+
+		// Deltas included in the image are left behind when a crash interrupts a compaction
+		this.lastDelta = imageDelta;
+		for (long delta : deltaFiles()) {
+			if (delta <= imageDelta)
+				continue;
+			if (delta != lastDelta + 1)
+				throw new IOException("Missing delta " + directory.resolve(deltaName(lastDelta + 1)));
+
+			apply(directory.resolve(deltaName(delta)));
+			lastDelta = delta;
+		}
+
+		map.trackChanges();
+	}
+
+	/**
+	 * Returns the checkpointed map. Changes made to the map are written by the next checkpoint.
+	 *
+	 * @return The checkpointed map.
+	 */
+	public TreeMap<K, V> map()
+	{
+		return map;
+	}
+
+	/**
+	 * Returns the number of deltas written since the image was last written, which must be applied when the map is
+	 * restored.
+	 *
+	 * @return The number of deltas written since the image was last written.
+	 */
+	public long deltas()
+	{
+		return lastDelta - imageDelta;
+	}
+
+	/**
+	 * Writes the changes made to the map since the last checkpoint to a new delta. No delta is written when there are
+	 * no changes.
+	 *
+	 * @return <code>true</code> if a delta or image was written.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public boolean checkpoint() throws IOException
+	{
+		if (imageRequired) {
+			compact();
+			return true;
+		}
+
+		List<TreeMap.Node<K, V>> changed = new ArrayList<>();
+		List<K>                  removed = new ArrayList<>();
+		boolean                  cleared = map.drainChanges(changed, removed);
+		if (!cleared && changed.isEmpty() && removed.isEmpty())
+			return false;
+
+		imageRequired = true;
+		Path file = directory.resolve(deltaName(lastDelta + 1));
+		try (DataOutputStream out = create(file)) {
+			out.writeInt(DELTA_MAGIC);
+			out.writeBoolean(cleared);
+			out.writeInt(removed.size());
+			for (K key : removed)
+				keyCodec.write(key, out);
+			out.writeInt(changed.size());
+			for (TreeMap.Node<K, V> node : changed) {
+				keyCodec.write(node.getKey(), out);
+				valueCodec.write(node.getValue(), out);
+			}
+		}
+
+		commit(file);
+		imageRequired = false;
+		lastDelta++;
+		return true;
+	}
+
+	/**
+	 * Writes a new image containing all entries of the map, including the changes made since the last checkpoint, and
+	 * deletes the deltas included in the previous image.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void compact() throws IOException
+	{
+		map.drainChanges(new ArrayList<>(), new ArrayList<>());
+
+		imageRequired = true;
+		Path file = directory.resolve(IMAGE);
+		try (DataOutputStream out = create(file)) {
+			out.writeInt(IMAGE_MAGIC);
+			out.writeLong(lastDelta);
+			map.writeTo(out, keyCodec, valueCodec);
+		}
+
+		commit(file);
+		imageRequired = false;
+		imageDelta = lastDelta;
+
+		for (long delta : deltaFiles())
+			if (delta <= imageDelta)
+				Files.delete(directory.resolve(deltaName(delta)));
+	}
+
+	/**
+	 * Applies the changes in the provided delta to the map.
+	 *
+	 * @param file The delta file.
+	 *
+	 * @throws IOException if an I/O error occurs, or if the delta is invalid
+	 */
+	private void apply(Path file) throws IOException
+	{
+		try (DataInputStream in = open(file)) {
+			if (in.readInt() != DELTA_MAGIC)
+				throw new IOException("Invalid delta " + file);
+			if (in.readBoolean())
+				map.clear();
+			for (int x = in.readInt(); x > 0; x--)
+				map.remove(keyCodec.read(in));
+			for (int x = in.readInt(); x > 0; x--)
+				map.put(keyCodec.read(in), valueCodec.read(in));
+		}
+	}
+
+	/**
+	 * Returns the sequence numbers of the delta files in the directory in ascending order. Temporary files left by a
+	 * crash are deleted.
+	 *
+	 * @return The sequence numbers of the delta files in ascending order.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private long[] deltaFiles() throws IOException
+	{
+		List<Long> result = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(TEMPORARY))
+					Files.delete(file);
+				else if (name.startsWith(DELTA))
+					result.add(Long.parseLong(name.substring(DELTA.length())));
+			}
+		}
+
+		return result.stream().mapToLong(Long::longValue).sorted().toArray();
+	}
+
+	/**
+	 * Returns the name of the delta file with the provided sequence number. The number is padded with zeros, so the
+	 * names sort in the order of the deltas.
+	 *
+	 * @param delta The sequence number of the delta.
+	 *
+	 * @return The name of the delta file.
+	 */
+	private static String deltaName(long delta)
+	{
+		return String.format("%s%016d", DELTA, delta);
+	}
+
+	/**
+	 * Opens the provided file for reading.
+	 *
+	 * @param file The file to read.
+	 *
+	 * @return The input reading the file.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static DataInputStream open(Path file) throws IOException
+	{
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+	}
+
+	/**
+	 * Creates the temporary file that is renamed to the provided file by {@link #commit(Path)}. The returned output
+	 * forces the file to the storage device when closed.
+	 *
+	 * @param file The file to create.
+	 *
+	 * @return The output writing the temporary file.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static DataOutputStream create(Path file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(temporary(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+											   StandardOpenOption.TRUNCATE_EXISTING);
+		return new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))
+		{
+			@Override public void close() throws IOException
+			{
+				try {
+					flush();
+					channel.force(true);
+				} finally {
+					channel.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Atomically replaces the provided file with the temporary file written using {@link #create(Path)}, and forces
+	 * the directory to the storage device, so the rename survives a crash.
+	 *
+	 * @param file The file to replace.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void commit(Path file) throws IOException
+	{
+		Files.move(temporary(file), file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel channel = FileChannel.open(file.getParent(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Returns the temporary file written before it is renamed to the provided file.
+	 *
+	 * @param file The file.
+	 *
+	 * @return The temporary file.
+	 */
+	private static Path temporary(Path file)
+	{
+		return file.resolveSibling(file.getFileName() + TEMPORARY);
+	}
+}
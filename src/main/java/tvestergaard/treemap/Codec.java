@@ -0,0 +1,109 @@
+package tvestergaard.treemap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes and reads values of some type in a binary format. Used to serialize the keys and values of a {@link TreeMap}
+ * using {@link TreeMap#writeTo(DataOutput, Codec, Codec)} and {@link TreeMap#readFrom(DataInput, java.util.Comparator,
+ * Codec, Codec)}.
+ *
+ * @param <T> The type of the values.
+ */
+public interface Codec<T>
+{
+
+	/**
+	 * Writes the provided value to the provided output.
+	 *
+	 * @param value The value to write.
+	 * @param out   The output to write to.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	void write(T value, DataOutput out) throws IOException;
+
+	/**
+	 * Reads a value written by {@link #write(Object, DataOutput)} from the provided input.
+	 *
+	 * @param in The input to read from.
+	 *
+	 * @return The read value.
+	 * @throws IOException if an I/O error occurs
+	 */
+	T read(DataInput in) throws IOException;
+
+	/**
+	 * Returns a {@link Codec} writing {@link Integer} values as four bytes. Does not support <code>null</code>.
+	 *
+	 * @return The {@link Codec}.
+	 */
+	static Codec<Integer> integers()
+	{
+		return new Codec<Integer>()
+		{
+			@Override public void write(Integer value, DataOutput out) throws IOException
+			{
+				out.writeInt(value);
+			}
+
+			@Override public Integer read(DataInput in) throws IOException
+			{
+				return in.readInt();
+			}
+		};
+	}
+
+	/**
+	 * Returns a {@link Codec} writing {@link Long} values as eight bytes. Does not support <code>null</code>.
+	 *
+	 * @return The {@link Codec}.
+	 */
+	static Codec<Long> longs()
+	{
+		return new Codec<Long>()
+		{
+			@Override public void write(Long value, DataOutput out) throws IOException
+			{
+				out.writeLong(value);
+			}
+
+			@Override public Long read(DataInput in) throws IOException
+			{
+				return in.readLong();
+			}
+		};
+	}
+
+	/**
+	 * Returns a {@link Codec} writing {@link String} values as their length in bytes followed by their UTF-8
+	 * encoding. Does not support <code>null</code>.
+	 *
+	 * @return The {@link Codec}.
+	 */
+	static Codec<String> strings()
+	{
+		return new Codec<String>()
+		{
+			@Override public void write(String value, DataOutput out) throws IOException
+			{
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			@Override public String read(DataInput in) throws IOException
+			{
+				int length = in.readInt();
+				if (length < 0)
+					throw new IOException("Negative string length: " + length);
+
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+		};
+	}
+}
@@ -0,0 +1,466 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe variant of the {@link TreeMap} using flat combining. Instead of competing for the lock, threads publish
+ * their {@link #get(Object)}, {@link #put(Object, Object)} and {@link #remove(Object)} operations in a per-thread
+ * slot. The thread that acquires the lock becomes the combiner: it collects the pending operations of all threads,
+ * sorts them by key, and applies them in a single pass over the tree, before handing each thread its result. The other
+ * threads wait for their slots to be completed, and only compete for the lock when it is released before their
+ * operations were applied.
+ * <p>
+ * The remaining operations take the combiner lock directly. Iterators iterate over a copy of the entries taken while
+ * holding the lock. A slot is allocated for each thread on its first operation, and is kept for the lifetime of the
+ * map. Operations may be applied by another thread; an exception thrown while applying an operation, such as the
+ * comparator rejecting its key, only fails that operation, and is thrown in the thread that submitted it.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class CombiningTreeMap<K, V> extends AbstractMap<K, V>
+{
+
+	/**
+	 * State of a slot without an operation.
+	 */
+	private static final int IDLE = 0;
+
+	/**
+	 * State of a slot with an operation waiting to be applied.
+	 */
+	private static final int PENDING = 1;
+
+	/**
+	 * State of a slot whose operation has been applied.
+	 */
+	private static final int DONE = 2;
+
+	/**
+	 * The {@link TreeMap} holding the entries.
+	 */
+	private final TreeMap<K, V> map;
+
+	/**
+	 * The lock held by the combiner, guarding {@link #map}.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The slots of all threads that have used the {@link CombiningTreeMap}.
+	 */
+	private final List<Slot<K, V>> slots = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The slot of the current thread.
+	 */
+	private final ThreadLocal<Slot<K, V>> slot = ThreadLocal.withInitial(() -> {
+		Slot<K, V> slot = new Slot<>();
+		slots.add(slot);
+		return slot;
+	});
+
+	/**
+	 * Orders slots by the keys of their operations.
+	 */
+	private final Comparator<Slot<K, V>> slotComparator;
+
+	/**
+	 * The slots collected by the combiner. Only accessed while holding the lock.
+	 */
+	@SuppressWarnings("unchecked")
+	private Slot<K, V>[] batch = (Slot<K, V>[]) new Slot<?, ?>[16];
+
+	/**
+	 * The keys of the collected operations. Only accessed while holding the lock.
+	 */
+	@SuppressWarnings("unchecked")
+	private K[] keys = (K[]) new Object[16];
+
+	/**
+	 * The values of the collected operations. Only accessed while holding the lock.
+	 */
+	@SuppressWarnings("unchecked")
+	private V[] values = (V[]) new Object[16];
+
+	/**
+	 * The collected operations. Only accessed while holding the lock.
+	 */
+	private int[] operations = new int[16];
+
+	/**
+	 * The results of the collected operations. Only accessed while holding the lock.
+	 */
+	@SuppressWarnings("unchecked")
+	private V[] results = (V[]) new Object[16];
+
+	/**
+	 * The exceptions thrown by the collected operations. Only accessed while holding the lock.
+	 */
+	private Throwable[] failures = new Throwable[16];
+
+	/**
+	 * Cached {@link CombiningTreeMapEntrySet} that can be returned from the {@link #entrySet()} method.
+	 */
+	private CombiningTreeMapEntrySet cacheEntrySet;
+
+	/**
+	 * Creates a new {@link CombiningTreeMap} using the provided <code>comparator</code>.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link CombiningTreeMap}.
+	 */
+	public CombiningTreeMap(Comparator<K> comparator)
+	{
+		this.map = new TreeMap<>(comparator);
+		this.slotComparator = (a, b) -> comparator.compare(a.key, b.key);
+	}
+
+	/**
+	 * Publication slot of a thread. The fields describing the operation are written before the state is set to
+	 * {@link #PENDING}, and the result is written before the state is set to {@link #DONE}, so the volatile state
+	 * publishes them.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 */
+	private static final class Slot<K, V>
+	{
+
+		/**
+		 * The key of the operation.
+		 */
+		private K key;
+
+		/**
+		 * The value of a {@link TreeMap#BATCH_PUT} operation.
+		 */
+		private V value;
+
+		/**
+		 * The operation, one of {@link TreeMap#BATCH_GET}, {@link TreeMap#BATCH_PUT} and {@link
+		 * TreeMap#BATCH_REMOVE}.
+		 */
+		private int operation;
+
+		/**
+		 * The value mapped to the key before the operation was applied.
+		 */
+		private V result;
+
+		/**
+		 * The exception thrown while applying the operation, or <code>null</code> if it was applied.
+		 */
+		private Throwable failure;
+
+		/**
+		 * The state of the slot, one of {@link #IDLE}, {@link #PENDING} and {@link #DONE}.
+		 */
+		private volatile int state = IDLE;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key. The lookup is applied by the combiner.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V get(Object key)
+	{
+		return submit((K) key, null, TreeMap.BATCH_GET);
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map. The insertion is applied by the combiner.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@Override public V put(K key, V value)
+	{
+		return submit(key, value, TreeMap.BATCH_PUT);
+	}
+
+	/**
+	 * Removes the mapping for the specified key from this map if present. The removal is applied by the combiner.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V remove(Object key)
+	{
+		return submit((K) key, null, TreeMap.BATCH_REMOVE);
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		lock.lock();
+		try {
+			return map.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		lock.lock();
+		try {
+			return map.containsKey(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all of the mappings from this map.
+	 */
+	@Override public void clear()
+	{
+		lock.lock();
+		try {
+			map.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map. The iterators of the set iterate over a copy
+	 * of the entries taken while holding the lock. Removing through an iterator removes the key from the map.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null)
+			cacheEntrySet = new CombiningTreeMapEntrySet();
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Set view of the entries in the {@link CombiningTreeMap}.
+	 */
+	private final class CombiningTreeMapEntrySet extends AbstractSet<Entry<K, V>>
+	{
+
+		/**
+		 * Returns the number of entries in the {@link CombiningTreeMap}.
+		 *
+		 * @return The number of entries in the {@link CombiningTreeMap}.
+		 */
+		@Override public int size()
+		{
+			return CombiningTreeMap.this.size();
+		}
+
+		/**
+		 * Returns an iterator over a copy of the entries, in ascending order by key.
+		 *
+		 * @return an iterator over a copy of the entries
+		 */
+		@Override public Iterator<Entry<K, V>> iterator()
+		{
+			List<Entry<K, V>> copy;
+			lock.lock();
+			try {
+				copy = new ArrayList<>(map.size());
+				for (Entry<K, V> entry : map.entrySet())
+					copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+			} finally {
+				lock.unlock();
+			}
+
+			Iterator<Entry<K, V>> iterator = copy.iterator();
+			return new Iterator<Entry<K, V>>()
+			{
+
+				/**
+				 * The previously returned entry.
+				 */
+				private Entry<K, V> previous;
+
+				@Override public boolean hasNext()
+				{
+					return iterator.hasNext();
+				}
+
+				@Override public Entry<K, V> next()
+				{
+					previous = iterator.next();
+					return previous;
+				}
+
+				@Override public void remove()
+				{
+					if (previous == null)
+						throw new IllegalStateException();
+
+					CombiningTreeMap.this.remove(previous.getKey());
+					previous = null;
+				}
+			};
+		}
+
+		/**
+		 * Removes all of the entries from the {@link CombiningTreeMap}.
+		 */
+		@Override public void clear()
+		{
+			CombiningTreeMap.this.clear();
+		}
+	}
+
+	/**
+	 * Publishes the provided operation in the slot of the current thread, and waits until it has been applied, either
+	 * by another thread acting as the combiner, or by the current thread after acquiring the lock.
+	 *
+	 * @param key       The key of the operation.
+	 * @param value     The value of the operation.
+	 * @param operation The operation.
+	 *
+	 * @return The value mapped to the key before the operation was applied.
+	 * @throws RuntimeException if applying the operation threw, such as the comparator rejecting the key
+	 */
+	private V submit(K key, V value, int operation)
+	{
+		Slot<K, V> slot = this.slot.get();
+		slot.key = key;
+		slot.value = value;
+		slot.operation = operation;
+		slot.state = PENDING;
+
+		while (slot.state != DONE) {
+			if (lock.tryLock()) {
+				try {
+					combine();
+				} catch (RuntimeException | Error e) {
+					// Withdraw the operation while holding the lock, so no later combiner applies it
+					reset(slot);
+					throw e;
+				} finally {
+					lock.unlock();
+				}
+			} else {
+				while (slot.state != DONE && lock.isLocked())
+					Thread.yield();
+			}
+		}
+
+		V         result  = slot.result;
+		Throwable failure = slot.failure;
+		reset(slot);
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+
+		return result;
+	}
+
+	/**
+	 * Clears the operation of the provided slot, and marks it {@link #IDLE}.
+	 *
+	 * @param slot The slot.
+	 */
+	private static void reset(Slot<?, ?> slot)
+	{
+		slot.key = null;
+		slot.value = null;
+		slot.result = null;
+		slot.failure = null;
+		slot.state = IDLE;
+	}
+
+	/**
+	 * Collects the pending operations of all slots, sorts them by key, and applies them in a single pass over the
+	 * tree. An operation whose key the comparator rejects fails on its own: its exception is handed to its slot, to be
+	 * thrown by the thread that submitted it, while the other operations are applied. The caller must hold the lock.
+	 */
+	private void combine()
+	{
+		int count = collect();
+		try {
+			Arrays.sort(batch, 0, count, slotComparator);
+		} catch (RuntimeException | Error e) {
+			// The failed sort may have left the batch in any state, so the operations are applied unsorted instead
+			count = collect();
+		}
+
+		for (int x = 0; x < count; x++) {
+			keys[x] = batch[x].key;
+			values[x] = batch[x].value;
+			operations[x] = batch[x].operation;
+		}
+
+		map.applyAll(keys, values, operations, results, failures, count);
+		for (int x = 0; x < count; x++) {
+			Slot<K, V> slot = batch[x];
+			slot.result = results[x];
+			slot.failure = failures[x];
+			slot.state = DONE;
+			batch[x] = null;
+			keys[x] = null;
+			values[x] = null;
+			results[x] = null;
+			failures[x] = null;
+		}
+	}
+
+	/**
+	 * Collects the slots with pending operations into {@link #batch}.
+	 *
+	 * @return The number of collected slots.
+	 */
+	private int collect()
+	{
+		int count = 0;
+		for (Slot<K, V> slot : slots) {
+			if (slot.state == PENDING) {
+				if (count == batch.length)
+					grow();
+				batch[count++] = slot;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Doubles the capacity of the arrays used by the combiner.
+	 */
+	private void grow()
+	{
+		int capacity = batch.length * 2;
+		batch = Arrays.copyOf(batch, capacity);
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+		operations = Arrays.copyOf(operations, capacity);
+		results = Arrays.copyOf(results, capacity);
+		failures = Arrays.copyOf(failures, capacity);
+	}
+}
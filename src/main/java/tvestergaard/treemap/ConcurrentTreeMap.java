@@ -0,0 +1,636 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.*;
+
+/**
+ * Thread-safe variant of the {@link TreeMap}. Readers search the tree optimistically without taking a lock, and
+ * validate the result against a {@link StampedLock} stamp afterwards. Only when a writer was active during the search
+ * does the reader retry while holding the read lock. Writers take the exclusive write lock.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class ConcurrentTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
+{
+
+	/**
+	 * The {@link TreeMap} holding the entries.
+	 */
+	private final TreeMap<K, V> map;
+
+	/**
+	 * The lock guarding {@link #map}.
+	 */
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * Cached {@link ConcurrentTreeMapEntrySet} that can be returned from the {@link #entrySet()} method.
+	 */
+	private ConcurrentTreeMapEntrySet cacheEntrySet;
+
+	/**
+	 * Creates a new {@link ConcurrentTreeMap} using the provided <code>comparator</code>.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link ConcurrentTreeMap}.
+	 */
+	public ConcurrentTreeMap(Comparator<K> comparator)
+	{
+		this.map = new TreeMap<>(comparator);
+	}
+
+	/**
+	 * Creates a new {@link ConcurrentTreeMap} using the provided <code>comparator</code>. The map is then filled with
+	 * the entries from the provided <code>map</code>.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link ConcurrentTreeMap}.
+	 * @param map        The map from where the entries are taken and inserted into <code>this</code>.
+	 */
+	public ConcurrentTreeMap(Comparator<K> comparator, Map<? extends K, ? extends V> map)
+	{
+		this.map = new TreeMap<>(comparator, map);
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		long stamp = lock.tryOptimisticRead();
+		int  size  = map.size();
+		if (lock.validate(stamp))
+			return size;
+
+		stamp = lock.readLock();
+		try {
+			return map.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains no key-value mappings.
+	 *
+	 * @return <tt>true</tt> if this map contains no key-value mappings
+	 */
+	@Override public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key. The tree is searched without
+	 * locking, unless a writer modifies the tree during the search.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		@SuppressWarnings("unchecked")
+		K    k     = (K) key;
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			boolean contains = map.getNodeBounded(k) != null;
+			if (lock.validate(stamp))
+				return contains;
+		}
+
+		stamp = lock.readLock();
+		try {
+			return map.getNodeBounded(k) != null;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map maps one or more keys to the specified value. Holds the read lock while
+	 * searching.
+	 *
+	 * @param value The value whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map maps one or more keys to the specified value.
+	 */
+	@Override public boolean containsValue(Object value)
+	{
+		long stamp = lock.readLock();
+		try {
+			return map.containsValue(value);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key. The tree is searched without locking, unless a writer modifies the tree during the search.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
+	 */
+	@Override public V get(Object key)
+	{
+		return getOrDefault(key, null);
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or <code>defaultValue</code> if this map contains no
+	 * mapping for the key. The tree is searched without locking, unless a writer modifies the tree during the search.
+	 *
+	 * @param key          the key whose associated value is to be returned
+	 * @param defaultValue the default mapping of the key
+	 *
+	 * @return the value to which the specified key is mapped, or <code>defaultValue</code> if this map contains no
+	 * mapping for the key
+	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
+	 */
+	@Override public V getOrDefault(Object key, V defaultValue)
+	{
+		@SuppressWarnings("unchecked")
+		K    k     = (K) key;
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			TreeMap.Node<K, V> node  = map.getNodeBounded(k);
+			V                  value = node == null ? defaultValue : node.getValue();
+			if (lock.validate(stamp))
+				return value;
+		}
+
+		stamp = lock.readLock();
+		try {
+			TreeMap.Node<K, V> node = map.getNodeBounded(k);
+			return node == null ? defaultValue : node.getValue();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns a copy of the entry with the smallest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return A copy of the entry with the smallest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> firstEntry()
+	{
+		return read(() -> copy(map.firstEntry()));
+	}
+
+	/**
+	 * Returns a copy of the entry with the greatest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return A copy of the entry with the greatest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> lastEntry()
+	{
+		return read(() -> copy(map.lastEntry()));
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map. Holds the write lock.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@Override public V put(K key, V value)
+	{
+		long stamp = lock.writeLock();
+		try {
+			return map.put(key, value);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the mapping for the specified key from this map if present. Holds the write lock.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@Override public V remove(Object key)
+	{
+		long stamp = lock.writeLock();
+		try {
+			return map.remove(key);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Copies all of the mappings from the specified map to this map. The write lock is held while copying, so readers
+	 * observe either none or all of the mappings.
+	 *
+	 * @param m mappings to be stored in this map.
+	 */
+	@Override public void putAll(Map<? extends K, ? extends V> m)
+	{
+		long stamp = lock.writeLock();
+		try {
+			map.putAll(m);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes all of the mappings from this map.
+	 */
+	@Override public void clear()
+	{
+		long stamp = lock.writeLock();
+		try {
+			map.clear();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes and returns the entry with the smallest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return The removed entry, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> pollFirstEntry()
+	{
+		return write(() -> copy(map.pollFirstEntry()));
+	}
+
+	/**
+	 * Removes and returns the entry with the greatest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return The removed entry, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> pollLastEntry()
+	{
+		return write(() -> copy(map.pollLastEntry()));
+	}
+
+	/**
+	 * Associates the value with the key, if the key is not already associated with a value. Atomic with respect to
+	 * other operations on this map.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 */
+	@Override public V putIfAbsent(K key, V value)
+	{
+		return write(() -> map.putIfAbsent(key, value));
+	}
+
+	/**
+	 * Removes the entry for a key only if currently mapped to a given value. Atomic with respect to other operations
+	 * on this map.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value expected to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was removed
+	 */
+	@Override public boolean remove(Object key, Object value)
+	{
+		return write(() -> {
+			if (!map.containsKey(key) || !Objects.equals(map.get(key), value))
+				return false;
+
+			map.remove(key);
+			return true;
+		});
+	}
+
+	/**
+	 * Replaces the entry for a key only if currently mapped to a given value. Atomic with respect to other operations
+	 * on this map.
+	 *
+	 * @param key      key with which the specified value is associated
+	 * @param oldValue value expected to be associated with the specified key
+	 * @param newValue value to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was replaced
+	 */
+	@Override public boolean replace(K key, V oldValue, V newValue)
+	{
+		return write(() -> {
+			if (!map.containsKey(key) || !Objects.equals(map.get(key), oldValue))
+				return false;
+
+			map.put(key, newValue);
+			return true;
+		});
+	}
+
+	/**
+	 * Replaces the entry for a key only if currently mapped to some value. Atomic with respect to other operations on
+	 * this map.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 */
+	@Override public V replace(K key, V value)
+	{
+		return write(() -> map.containsKey(key) ? map.put(key, value) : null);
+	}
+
+	/**
+	 * Computes the value of an absent key while holding the write lock. The mapping function must not access this
+	 * map.
+	 *
+	 * @param key             key with which the specified value is to be associated
+	 * @param mappingFunction the function to compute a value
+	 *
+	 * @return the current (existing or computed) value associated with the specified key, or null if the computed
+	 * value is null
+	 */
+	@Override public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+	{
+		return write(() -> map.computeIfAbsent(key, mappingFunction));
+	}
+
+	/**
+	 * Computes the value of a present key while holding the write lock. The remapping function must not access this
+	 * map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		return write(() -> map.computeIfPresent(key, remappingFunction));
+	}
+
+	/**
+	 * Computes the value of a key while holding the write lock. The remapping function must not access this map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		return write(() -> map.compute(key, remappingFunction));
+	}
+
+	/**
+	 * Merges the value of a key while holding the write lock. The remapping function must not access this map.
+	 *
+	 * @param key               key with which the resulting value is to be associated
+	 * @param value             the non-null value to be merged with the existing value
+	 * @param remappingFunction the function to recompute a value if present
+	 *
+	 * @return the new value associated with the specified key, or null if no value is associated with the key
+	 */
+	@Override public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+	{
+		return write(() -> map.merge(key, value, remappingFunction));
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map. The iterators of the set iterate over a copy
+	 * of the entries taken under the read lock when the iterator is created, so they never observe concurrent writes.
+	 * Removing through an iterator removes the key from the map.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null)
+			cacheEntrySet = new ConcurrentTreeMapEntrySet();
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Set view of the entries in the {@link ConcurrentTreeMap}.
+	 */
+	private final class ConcurrentTreeMapEntrySet extends AbstractSet<Entry<K, V>>
+	{
+
+		/**
+		 * Returns the number of entries in the {@link ConcurrentTreeMap}.
+		 *
+		 * @return The number of entries in the {@link ConcurrentTreeMap}.
+		 */
+		@Override public int size()
+		{
+			return ConcurrentTreeMap.this.size();
+		}
+
+		/**
+		 * Returns <tt>true</tt> if the {@link ConcurrentTreeMap} contains the specified entry.
+		 *
+		 * @param o entry whose presence is to be tested
+		 *
+		 * @return <tt>true</tt> if the {@link ConcurrentTreeMap} contains the specified entry
+		 */
+		@Override public boolean contains(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			@SuppressWarnings("unchecked")
+			K           key   = (K) entry.getKey();
+			return read(() -> {
+				TreeMap.Node<K, V> node = map.getNodeBounded(key);
+				return node != null && Objects.equals(node.getValue(), entry.getValue());
+			});
+		}
+
+		/**
+		 * Removes the specified entry from the {@link ConcurrentTreeMap} if it is present.
+		 *
+		 * @param o entry to be removed, if present
+		 *
+		 * @return <tt>true</tt> if the {@link ConcurrentTreeMap} contained the specified entry
+		 */
+		@Override public boolean remove(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			return ConcurrentTreeMap.this.remove(entry.getKey(), entry.getValue());
+		}
+
+		/**
+		 * Returns an iterator over a copy of the entries, in ascending order by key.
+		 *
+		 * @return an iterator over a copy of the entries
+		 */
+		@Override public Iterator<Entry<K, V>> iterator()
+		{
+			return new ConcurrentTreeMapEntryIterator();
+		}
+
+		/**
+		 * Removes all of the entries from the {@link ConcurrentTreeMap}.
+		 */
+		@Override public void clear()
+		{
+			ConcurrentTreeMap.this.clear();
+		}
+	}
+
+	/**
+	 * Iterator over a copy of the entries in the {@link ConcurrentTreeMap}.
+	 */
+	private final class ConcurrentTreeMapEntryIterator implements Iterator<Entry<K, V>>
+	{
+
+		/**
+		 * The copied entries.
+		 */
+		private final Object[] entries;
+
+		/**
+		 * The index of the next entry to return.
+		 */
+		private int next;
+
+		/**
+		 * The previously returned entry.
+		 */
+		private Entry<K, V> previous;
+
+		/**
+		 * Creates a new {@link ConcurrentTreeMapEntryIterator}, copying the entries while holding the read lock.
+		 */
+		ConcurrentTreeMapEntryIterator()
+		{
+			long stamp = lock.readLock();
+			try {
+				entries = new Object[map.size()];
+				int index = 0;
+				for (Entry<K, V> entry : map.entrySet())
+					entries[index++] = copy(entry);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			return next < entries.length;
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Entry<K, V> next()
+		{
+			if (next >= entries.length)
+				throw new NoSuchElementException();
+
+			@SuppressWarnings("unchecked")
+			Entry<K, V> entry = (Entry<K, V>) entries[next++];
+			previous = entry;
+			return previous;
+		}
+
+		/**
+		 * Removes the key of the previously returned entry from the {@link ConcurrentTreeMap}.
+		 *
+		 * @throws IllegalStateException if the {@code next} method has not yet been called, or the {@code remove}
+		 *                               method has already been called after the last call to the {@code next} method
+		 */
+		@Override public void remove()
+		{
+			if (previous == null)
+				throw new IllegalStateException();
+
+			ConcurrentTreeMap.this.remove(previous.getKey());
+			previous = null;
+		}
+	}
+
+	/**
+	 * Performs the provided read operation optimistically, and repeats it under the read lock when a writer modified
+	 * the map concurrently. The operation may observe the tree in an inconsistent state during the optimistic attempt,
+	 * so it must only use bounded searches and must not have side effects.
+	 *
+	 * @param operation The read operation to perform.
+	 * @param <R>       The result type of the operation.
+	 *
+	 * @return The result of the operation.
+	 */
+	private <R> R read(Supplier<R> operation)
+	{
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			R result = operation.get();
+			if (lock.validate(stamp))
+				return result;
+		}
+
+		stamp = lock.readLock();
+		try {
+			return operation.get();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Performs the provided write operation while holding the write lock.
+	 *
+	 * @param operation The write operation to perform.
+	 * @param <R>       The result type of the operation.
+	 *
+	 * @return The result of the operation.
+	 */
+	private <R> R write(Supplier<R> operation)
+	{
+		long stamp = lock.writeLock();
+		try {
+			return operation.get();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Returns an immutable copy of the provided entry, so that the key and value can be read after the lock is
+	 * released.
+	 *
+	 * @param entry The entry to copy. May be <code>null</code>.
+	 *
+	 * @return The copy, or <code>null</code> if the provided entry is <code>null</code>.
+	 */
+	private static <K, V> Entry<K, V> copy(Entry<K, V> entry)
+	{
+		return entry == null ? null : new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+	}
+}
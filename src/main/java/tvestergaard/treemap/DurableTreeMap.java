@@ -0,0 +1,564 @@
+package tvestergaard.treemap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Thread-safe {@link TreeMap} whose mutations are made durable using a write-ahead log. Every mutation is appended to
+ * the log as a record before its method returns, and when the map is opened, the records in the log are replayed
+ * into the tree.
+ * <p>
+ * Forcing the log to the storage device is expensive, so it is done using group commit. A writer appends its record to
+ * an in-memory buffer and applies the mutation while holding the map lock, and then waits until the log has been
+ * forced past its record. The first waiting writer becomes the leader: it writes the whole buffer, containing the
+ * records of all writers that arrived in the meantime, and forces the log once on their behalf. Under contention the
+ * batches grow, so the number of forces stays low while every writer still observes its own write as durable.
+ * <p>
+ * A mutation is applied to the tree before its record is forced, so readers on other threads can observe a mutation
+ * whose method has not returned yet, and which is lost if the process crashes before the log is forced. Only
+ * mutations whose methods have returned are guaranteed to survive a crash. When the tree rejects a mutation, for
+ * example because the comparator rejects its key, the record is removed from the buffer again, so the log never
+ * contains a record that cannot be replayed.
+ * <p>
+ * Each record is prefixed with its length and a CRC32 checksum. A record torn by a crash fails the checksum, so replay
+ * stops there, and the log is truncated to the last complete record. Keys cannot be <code>null</code>. Iterators
+ * iterate a copy of the entries taken when the iterator is created.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class DurableTreeMap<K, V> extends AbstractMap<K, V> implements Closeable
+{
+
+	/**
+	 * Record associating a value with a key.
+	 */
+	private static final byte PUT = 1;
+
+	/**
+	 * Record removing a key.
+	 */
+	private static final byte REMOVE = 2;
+
+	/**
+	 * Record removing all keys.
+	 */
+	private static final byte CLEAR = 3;
+
+	/**
+	 * The entries in the {@link DurableTreeMap}.
+	 */
+	private final TreeMap<K, V> map;
+
+	/**
+	 * The codec writing and reading the keys.
+	 */
+	private final Codec<K> keyCodec;
+
+	/**
+	 * The codec writing and reading the values.
+	 */
+	private final Codec<V> valueCodec;
+
+	/**
+	 * The log file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The lock guarding {@link #map}, {@link #buffer} and {@link #appended}.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The lock held by the leader while writing and forcing the log.
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+
+	/**
+	 * The records appended but not yet written to the log file.
+	 */
+	private final LogBuffer buffer = new LogBuffer();
+
+	/**
+	 * Encodes the payload of a record before it is appended to {@link #buffer}.
+	 */
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+	/**
+	 * Writes to {@link #record}.
+	 */
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+
+	/**
+	 * The position in the log after the last appended record.
+	 */
+	private long appended;
+
+	/**
+	 * The position in the log up to which the records have been forced to the storage device.
+	 */
+	private volatile long durable;
+
+	/**
+	 * The number of times the log has been forced.
+	 */
+	private volatile long syncs;
+
+	/**
+	 * The error that occurred while writing the log. Once the log could not be written, the map no longer accepts
+	 * mutations, since the tree contains mutations that may not be in the log.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Cached entry set, returned from the {@link #entrySet()} method.
+	 */
+	private Set<Entry<K, V>> cacheEntrySet;
+
+	/**
+	 * Opens the {@link DurableTreeMap} logged in the provided file, replaying the records in the log. The log is
+	 * created when it does not exist.
+	 *
+	 * @param log        The log file.
+	 * @param comparator The comparator used when comparing the keys in the {@link DurableTreeMap}.
+	 * @param keyCodec   The codec writing and reading the keys.
+	 * @param valueCodec The codec writing and reading the values.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public DurableTreeMap(Path log, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec)
+			throws IOException
+	{
+		this.map = new TreeMap<>(comparator);
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ,
+										StandardOpenOption.WRITE);
+		try {
+			this.appended = replay();
+			this.durable = appended;
+			channel.truncate(appended);
+			channel.position(appended);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		lock.lock();
+		try {
+			return map.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		lock.lock();
+		try {
+			return map.containsKey(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 */
+	@Override public V get(Object key)
+	{
+		lock.lock();
+		try {
+			return map.get(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map, and waits until the mutation is durable.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@Override public V put(K key, V value)
+	{
+		V    result;
+		long position;
+		lock.lock();
+		try {
+			result = apply(key, value);
+			position = appended;
+		} finally {
+			lock.unlock();
+		}
+
+		awaitDurable(position);
+		return result;
+	}
+
+	/**
+	 * Copies all of the mappings from the specified map to this map, and waits until the mutations are durable. The
+	 * mutations are forced to the log together. When a mapping is rejected, the mappings before it remain in the map
+	 * and are still logged.
+	 *
+	 * @param m mappings to be stored in this map
+	 */
+	@Override public void putAll(Map<? extends K, ? extends V> m)
+	{
+		long position;
+		lock.lock();
+		try {
+			for (Entry<? extends K, ? extends V> entry : m.entrySet())
+				apply(entry.getKey(), entry.getValue());
+			position = appended;
+		} finally {
+			lock.unlock();
+		}
+
+		awaitDurable(position);
+	}
+
+	/**
+	 * Removes the mapping for a key from this map if it is present, and waits until the mutation is durable.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V remove(Object key)
+	{
+		V    result;
+		long position;
+		lock.lock();
+		try {
+			if (!map.containsKey(key))
+				return null;
+
+			append(REMOVE, (K) key, null);
+			result = map.remove(key);
+			position = appended;
+		} finally {
+			lock.unlock();
+		}
+
+		awaitDurable(position);
+		return result;
+	}
+
+	/**
+	 * Removes all of the mappings from this map, and waits until the mutation is durable.
+	 */
+	@Override public void clear()
+	{
+		long position;
+		lock.lock();
+		try {
+			append(CLEAR, null, null);
+			map.clear();
+			position = appended;
+		} finally {
+			lock.unlock();
+		}
+
+		awaitDurable(position);
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map, iterated in ascending order by key. Iterators
+	 * iterate a copy of the entries, and removing an entry using an iterator removes it durably from the map.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null) {
+			cacheEntrySet = new AbstractSet<Entry<K, V>>()
+			{
+				@Override public Iterator<Entry<K, V>> iterator()
+				{
+					List<Entry<K, V>> copy;
+					lock.lock();
+					try {
+						copy = new ArrayList<>(map.size());
+						for (Entry<K, V> entry : map.entrySet())
+							copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+					} finally {
+						lock.unlock();
+					}
+
+					Iterator<Entry<K, V>> iterator = copy.iterator();
+					return new Iterator<Entry<K, V>>()
+					{
+						private Entry<K, V> last;
+
+						@Override public boolean hasNext()
+						{
+							return iterator.hasNext();
+						}
+
+						@Override public Entry<K, V> next()
+						{
+							return last = iterator.next();
+						}
+
+						@Override public void remove()
+						{
+							if (last == null)
+								throw new IllegalStateException();
+
+							DurableTreeMap.this.remove(last.getKey());
+							last = null;
+						}
+					};
+				}
+
+				@Override public int size()
+				{
+					return DurableTreeMap.this.size();
+				}
+
+				@Override public void clear()
+				{
+					DurableTreeMap.this.clear();
+				}
+			};
+		}
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Returns the number of times the log has been forced to the storage device. With group commit, this is usually
+	 * less than the number of mutations.
+	 *
+	 * @return The number of times the log has been forced.
+	 */
+	public long syncs()
+	{
+		return syncs;
+	}
+
+	/**
+	 * Closes the log file. All mutations have already been forced to the log when their methods returned.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override public void close() throws IOException
+	{
+		syncLock.lock();
+		try {
+			channel.close();
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Appends a {@link #PUT} record and applies it to the tree. Must be called while holding {@link #lock}. When the
+	 * tree rejects the key, the record is discarded before the exception is rethrown, so it is never written to the
+	 * log, where it would fail again during replay.
+	 *
+	 * @param key   The key.
+	 * @param value The value.
+	 *
+	 * @return The value previously mapped to the key.
+	 */
+	private V apply(K key, V value)
+	{
+		int  size     = buffer.size();
+		long position = appended;
+		append(PUT, key, value);
+		try {
+			return map.put(key, value);
+		} catch (RuntimeException | Error e) {
+			buffer.truncate(size);
+			appended = position;
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends a record to {@link #buffer}. Must be called while holding {@link #lock}, before the mutation is applied
+	 * to the tree, so a record that cannot be encoded leaves the map unchanged.
+	 *
+	 * @param operation The operation of the record.
+	 * @param key       The key of the record, or <code>null</code> for {@link #CLEAR}.
+	 * @param value     The value of the record, only written for {@link #PUT}.
+	 */
+	private void append(byte operation, K key, V value)
+	{
+		if (failure != null)
+			throw new UncheckedIOException("The log could not be written.", failure);
+
+		try {
+			record.reset();
+			recordOut.writeByte(operation);
+			if (operation != CLEAR)
+				keyCodec.write(key, recordOut);
+			if (operation == PUT)
+				valueCodec.write(value, recordOut);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		byte[] payload  = record.toByteArray();
+		CRC32  checksum = new CRC32();
+		checksum.update(payload);
+		writeInt(payload.length);
+		writeInt((int) checksum.getValue());
+		buffer.write(payload, 0, payload.length);
+		appended += 8 + payload.length;
+	}
+
+	/**
+	 * Writes the provided integer to {@link #buffer} in big-endian order.
+	 *
+	 * @param value The integer to write.
+	 */
+	private void writeInt(int value)
+	{
+		buffer.write(value >>> 24);
+		buffer.write(value >>> 16);
+		buffer.write(value >>> 8);
+		buffer.write(value);
+	}
+
+	/**
+	 * Waits until the log has been forced to the storage device up to the provided position. When no other writer is
+	 * forcing the log, the calling writer becomes the leader, and writes and forces all appended records.
+	 *
+	 * @param position The position in the log to wait for.
+	 */
+	private void awaitDurable(long position)
+	{
+		if (durable >= position)
+			return;
+
+		syncLock.lock();
+		try {
+			if (durable >= position)
+				return;
+			if (failure != null)
+				throw new UncheckedIOException("The log could not be written.", failure);
+
+			byte[] batch;
+			long   end;
+			lock.lock();
+			try {
+				batch = buffer.toByteArray();
+				buffer.reset();
+				end = appended;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(batch);
+				while (bytes.hasRemaining())
+					channel.write(bytes);
+				channel.force(false);
+			} catch (IOException e) {
+				failure = e;
+				throw new UncheckedIOException(e);
+			}
+
+			syncs++;
+			durable = end;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Replays the records in the log into the tree.
+	 *
+	 * @return The position in the log after the last complete record.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private long replay() throws IOException
+	{
+		DataInputStream in       = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+		long            end      = channel.size();
+		long            position = 0;
+		while (end - position >= 8) {
+			int length   = in.readInt();
+			int expected = in.readInt();
+			if (length <= 0 || length > end - position - 8)
+				break;
+
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			CRC32 checksum = new CRC32();
+			checksum.update(payload);
+			if ((int) checksum.getValue() != expected)
+				break;
+
+			DataInputStream record    = new DataInputStream(new ByteArrayInputStream(payload));
+			byte            operation = record.readByte();
+			if (operation == PUT)
+				map.put(keyCodec.read(record), valueCodec.read(record));
+			else if (operation == REMOVE)
+				map.remove(keyCodec.read(record));
+			else if (operation == CLEAR)
+				map.clear();
+			else
+				break;
+
+			position += 8 + length;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Buffer holding the records appended but not yet written, which can discard the records appended last.
+	 */
+	private static final class LogBuffer extends ByteArrayOutputStream
+	{
+
+		/**
+		 * Discards the bytes written after the provided size.
+		 *
+		 * @param size The number of bytes to keep.
+		 */
+		void truncate(int size)
+		{
+			count = size;
+		}
+	}
+}
@@ -0,0 +1,842 @@
+package tvestergaard.treemap;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BinaryOperator;
+
+/**
+ * Builds a sorted map from unsorted entries that may not fit in memory. The entries are buffered in memory until the
+ * memory budget is reached, when the buffer is sorted and spilled to a temporary run file. When the map is built, the
+ * runs and the remaining buffer are merged using a k-way merge, which reads each run sequentially. When there are more
+ * than {@link #FAN_IN} runs, the oldest runs are first merged into larger runs, so the number of open files stays
+ * bounded.
+ * <p>
+ * When no run was spilled, all entries fit in memory, and the map is built as a balanced {@link TreeMap} directly from
+ * the sorted buffer. Otherwise the merged entries are streamed to a {@link MappedSnapshot} file. Both can also be
+ * requested explicitly using {@link #toTreeMap()} and {@link #toSnapshot(Path)}. The progress of the build can be
+ * monitored from other threads using {@link #progress()}.
+ * <p>
+ * Duplicate keys are combined using a merge function, in the order the entries were added, like {@link
+ * TreeMap#fromArrays(Comparator, Object[], Object[], BinaryOperator)}. The runs therefore hold the duplicates of a key
+ * in the order they were added, and the values are only combined by the final merge, so the merge function does not
+ * need to be associative. The builder is not thread-safe, except for {@link #progress()}, and can only build a single
+ * map.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class ExternalTreeMapBuilder<K, V> implements Closeable
+{
+
+	/**
+	 * The maximum number of runs merged at once.
+	 */
+	static final int FAN_IN = 64;
+
+	/**
+	 * The phases of a build.
+	 */
+	public enum Phase
+	{
+		/**
+		 * Entries are being added and spilled.
+		 */
+		ADDING,
+
+		/**
+		 * The runs are being merged.
+		 */
+		MERGING,
+
+		/**
+		 * The map has been built.
+		 */
+		DONE
+	}
+
+	/**
+	 * The directory containing the run files.
+	 */
+	private final Path directory;
+
+	/**
+	 * The comparator used when comparing the keys.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * The codec writing and reading the keys.
+	 */
+	private final Codec<K> keyCodec;
+
+	/**
+	 * The codec writing and reading the values.
+	 */
+	private final Codec<V> valueCodec;
+
+	/**
+	 * The maximum number of entries buffered in memory.
+	 */
+	private final int memoryBudget;
+
+	/**
+	 * The function combining the values of a duplicate key, in the order the values were added.
+	 */
+	private final BinaryOperator<V> mergeFunction;
+
+	/**
+	 * The run files, oldest first.
+	 */
+	private final List<Path> runs = new ArrayList<>();
+
+	/**
+	 * The buffered keys.
+	 */
+	private K[] keys;
+
+	/**
+	 * The buffered values.
+	 */
+	private V[] values;
+
+	/**
+	 * The number of buffered entries.
+	 */
+	private int buffered;
+
+	/**
+	 * The current phase.
+	 */
+	private volatile Phase phase = Phase.ADDING;
+
+	/**
+	 * The number of added entries.
+	 */
+	private volatile long added;
+
+	/**
+	 * The number of bytes written to run files, including the runs written by intermediate merges.
+	 */
+	private volatile long spilledBytes;
+
+	/**
+	 * The number of spilled runs, including the runs written by intermediate merges.
+	 */
+	private volatile int spilledRuns;
+
+	/**
+	 * The number of added entries read by the final merge.
+	 */
+	private volatile long read;
+
+	/**
+	 * The number of entries emitted by the final merge.
+	 */
+	private volatile long merged;
+
+	/**
+	 * The value of {@link System#nanoTime()} when the builder was created.
+	 */
+	private final long started = System.nanoTime();
+
+	/**
+	 * The value of {@link System#nanoTime()} when the merge started, or zero before.
+	 */
+	private volatile long mergeStarted;
+
+	/**
+	 * The value of {@link System#nanoTime()} when the build finished, or zero before.
+	 */
+	private volatile long finished;
+
+	/**
+	 * Creates a new {@link ExternalTreeMapBuilder} keeping the value added last for duplicate keys.
+	 *
+	 * @param directory    The directory to spill the run files to.
+	 * @param comparator   The comparator used when comparing the keys.
+	 * @param keyCodec     The codec writing and reading the keys.
+	 * @param valueCodec   The codec writing and reading the values.
+	 * @param memoryBudget The maximum number of entries buffered in memory.
+	 *
+	 * @throws IllegalArgumentException if <code>memoryBudget</code> is less than one
+	 */
+	public ExternalTreeMapBuilder(Path directory, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec,
+								  int memoryBudget)
+	{
+		this(directory, comparator, keyCodec, valueCodec, memoryBudget, (a, b) -> b);
+	}
+
+	/**
+	 * Creates a new {@link ExternalTreeMapBuilder}.
+	 *
+	 * @param directory     The directory to spill the run files to.
+	 * @param comparator    The comparator used when comparing the keys.
+	 * @param keyCodec      The codec writing and reading the keys.
+	 * @param valueCodec    The codec writing and reading the values.
+	 * @param memoryBudget  The maximum number of entries buffered in memory.
+	 * @param mergeFunction The function combining the values of a duplicate key, in the order the values were added.
+	 *                      When the function returns <code>null</code>, the key is removed.
+	 *
+	 * @throws IllegalArgumentException if <code>memoryBudget</code> is less than one
+	 */
+	public ExternalTreeMapBuilder(Path directory, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec,
+								  int memoryBudget, BinaryOperator<V> mergeFunction)
+	{
+		if (memoryBudget < 1)
+			throw new IllegalArgumentException();
+
+		this.directory = directory;
+		this.comparator = comparator;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.memoryBudget = memoryBudget;
+		this.mergeFunction = mergeFunction;
+		@SuppressWarnings("unchecked")
+		K[] keys = (K[]) new Object[Math.min(memoryBudget, 1024)];
+		@SuppressWarnings("unchecked")
+		V[] values = (V[]) new Object[keys.length];
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * Adds the provided entry. When the buffer is full, it is sorted and spilled to a run file.
+	 *
+	 * @param key   The key.
+	 * @param value The value.
+	 *
+	 * @throws IOException           if an I/O error occurs while spilling
+	 * @throws IllegalStateException if the map has already been built
+	 */
+	public void add(K key, V value) throws IOException
+	{
+		checkAdding();
+		if (buffered == keys.length) {
+			if (buffered == memoryBudget)
+				spill();
+			else {
+				keys = Arrays.copyOf(keys, (int) Math.min(memoryBudget, 2L * keys.length));
+				values = Arrays.copyOf(values, keys.length);
+			}
+		}
+
+		keys[buffered] = key;
+		values[buffered++] = value;
+		added++;
+	}
+
+	/**
+	 * Builds the map. When all entries fit in the memory budget, they are built into a {@link TreeMap}. Otherwise the
+	 * runs are merged into a {@link MappedSnapshot} written to the provided file.
+	 *
+	 * @param file The snapshot file written when the entries did not fit in memory.
+	 *
+	 * @return The built map.
+	 * @throws IOException           if an I/O error occurs
+	 * @throws IllegalStateException if the map has already been built
+	 */
+	public Map<K, V> build(Path file) throws IOException
+	{
+		return runs.isEmpty() ? toTreeMap() : toSnapshot(file);
+	}
+
+	/**
+	 * Builds the entries into a balanced {@link TreeMap}, which must fit in memory. The tree is linked from the merged
+	 * entries, which are already sorted, without comparisons or rotations.
+	 *
+	 * @return The built map.
+	 * @throws IOException           if an I/O error occurs
+	 * @throws IllegalStateException if the map has already been built
+	 */
+	public TreeMap<K, V> toTreeMap() throws IOException
+	{
+		checkAdding();
+		phase = Phase.MERGING;
+		mergeStarted = System.nanoTime();
+		try {
+			if (runs.isEmpty()) {
+				TreeMap<K, V> result = TreeMap.fromArrays(comparator, Arrays.copyOf(keys, buffered),
+														  Arrays.copyOf(values, buffered), mergeFunction);
+				read = buffered;
+				merged = result.size();
+				return result;
+			}
+
+			List<TreeMap.Node<K, V>> nodes = new ArrayList<>();
+			try (Merge merge = merge()) {
+				while (merge.hasNext()) {
+					Map.Entry<K, V> entry = merge.next();
+					nodes.add(new TreeMap.Node<>(entry.getKey(), entry.getValue()));
+				}
+			}
+
+			TreeMap.Node<K, V>[] sorted = nodes.toArray(TreeMap.newNodes(nodes.size()));
+			return TreeMap.fromSortedNodes(comparator, sorted, sorted.length);
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Merges the entries into a {@link MappedSnapshot} written to the provided file, and opens the snapshot. The
+	 * merged entries are streamed to the file, so they do not need to fit in memory.
+	 *
+	 * @param file The snapshot file.
+	 *
+	 * @return The opened snapshot.
+	 * @throws IOException           if an I/O error occurs
+	 * @throws IllegalStateException if the map has already been built
+	 */
+	public MappedSnapshot<K, V> toSnapshot(Path file) throws IOException
+	{
+		checkAdding();
+		phase = Phase.MERGING;
+		mergeStarted = System.nanoTime();
+		try {
+			try (Merge merge = merge()) {
+				MappedSnapshot.write(file, merge, keyCodec, valueCodec);
+			}
+
+			return new MappedSnapshot<>(file, comparator, keyCodec, valueCodec);
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Returns the progress of the build. Can be called from any thread.
+	 *
+	 * @return The progress of the build.
+	 */
+	public Progress progress()
+	{
+		long now   = System.nanoTime();
+		long merge = mergeStarted;
+		long end   = finished;
+		return new Progress(phase, added, spilledRuns, spilledBytes, read, merged,
+							(merge == 0 ? now : merge) - started,
+							merge == 0 ? 0 : (end == 0 ? now : end) - merge);
+	}
+
+	/**
+	 * Deletes the run files, abandoning the build when the map has not been built.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override public void close() throws IOException
+	{
+		keys = null;
+		values = null;
+		for (Path run : runs)
+			Files.deleteIfExists(run);
+		runs.clear();
+	}
+
+	/**
+	 * Throws an exception when the map has already been built.
+	 *
+	 * @throws IllegalStateException if the map has already been built
+	 */
+	private void checkAdding()
+	{
+		if (phase != Phase.ADDING || keys == null)
+			throw new IllegalStateException();
+	}
+
+	/**
+	 * Sorts the buffered entries and writes them to a new run file. The duplicate keys are not combined, so they are
+	 * combined in the order they were added by the final merge.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void spill() throws IOException
+	{
+		Iterator<Map.Entry<K, V>> sorted = sortBuffer();
+		Arrays.fill(keys, null);
+		Arrays.fill(values, null);
+		buffered = 0;
+		runs.add(writeRun(sorted));
+	}
+
+	/**
+	 * Returns the buffered entries sorted by key. The sort is stable, so the entries of a duplicate key stay in the
+	 * order they were added.
+	 *
+	 * @return The sorted entries.
+	 */
+	private Iterator<Map.Entry<K, V>> sortBuffer()
+	{
+		List<Map.Entry<K, V>> entries = new ArrayList<>(buffered);
+		for (int x = 0; x < buffered; x++)
+			entries.add(new AbstractMap.SimpleImmutableEntry<>(keys[x], values[x]));
+		entries.sort((a, b) -> comparator.compare(a.getKey(), b.getKey()));
+		return entries.iterator();
+	}
+
+	/**
+	 * Writes the provided sorted entries to a new run file. Each entry is preceded by a marker byte, and the entries
+	 * are followed by an end marker, so the number of entries does not need to be known in advance.
+	 *
+	 * @param entries The sorted entries.
+	 *
+	 * @return The run file.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Path writeRun(Iterator<? extends Map.Entry<K, V>> entries) throws IOException
+	{
+		Path run = Files.createTempFile(directory, "run-", ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run),
+																				  1 << 16))) {
+			while (entries.hasNext()) {
+				Map.Entry<K, V> entry = entries.next();
+				out.writeBoolean(true);
+				keyCodec.write(entry.getKey(), out);
+				valueCodec.write(entry.getValue(), out);
+			}
+			out.writeBoolean(false);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(run);
+			throw e;
+		}
+
+		spilledRuns++;
+		spilledBytes += Files.size(run);
+		return run;
+	}
+
+	/**
+	 * Returns the merge of the runs and the buffered entries. While there are more than {@link #FAN_IN} runs, the
+	 * oldest runs are merged into a single run first, keeping the duplicates of a key in the order they were added.
+	 *
+	 * @return The merge.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Merge merge() throws IOException
+	{
+		while (runs.size() > FAN_IN) {
+			List<Path> oldest = new ArrayList<>(runs.subList(0, FAN_IN));
+			Path       run;
+			try (Merge merge = new Merge(open(oldest), false)) {
+				run = writeRun(merge);
+			}
+
+			runs.subList(0, FAN_IN).clear();
+			runs.add(0, run);
+			for (Path path : oldest)
+				Files.delete(path);
+		}
+
+		List<Iterator<Map.Entry<K, V>>> sources = open(runs);
+		if (buffered > 0)
+			sources.add(sortBuffer());
+
+		return new Merge(sources, true);
+	}
+
+	/**
+	 * Opens readers of the provided run files.
+	 *
+	 * @param files The run files.
+	 *
+	 * @return The readers, in the order of the files.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private List<Iterator<Map.Entry<K, V>>> open(List<Path> files) throws IOException
+	{
+		List<Iterator<Map.Entry<K, V>>> result = new ArrayList<>(files.size() + 1);
+		try {
+			for (Path file : files)
+				result.add(new RunReader(file));
+		} catch (IOException | RuntimeException e) {
+			for (Iterator<Map.Entry<K, V>> reader : result)
+				((RunReader) reader).close();
+			throw e;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Marks the build as done, and deletes the run files.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void finish() throws IOException
+	{
+		phase = Phase.DONE;
+		finished = System.nanoTime();
+		close();
+	}
+
+	/**
+	 * The progress of a build at some point in time.
+	 */
+	public static final class Progress
+	{
+
+		/**
+		 * The phase of the build.
+		 */
+		private final Phase phase;
+
+		/**
+		 * The number of added entries.
+		 */
+		private final long added;
+
+		/**
+		 * The number of spilled runs.
+		 */
+		private final int runs;
+
+		/**
+		 * The number of bytes written to run files.
+		 */
+		private final long spilledBytes;
+
+		/**
+		 * The number of entries read by the final merge.
+		 */
+		private final long read;
+
+		/**
+		 * The number of entries emitted by the final merge.
+		 */
+		private final long merged;
+
+		/**
+		 * The time spent adding entries, in nanoseconds.
+		 */
+		private final long addNanos;
+
+		/**
+		 * The time spent merging, in nanoseconds.
+		 */
+		private final long mergeNanos;
+
+		/**
+		 * Creates a new {@link Progress}.
+		 *
+		 * @param phase        The phase of the build.
+		 * @param added        The number of added entries.
+		 * @param runs         The number of spilled runs.
+		 * @param spilledBytes The number of bytes written to run files.
+		 * @param read         The number of entries read by the final merge.
+		 * @param merged       The number of entries emitted by the final merge.
+		 * @param addNanos     The time spent adding entries, in nanoseconds.
+		 * @param mergeNanos   The time spent merging, in nanoseconds.
+		 */
+		Progress(Phase phase, long added, int runs, long spilledBytes, long read, long merged, long addNanos,
+				 long mergeNanos)
+		{
+			this.phase = phase;
+			this.added = added;
+			this.runs = runs;
+			this.spilledBytes = spilledBytes;
+			this.read = read;
+			this.merged = merged;
+			this.addNanos = addNanos;
+			this.mergeNanos = mergeNanos;
+		}
+
+		/**
+		 * Returns the phase of the build.
+		 *
+		 * @return The phase of the build.
+		 */
+		public Phase phase()
+		{
+			return phase;
+		}
+
+		/**
+		 * Returns the number of added entries.
+		 *
+		 * @return The number of added entries.
+		 */
+		public long added()
+		{
+			return added;
+		}
+
+		/**
+		 * Returns the number of spilled runs, including the runs written by intermediate merges.
+		 *
+		 * @return The number of spilled runs.
+		 */
+		public int runs()
+		{
+			return runs;
+		}
+
+		/**
+		 * Returns the number of bytes written to run files, including the runs written by intermediate merges.
+		 *
+		 * @return The number of bytes written to run files.
+		 */
+		public long spilledBytes()
+		{
+			return spilledBytes;
+		}
+
+		/**
+		 * Returns the number of entries emitted by the final merge, which is the size of the built map once the build
+		 * is done.
+		 *
+		 * @return The number of entries emitted by the final merge.
+		 */
+		public long merged()
+		{
+			return merged;
+		}
+
+		/**
+		 * Returns the fraction of the added entries that have been read by the final merge, between zero and one. Every
+		 * added entry is read once by the final merge, as the duplicate keys are only combined there.
+		 *
+		 * @return The fraction of the entries that have been read by the final merge.
+		 */
+		public double mergeFraction()
+		{
+			return phase == Phase.DONE ? 1 : added == 0 ? 0 : Math.min(1, (double) read / added);
+		}
+
+		/**
+		 * Returns the number of entries added per second while adding.
+		 *
+		 * @return The number of entries added per second.
+		 */
+		public double addedPerSecond()
+		{
+			return addNanos == 0 ? 0 : added * 1e9 / addNanos;
+		}
+
+		/**
+		 * Returns the number of entries emitted per second by the final merge.
+		 *
+		 * @return The number of entries emitted per second by the final merge.
+		 */
+		public double mergedPerSecond()
+		{
+			return mergeNanos == 0 ? 0 : merged * 1e9 / mergeNanos;
+		}
+
+		@Override public String toString()
+		{
+			return String.format("%s: %d added (%.0f/s), %d runs (%d bytes), %d merged (%.0f/s, %.1f%%)", phase, added,
+								 addedPerSecond(), runs, spilledBytes, merged, mergedPerSecond(),
+								 mergeFraction() * 100);
+		}
+	}
+
+	/**
+	 * Reads the entries of a run file sequentially.
+	 */
+	private final class RunReader implements Iterator<Map.Entry<K, V>>, Closeable
+	{
+
+		/**
+		 * The input reading the run file.
+		 */
+		private final DataInputStream in;
+
+		/**
+		 * The next entry, or <code>null</code> when the run has been read.
+		 */
+		private Map.Entry<K, V> next;
+
+		/**
+		 * Opens the provided run file.
+		 *
+		 * @param file The run file.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		RunReader(Path file) throws IOException
+		{
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+			this.next = advance();
+		}
+
+		/**
+		 * Reads the next entry.
+		 *
+		 * @return The next entry, or <code>null</code> at the end of the run.
+		 * @throws IOException if an I/O error occurs
+		 */
+		private Map.Entry<K, V> advance() throws IOException
+		{
+			if (!in.readBoolean()) {
+				in.close();
+				return null;
+			}
+
+			return new AbstractMap.SimpleImmutableEntry<>(keyCodec.read(in), valueCodec.read(in));
+		}
+
+		@Override public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		@Override public Map.Entry<K, V> next()
+		{
+			if (next == null)
+				throw new NoSuchElementException();
+
+			Map.Entry<K, V> result = next;
+			try {
+				next = advance();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			return result;
+		}
+
+		@Override public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * K-way merge of sorted sources, using a heap holding the next entry of each source. The entries of a key are
+	 * visited in the order the sources are listed, which must be from oldest to newest, and within a source in the
+	 * order they are stored, so they are visited in the order they were added. The final merge combines them using
+	 * {@link #mergeFunction}, while an intermediate merge emits them unchanged.
+	 */
+	private final class Merge implements Iterator<Map.Entry<K, V>>, Closeable
+	{
+
+		/**
+		 * The merged sources.
+		 */
+		private final List<Iterator<Map.Entry<K, V>>> sources;
+
+		/**
+		 * Whether this is the final merge, which combines the duplicate keys, and whose entries are counted in the
+		 * progress of the build.
+		 */
+		private final boolean last;
+
+		/**
+		 * The index of the source of the next entry of each source that has one, ordered by the key of the entry and
+		 * then by the index.
+		 */
+		private final PriorityQueue<Integer> heap;
+
+		/**
+		 * The next entry of each source.
+		 */
+		private final Map.Entry<K, V>[] heads;
+
+		/**
+		 * The next merged entry, or <code>null</code> when the merge is done.
+		 */
+		private Map.Entry<K, V> next;
+
+		/**
+		 * Creates a new {@link Merge}.
+		 *
+		 * @param sources The sorted sources, oldest first.
+		 * @param last    Whether this is the final merge.
+		 */
+		Merge(List<Iterator<Map.Entry<K, V>>> sources, boolean last)
+		{
+			this.sources = sources;
+			this.last = last;
+			@SuppressWarnings("unchecked")
+			Map.Entry<K, V>[] heads = (Map.Entry<K, V>[]) new Map.Entry<?, ?>[sources.size()];
+			this.heads = heads;
+			this.heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+				int compare = comparator.compare(heads[a].getKey(), heads[b].getKey());
+				return compare != 0 ? compare : Integer.compare(a, b);
+			});
+			for (int x = 0; x < sources.size(); x++)
+				advance(x);
+			this.next = compute();
+		}
+
+		@Override public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		@Override public Map.Entry<K, V> next()
+		{
+			if (next == null)
+				throw new NoSuchElementException();
+
+			Map.Entry<K, V> result = next;
+			next = compute();
+			if (last)
+				merged++;
+			return result;
+		}
+
+		/**
+		 * Computes the next merged entry. The final merge folds the values of a key from left to right, like {@link
+		 * Map#merge(Object, Object, java.util.function.BiFunction)}: a <code>null</code> result removes the key, and a
+		 * later value adds it again. Keys whose values are combined to <code>null</code> are skipped.
+		 *
+		 * @return The next merged entry, or <code>null</code> when the merge is done.
+		 */
+		private Map.Entry<K, V> compute()
+		{
+			if (!last) {
+				if (heap.isEmpty())
+					return null;
+
+				int             source = heap.poll();
+				Map.Entry<K, V> entry  = heads[source];
+				advance(source);
+				return entry;
+			}
+
+			while (!heap.isEmpty()) {
+				int source = heap.poll();
+				K   key    = heads[source].getKey();
+				V   value  = heads[source].getValue();
+				advance(source);
+				while (!heap.isEmpty() && comparator.compare(heads[heap.peek()].getKey(), key) == 0) {
+					int duplicate = heap.poll();
+					value = value == null ? heads[duplicate].getValue() :
+							mergeFunction.apply(value, heads[duplicate].getValue());
+					advance(duplicate);
+				}
+
+				if (value != null)
+					return new AbstractMap.SimpleImmutableEntry<>(key, value);
+			}
+
+			return null;
+		}
+
+		/**
+		 * Replaces the next entry of the provided source, and adds the source to the heap if it has another entry.
+		 *
+		 * @param source The index of the source.
+		 */
+		private void advance(int source)
+		{
+			Iterator<Map.Entry<K, V>> iterator = sources.get(source);
+			if (iterator.hasNext()) {
+				heads[source] = iterator.next();
+				heap.add(source);
+				if (last)
+					read++;
+			} else
+				heads[source] = null;
+		}
+
+		@Override public void close() throws IOException
+		{
+			for (Iterator<Map.Entry<K, V>> source : sources)
+				if (source instanceof Closeable)
+					((Closeable) source).close();
+		}
+	}
+}
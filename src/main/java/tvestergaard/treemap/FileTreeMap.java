@@ -0,0 +1,1191 @@
+package tvestergaard.treemap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Ordered map stored in a file, so it can hold more entries than fit in memory, and survives restarts. The entries
+ * are stored in a B+-tree of fixed size pages, and the keys and values are written using the provided {@link Codec}s.
+ * Decoded pages are kept in a small least recently used cache. Every lookup passes through the interior pages, so
+ * they stay resident in the cache, while most leaf pages are read from the file when needed.
+ * <p>
+ * Pages are updated using copy-on-write: a modified page is written to a new location, and so are its ancestors, up to
+ * a new root. The pages reachable from the last committed root are never overwritten. {@link #commit()} forces the
+ * new pages to the storage device, and then writes the new root to one of two alternating header slots, so a crash
+ * leaves either the previous or the new version of the map in the file. Pages written since the last commit are
+ * updated in place, since they are not yet part of a committed version. When the file is opened, the pages not
+ * reachable from the committed root are reused.
+ * <p>
+ * The keys must not be <code>null</code>. The {@link FileTreeMap} is not thread-safe, and must be closed after use,
+ * which commits the changes. The methods of {@link Map} throw {@link UncheckedIOException} when an I/O error occurs.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public final class FileTreeMap<K, V> extends AbstractMap<K, V> implements Closeable
+{
+
+	/**
+	 * The default size of the pages, in bytes.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+
+	/**
+	 * The default number of decoded pages kept in the cache.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	/**
+	 * The smallest supported page size, in bytes.
+	 */
+	public static final int MINIMUM_PAGE_SIZE = 256;
+
+	/**
+	 * Identifies a file written by {@link FileTreeMap}.
+	 */
+	private static final long MAGIC = 0x46494C4554524545L;
+
+	/**
+	 * The size of a header slot. The two slots are stored at the start of page 0, so the data pages start from page 1.
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * Upper bound on the bytes of a page used for the type and the number of keys.
+	 */
+	private static final int PAGE_OVERHEAD = 16;
+
+	/**
+	 * The page type of leaf pages, holding keys and values.
+	 */
+	private static final byte LEAF = 0;
+
+	/**
+	 * The page type of interior pages, holding separator keys and the numbers of the child pages.
+	 */
+	private static final byte INTERIOR = 1;
+
+	/**
+	 * The page number representing no page.
+	 */
+	private static final int NONE = -1;
+
+	/**
+	 * The comparator used when comparing the keys in the {@link FileTreeMap}.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * The codec writing and reading the keys.
+	 */
+	private final Codec<K> keyCodec;
+
+	/**
+	 * The codec writing and reading the values.
+	 */
+	private final Codec<V> valueCodec;
+
+	/**
+	 * The file containing the pages.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The size of the pages, in bytes.
+	 */
+	private final int pageSize;
+
+	/**
+	 * The maximum number of bytes used by the key and value of an entry, ensuring that a page can hold at least four
+	 * entries.
+	 */
+	private final int maximumEntrySize;
+
+	/**
+	 * The cache of decoded pages, in access order.
+	 */
+	private final LinkedHashMap<Integer, Page> cache;
+
+	/**
+	 * The pages that can be allocated.
+	 */
+	private final BitSet free = new BitSet();
+
+	/**
+	 * The pages allocated since the last commit, which can be updated in place.
+	 */
+	private final BitSet fresh = new BitSet();
+
+	/**
+	 * The pages replaced since the last commit, which can be allocated once the commit has completed.
+	 */
+	private final BitSet released = new BitSet();
+
+	/**
+	 * The number of the root page, or {@link #NONE} when the map is empty.
+	 */
+	private int root;
+
+	/**
+	 * The number of entries in the {@link FileTreeMap}.
+	 */
+	private int size;
+
+	/**
+	 * The number of pages in the file, including page 0 holding the headers.
+	 */
+	private int pageCount;
+
+	/**
+	 * The sequence number of the last committed header.
+	 */
+	private long sequence;
+
+	/**
+	 * Whether the map has been modified since the last commit.
+	 */
+	private boolean dirty;
+
+	/**
+	 * The number of structural modifications, used to detect concurrent modification in iterators.
+	 */
+	private int modCount;
+
+	/**
+	 * Whether the last insertion or removal found the key.
+	 */
+	private boolean found;
+
+	/**
+	 * The value replaced or removed by the last insertion or removal.
+	 */
+	private V previous;
+
+	/**
+	 * Cached entry set, returned from the {@link #entrySet()} method.
+	 */
+	private Set<Entry<K, V>> cacheEntrySet;
+
+	/**
+	 * Opens the {@link FileTreeMap} stored in the provided file, creating it using {@link #DEFAULT_PAGE_SIZE} when the
+	 * file is empty or does not exist.
+	 *
+	 * @param file       The file to store the map in.
+	 * @param comparator The comparator used when comparing the keys in the {@link FileTreeMap}.
+	 * @param keyCodec   The codec writing and reading the keys.
+	 * @param valueCodec The codec writing and reading the values.
+	 *
+	 * @throws IOException if an I/O error occurs, or the file does not contain a valid header
+	 */
+	public FileTreeMap(Path file, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec)
+			throws IOException
+	{
+		this(file, comparator, keyCodec, valueCodec, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Opens the {@link FileTreeMap} stored in the provided file, creating it when the file is empty or does not exist.
+	 *
+	 * @param file       The file to store the map in.
+	 * @param comparator The comparator used when comparing the keys in the {@link FileTreeMap}.
+	 * @param keyCodec   The codec writing and reading the keys.
+	 * @param valueCodec The codec writing and reading the values.
+	 * @param pageSize   The size of the pages, in bytes, when the file is created. An existing file keeps the page
+	 *                   size it was created with.
+	 * @param cacheSize  The number of decoded pages kept in the cache.
+	 *
+	 * @throws IOException              if an I/O error occurs, or the file does not contain a valid header
+	 * @throws IllegalArgumentException if the page size is less than {@link #MINIMUM_PAGE_SIZE}, or the cache size is
+	 *                                  not positive
+	 */
+	public FileTreeMap(Path file, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec, int pageSize,
+					   int cacheSize) throws IOException
+	{
+		if (pageSize < MINIMUM_PAGE_SIZE || cacheSize < 1)
+			throw new IllegalArgumentException();
+
+		this.comparator = comparator;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.cache = new LinkedHashMap<Integer, Page>(16, 0.75f, true)
+		{
+			@Override protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest)
+			{
+				return size() > cacheSize;
+			}
+		};
+
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+										StandardOpenOption.WRITE);
+		try {
+			if (channel.size() == 0) {
+				this.pageSize = pageSize;
+				this.root = NONE;
+				this.pageCount = 1;
+				this.dirty = true;
+			} else {
+				ByteBuffer header = readHeader();
+				this.pageSize = header.getInt();
+				this.root = header.getInt();
+				this.size = header.getInt();
+				this.pageCount = header.getInt();
+				if (this.pageSize < MINIMUM_PAGE_SIZE || size < 0 || pageCount < 1 || root >= pageCount ||
+					(root < 1 && root != NONE))
+					throw new IOException("The header of the file is invalid.");
+			}
+
+			this.maximumEntrySize = (this.pageSize - PAGE_OVERHEAD) / 4;
+			if (dirty)
+				commit();
+			else
+				findFreePages();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * A decoded page.
+	 */
+	private final class Page
+	{
+
+		/**
+		 * The number of the page.
+		 */
+		private int number;
+
+		/**
+		 * Whether the page is a leaf page.
+		 */
+		private final boolean leaf;
+
+		/**
+		 * The keys in ascending order. In an interior page, the key at index <code>i</code> is the smallest key in the
+		 * child at index <code>i + 1</code>.
+		 */
+		private final List<K> keys = new ArrayList<>();
+
+		/**
+		 * The values of the keys in a leaf page.
+		 */
+		private final List<V> values;
+
+		/**
+		 * The numbers of the child pages of an interior page, one more than the number of keys.
+		 */
+		private final List<Integer> children;
+
+		/**
+		 * The number of bytes used by the encoded page.
+		 */
+		private int bytes;
+
+		/**
+		 * Creates a new empty {@link Page}.
+		 *
+		 * @param number The number of the page.
+		 * @param leaf   Whether the page is a leaf page.
+		 */
+		Page(int number, boolean leaf)
+		{
+			this.number = number;
+			this.leaf = leaf;
+			this.values = leaf ? new ArrayList<>() : null;
+			this.children = leaf ? null : new ArrayList<>();
+		}
+	}
+
+	/**
+	 * The pages replacing a page after an insertion, which are more than one when the page was split.
+	 */
+	private final class Replacement
+	{
+
+		/**
+		 * The numbers of the replacing pages, in ascending order by key.
+		 */
+		private final List<Integer> pages = new ArrayList<>();
+
+		/**
+		 * The smallest key in each replacing page after the first.
+		 */
+		private final List<K> separators = new ArrayList<>();
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public boolean containsKey(Object key)
+	{
+		Page leaf = leaf((K) key);
+		return leaf != null && search(leaf, (K) key) >= 0;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V get(Object key)
+	{
+		Page leaf = leaf((K) key);
+		if (leaf == null)
+			return null;
+
+		int index = search(leaf, (K) key);
+		return index >= 0 ? leaf.values.get(index) : null;
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 * @throws IllegalArgumentException if the encoded key and value do not fit a quarter of a page
+	 */
+	@Override public V put(K key, V value)
+	{
+		try {
+			checkEntrySize(key, value);
+
+			found = false;
+			previous = null;
+			Replacement replacement = new Replacement();
+			if (root == NONE) {
+				Page page = new Page(allocate(), true);
+				page.keys.add(key);
+				page.values.add(value);
+				store(page, replacement);
+			} else
+				insert(root, key, value, replacement);
+
+			// Grow the tree until the root is a single page
+			while (replacement.pages.size() > 1) {
+				Page page = new Page(allocate(), false);
+				page.keys.addAll(replacement.separators);
+				page.children.addAll(replacement.pages);
+				replacement = new Replacement();
+				store(page, replacement);
+			}
+
+			root = replacement.pages.get(0);
+			if (!found) {
+				size++;
+				modCount++;
+			}
+
+			return previous;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Removes the mapping for a key from this map if it is present.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@Override public V remove(Object key)
+	{
+		if (root == NONE)
+			return null;
+
+		try {
+			found = false;
+			previous = null;
+			@SuppressWarnings("unchecked")
+			int replaced = delete(root, (K) key);
+			if (!found)
+				return null;
+
+			// Shrink the tree while the root has a single child
+			root = replaced;
+			while (root != NONE) {
+				Page page = load(root);
+				if (page.leaf || page.children.size() > 1)
+					break;
+				release(root);
+				root = page.children.get(0);
+			}
+
+			size--;
+			modCount++;
+			return previous;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Removes all of the mappings from this map.
+	 */
+	@Override public void clear()
+	{
+		try {
+			if (root != NONE)
+				releaseTree(root);
+
+			root = NONE;
+			size = 0;
+			dirty = true;
+			modCount++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map, iterated in ascending order by key. The
+	 * entries are read-only, but can be removed using the iterator.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null) {
+			cacheEntrySet = new AbstractSet<Entry<K, V>>()
+			{
+				@Override public Iterator<Entry<K, V>> iterator()
+				{
+					return new FileTreeMapIterator();
+				}
+
+				@Override public int size()
+				{
+					return size;
+				}
+
+				@Override public void clear()
+				{
+					FileTreeMap.this.clear();
+				}
+			};
+		}
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Iterator over the entries, copying one leaf page at a time. The next leaf page is found by searching from the
+	 * root for the first key greater than the keys of the previous leaf page, so the iterator is not affected by pages
+	 * being replaced when entries are removed through it.
+	 */
+	private final class FileTreeMapIterator implements Iterator<Entry<K, V>>
+	{
+
+		/**
+		 * The keys of the current leaf page.
+		 */
+		private List<K> keys = Collections.emptyList();
+
+		/**
+		 * The values of the current leaf page.
+		 */
+		private List<V> values = Collections.emptyList();
+
+		/**
+		 * The index of the next entry to return from the current leaf page.
+		 */
+		private int index;
+
+		/**
+		 * Whether the last leaf page has been read.
+		 */
+		private boolean exhausted;
+
+		/**
+		 * The key of the entry last returned, or <code>null</code> when it cannot be removed.
+		 */
+		private K lastReturned;
+
+		/**
+		 * The modification count of the map expected by the iterator.
+		 */
+		private int expectedModCount = modCount;
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+
+			if (index == keys.size() && !exhausted) {
+				try {
+					K    after = keys.isEmpty() ? null : keys.get(keys.size() - 1);
+					Page leaf  = root == NONE ? null : higherLeaf(root, after);
+					if (leaf == null) {
+						exhausted = true;
+					} else {
+						keys = new ArrayList<>(leaf.keys);
+						values = new ArrayList<>(leaf.values);
+						index = after == null ? 0 : upperBound(leaf, after);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			return index < keys.size();
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Entry<K, V> next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			lastReturned = keys.get(index);
+			return new AbstractMap.SimpleImmutableEntry<>(lastReturned, values.get(index++));
+		}
+
+		/**
+		 * Removes the entry last returned by {@link #next()} from the map.
+		 *
+		 * @throws IllegalStateException if {@link #next()} has not been called, or the entry was already removed
+		 */
+		@Override public void remove()
+		{
+			if (lastReturned == null)
+				throw new IllegalStateException();
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+
+			FileTreeMap.this.remove(lastReturned);
+			expectedModCount = modCount;
+			lastReturned = null;
+		}
+	}
+
+	/**
+	 * Makes the changes since the last commit durable. The written pages are forced to the storage device before the
+	 * header referencing them is written and forced, and the pages replaced since the last commit become available
+	 * for reuse afterwards.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void commit() throws IOException
+	{
+		if (!dirty)
+			return;
+
+		channel.force(true);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+		DataOutputStream      out   = new DataOutputStream(bytes);
+		out.writeLong(MAGIC);
+		out.writeLong(sequence + 1);
+		out.writeInt(pageSize);
+		out.writeInt(root);
+		out.writeInt(size);
+		out.writeInt(pageCount);
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes.toByteArray());
+		out.writeLong(checksum.getValue());
+
+		write(ByteBuffer.wrap(Arrays.copyOf(bytes.toByteArray(), HEADER_SIZE)), ((sequence + 1) & 1) * HEADER_SIZE);
+		channel.force(true);
+
+		sequence++;
+		free.or(released);
+		released.clear();
+		fresh.clear();
+		dirty = false;
+	}
+
+	/**
+	 * Commits the changes and closes the file.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override public void close() throws IOException
+	{
+		try {
+			commit();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Inserts the provided entry into the subtree rooted in the provided page.
+	 *
+	 * @param number      The number of the root page of the subtree.
+	 * @param key         The key to insert.
+	 * @param value       The value to insert.
+	 * @param replacement The replacement to which the pages replacing the root page are added.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void insert(int number, K key, V value, Replacement replacement) throws IOException
+	{
+		Page page = load(number);
+		if (page.leaf) {
+			int index = search(page, key);
+			page = writable(page);
+			if (index >= 0) {
+				found = true;
+				previous = page.values.set(index, value);
+			} else {
+				page.keys.add(-index - 1, key);
+				page.values.add(-index - 1, value);
+			}
+
+			store(page, replacement);
+			return;
+		}
+
+		int         child = upperBound(page, key);
+		Replacement below = new Replacement();
+		insert(page.children.get(child), key, value, below);
+		if (below.pages.size() == 1 && below.pages.get(0).equals(page.children.get(child))) {
+			replacement.pages.add(page.number);
+			return;
+		}
+
+		page = writable(page);
+		page.children.set(child, below.pages.get(0));
+		page.children.addAll(child + 1, below.pages.subList(1, below.pages.size()));
+		page.keys.addAll(child, below.separators);
+		store(page, replacement);
+	}
+
+	/**
+	 * Removes the provided key from the subtree rooted in the provided page. Pages left empty are released, and a child
+	 * using less than a quarter of its page is merged with a sibling when the merged page fits.
+	 *
+	 * @param number The number of the root page of the subtree.
+	 * @param key    The key to remove.
+	 *
+	 * @return The number of the page replacing the root page, or {@link #NONE} when the subtree is empty.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private int delete(int number, K key) throws IOException
+	{
+		Page page = load(number);
+		if (page.leaf) {
+			int index = search(page, key);
+			if (index < 0)
+				return number;
+
+			found = true;
+			if (page.keys.size() == 1) {
+				previous = page.values.get(0);
+				release(number);
+				return NONE;
+			}
+
+			page = writable(page);
+			page.keys.remove(index);
+			previous = page.values.remove(index);
+			write(page);
+			return page.number;
+		}
+
+		int child    = upperBound(page, key);
+		int replaced = delete(page.children.get(child), key);
+		if (replaced == page.children.get(child))
+			return number;
+
+		if (replaced == NONE && page.children.size() == 1) {
+			release(number);
+			return NONE;
+		}
+
+		page = writable(page);
+		if (replaced == NONE) {
+			page.children.remove(child);
+			page.keys.remove(child > 0 ? child - 1 : 0);
+		} else {
+			page.children.set(child, replaced);
+			merge(page, child);
+		}
+
+		write(page);
+		return page.number;
+	}
+
+	/**
+	 * Merges the provided child of the provided page with a sibling, when the child uses less than a quarter of its
+	 * page and the merged page fits.
+	 *
+	 * @param page  The writable parent page.
+	 * @param child The index of the child to merge.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void merge(Page page, int child) throws IOException
+	{
+		if (page.children.size() < 2 || load(page.children.get(child)).bytes >= pageSize / 4)
+			return;
+
+		int  index = child > 0 ? child - 1 : child;
+		Page left  = load(page.children.get(index));
+		Page right = load(page.children.get(index + 1));
+
+		Page merged = new Page(NONE, left.leaf);
+		merged.keys.addAll(left.keys);
+		if (left.leaf) {
+			merged.keys.addAll(right.keys);
+			merged.values.addAll(left.values);
+			merged.values.addAll(right.values);
+		} else {
+			merged.keys.add(page.keys.get(index));
+			merged.keys.addAll(right.keys);
+			merged.children.addAll(left.children);
+			merged.children.addAll(right.children);
+		}
+
+		if (encode(merged).length > pageSize)
+			return;
+
+		merged.number = left.number;
+		merged = writable(merged);
+		write(merged);
+		release(right.number);
+		page.children.set(index, merged.number);
+		page.children.remove(index + 1);
+		page.keys.remove(index);
+	}
+
+	/**
+	 * Writes the provided page, splitting it into multiple pages when it does not fit.
+	 *
+	 * @param page        The writable page to store.
+	 * @param replacement The replacement to which the written pages are added.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void store(Page page, Replacement replacement) throws IOException
+	{
+		byte[] bytes = encode(page);
+		if (bytes.length <= pageSize) {
+			write(page, bytes);
+			replacement.pages.add(page.number);
+			return;
+		}
+
+		int  count  = page.keys.size();
+		int  middle = count / 2;
+		Page right  = new Page(allocate(), page.leaf);
+		K    separator;
+		if (page.leaf) {
+			right.keys.addAll(page.keys.subList(middle, count));
+			right.values.addAll(page.values.subList(middle, count));
+			page.keys.subList(middle, count).clear();
+			page.values.subList(middle, count).clear();
+			separator = right.keys.get(0);
+		} else {
+			separator = page.keys.get(middle);
+			right.keys.addAll(page.keys.subList(middle + 1, count));
+			right.children.addAll(page.children.subList(middle + 1, count + 1));
+			page.keys.subList(middle, count).clear();
+			page.children.subList(middle + 1, count + 1).clear();
+		}
+
+		store(page, replacement);
+		replacement.separators.add(separator);
+		store(right, replacement);
+	}
+
+	/**
+	 * Returns the leaf page that would contain the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The leaf page, or <code>null</code> when the map is empty.
+	 */
+	private Page leaf(K key)
+	{
+		try {
+			int number = root;
+			while (number != NONE) {
+				Page page = load(number);
+				if (page.leaf)
+					return page;
+				number = page.children.get(upperBound(page, key));
+			}
+
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the first leaf page in the subtree rooted in the provided page, containing a key greater than the
+	 * provided key.
+	 *
+	 * @param number The number of the root page of the subtree.
+	 * @param key    The key, or <code>null</code> to return the first leaf page.
+	 *
+	 * @return The leaf page, or <code>null</code> when there is no such leaf page.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Page higherLeaf(int number, K key) throws IOException
+	{
+		Page page = load(number);
+		if (page.leaf)
+			return key == null || comparator.compare(page.keys.get(page.keys.size() - 1), key) > 0 ? page : null;
+
+		for (int child = key == null ? 0 : upperBound(page, key); child < page.children.size(); child++) {
+			Page leaf = higherLeaf(page.children.get(child), key);
+			if (leaf != null)
+				return leaf;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Searches the keys of the provided page for the provided key.
+	 *
+	 * @param page The page to search.
+	 * @param key  The key to search for.
+	 *
+	 * @return The index of the key, or <code>-(insertion point) - 1</code> when the page does not contain the key.
+	 */
+	private int search(Page page, K key)
+	{
+		return Collections.binarySearch(page.keys, key, comparator);
+	}
+
+	/**
+	 * Returns the number of keys in the provided page that are less than or equal to the provided key. In an interior
+	 * page, this is the index of the child that would contain the key.
+	 *
+	 * @param page The page to search.
+	 * @param key  The key to search for.
+	 *
+	 * @return The number of keys less than or equal to the provided key.
+	 */
+	private int upperBound(Page page, K key)
+	{
+		int index = search(page, key);
+		return index >= 0 ? index + 1 : -index - 1;
+	}
+
+	/**
+	 * Checks that the provided entry can be stored.
+	 *
+	 * @param key   The key of the entry.
+	 * @param value The value of the entry.
+	 *
+	 * @throws IOException              if the codecs throw an {@link IOException}
+	 * @throws IllegalArgumentException if the encoded entry is larger than {@link #maximumEntrySize}
+	 */
+	private void checkEntrySize(K key, V value) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream      out   = new DataOutputStream(bytes);
+		keyCodec.write(key, out);
+		int keySize = bytes.size();
+		valueCodec.write(value, out);
+		if (Math.max(bytes.size(), keySize + 4) > maximumEntrySize)
+			throw new IllegalArgumentException("The entry is larger than " + maximumEntrySize + " bytes.");
+	}
+
+	/**
+	 * Returns the page with the provided number, reading it from the file when it is not in the cache.
+	 *
+	 * @param number The number of the page.
+	 *
+	 * @return The decoded page.
+	 * @throws IOException if an I/O error occurs, or the page is corrupt
+	 */
+	private Page load(int number) throws IOException
+	{
+		Page page = cache.get(number);
+		if (page != null)
+			return page;
+
+		ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+		long       offset = (long) number * pageSize;
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new EOFException("Page " + number + " is beyond the end of the file.");
+
+		DataInputStream in    = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+		byte            type  = in.readByte();
+		int             count = in.readInt();
+		if (type != LEAF && type != INTERIOR || count < 0)
+			throw new IOException("Page " + number + " is corrupt.");
+
+		page = new Page(number, type == LEAF);
+		if (page.leaf) {
+			for (int x = 0; x < count; x++) {
+				page.keys.add(keyCodec.read(in));
+				page.values.add(valueCodec.read(in));
+			}
+		} else {
+			page.children.add(in.readInt());
+			for (int x = 0; x < count; x++) {
+				page.keys.add(keyCodec.read(in));
+				page.children.add(in.readInt());
+			}
+		}
+
+		page.bytes = pageSize - in.available();
+		cache.put(number, page);
+		return page;
+	}
+
+	/**
+	 * Encodes the provided page.
+	 *
+	 * @param page The page to encode.
+	 *
+	 * @return The encoded page, which may be larger than a page.
+	 * @throws IOException if the codecs throw an {@link IOException}
+	 */
+	private byte[] encode(Page page) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(pageSize);
+		DataOutputStream      out   = new DataOutputStream(bytes);
+		out.writeByte(page.leaf ? LEAF : INTERIOR);
+		out.writeInt(page.keys.size());
+		if (page.leaf) {
+			for (int x = 0; x < page.keys.size(); x++) {
+				keyCodec.write(page.keys.get(x), out);
+				valueCodec.write(page.values.get(x), out);
+			}
+		} else {
+			out.writeInt(page.children.get(0));
+			for (int x = 0; x < page.keys.size(); x++) {
+				keyCodec.write(page.keys.get(x), out);
+				out.writeInt(page.children.get(x + 1));
+			}
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes the provided page, which must fit in a page.
+	 *
+	 * @param page The writable page.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void write(Page page) throws IOException
+	{
+		write(page, encode(page));
+	}
+
+	/**
+	 * Writes the provided encoded page, and caches the decoded page.
+	 *
+	 * @param page  The writable page.
+	 * @param bytes The encoded page, which must fit in a page.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void write(Page page, byte[] bytes) throws IOException
+	{
+		page.bytes = bytes.length;
+		write(ByteBuffer.wrap(Arrays.copyOf(bytes, pageSize)), (long) page.number * pageSize);
+		cache.put(page.number, page);
+	}
+
+	/**
+	 * Writes the provided buffer to the file.
+	 *
+	 * @param buffer The buffer to write.
+	 * @param offset The position in the file to write the buffer to.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void write(ByteBuffer buffer, long offset) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer, offset + buffer.position());
+	}
+
+	/**
+	 * Returns a page with the contents of the provided page that can be modified. A page allocated since the last
+	 * commit is modified in place, otherwise the page is moved to a newly allocated page, and the old page is released.
+	 *
+	 * @param page The page to modify.
+	 *
+	 * @return The page to modify.
+	 */
+	private Page writable(Page page)
+	{
+		if (page.number != NONE && fresh.get(page.number))
+			return page;
+
+		if (page.number != NONE)
+			release(page.number);
+		page.number = allocate();
+		return page;
+	}
+
+	/**
+	 * Allocates a page, reusing a free page when possible.
+	 *
+	 * @return The number of the allocated page.
+	 */
+	private int allocate()
+	{
+		int number = free.nextSetBit(0);
+		if (number < 0)
+			number = pageCount++;
+		else
+			free.clear(number);
+
+		fresh.set(number);
+		dirty = true;
+		return number;
+	}
+
+	/**
+	 * Releases the provided page. A page allocated since the last commit can be allocated again immediately, while
+	 * other pages are still part of the committed version, and can be allocated after the next commit.
+	 *
+	 * @param number The number of the page to release.
+	 */
+	private void release(int number)
+	{
+		cache.remove(number);
+		if (fresh.get(number)) {
+			fresh.clear(number);
+			free.set(number);
+		} else
+			released.set(number);
+
+		dirty = true;
+	}
+
+	/**
+	 * Releases all pages in the subtree rooted in the provided page. The leaf pages are released without being read.
+	 *
+	 * @param number The number of the root page of the subtree.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void releaseTree(int number) throws IOException
+	{
+		Page page = load(number);
+		if (!page.leaf) {
+			boolean leaves = load(page.children.get(0)).leaf;
+			for (int child : page.children) {
+				if (leaves)
+					release(child);
+				else
+					releaseTree(child);
+			}
+		}
+
+		release(number);
+	}
+
+	/**
+	 * Marks the pages not reachable from the committed root as free. The leaf pages are marked without being read.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void findFreePages() throws IOException
+	{
+		free.set(1, pageCount);
+		if (root == NONE)
+			return;
+
+		Deque<Integer> pending = new ArrayDeque<>();
+		pending.push(root);
+		free.clear(root);
+		while (!pending.isEmpty()) {
+			Page page = load(pending.pop());
+			if (page.leaf)
+				continue;
+
+			boolean leaves = load(page.children.get(0)).leaf;
+			for (int child : page.children) {
+				if (child < 1 || child >= pageCount || !free.get(child))
+					throw new IOException("Page " + page.number + " is corrupt.");
+
+				free.clear(child);
+				if (!leaves)
+					pending.push(child);
+			}
+		}
+	}
+
+	/**
+	 * Reads the valid header slot with the greatest sequence number.
+	 *
+	 * @return The header positioned after the magic number and sequence number.
+	 * @throws IOException if an I/O error occurs, or neither header slot is valid
+	 */
+	private ByteBuffer readHeader() throws IOException
+	{
+		ByteBuffer result = null;
+		for (int slot = 0; slot < 2; slot++) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining())
+				if (channel.read(header, slot * HEADER_SIZE + header.position()) < 0)
+					break;
+
+			header.flip();
+			if (header.remaining() < 40 || header.getLong(0) != MAGIC)
+				continue;
+
+			CRC32 checksum = new CRC32();
+			checksum.update(header.array(), 0, 32);
+			if (checksum.getValue() != header.getLong(32))
+				continue;
+
+			long headerSequence = header.getLong(8);
+			if (result == null || headerSequence > sequence) {
+				sequence = headerSequence;
+				result = header;
+			}
+		}
+
+		if (result == null)
+			throw new IOException("The file does not contain a valid header.");
+
+		result.position(16);
+		return result;
+	}
+}
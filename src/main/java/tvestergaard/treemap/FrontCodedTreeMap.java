@@ -0,0 +1,440 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+
+/**
+ * Immutable, compact copy of a {@link TreeMap} with {@link String} keys. Sorted keys such as paths and URLs share long
+ * prefixes with their neighbours, so the keys are stored using front coding: they are split into blocks of {@link
+ * #BLOCK_SIZE} consecutive keys, the first key of each block, the block head, is stored in full, and every other key
+ * only stores the length of the prefix it shares with the previous key, followed by the rest of its characters. All
+ * keys are encoded into a single <code>char[]</code>, so the map holds no {@link String} or node instances for its
+ * keys. The characters are stored as UTF-16 code units, so the keys are ordered by {@link String#compareTo(String)}.
+ * <p>
+ * A lookup binary searches the block heads for the last head not greater than the key, and scans the keys of that
+ * block. The scan tracks the length of the prefix shared by the key and the current entry, which, together with the
+ * shared prefix length stored in the next entry, decides most steps without comparing any characters, and never
+ * reconstructs the stored keys. Iteration decodes the keys sequentially.
+ * <p>
+ * The map cannot be modified; the mutating methods of {@link Map} throw {@link UnsupportedOperationException}.
+ *
+ * @param <V> The value type.
+ * @see FrozenTreeMap
+ */
+public final class FrontCodedTreeMap<V> extends AbstractMap<String, V>
+{
+
+	/**
+	 * The number of keys in a block.
+	 */
+	public static final int BLOCK_SIZE = 16;
+
+	/**
+	 * The encoded keys. A block head is stored as its length followed by its characters, and the other keys as the
+	 * length of the prefix shared with the previous key, the length of the remaining characters, and the remaining
+	 * characters. Lengths are stored in one or two characters by {@link #writeLength(StringBuilder, int)}.
+	 */
+	private final char[] data;
+
+	/**
+	 * The offset of each block in {@link #data}.
+	 */
+	private final int[] blocks;
+
+	/**
+	 * The values, where <code>values[i]</code> is the value of the <code>i</code>th smallest key.
+	 */
+	private final V[] values;
+
+	/**
+	 * The number of entries in the {@link FrontCodedTreeMap}.
+	 */
+	private final int size;
+
+	/**
+	 * Cached entry set, returned from the {@link #entrySet()} method.
+	 */
+	private Set<Entry<String, V>> cacheEntrySet;
+
+	/**
+	 * Creates a new {@link FrontCodedTreeMap} from the entries of the provided map.
+	 *
+	 * @param map The map to copy the entries from. The map must iterate its keys in ascending order according to
+	 *            {@link String#compareTo(String)}.
+	 *
+	 * @throws IllegalArgumentException if the keys of the map are not iterated in ascending order
+	 * @throws NullPointerException     if the map contains a <code>null</code> key
+	 */
+	public FrontCodedTreeMap(TreeMap<String, ? extends V> map)
+	{
+		@SuppressWarnings("unchecked")
+		V[] values = (V[]) new Object[map.size()];
+		this.size = values.length;
+		this.values = values;
+		this.blocks = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+
+		StringBuilder encoded  = new StringBuilder();
+		String        previous = null;
+		int           index    = 0;
+		for (Map.Entry<String, ? extends V> entry : map.entrySet()) {
+			String key = Objects.requireNonNull(entry.getKey());
+			if (previous != null && previous.compareTo(key) >= 0)
+				throw new IllegalArgumentException("The keys must be iterated in ascending order.");
+
+			if (index % BLOCK_SIZE == 0) {
+				blocks[index / BLOCK_SIZE] = encoded.length();
+				writeLength(encoded, key.length());
+				encoded.append(key);
+			} else {
+				int shared = commonPrefix(previous, key);
+				writeLength(encoded, shared);
+				writeLength(encoded, key.length() - shared);
+				encoded.append(key, shared, key.length());
+			}
+
+			values[index++] = entry.getValue();
+			previous = key;
+		}
+
+		this.data = new char[encoded.length()];
+		encoded.getChars(0, data.length, data, 0);
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 * @throws ClassCastException   if the key is not a {@link String}
+	 * @throws NullPointerException if the key is <code>null</code>
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		return indexOf((String) Objects.requireNonNull(key)) >= 0;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 * @throws ClassCastException   if the key is not a {@link String}
+	 * @throws NullPointerException if the key is <code>null</code>
+	 */
+	@Override public V get(Object key)
+	{
+		int index = indexOf((String) Objects.requireNonNull(key));
+		return index < 0 ? null : values[index];
+	}
+
+	/**
+	 * Returns the entry with the smallest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return The entry with the smallest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<String, V> firstEntry()
+	{
+		return size == 0 ? null : new FrontCodedTreeMapIterator(0).next();
+	}
+
+	/**
+	 * Returns the entry with the greatest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return The entry with the greatest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<String, V> lastEntry()
+	{
+		if (size == 0)
+			return null;
+
+		FrontCodedTreeMapIterator iterator = new FrontCodedTreeMapIterator((size - 1) / BLOCK_SIZE);
+		Entry<String, V>          entry    = iterator.next();
+		while (iterator.hasNext())
+			entry = iterator.next();
+		return entry;
+	}
+
+	/**
+	 * Returns the number of bytes used by the encoded keys and the block offsets, excluding the values and the
+	 * object headers.
+	 *
+	 * @return The number of bytes used to store the keys.
+	 */
+	public long keyBytes()
+	{
+		return (long) data.length * Character.BYTES + (long) blocks.length * Integer.BYTES;
+	}
+
+	/**
+	 * Returns a read-only {@link Set} view of the mappings contained in this map, iterated in ascending order by key.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<String, V>> entrySet()
+	{
+		if (cacheEntrySet == null) {
+			cacheEntrySet = new AbstractSet<Entry<String, V>>()
+			{
+				@Override public Iterator<Entry<String, V>> iterator()
+				{
+					return new FrontCodedTreeMapIterator(0);
+				}
+
+				@Override public int size()
+				{
+					return size;
+				}
+			};
+		}
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Iterator decoding the keys sequentially, starting from the head of a block.
+	 */
+	private final class FrontCodedTreeMapIterator implements Iterator<Entry<String, V>>
+	{
+
+		/**
+		 * The index of the next entry to return.
+		 */
+		private int next;
+
+		/**
+		 * The offset of the next encoded key in {@link #data}.
+		 */
+		private int offset;
+
+		/**
+		 * The characters of the previously returned key.
+		 */
+		private char[] key = new char[16];
+
+		/**
+		 * Creates a new {@link FrontCodedTreeMapIterator}.
+		 *
+		 * @param block The block whose head is the first entry to return.
+		 */
+		FrontCodedTreeMapIterator(int block)
+		{
+			this.next = block * BLOCK_SIZE;
+			this.offset = block < blocks.length ? blocks[block] : 0;
+		}
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			return next < size;
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Entry<String, V> next()
+		{
+			if (next >= size)
+				throw new NoSuchElementException();
+
+			int shared = 0;
+			if (next % BLOCK_SIZE != 0) {
+				shared = readLength(offset);
+				offset = skipLength(offset);
+			}
+			int suffix = readLength(offset);
+			offset = skipLength(offset);
+
+			if (key.length < shared + suffix)
+				key = Arrays.copyOf(key, Math.max(shared + suffix, key.length * 2));
+			System.arraycopy(data, offset, key, shared, suffix);
+			offset += suffix;
+
+			return new AbstractMap.SimpleImmutableEntry<>(new String(key, 0, shared + suffix), values[next++]);
+		}
+	}
+
+	/**
+	 * Returns the index of the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The index of the key, or <code>-1</code> if the key is not in the {@link FrontCodedTreeMap}.
+	 */
+	private int indexOf(String key)
+	{
+		// Find the last block whose head is not greater than the key
+		int low   = 0;
+		int high  = blocks.length - 1;
+		int block = -1;
+		while (low <= high) {
+			int middle  = (low + high) >>> 1;
+			int compare = compareHead(middle, key);
+			if (compare == 0)
+				return middle * BLOCK_SIZE;
+			if (compare < 0) {
+				block = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+
+		if (block < 0)
+			return -1;
+
+		// The head is less than the key; matched is the length of the prefix shared by the current entry and the key
+		int offset  = blocks[block];
+		int length  = readLength(offset);
+		int start   = skipLength(offset);
+		int matched = matchChars(start, length, key, 0);
+		offset = start + length;
+
+		int end = Math.min(size, (block + 1) * BLOCK_SIZE);
+		for (int index = block * BLOCK_SIZE + 1; index < end; index++) {
+			int shared = readLength(offset);
+			offset = skipLength(offset);
+			int suffix = readLength(offset);
+			offset = skipLength(offset);
+
+			// The entry shares more with the previous entry than the key does, so it is also less than the key
+			if (shared > matched) {
+				offset += suffix;
+				continue;
+			}
+
+			// The entry differs from the previous entry where the previous entry still matched the key, so it is
+			// greater than the key
+			if (shared < matched)
+				return -1;
+
+			matched += matchChars(offset, suffix, key, matched);
+			int entryLength = shared + suffix;
+			if (matched == entryLength) {
+				if (matched == key.length())
+					return index;
+			} else if (matched == key.length() || data[offset + matched - shared] > key.charAt(matched))
+				return -1;
+
+			offset += suffix;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Compares the head of the provided block to the provided key.
+	 *
+	 * @param block The block.
+	 * @param key   The key.
+	 *
+	 * @return A negative number, zero or a positive number if the head is less than, equal to or greater than the
+	 * key.
+	 */
+	private int compareHead(int block, String key)
+	{
+		int offset  = blocks[block];
+		int length  = readLength(offset);
+		int start   = skipLength(offset);
+		int matched = matchChars(start, length, key, 0);
+		if (matched < length && matched < key.length())
+			return data[start + matched] - key.charAt(matched);
+
+		return length - key.length();
+	}
+
+	/**
+	 * Returns the number of characters, starting from <code>offset</code> in {@link #data} and from
+	 * <code>from</code> in the key, that are equal.
+	 *
+	 * @param offset The offset of the characters in {@link #data}.
+	 * @param count  The number of characters available in {@link #data}.
+	 * @param key    The key.
+	 * @param from   The index of the first character of the key to compare.
+	 *
+	 * @return The number of equal characters.
+	 */
+	private int matchChars(int offset, int count, String key, int from)
+	{
+		int limit = Math.min(count, key.length() - from);
+		int x     = 0;
+		while (x < limit && data[offset + x] == key.charAt(from + x))
+			x++;
+		return x;
+	}
+
+	/**
+	 * Reads a length written by {@link #writeLength(StringBuilder, int)}.
+	 *
+	 * @param offset The offset of the length in {@link #data}.
+	 *
+	 * @return The length.
+	 */
+	private int readLength(int offset)
+	{
+		int length = data[offset];
+		return length < 0x8000 ? length : (length & 0x7FFF) << 15 | data[offset + 1];
+	}
+
+	/**
+	 * Returns the offset following the length at the provided offset in {@link #data}.
+	 *
+	 * @param offset The offset of the length.
+	 *
+	 * @return The offset following the length.
+	 */
+	private int skipLength(int offset)
+	{
+		return data[offset] < 0x8000 ? offset + 1 : offset + 2;
+	}
+
+	/**
+	 * Appends a length to the encoded keys. Lengths below <code>2^15</code> are stored in a single character, and
+	 * longer lengths in two characters of 15 bits each, where the first character has its high bit set.
+	 *
+	 * @param encoded The encoded keys.
+	 * @param length  The length.
+	 */
+	private static void writeLength(StringBuilder encoded, int length)
+	{
+		if (length < 0x8000)
+			encoded.append((char) length);
+		else
+			encoded.append((char) (0x8000 | length >>> 15)).append((char) (length & 0x7FFF));
+	}
+
+	/**
+	 * Returns the length of the prefix shared by the provided strings.
+	 *
+	 * @param a The first string.
+	 * @param b The second string.
+	 *
+	 * @return The length of the shared prefix.
+	 */
+	private static int commonPrefix(String a, String b)
+	{
+		int limit = Math.min(a.length(), b.length());
+		int x     = 0;
+		while (x < limit && a.charAt(x) == b.charAt(x))
+			x++;
+		return x;
+	}
+}
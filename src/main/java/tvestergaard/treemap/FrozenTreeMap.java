@@ -0,0 +1,387 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+
+/**
+ * Immutable, read-optimized copy of a {@link TreeMap}, created using {@link TreeMap#freeze()}. The keys are stored in
+ * an array in Eytzinger (breadth-first) order: the root of the implicit search tree is at index 1, and the children of
+ * the key at index <code>k</code> are at indexes <code>2k</code> and <code>2k + 1</code>. A search therefore touches
+ * the first levels of the tree in a few adjacent cache lines, and the hardware prefetcher can follow the regular
+ * access pattern, instead of chasing node pointers. The values are stored in a parallel array.
+ * <p>
+ * The map cannot be modified; the mutating methods of {@link Map} throw {@link UnsupportedOperationException}.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public final class FrozenTreeMap<K, V> extends AbstractMap<K, V>
+{
+
+	/**
+	 * The comparator used when comparing the keys in the {@link FrozenTreeMap}.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * The keys in Eytzinger order, starting from index 1.
+	 */
+	private final K[] keys;
+
+	/**
+	 * The values, where <code>values[k]</code> is the value of <code>keys[k]</code>.
+	 */
+	private final V[] values;
+
+	/**
+	 * The number of entries in the {@link FrozenTreeMap}.
+	 */
+	private final int size;
+
+	/**
+	 * The index of the smallest key, or <code>0</code> when the {@link FrozenTreeMap} is empty.
+	 */
+	private final int first;
+
+	/**
+	 * The index of the greatest key, or <code>0</code> when the {@link FrozenTreeMap} is empty.
+	 */
+	private final int last;
+
+	/**
+	 * Cached entry set, returned from the {@link #entrySet()} method.
+	 */
+	private Set<Entry<K, V>> cacheEntrySet;
+
+	/**
+	 * Creates a new {@link FrozenTreeMap} from the provided entries.
+	 *
+	 * @param comparator   The comparator used when comparing the keys in the {@link FrozenTreeMap}.
+	 * @param sortedKeys   The keys in ascending order.
+	 * @param sortedValues The values of the keys.
+	 */
+	FrozenTreeMap(Comparator<K> comparator, K[] sortedKeys, V[] sortedValues)
+	{
+		this.comparator = comparator;
+		this.size = sortedKeys.length;
+		@SuppressWarnings("unchecked")
+		K[] keys = (K[]) new Object[size + 1];
+		@SuppressWarnings("unchecked")
+		V[] values = (V[]) new Object[size + 1];
+		this.keys = keys;
+		this.values = values;
+
+		int index = size == 0 ? 0 : 1;
+		while (index != 0 && 2 * index <= size)
+			index = 2 * index;
+		this.first = index;
+
+		// Visiting the implicit tree in order assigns the sorted entries to their positions
+		for (int x = 0; x < size; x++) {
+			keys[index] = sortedKeys[x];
+			values[index] = sortedValues[x];
+			if (x < size - 1)
+				index = successor(index);
+		}
+
+		this.last = index;
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public boolean containsKey(Object key)
+	{
+		return indexOf((K) key) != 0;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V get(Object key)
+	{
+		return values[indexOf((K) key)];
+	}
+
+	/**
+	 * Returns the entry with the smallest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return The entry with the smallest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> firstEntry()
+	{
+		return entry(first);
+	}
+
+	/**
+	 * Returns the entry with the greatest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return The entry with the greatest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> lastEntry()
+	{
+		return entry(last);
+	}
+
+	/**
+	 * Returns the entry with the smallest key greater than or equal to the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 */
+	public Entry<K, V> ceilingEntry(K key)
+	{
+		return entry(ceiling(key, true));
+	}
+
+	/**
+	 * Returns the entry with the smallest key strictly greater than the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 */
+	public Entry<K, V> higherEntry(K key)
+	{
+		return entry(ceiling(key, false));
+	}
+
+	/**
+	 * Returns the entry with the greatest key less than or equal to the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 */
+	public Entry<K, V> floorEntry(K key)
+	{
+		return entry(floor(key, true));
+	}
+
+	/**
+	 * Returns the entry with the greatest key strictly less than the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 */
+	public Entry<K, V> lowerEntry(K key)
+	{
+		return entry(floor(key, false));
+	}
+
+	/**
+	 * Returns an iterator over the entries with keys between the provided bounds, in ascending order by key.
+	 *
+	 * @param fromKey       The lower bound.
+	 * @param fromInclusive Whether an entry with the lower bound itself is included.
+	 * @param toKey         The upper bound.
+	 * @param toInclusive   Whether an entry with the upper bound itself is included.
+	 *
+	 * @return An iterator over the entries between the provided bounds.
+	 */
+	public Iterator<Entry<K, V>> range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+	{
+		return new FrozenTreeMapIterator(ceiling(fromKey, fromInclusive), floor(toKey, toInclusive));
+	}
+
+	/**
+	 * Returns a read-only {@link Set} view of the mappings contained in this map, iterated in ascending order by key.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null) {
+			cacheEntrySet = new AbstractSet<Entry<K, V>>()
+			{
+				@Override public Iterator<Entry<K, V>> iterator()
+				{
+					return new FrozenTreeMapIterator(first, last);
+				}
+
+				@Override public int size()
+				{
+					return size;
+				}
+			};
+		}
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Iterator over a range of the entries in the {@link FrozenTreeMap}, following the in-order successors of the
+	 * implicit tree.
+	 */
+	private final class FrozenTreeMapIterator implements Iterator<Entry<K, V>>
+	{
+
+		/**
+		 * The index of the next entry to return, or <code>0</code> when there are no more entries.
+		 */
+		private int next;
+
+		/**
+		 * The index of the last entry to return.
+		 */
+		private final int end;
+
+		/**
+		 * Creates a new {@link FrozenTreeMapIterator}.
+		 *
+		 * @param from The index of the first entry to return, or <code>0</code> for an empty range.
+		 * @param end  The index of the last entry to return, or <code>0</code> for an empty range.
+		 */
+		FrozenTreeMapIterator(int from, int end)
+		{
+			this.end = end;
+			this.next = from == 0 || end == 0 || comparator.compare(keys[from], keys[end]) > 0 ? 0 : from;
+		}
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			return next != 0;
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Entry<K, V> next()
+		{
+			if (next == 0)
+				throw new NoSuchElementException();
+
+			Entry<K, V> entry = entry(next);
+			next = next == end ? 0 : successor(next);
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns the index of the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The index of the key, or <code>0</code> if the key is not in the {@link FrozenTreeMap}.
+	 */
+	private int indexOf(K key)
+	{
+		int index = ceiling(key, true);
+		return index != 0 && comparator.compare(keys[index], key) == 0 ? index : 0;
+	}
+
+	/**
+	 * Returns the index of the smallest key greater than (or equal to) the provided key. The descent does not branch on
+	 * the result of the comparison, it only uses it to compute the next index.
+	 *
+	 * @param key       The key to search for.
+	 * @param inclusive Whether the key itself can be returned.
+	 *
+	 * @return The index of the found key, or <code>0</code> if there is no such key.
+	 */
+	private int ceiling(K key, boolean inclusive)
+	{
+		int threshold = inclusive ? 0 : 1;
+		int index     = 1;
+		while (index <= size)
+			index = 2 * index + (comparator.compare(keys[index], key) < threshold ? 1 : 0);
+
+		// Remove the trailing right turns, and the final left turn, to find the last node where the search went left
+		return index >> (Integer.numberOfTrailingZeros(~index) + 1);
+	}
+
+	/**
+	 * Returns the index of the greatest key less than (or equal to) the provided key.
+	 *
+	 * @param key       The key to search for.
+	 * @param inclusive Whether the key itself can be returned.
+	 *
+	 * @return The index of the found key, or <code>0</code> if there is no such key.
+	 */
+	private int floor(K key, boolean inclusive)
+	{
+		int above = ceiling(key, !inclusive);
+		return above == 0 ? last : predecessor(above);
+	}
+
+	/**
+	 * Returns the index of the in-order successor of the provided index.
+	 *
+	 * @param index The index.
+	 *
+	 * @return The index of the successor, or <code>0</code> if the index is the last index.
+	 */
+	private int successor(int index)
+	{
+		if (2 * index + 1 <= size) {
+			index = 2 * index + 1;
+			while (2 * index <= size)
+				index = 2 * index;
+			return index;
+		}
+
+		return index >> (Integer.numberOfTrailingZeros(~index) + 1);
+	}
+
+	/**
+	 * Returns the index of the in-order predecessor of the provided index.
+	 *
+	 * @param index The index.
+	 *
+	 * @return The index of the predecessor, or <code>0</code> if the index is the first index.
+	 */
+	private int predecessor(int index)
+	{
+		if (2 * index <= size) {
+			index = 2 * index;
+			while (2 * index + 1 <= size)
+				index = 2 * index + 1;
+			return index;
+		}
+
+		return index >> (Integer.numberOfTrailingZeros(index) + 1);
+	}
+
+	/**
+	 * Returns the entry at the provided index.
+	 *
+	 * @param index The index.
+	 *
+	 * @return The entry, or <code>null</code> if the index is <code>0</code>.
+	 */
+	private Entry<K, V> entry(int index)
+	{
+		return index == 0 ? null : new AbstractMap.SimpleImmutableEntry<>(keys[index], values[index]);
+	}
+}
@@ -0,0 +1,65 @@
+package tvestergaard.treemap;
+
+/**
+ * Maps keys to order-preserving <code>long</code> prefixes, which a {@link TreeMap} stores in its nodes to decide most
+ * comparisons without calling its comparator. The prefixes are compared as unsigned numbers, and must agree with the
+ * comparator of the map: when the prefix of one key is less than the prefix of another key, the comparator must
+ * consider the first key less than the second. Keys with equal prefixes are compared using the comparator, so a
+ * prefix may summarize only the start of a key, such as its first characters. Keys that are equal must have equal
+ * prefixes.
+ *
+ * @param <K> The type of the keys.
+ * @see TreeMap#TreeMap(java.util.Comparator, KeyNormalizer)
+ */
+@FunctionalInterface
+public interface KeyNormalizer<K>
+{
+
+	/**
+	 * Returns the prefix of the provided key.
+	 *
+	 * @param key The key.
+	 *
+	 * @return The prefix of the key, compared as an unsigned number.
+	 */
+	long normalize(K key);
+
+	/**
+	 * Returns a {@link KeyNormalizer} agreeing with the natural ordering of {@link String} keys. The prefix holds the
+	 * first four characters of the key, padded with zero characters. Does not support <code>null</code>.
+	 *
+	 * @return The {@link KeyNormalizer}.
+	 */
+	static KeyNormalizer<String> strings()
+	{
+		return key -> {
+			int  length = Math.min(key.length(), 4);
+			long prefix = 0;
+			for (int x = 0; x < length; x++)
+				prefix |= (long) key.charAt(x) << (48 - x * Character.SIZE);
+			return prefix;
+		};
+	}
+
+	/**
+	 * Returns a {@link KeyNormalizer} agreeing with the natural ordering of {@link Integer} keys. The prefix holds the
+	 * entire key, so the comparator is only called for equal keys. Does not support <code>null</code>.
+	 *
+	 * @return The {@link KeyNormalizer}.
+	 */
+	static KeyNormalizer<Integer> integers()
+	{
+		return key -> (long) key ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Returns a {@link KeyNormalizer} agreeing with the natural ordering of {@link Long} keys. The prefix holds the
+	 * entire key, so the comparator is only called for equal keys. Does not support <code>null</code>.
+	 *
+	 * @return The {@link KeyNormalizer}.
+	 */
+	static KeyNormalizer<Long> longs()
+	{
+		return key -> key ^ Long.MIN_VALUE;
+	}
+}
@@ -0,0 +1,218 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+
+/**
+ * Read-only index over <code>long</code> keys, built from a snapshot of a {@link TreeMap}. The keys are stored in an
+ * implicit static B-tree: every block holds {@link #BLOCK_SIZE} sorted keys, filling two 64 byte cache lines, and the
+ * block at index <code>k</code> has the 17 children <code>17k + 1</code> to <code>17k + 17</code>. A search visits a
+ * single block per level, and within a block it counts the keys less than the searched key using a fixed length loop
+ * without data dependent branches, which the JIT compiler can unroll and vectorize.
+ * <p>
+ * The entries are identified by their rank, the number of smaller keys in the index. The keys and values are also
+ * stored in ascending order, so ranges of ranks can be scanned sequentially.
+ *
+ * @param <V> The value type.
+ * @see IntKeyIndex
+ */
+public final class LongKeyIndex<V>
+{
+
+	/**
+	 * The number of keys in a block.
+	 */
+	public static final int BLOCK_SIZE = 16;
+
+	/**
+	 * The keys in blocks, in the order of the implicit B-tree. Unused positions hold {@link Long#MAX_VALUE}.
+	 */
+	private final long[] blocks;
+
+	/**
+	 * The rank of the key at each position in {@link #blocks}. Unused positions have the rank {@link #size}.
+	 */
+	private final int[] ranks;
+
+	/**
+	 * The number of blocks.
+	 */
+	private final int blockCount;
+
+	/**
+	 * The keys in ascending order.
+	 */
+	private final long[] keys;
+
+	/**
+	 * The values, where <code>values[r]</code> is the value of <code>keys[r]</code>.
+	 */
+	private final V[] values;
+
+	/**
+	 * The number of keys in the index.
+	 */
+	private final int size;
+
+	/**
+	 * Creates a new {@link LongKeyIndex} from the entries of the provided map.
+	 *
+	 * @param map The map to copy the entries from. The map must iterate its keys in ascending numerical order.
+	 *
+	 * @throws IllegalArgumentException if the keys of the map are not iterated in ascending numerical order
+	 * @throws NullPointerException     if the map contains a <code>null</code> key
+	 */
+	public LongKeyIndex(TreeMap<Long, ? extends V> map)
+	{
+		this.size = map.size();
+		this.keys = new long[size];
+		@SuppressWarnings("unchecked")
+		V[] values = (V[]) new Object[size];
+		this.values = values;
+
+		int rank = 0;
+		for (Map.Entry<Long, ? extends V> entry : map.entrySet()) {
+			long key = entry.getKey();
+			if (rank > 0 && keys[rank - 1] >= key)
+				throw new IllegalArgumentException("The keys must be iterated in ascending order.");
+
+			keys[rank] = key;
+			values[rank++] = entry.getValue();
+		}
+
+		this.blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		this.blocks = new long[blockCount * BLOCK_SIZE];
+		this.ranks = new int[blockCount * BLOCK_SIZE];
+		fill(0, 0);
+	}
+
+	/**
+	 * Returns the number of keys in the index.
+	 *
+	 * @return The number of keys in the index.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the value mapped to the provided key, or <code>null</code> if the key is not in the index.
+	 *
+	 * @param key The key whose value to return.
+	 *
+	 * @return The value mapped to the provided key, or <code>null</code> if the key is not in the index.
+	 */
+	public V get(long key)
+	{
+		int rank = lowerBound(key);
+		return rank < size && keys[rank] == key ? values[rank] : null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the provided key is in the index.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return <code>true</code> if the provided key is in the index.
+	 */
+	public boolean containsKey(long key)
+	{
+		int rank = lowerBound(key);
+		return rank < size && keys[rank] == key;
+	}
+
+	/**
+	 * Returns the rank of the smallest key greater than or equal to the provided key, which is the number of keys less
+	 * than the provided key. The keys with ranks from <code>lowerBound(from)</code> until <code>lowerBound(to)</code>
+	 * are the keys in the range <code>[from, to)</code>.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The rank of the smallest key greater than or equal to the provided key, or {@link #size()} if there is
+	 * no such key.
+	 */
+	public int lowerBound(long key)
+	{
+		int result = size;
+		int block  = 0;
+		while (block < blockCount) {
+			int offset = block * BLOCK_SIZE;
+			int below  = 0;
+			for (int x = 0; x < BLOCK_SIZE; x++)
+				below += blocks[offset + x] < key ? 1 : 0;
+
+			if (below < BLOCK_SIZE)
+				result = ranks[offset + below];
+			block = block * (BLOCK_SIZE + 1) + below + 1;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the key with the provided rank.
+	 *
+	 * @param rank The rank of the key.
+	 *
+	 * @return The key with the provided rank.
+	 * @throws IndexOutOfBoundsException if the rank is negative or not less than {@link #size()}
+	 */
+	public long keyAt(int rank)
+	{
+		return keys[checkRank(rank)];
+	}
+
+	/**
+	 * Returns the value of the key with the provided rank.
+	 *
+	 * @param rank The rank of the key.
+	 *
+	 * @return The value of the key with the provided rank.
+	 * @throws IndexOutOfBoundsException if the rank is negative or not less than {@link #size()}
+	 */
+	public V valueAt(int rank)
+	{
+		return values[checkRank(rank)];
+	}
+
+	/**
+	 * Checks that the provided rank is the rank of a key in the index.
+	 *
+	 * @param rank The rank to check.
+	 *
+	 * @return The rank.
+	 * @throws IndexOutOfBoundsException if the rank is negative or not less than {@link #size()}
+	 */
+	private int checkRank(int rank)
+	{
+		if (rank < 0 || rank >= size)
+			throw new IndexOutOfBoundsException("Rank: " + rank + ", Size: " + size);
+
+		return rank;
+	}
+
+	/**
+	 * Assigns the sorted keys to the positions of the subtree rooted in the provided block, visiting the positions in
+	 * order.
+	 *
+	 * @param block The block at the root of the subtree.
+	 * @param rank  The rank of the next key to assign.
+	 *
+	 * @return The rank of the next key to assign after the subtree.
+	 */
+	private int fill(int block, int rank)
+	{
+		if (block >= blockCount)
+			return rank;
+
+		int offset = block * BLOCK_SIZE;
+		for (int x = 0; x < BLOCK_SIZE; x++) {
+			rank = fill(block * (BLOCK_SIZE + 1) + x + 1, rank);
+			blocks[offset + x] = rank < size ? keys[rank] : Long.MAX_VALUE;
+			ranks[offset + x] = Math.min(rank, size);
+			rank++;
+		}
+
+		return fill(block * (BLOCK_SIZE + 1) + BLOCK_SIZE + 1, rank);
+	}
+}
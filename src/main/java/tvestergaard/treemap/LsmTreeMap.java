@@ -0,0 +1,1412 @@
+package tvestergaard.treemap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe ordered map stored in a directory as a log-structured merge tree. Writes go to a {@link TreeMap} in
+ * memory, the memtable, where a removal is recorded as a tombstone. When the memtable reaches a size threshold it is
+ * frozen, a new memtable takes its place, and the frozen memtable is flushed by a background thread to an immutable
+ * run file holding its entries in ascending order. Writes therefore never wait for a large tree on disk to be updated,
+ * only for the previous memtable to be flushed when the writers outpace the flushes.
+ * <p>
+ * Reads merge the memtable, the frozen memtable and the runs, with newer sources taking precedence over older ones.
+ * Each run holds a bloom filter of its keys, so a lookup skips the runs that do not contain the key without reading
+ * them, and a sparse index of every {@link #INDEX_INTERVAL}th key, so a lookup in a run reads a single block. When
+ * the number of runs exceeds a threshold, the background thread compacts them by merging them into a single run, which
+ * drops the overwritten entries and the tombstones.
+ * <p>
+ * Runs are written to temporary files, forced to the storage device and then atomically renamed, and the directory is
+ * forced after the rename, so a flushed run survives a crash, and a compaction deletes the runs it replaces only once
+ * the compacted run is durable. The entries in the memtables are lost in a crash, unless they have been flushed using
+ * {@link #flush()}. Once a background flush or compaction fails, the map no longer accepts writes. Keys and values
+ * cannot be <code>null</code>. Iterators iterate a copy of the entries taken when the iterator is created.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class LsmTreeMap<K, V> extends AbstractMap<K, V> implements Closeable
+{
+
+	/**
+	 * The value at the end of a run file.
+	 */
+	private static final int RUN_MAGIC = 0x4C534D52;
+
+	/**
+	 * Entry associating a value with a key.
+	 */
+	private static final byte PUT = 1;
+
+	/**
+	 * Entry removing a key.
+	 */
+	private static final byte REMOVE = 2;
+
+	/**
+	 * The value stored in the memtables for removed keys, and returned by the runs for their tombstones.
+	 */
+	private static final Object TOMBSTONE = new Object();
+
+	/**
+	 * The number of entries in each block of a run. The sparse index of a run holds the first key of each block.
+	 */
+	private static final int INDEX_INTERVAL = 16;
+
+	/**
+	 * The number of bloom filter bits per entry in a run, giving a false positive rate below one percent.
+	 */
+	private static final int BLOOM_BITS_PER_KEY = 10;
+
+	/**
+	 * The number of bits set in the bloom filter for each key.
+	 */
+	private static final int BLOOM_HASHES = 7;
+
+	/**
+	 * The size of the footer at the end of a run file, holding the number of entries, the offsets of the end of the
+	 * entries, the bloom filter and the index, the sequence number of the newest run replaced by the run, and {@link
+	 * #RUN_MAGIC}.
+	 */
+	private static final int FOOTER_SIZE = 5 * Long.BYTES + Integer.BYTES;
+
+	/**
+	 * The prefix of the names of the run files, which is followed by the sequence number of the run.
+	 */
+	private static final String RUN = "run-";
+
+	/**
+	 * The suffix of the names of files that are being written.
+	 */
+	private static final String TEMPORARY = ".tmp";
+
+	/**
+	 * The directory containing the run files.
+	 */
+	private final Path directory;
+
+	/**
+	 * The comparator used when comparing the keys in the {@link LsmTreeMap}.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * The codec writing and reading the keys.
+	 */
+	private final Codec<K> keyCodec;
+
+	/**
+	 * The codec writing and reading the values.
+	 */
+	private final Codec<V> valueCodec;
+
+	/**
+	 * The number of entries in the memtable, including tombstones, at which the memtable is frozen and flushed.
+	 */
+	private final int memtableSize;
+
+	/**
+	 * The number of runs above which the runs are compacted.
+	 */
+	private final int maxRuns;
+
+	/**
+	 * The lock guarding {@link #memtable}, {@link #immutable} and {@link #runs}.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when the frozen memtable has been flushed, or the flush failed.
+	 */
+	private final Condition flushed = lock.newCondition();
+
+	/**
+	 * The thread flushing the frozen memtables and compacting the runs. Using a single thread means flushes and
+	 * compactions never run at the same time, so only one of them changes the runs at a time.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The memtable receiving the writes.
+	 */
+	private TreeMap<K, Object> memtable;
+
+	/**
+	 * The frozen memtable being flushed, or <code>null</code> when no memtable is being flushed.
+	 */
+	private TreeMap<K, Object> immutable;
+
+	/**
+	 * The runs, newest first. The list is replaced rather than modified, so it can be read after releasing {@link
+	 * #lock}.
+	 */
+	private List<Run> runs;
+
+	/**
+	 * The sequence number of the next run to write. Only used by {@link #executor}.
+	 */
+	private long nextSequence;
+
+	/**
+	 * The error that occurred while flushing or compacting in the background. Exceptions other than {@link
+	 * IOException}, such as those thrown by a codec or the comparator, are wrapped in an {@link IOException}.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Cached entry set, returned from the {@link #entrySet()} method.
+	 */
+	private Set<Entry<K, V>> cacheEntrySet;
+
+	/**
+	 * Opens the {@link LsmTreeMap} stored in the provided directory, flushing memtables of 65536 entries and
+	 * compacting more than 4 runs. The directory is created when it does not exist.
+	 *
+	 * @param directory  The directory containing the run files.
+	 * @param comparator The comparator used when comparing the keys in the {@link LsmTreeMap}.
+	 * @param keyCodec   The codec writing and reading the keys.
+	 * @param valueCodec The codec writing and reading the values.
+	 *
+	 * @throws IOException if an I/O error occurs, or if a run file is invalid
+	 */
+	public LsmTreeMap(Path directory, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec)
+			throws IOException
+	{
+		this(directory, comparator, keyCodec, valueCodec, 1 << 16, 4);
+	}
+
+	/**
+	 * Opens the {@link LsmTreeMap} stored in the provided directory. The directory is created when it does not exist.
+	 *
+	 * @param directory    The directory containing the run files.
+	 * @param comparator   The comparator used when comparing the keys in the {@link LsmTreeMap}.
+	 * @param keyCodec     The codec writing and reading the keys.
+	 * @param valueCodec   The codec writing and reading the values.
+	 * @param memtableSize The number of entries in the memtable, including tombstones, at which it is flushed.
+	 * @param maxRuns      The number of runs above which the runs are compacted.
+	 *
+	 * @throws IOException              if an I/O error occurs, or if a run file is invalid
+	 * @throws IllegalArgumentException if <code>memtableSize</code> or <code>maxRuns</code> is less than one
+	 */
+	public LsmTreeMap(Path directory, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec,
+					  int memtableSize, int maxRuns) throws IOException
+	{
+		if (memtableSize < 1 || maxRuns < 1)
+			throw new IllegalArgumentException();
+
+		this.directory = Files.createDirectories(directory);
+		this.comparator = comparator;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.memtableSize = memtableSize;
+		this.maxRuns = maxRuns;
+		this.memtable = new TreeMap<>(comparator);
+		this.runs = openRuns();
+		this.nextSequence = runs.isEmpty() ? 1 : runs.get(0).sequence + 1;
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "LsmTreeMap " + directory);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map. The runs are merged to count the entries, so this takes
+	 * time proportional to the number of entries.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		return entries(null, null).size();
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key key whose presence in this map is to be tested
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		return get(key) != null;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key. The memtables are searched first, and then the runs from newest to oldest, skipping the runs whose bloom
+	 * filter does not contain the key.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 */
+	@Override public V get(Object key)
+	{
+		@SuppressWarnings("unchecked")
+		K         k = (K) Objects.requireNonNull(key);
+		List<Run> sources;
+		lock.lock();
+		try {
+			Object value = memtable.get(k);
+			if (value == null && immutable != null)
+				value = immutable.get(k);
+			if (value != null)
+				return unwrap(value);
+
+			sources = retain(runs);
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			if (sources.isEmpty())
+				return null;
+
+			long hash = hash(encode(k));
+			for (Run run : sources) {
+				Object value = run.get(k, hash);
+				if (value != null)
+					return unwrap(value);
+			}
+
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			release(sources);
+		}
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map. The previous value is read before the value
+	 * is written, which is not atomic with respect to other writers. Use {@link #write(Object, Object)} when the
+	 * previous value is not needed.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@Override public V put(K key, V value)
+	{
+		V result = get(key);
+		write(key, value);
+		return result;
+	}
+
+	/**
+	 * Removes the mapping for a key from this map if it is present. The previous value is read before the tombstone
+	 * is written, which is not atomic with respect to other writers. Use {@link #delete(Object)} when the previous
+	 * value is not needed.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V remove(Object key)
+	{
+		V result = get(key);
+		if (result != null)
+			delete((K) key);
+
+		return result;
+	}
+
+	/**
+	 * Associates the provided value with the provided key, without reading the previous value. Only the memtable is
+	 * written, so the write does not touch the disk unless it fills the memtable while the previous memtable is still
+	 * being flushed.
+	 *
+	 * @param key   The key.
+	 * @param value The value.
+	 *
+	 * @throws UncheckedIOException if a background flush or compaction has failed
+	 */
+	public void write(K key, V value)
+	{
+		update(Objects.requireNonNull(key), Objects.requireNonNull(value));
+	}
+
+	/**
+	 * Removes the provided key by writing a tombstone to the memtable, without reading the previous value.
+	 *
+	 * @param key The key.
+	 *
+	 * @throws UncheckedIOException if a background flush or compaction has failed
+	 */
+	public void delete(K key)
+	{
+		update(Objects.requireNonNull(key), TOMBSTONE);
+	}
+
+	/**
+	 * Returns the entries with keys from <code>from</code>, inclusive, to <code>to</code>, exclusive, in ascending
+	 * order by key. The memtables and the runs are merged, so the runs are read sequentially from the block containing
+	 * <code>from</code>.
+	 *
+	 * @param from The smallest key to return, inclusive.
+	 * @param to   The greatest key to return, exclusive.
+	 *
+	 * @return The entries in the range.
+	 */
+	public List<Entry<K, V>> range(K from, K to)
+	{
+		return entries(Objects.requireNonNull(from), Objects.requireNonNull(to));
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map, iterated in ascending order by key. Iterators
+	 * iterate a copy of the entries, and removing an entry using an iterator removes it from the map.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null) {
+			cacheEntrySet = new AbstractSet<Entry<K, V>>()
+			{
+				@Override public Iterator<Entry<K, V>> iterator()
+				{
+					Iterator<Entry<K, V>> iterator = entries(null, null).iterator();
+					return new Iterator<Entry<K, V>>()
+					{
+						private Entry<K, V> last;
+
+						@Override public boolean hasNext()
+						{
+							return iterator.hasNext();
+						}
+
+						@Override public Entry<K, V> next()
+						{
+							return last = iterator.next();
+						}
+
+						@Override public void remove()
+						{
+							if (last == null)
+								throw new IllegalStateException();
+
+							delete(last.getKey());
+							last = null;
+						}
+					};
+				}
+
+				@Override public int size()
+				{
+					return LsmTreeMap.this.size();
+				}
+			};
+		}
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Freezes the memtable and waits until it has been flushed to a run, so the entries written before the call are
+	 * durable.
+	 *
+	 * @throws IOException if the flush failed
+	 */
+	public void flush() throws IOException
+	{
+		lock.lock();
+		try {
+			checkFailure();
+			if (!memtable.isEmpty())
+				freeze();
+			awaitFlushed();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the memtable, and merges all runs into a single run.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void compact() throws IOException
+	{
+		flush();
+		Future<?> future = executor.submit(() -> {
+			compactRuns();
+			return null;
+		});
+
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException) cause).getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw (RuntimeException) cause;
+		}
+	}
+
+	/**
+	 * Returns the number of runs.
+	 *
+	 * @return The number of runs.
+	 */
+	public int runs()
+	{
+		lock.lock();
+		try {
+			return runs.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the memtable, stops the background thread and closes the run files.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override public void close() throws IOException
+	{
+		try {
+			flush();
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			lock.lock();
+			try {
+				release(runs);
+				runs = Collections.emptyList();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes the provided value or {@link #TOMBSTONE} to the memtable, and freezes the memtable when it is full.
+	 *
+	 * @param key   The key.
+	 * @param value The value or {@link #TOMBSTONE}.
+	 */
+	private void update(K key, Object value)
+	{
+		lock.lock();
+		try {
+			checkFailure();
+			memtable.put(key, value);
+			if (memtable.size() >= memtableSize)
+				freeze();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Replaces the memtable with an empty memtable, and flushes the frozen memtable in the background. Waits for the
+	 * previous frozen memtable to be flushed first. Must be called while holding {@link #lock}.
+	 */
+	private void freeze()
+	{
+		awaitFlushed();
+		immutable = memtable;
+		memtable = new TreeMap<>(comparator);
+		executor.execute(this::flushImmutable);
+	}
+
+	/**
+	 * Waits until no memtable is being flushed. Must be called while holding {@link #lock}.
+	 *
+	 * @throws UncheckedIOException if the flush failed
+	 */
+	private void awaitFlushed()
+	{
+		while (immutable != null) {
+			checkFailure();
+			flushed.awaitUninterruptibly();
+		}
+	}
+
+	/**
+	 * Throws an exception when a background flush or compaction has failed.
+	 *
+	 * @throws UncheckedIOException if a background flush or compaction has failed
+	 */
+	private void checkFailure()
+	{
+		if (failure != null)
+			throw new UncheckedIOException("The runs could not be written.", failure);
+	}
+
+	/**
+	 * Writes the frozen memtable to a new run, and compacts the runs when there are too many. Runs on {@link
+	 * #executor}.
+	 */
+	private void flushImmutable()
+	{
+		try {
+			TreeMap<K, Object> source;
+			lock.lock();
+			try {
+				source = immutable;
+			} finally {
+				lock.unlock();
+			}
+
+			// The frozen memtable is no longer modified, so it can be iterated while readers search it
+			Run       run    = writeRun(nextSequence++, 0, source.entrySet().iterator(), source.size(), false);
+			List<Run> result = new ArrayList<>();
+			result.add(run);
+			lock.lock();
+			try {
+				result.addAll(runs);
+				runs = result;
+				immutable = null;
+				flushed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			if (result.size() > maxRuns)
+				compactRuns();
+		} catch (IOException | RuntimeException | Error e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records the provided exception, thrown by a background flush or compaction, in {@link #failure}, and wakes the
+	 * writers waiting for the flush, so they fail instead of waiting forever.
+	 *
+	 * @param e The exception.
+	 */
+	private void fail(Throwable e)
+	{
+		lock.lock();
+		try {
+			if (e instanceof UncheckedIOException)
+				failure = ((UncheckedIOException) e).getCause();
+			else if (e instanceof IOException)
+				failure = (IOException) e;
+			else
+				failure = new IOException("The runs could not be written.", e);
+			flushed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Merges all runs into a single run. The merge includes the oldest run, so the tombstones can be dropped. Runs on
+	 * {@link #executor}, so the runs are not changed by a flush during the merge. A failure is recorded in {@link
+	 * #failure}, so the map stops accepting writes.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void compactRuns() throws IOException
+	{
+		try {
+			compactSources();
+		} catch (IOException | RuntimeException | Error e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Merges all runs into a single run, like {@link #compactRuns()}, without recording a failure.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void compactSources() throws IOException
+	{
+		List<Run> sources;
+		lock.lock();
+		try {
+			sources = runs;
+		} finally {
+			lock.unlock();
+		}
+
+		if (sources.size() < 2)
+			return;
+
+		List<Iterator<Entry<K, Object>>> iterators = new ArrayList<>(sources.size());
+		long                             expected  = 0;
+		for (Run source : sources) {
+			iterators.add(source.iterator(null));
+			expected += source.count;
+		}
+
+		Run run = writeRun(nextSequence++, sources.get(0).sequence, new MergeIterator(iterators), expected, true);
+		lock.lock();
+		try {
+			List<Run> result = new ArrayList<>(runs);
+			result.removeAll(sources);
+			result.add(run);
+			runs = result;
+		} finally {
+			lock.unlock();
+		}
+
+		// The compacted run is durable, since writeRun forced the directory, so the sources can be deleted
+		for (Run source : sources)
+			source.retire();
+	}
+
+	/**
+	 * Returns the entries with keys in the provided range, merged from the memtables and the runs.
+	 *
+	 * @param from The smallest key to return, inclusive, or <code>null</code> to start from the smallest key.
+	 * @param to   The greatest key to return, exclusive, or <code>null</code> to end at the greatest key.
+	 *
+	 * @return The entries in the range, in ascending order by key.
+	 */
+	private List<Entry<K, V>> entries(K from, K to)
+	{
+		List<Iterator<Entry<K, Object>>> iterators = new ArrayList<>();
+		List<Run>                        sources;
+		lock.lock();
+		try {
+			iterators.add(copy(memtable, from, to).iterator());
+			if (immutable != null)
+				iterators.add(copy(immutable, from, to).iterator());
+			sources = retain(runs);
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			for (Run source : sources)
+				iterators.add(source.iterator(from));
+
+			List<Entry<K, V>> result = new ArrayList<>();
+			MergeIterator     merged = new MergeIterator(iterators);
+			while (merged.hasNext()) {
+				Entry<K, Object> entry = merged.next();
+				if (to != null && comparator.compare(entry.getKey(), to) >= 0)
+					break;
+				if (entry.getValue() != TOMBSTONE)
+					result.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), unwrap(entry.getValue())));
+			}
+
+			return result;
+		} finally {
+			release(sources);
+		}
+	}
+
+	/**
+	 * Copies the entries with keys in the provided range from the provided memtable. Must be called while holding
+	 * {@link #lock}.
+	 *
+	 * @param source The memtable.
+	 * @param from   The smallest key to copy, inclusive, or <code>null</code> to start from the smallest key.
+	 * @param to     The greatest key to copy, exclusive, or <code>null</code> to end at the greatest key.
+	 *
+	 * @return The copied entries.
+	 */
+	private List<Entry<K, Object>> copy(TreeMap<K, Object> source, K from, K to)
+	{
+		List<Entry<K, Object>>           result = new ArrayList<>();
+		TreeMap<K, Object>.TreeMapCursor cursor = source.cursor();
+		if (from != null)
+			cursor.seek(from);
+		while (cursor.isPositioned() && (to == null || comparator.compare(cursor.getKey(), to) < 0)) {
+			result.add(new AbstractMap.SimpleImmutableEntry<>(cursor.getKey(), cursor.getValue()));
+			cursor.next();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Opens the run files in the directory. Temporary files left by a crash are deleted, as are the runs replaced by
+	 * a compacted run that were not deleted before a crash.
+	 *
+	 * @return The runs, newest first.
+	 * @throws IOException if an I/O error occurs, or if a run file is invalid
+	 */
+	private List<Run> openRuns() throws IOException
+	{
+		List<Run> result = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(TEMPORARY))
+					Files.delete(file);
+				else if (name.startsWith(RUN))
+					result.add(new Run(file, Long.parseLong(name.substring(RUN.length()))));
+			}
+		} catch (IOException | RuntimeException e) {
+			release(result);
+			throw e;
+		}
+
+		result.sort((a, b) -> Long.compare(b.sequence, a.sequence));
+		long          replaced = 0;
+		Iterator<Run> iterator = result.iterator();
+		while (iterator.hasNext()) {
+			Run run = iterator.next();
+			if (run.sequence <= replaced) {
+				iterator.remove();
+				run.retire();
+			} else
+				replaced = Math.max(replaced, run.replaces);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes the provided entries, which must be in ascending order by key, to a new run file.
+	 *
+	 * @param sequence       The sequence number of the run.
+	 * @param replaces       The sequence number of the newest run replaced by the run, or zero.
+	 * @param entries        The entries to write, with {@link #TOMBSTONE} as the value of removed keys.
+	 * @param expected       The maximum number of entries, used to size the bloom filter.
+	 * @param dropTombstones Whether the tombstones are left out of the run.
+	 *
+	 * @return The written run.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Run writeRun(long sequence, long replaces, Iterator<Entry<K, Object>> entries, long expected,
+						 boolean dropTombstones) throws IOException
+	{
+		Path       file         = directory.resolve(String.format("%s%016d", RUN, sequence));
+		Path       temporary    = file.resolveSibling(file.getFileName() + TEMPORARY);
+		long[]     bloom        = new long[(int) Math.max(1, (expected * BLOOM_BITS_PER_KEY + 63) / 64)];
+		List<K>    indexKeys    = new ArrayList<>();
+		List<Long> indexOffsets = new ArrayList<>();
+		Buffer     buffer       = new Buffer();
+		long       count        = 0;
+		long       position     = 0;
+
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+													StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+																				 1 << 16));
+			while (entries.hasNext()) {
+				Entry<K, Object> entry = entries.next();
+				if (dropTombstones && entry.getValue() == TOMBSTONE)
+					continue;
+
+				if (count++ % INDEX_INTERVAL == 0) {
+					indexKeys.add(entry.getKey());
+					indexOffsets.add(position);
+				}
+
+				buffer.reset();
+				buffer.out.writeByte(entry.getValue() == TOMBSTONE ? REMOVE : PUT);
+				keyCodec.write(entry.getKey(), buffer.out);
+				addToBloom(bloom, hash(buffer.array(), 1, buffer.size()));
+				if (entry.getValue() != TOMBSTONE)
+					valueCodec.write(unwrap(entry.getValue()), buffer.out);
+				buffer.writeTo(out);
+				position += buffer.size();
+			}
+
+			long end         = position;
+			long bloomOffset = position;
+			out.writeInt(bloom.length);
+			for (long word : bloom)
+				out.writeLong(word);
+
+			long indexOffset = bloomOffset + Integer.BYTES + (long) bloom.length * Long.BYTES;
+			out.writeInt(indexKeys.size());
+			for (int x = 0; x < indexKeys.size(); x++) {
+				keyCodec.write(indexKeys.get(x), out);
+				out.writeLong(indexOffsets.get(x));
+			}
+
+			out.writeLong(count);
+			out.writeLong(end);
+			out.writeLong(bloomOffset);
+			out.writeLong(indexOffset);
+			out.writeLong(replaces);
+			out.writeInt(RUN_MAGIC);
+			out.flush();
+			channel.force(true);
+		}
+
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory();
+		return new Run(file, sequence);
+	}
+
+	/**
+	 * Forces {@link #directory} to the storage device, so the files renamed into it survive a crash.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void forceDirectory() throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Returns the value of the map held by the provided stored value.
+	 *
+	 * @param value The stored value, either a value of the map or {@link #TOMBSTONE}.
+	 *
+	 * @return The value, or <code>null</code> if the stored value is {@link #TOMBSTONE}.
+	 */
+	@SuppressWarnings("unchecked")
+	private V unwrap(Object value)
+	{
+		return value == TOMBSTONE ? null : (V) value;
+	}
+
+	/**
+	 * Encodes the provided key using {@link #keyCodec}.
+	 *
+	 * @param key The key to encode.
+	 *
+	 * @return The encoded key.
+	 * @throws IOException if the key cannot be encoded
+	 */
+	private byte[] encode(K key) throws IOException
+	{
+		Buffer buffer = new Buffer();
+		keyCodec.write(key, buffer.out);
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Returns the hash of the provided encoded key.
+	 *
+	 * @param bytes The encoded key.
+	 *
+	 * @return The hash of the encoded key.
+	 */
+	private static long hash(byte[] bytes)
+	{
+		return hash(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Returns the hash of the provided bytes, using 64 bit FNV-1a followed by the finalizer of MurmurHash3, so all bits
+	 * of the hash depend on all bytes.
+	 *
+	 * @param bytes The array containing the bytes.
+	 * @param from  The index of the first byte, inclusive.
+	 * @param to    The index of the last byte, exclusive.
+	 *
+	 * @return The hash of the bytes.
+	 */
+	private static long hash(byte[] bytes, int from, int to)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int x = from; x < to; x++)
+			hash = (hash ^ (bytes[x] & 0xff)) * 0x100000001b3L;
+
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+
+	/**
+	 * Sets the bits of the provided hash in the provided bloom filter. The bits are derived from the two halves of the
+	 * hash using double hashing.
+	 *
+	 * @param bloom The bloom filter.
+	 * @param hash  The hash of the key.
+	 */
+	private static void addToBloom(long[] bloom, long hash)
+	{
+		long bits = (long) bloom.length * Long.SIZE;
+		for (int x = 0; x < BLOOM_HASHES; x++) {
+			long bit = Math.floorMod((int) hash + x * (hash >>> 32), bits);
+			bloom[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Returns whether the provided bloom filter may contain the key with the provided hash.
+	 *
+	 * @param bloom The bloom filter.
+	 * @param hash  The hash of the key.
+	 *
+	 * @return <code>false</code> if the key is definitely not in the bloom filter.
+	 */
+	private static boolean bloomContains(long[] bloom, long hash)
+	{
+		long bits = (long) bloom.length * Long.SIZE;
+		for (int x = 0; x < BLOOM_HASHES; x++) {
+			long bit = Math.floorMod((int) hash + x * (hash >>> 32), bits);
+			if ((bloom[(int) (bit >>> 6)] & 1L << bit) == 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Retains the provided runs, so they are not closed while they are read after releasing {@link #lock}. Must be
+	 * called while holding {@link #lock}.
+	 *
+	 * @param runs The runs to retain.
+	 *
+	 * @return The provided runs.
+	 */
+	private List<Run> retain(List<Run> runs)
+	{
+		for (Run run : runs)
+			run.references.incrementAndGet();
+
+		return runs;
+	}
+
+	/**
+	 * Releases the provided runs.
+	 *
+	 * @param runs The runs to release.
+	 */
+	private void release(List<Run> runs)
+	{
+		for (Run run : runs)
+			run.release();
+	}
+
+	/**
+	 * {@link ByteArrayOutputStream} whose contents can be accessed without copying.
+	 */
+	private static final class Buffer extends ByteArrayOutputStream
+	{
+
+		/**
+		 * Writes to the buffer.
+		 */
+		private final DataOutputStream out = new DataOutputStream(this);
+
+		/**
+		 * Returns the array holding the contents of the buffer.
+		 *
+		 * @return The array holding the contents of the buffer.
+		 */
+		byte[] array()
+		{
+			return buf;
+		}
+	}
+
+	/**
+	 * Immutable sorted run file. The file holds the entries in ascending order by key, followed by the bloom filter,
+	 * the sparse index and the footer. The bloom filter and the index are kept in memory while the run is open. The
+	 * run is closed when the map and all readers have released it, and deleted at that point when it has been
+	 * replaced by a compacted run.
+	 */
+	private final class Run
+	{
+
+		/**
+		 * The sequence number of the run. Newer runs have greater sequence numbers.
+		 */
+		private final long sequence;
+
+		/**
+		 * The run file.
+		 */
+		private final Path file;
+
+		/**
+		 * The channel reading the run file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * The number of entries in the run.
+		 */
+		private final long count;
+
+		/**
+		 * The offset of the end of the entries.
+		 */
+		private final long end;
+
+		/**
+		 * The sequence number of the newest run replaced by this run, or zero when this run was flushed from a
+		 * memtable.
+		 */
+		private final long replaces;
+
+		/**
+		 * The bloom filter of the keys.
+		 */
+		private final long[] bloom;
+
+		/**
+		 * The first key of each block.
+		 */
+		private final K[] indexKeys;
+
+		/**
+		 * The offset of each block.
+		 */
+		private final long[] indexOffsets;
+
+		/**
+		 * The number of references to the run. The map holds one reference while the run is in {@link #runs}.
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		/**
+		 * Whether the file is deleted when the last reference is released.
+		 */
+		private volatile boolean retired;
+
+		/**
+		 * Opens the provided run file, reading the footer, the bloom filter and the index.
+		 *
+		 * @param file     The run file.
+		 * @param sequence The sequence number of the run.
+		 *
+		 * @throws IOException if an I/O error occurs, or if the file is not a valid run file
+		 */
+		Run(Path file, long sequence) throws IOException
+		{
+			this.file = file;
+			this.sequence = sequence;
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				if (size < FOOTER_SIZE)
+					throw new IOException("Invalid run " + file);
+
+				DataInputStream footer = input(size - FOOTER_SIZE, size);
+				this.count = footer.readLong();
+				this.end = footer.readLong();
+				long bloomOffset = footer.readLong();
+				long indexOffset = footer.readLong();
+				this.replaces = footer.readLong();
+				if (footer.readInt() != RUN_MAGIC)
+					throw new IOException("Invalid run " + file);
+
+				DataInputStream in = input(bloomOffset, size - FOOTER_SIZE);
+				this.bloom = new long[in.readInt()];
+				for (int x = 0; x < bloom.length; x++)
+					bloom[x] = in.readLong();
+
+				in = input(indexOffset, size - FOOTER_SIZE);
+				int blocks = in.readInt();
+				@SuppressWarnings("unchecked")
+				K[] indexKeys = (K[]) new Object[blocks];
+				this.indexKeys = indexKeys;
+				this.indexOffsets = new long[blocks];
+				for (int x = 0; x < blocks; x++) {
+					indexKeys[x] = keyCodec.read(in);
+					indexOffsets[x] = in.readLong();
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns the value of the provided key in the run.
+		 *
+		 * @param key  The key.
+		 * @param hash The hash of the encoded key.
+		 *
+		 * @return The value of the key, {@link #TOMBSTONE} if the key is removed in the run, or <code>null</code> if
+		 * the run does not contain the key.
+		 * @throws IOException if an I/O error occurs
+		 */
+		Object get(K key, long hash) throws IOException
+		{
+			if (!bloomContains(bloom, hash))
+				return null;
+
+			int block = floor(key);
+			if (block < 0)
+				return null;
+
+			long       to      = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : end;
+			ByteBuffer bytes   = ByteBuffer.allocate((int) (to - indexOffsets[block]));
+			long       entries = Math.min(INDEX_INTERVAL, count - (long) block * INDEX_INTERVAL);
+			while (bytes.hasRemaining())
+				if (channel.read(bytes, indexOffsets[block] + bytes.position()) < 0)
+					throw new EOFException();
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+			for (long x = 0; x < entries; x++) {
+				byte   operation = in.readByte();
+				K      candidate = keyCodec.read(in);
+				Object value     = operation == PUT ? valueCodec.read(in) : TOMBSTONE;
+				int    compare   = comparator.compare(candidate, key);
+				if (compare == 0)
+					return value;
+				if (compare > 0)
+					return null;
+			}
+
+			return null;
+		}
+
+		/**
+		 * Returns an iterator over the entries in the run, starting from the provided key.
+		 *
+		 * @param from The smallest key to return, inclusive, or <code>null</code> to start from the smallest key.
+		 *
+		 * @return The iterator, returning {@link #TOMBSTONE} as the value of removed keys.
+		 */
+		Iterator<Entry<K, Object>> iterator(K from)
+		{
+			int block = from == null ? 0 : Math.max(0, floor(from));
+			if (indexOffsets.length == 0)
+				return Collections.emptyIterator();
+
+			DataInputStream in        = input(indexOffsets[block], end);
+			long            remaining = count - (long) block * INDEX_INTERVAL;
+			return new Iterator<Entry<K, Object>>()
+			{
+				private long             left = remaining;
+				private Entry<K, Object> next = advance();
+
+				private Entry<K, Object> advance()
+				{
+					try {
+						while (left > 0) {
+							left--;
+							byte   operation = in.readByte();
+							K      key       = keyCodec.read(in);
+							Object value     = operation == PUT ? valueCodec.read(in) : TOMBSTONE;
+							if (from == null || comparator.compare(key, from) >= 0)
+								return new AbstractMap.SimpleImmutableEntry<>(key, value);
+						}
+
+						return null;
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+
+				@Override public boolean hasNext()
+				{
+					return next != null;
+				}
+
+				@Override public Entry<K, Object> next()
+				{
+					if (next == null)
+						throw new NoSuchElementException();
+
+					Entry<K, Object> result = next;
+					next = advance();
+					return result;
+				}
+			};
+		}
+
+		/**
+		 * Returns the index of the last block whose first key is less than or equal to the provided key.
+		 *
+		 * @param key The key.
+		 *
+		 * @return The index of the block, or <code>-1</code> if the key is less than the first key in the run.
+		 */
+		private int floor(K key)
+		{
+			int low  = 0;
+			int high = indexKeys.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (comparator.compare(indexKeys[middle], key) <= 0)
+					low = middle + 1;
+				else
+					high = middle - 1;
+			}
+
+			return high;
+		}
+
+		/**
+		 * Returns a buffered input reading the run file between the provided offsets. The file is read using
+		 * positional reads, so any number of inputs can read the file at the same time.
+		 *
+		 * @param from The offset to start reading from.
+		 * @param to   The offset to stop reading at.
+		 *
+		 * @return The input.
+		 */
+		private DataInputStream input(long from, long to)
+		{
+			return new DataInputStream(new BufferedInputStream(new InputStream()
+			{
+				private long position = from;
+
+				@Override public int read() throws IOException
+				{
+					byte[] single = new byte[1];
+					return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+				}
+
+				@Override public int read(byte[] b, int off, int len) throws IOException
+				{
+					if (position >= to)
+						return -1;
+
+					int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, to - position)), position);
+					if (read > 0)
+						position += read;
+					return read;
+				}
+			}));
+		}
+
+		/**
+		 * Marks the run as replaced, and releases the reference held by the map. The file is deleted when the last
+		 * reference is released.
+		 */
+		void retire()
+		{
+			retired = true;
+			release();
+		}
+
+		/**
+		 * Releases a reference to the run, closing the file when it was the last reference.
+		 */
+		void release()
+		{
+			if (references.decrementAndGet() != 0)
+				return;
+
+			try {
+				channel.close();
+				if (retired)
+					Files.deleteIfExists(file);
+			} catch (IOException e) {
+				// A retired file that could not be deleted is deleted when the map is opened again, since it is
+				// replaced by a newer run
+			}
+		}
+	}
+
+	/**
+	 * Iterator merging sorted iterators. When several iterators return the same key, the entry from the iterator
+	 * listed first is returned and the others are skipped, so the sources must be listed from newest to oldest.
+	 */
+	private final class MergeIterator implements Iterator<Entry<K, Object>>
+	{
+
+		/**
+		 * The merged iterators.
+		 */
+		private final List<Iterator<Entry<K, Object>>> iterators;
+
+		/**
+		 * The next entry of each iterator that has one, ordered by key and then by the position of the iterator.
+		 */
+		private final PriorityQueue<Head> heads;
+
+		/**
+		 * Creates a new {@link MergeIterator}.
+		 *
+		 * @param iterators The iterators to merge, from newest to oldest.
+		 */
+		MergeIterator(List<Iterator<Entry<K, Object>>> iterators)
+		{
+			this.iterators = iterators;
+			this.heads = new PriorityQueue<>(Math.max(1, iterators.size()), (a, b) -> {
+				int compare = comparator.compare(a.entry.getKey(), b.entry.getKey());
+				return compare != 0 ? compare : Integer.compare(a.source, b.source);
+			});
+			for (int x = 0; x < iterators.size(); x++)
+				advance(x);
+		}
+
+		@Override public boolean hasNext()
+		{
+			return !heads.isEmpty();
+		}
+
+		@Override public Entry<K, Object> next()
+		{
+			Head head = heads.poll();
+			if (head == null)
+				throw new NoSuchElementException();
+
+			advance(head.source);
+			while (!heads.isEmpty() && comparator.compare(heads.peek().entry.getKey(), head.entry.getKey()) == 0)
+				advance(heads.poll().source);
+
+			return head.entry;
+		}
+
+		/**
+		 * Adds the next entry of the provided iterator to {@link #heads}, if it has one.
+		 *
+		 * @param source The position of the iterator.
+		 */
+		private void advance(int source)
+		{
+			Iterator<Entry<K, Object>> iterator = iterators.get(source);
+			if (iterator.hasNext())
+				heads.add(new Head(iterator.next(), source));
+		}
+	}
+
+	/**
+	 * The next entry of one of the iterators merged by a {@link MergeIterator}.
+	 */
+	private final class Head
+	{
+
+		/**
+		 * The entry.
+		 */
+		private final Entry<K, Object> entry;
+
+		/**
+		 * The position of the iterator returning the entry.
+		 */
+		private final int source;
+
+		/**
+		 * Creates a new {@link Head}.
+		 *
+		 * @param entry  The entry.
+		 * @param source The position of the iterator returning the entry.
+		 */
+		Head(Entry<K, Object> entry, int source)
+		{
+			this.entry = entry;
+			this.source = source;
+		}
+	}
+}
@@ -0,0 +1,722 @@
+package tvestergaard.treemap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-only map served directly from a memory-mapped snapshot file. Opening a snapshot only maps the file and reads
+ * its header, so the map is ready to answer queries immediately, however large the snapshot is. The pages of the file
+ * are loaded by the operating system as they are touched.
+ * <p>
+ * The snapshot holds the entries in ascending order by key, followed by a table with the offset of each entry, so a
+ * lookup binary searches the table and decodes only the keys it visits. The entries are divided into regions of
+ * {@link #REGION_SIZE} entries, and the lookups and range queries hitting each region are counted. When a region has
+ * been hit often enough, it is promoted: its entries are decoded once and inserted into a live {@link TreeMap}, which
+ * answers the later queries for the region without decoding. Regions can also be promoted up front using {@link
+ * #promote(Object, Object)}.
+ * <p>
+ * Snapshots are written using {@link #write(Path, TreeMap, Codec, Codec)}. Values cannot be <code>null</code>. The
+ * map is thread-safe. Java cannot unmap a file explicitly, so the mapping is released when the map is garbage
+ * collected, rather than when it is closed.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class MappedSnapshot<K, V> extends AbstractMap<K, V> implements Closeable
+{
+
+	/**
+	 * The value at the start of a snapshot file.
+	 */
+	private static final int MAGIC = 0x534E4150;
+
+	/**
+	 * The size of the header holding {@link #MAGIC}, the number of entries and the offset of the offset table.
+	 */
+	private static final int HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES;
+
+	/**
+	 * The base 2 logarithm of the size of the mapped segments. A single mapping cannot exceed 2 GB, so larger files
+	 * are mapped in segments.
+	 */
+	private static final int SEGMENT_SHIFT = 30;
+
+	/**
+	 * The size of the mapped segments.
+	 */
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+	/**
+	 * The number of entries in a region, the unit in which entries are promoted to the live tree.
+	 */
+	static final int REGION_SIZE = 1024;
+
+	/**
+	 * The comparator used when comparing the keys in the {@link MappedSnapshot}.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * The codec reading the keys.
+	 */
+	private final Codec<K> keyCodec;
+
+	/**
+	 * The codec reading the values.
+	 */
+	private final Codec<V> valueCodec;
+
+	/**
+	 * The snapshot file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The mapped segments of the snapshot file.
+	 */
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * The size of the snapshot file.
+	 */
+	private final long fileSize;
+
+	/**
+	 * The number of entries in the snapshot.
+	 */
+	private final long count;
+
+	/**
+	 * The offset of the table holding the offsets of the entries.
+	 */
+	private final long tableOffset;
+
+	/**
+	 * The number of hits after which a region is promoted.
+	 */
+	private final int promoteAfter;
+
+	/**
+	 * The lock guarding {@link #live}, {@link #ranges}, {@link #hits} and {@link #promoted}.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The entries of the promoted regions.
+	 */
+	private final TreeMap<K, V> live;
+
+	/**
+	 * Maps the first key of each run of promoted regions to the first key after the run, or to <code>null</code> when
+	 * the run ends with the last region.
+	 */
+	private final TreeMap<K, K> ranges;
+
+	/**
+	 * The number of hits of each region that is not promoted.
+	 */
+	private final int[] hits;
+
+	/**
+	 * Whether each region is promoted.
+	 */
+	private final boolean[] promoted;
+
+	/**
+	 * Cached entry set, returned from the {@link #entrySet()} method.
+	 */
+	private Set<Entry<K, V>> cacheEntrySet;
+
+	/**
+	 * Opens the provided snapshot file, promoting regions after 16 hits.
+	 *
+	 * @param file       The snapshot file.
+	 * @param comparator The comparator used when comparing the keys in the {@link MappedSnapshot}.
+	 * @param keyCodec   The codec reading the keys.
+	 * @param valueCodec The codec reading the values.
+	 *
+	 * @throws IOException if an I/O error occurs, or if the file is not a valid snapshot
+	 */
+	public MappedSnapshot(Path file, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec)
+			throws IOException
+	{
+		this(file, comparator, keyCodec, valueCodec, 16);
+	}
+
+	/**
+	 * Opens the provided snapshot file.
+	 *
+	 * @param file         The snapshot file.
+	 * @param comparator   The comparator used when comparing the keys in the {@link MappedSnapshot}.
+	 * @param keyCodec     The codec reading the keys.
+	 * @param valueCodec   The codec reading the values.
+	 * @param promoteAfter The number of hits after which a region is promoted, or {@link Integer#MAX_VALUE} to only
+	 *                     promote regions using {@link #promote(Object, Object)}.
+	 *
+	 * @throws IOException              if an I/O error occurs, or if the file is not a valid snapshot
+	 * @throws IllegalArgumentException if <code>promoteAfter</code> is less than one
+	 */
+	public MappedSnapshot(Path file, Comparator<K> comparator, Codec<K> keyCodec, Codec<V> valueCodec,
+						  int promoteAfter) throws IOException
+	{
+		if (promoteAfter < 1)
+			throw new IllegalArgumentException();
+
+		this.comparator = comparator;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.promoteAfter = promoteAfter;
+		this.live = new TreeMap<>(comparator);
+		this.ranges = new TreeMap<>(comparator);
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			this.fileSize = channel.size();
+			this.segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+			for (int x = 0; x < segments.length; x++) {
+				long from = (long) x << SEGMENT_SHIFT;
+				segments[x] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT_SIZE, fileSize - from));
+			}
+
+			if (fileSize < HEADER_SIZE || readInt(0) != MAGIC)
+				throw new IOException("Invalid snapshot " + file);
+			this.count = readLong(Integer.BYTES);
+			this.tableOffset = readLong(Integer.BYTES + Long.BYTES);
+			if (count < 0 || tableOffset < HEADER_SIZE || tableOffset + count * Long.BYTES != fileSize)
+				throw new IOException("Invalid snapshot " + file);
+
+			int regions = (int) ((count + REGION_SIZE - 1) / REGION_SIZE);
+			this.hits = new int[regions];
+			this.promoted = new boolean[regions];
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the entries of the provided map to a snapshot file. The snapshot is written to a temporary file, forced
+	 * to the storage device and then atomically renamed.
+	 *
+	 * @param file       The snapshot file.
+	 * @param map        The map to write.
+	 * @param keyCodec   The codec writing the keys.
+	 * @param valueCodec The codec writing the values.
+	 * @param <K>        The key type.
+	 * @param <V>        The value type.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static <K, V> void write(Path file, TreeMap<K, V> map, Codec<? super K> keyCodec,
+									Codec<? super V> valueCodec) throws IOException
+	{
+		write(file, map.entrySet().iterator(), keyCodec, valueCodec);
+	}
+
+	/**
+	 * Writes the provided entries, which must be in strictly ascending order by key, to a snapshot file. The entries
+	 * are streamed to the file, and the offset table is spilled to a second temporary file and appended afterwards,
+	 * so neither the entries nor their offsets need to fit in memory.
+	 *
+	 * @param file       The snapshot file.
+	 * @param entries    The entries to write.
+	 * @param keyCodec   The codec writing the keys.
+	 * @param valueCodec The codec writing the values.
+	 * @param <K>        The key type.
+	 * @param <V>        The value type.
+	 *
+	 * @return The number of written entries.
+	 * @throws IOException if an I/O error occurs
+	 */
+	static <K, V> long write(Path file, Iterator<? extends Entry<K, V>> entries, Codec<? super K> keyCodec,
+							 Codec<? super V> valueCodec) throws IOException
+	{
+		Path                  temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Path                  table     = file.resolveSibling(file.getFileName() + ".offsets.tmp");
+		ByteArrayOutputStream entry     = new ByteArrayOutputStream();
+		DataOutputStream      entryOut  = new DataOutputStream(entry);
+		long                  position  = HEADER_SIZE;
+		long                  count     = 0;
+
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+													StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			 FileChannel offsets = FileChannel.open(table, StandardOpenOption.CREATE, StandardOpenOption.READ,
+													StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+													StandardOpenOption.DELETE_ON_CLOSE)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+																				 1 << 16));
+			DataOutputStream offsetsOut = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(offsets), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeLong(0);
+			out.writeLong(0);
+			while (entries.hasNext()) {
+				Entry<K, V> mapping = entries.next();
+				entry.reset();
+				keyCodec.write(mapping.getKey(), entryOut);
+				valueCodec.write(mapping.getValue(), entryOut);
+				entry.writeTo(out);
+				offsetsOut.writeLong(position);
+				position += entry.size();
+				count++;
+			}
+
+			out.flush();
+			offsetsOut.flush();
+			offsets.position(0);
+			for (long copied = 0; copied < count * Long.BYTES; )
+				copied += channel.transferFrom(offsets, position + copied, count * Long.BYTES - copied);
+
+			ByteBuffer header = ByteBuffer.allocate(2 * Long.BYTES).putLong(0, count).putLong(Long.BYTES, position);
+			channel.write(header, Integer.BYTES);
+			channel.force(true);
+		}
+
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		return count;
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		return (int) Math.min(Integer.MAX_VALUE, count);
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key key whose presence in this map is to be tested
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		return get(key) != null;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key. Keys in promoted regions are found in the live tree, other keys are binary searched in the mapped file.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 */
+	@Override public V get(Object key)
+	{
+		@SuppressWarnings("unchecked")
+		K k = (K) Objects.requireNonNull(key);
+		lock.lock();
+		try {
+			if (isPromoted(k))
+				return live.get(k);
+		} finally {
+			lock.unlock();
+		}
+
+		if (count == 0)
+			return null;
+
+		try {
+			long index = lowerBound(k);
+			V    value = null;
+			if (index < count) {
+				DataInputStream in = input(offset(index));
+				if (comparator.compare(keyCodec.read(in), k) == 0)
+					value = valueCodec.read(in);
+			}
+
+			hit((int) (Math.min(index, count - 1) / REGION_SIZE));
+			return value;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the entries with keys from <code>from</code>, inclusive, to <code>to</code>, exclusive, in ascending
+	 * order by key. The entries in promoted regions are copied from the live tree, the other entries are decoded
+	 * sequentially from the mapped file.
+	 *
+	 * @param from The smallest key to return, inclusive.
+	 * @param to   The greatest key to return, exclusive.
+	 *
+	 * @return The entries in the range.
+	 */
+	public List<Entry<K, V>> range(K from, K to)
+	{
+		List<Entry<K, V>> result = new ArrayList<>();
+		try {
+			long start = lowerBound(Objects.requireNonNull(from));
+			long end   = lowerBound(Objects.requireNonNull(to));
+			while (start < end) {
+				int  region    = (int) (start / REGION_SIZE);
+				long regionEnd = Math.min(end, (region + 1L) * REGION_SIZE);
+				if (!copyPromoted(region, start, regionEnd, result)) {
+					DataInputStream in = input(offset(start));
+					for (long x = start; x < regionEnd; x++)
+						result.add(new AbstractMap.SimpleImmutableEntry<>(keyCodec.read(in), valueCodec.read(in)));
+				}
+
+				hit(region);
+				start = regionEnd;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Promotes the regions containing the keys from <code>from</code>, inclusive, to <code>to</code>, exclusive, to
+	 * the live tree, so a known hot range can be warmed up before it is queried.
+	 *
+	 * @param from The smallest key to promote, inclusive.
+	 * @param to   The greatest key to promote, exclusive.
+	 */
+	public void promote(K from, K to)
+	{
+		long start = lowerBound(Objects.requireNonNull(from));
+		long end   = lowerBound(Objects.requireNonNull(to));
+		if (start >= end)
+			return;
+
+		lock.lock();
+		try {
+			for (long region = start / REGION_SIZE; region <= (end - 1) / REGION_SIZE; region++)
+				if (!promoted[(int) region])
+					promoteRegion((int) region);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries that have been promoted to the live tree.
+	 *
+	 * @return The number of entries that have been promoted to the live tree.
+	 */
+	public int promoted()
+	{
+		lock.lock();
+		try {
+			return live.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map, iterated in ascending order by key. The
+	 * entries are decoded from the mapped file as they are iterated.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null) {
+			cacheEntrySet = new AbstractSet<Entry<K, V>>()
+			{
+				@Override public Iterator<Entry<K, V>> iterator()
+				{
+					DataInputStream in = input(HEADER_SIZE);
+					return new Iterator<Entry<K, V>>()
+					{
+						private long index;
+
+						@Override public boolean hasNext()
+						{
+							return index < count;
+						}
+
+						@Override public Entry<K, V> next()
+						{
+							if (index >= count)
+								throw new NoSuchElementException();
+
+							try {
+								index++;
+								return new AbstractMap.SimpleImmutableEntry<>(keyCodec.read(in), valueCodec.read(in));
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						}
+					};
+				}
+
+				@Override public int size()
+				{
+					return MappedSnapshot.this.size();
+				}
+			};
+		}
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Closes the snapshot file. The mapping itself is released when the map is garbage collected.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/**
+	 * Returns whether the provided key is in a promoted region, so it can be looked up in the live tree. Must be called
+	 * while holding {@link #lock}.
+	 *
+	 * @param key The key.
+	 *
+	 * @return <code>true</code> if the key is in a promoted region.
+	 */
+	private boolean isPromoted(K key)
+	{
+		if (ranges.isEmpty())
+			return false;
+
+		TreeMap<K, K>.TreeMapCursor cursor = ranges.cursor();
+		if (cursor.seek(key))
+			return true;
+		if (cursor.isPositioned())
+			cursor.prev();
+		else
+			cursor.last();
+
+		return cursor.isPositioned() && (cursor.getValue() == null || comparator.compare(key, cursor.getValue()) < 0);
+	}
+
+	/**
+	 * Counts a hit of the provided region, promoting it when it has been hit often enough.
+	 *
+	 * @param region The region.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void hit(int region) throws IOException
+	{
+		lock.lock();
+		try {
+			if (!promoted[region] && ++hits[region] >= promoteAfter)
+				promoteRegion(region);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Decodes the entries of the provided region and inserts them into the live tree. Must be called while holding
+	 * {@link #lock}.
+	 *
+	 * @param region The region to promote.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@SuppressWarnings("unchecked")
+	private void promoteRegion(int region) throws IOException
+	{
+		long            start  = (long) region * REGION_SIZE;
+		int             length = (int) Math.min(REGION_SIZE, count - start);
+		K[]             keys   = (K[]) new Object[length];
+		V[]             values = (V[]) new Object[length];
+		DataInputStream in     = input(offset(start));
+		for (int x = 0; x < length; x++) {
+			keys[x] = keyCodec.read(in);
+			values[x] = valueCodec.read(in);
+		}
+
+		live.putAll(keys, values);
+		promoted[region] = true;
+		hits[region] = 0;
+
+		// Merge the promoted range with the ranges of the adjacent regions, when they are promoted
+		K first = keys[0];
+		K after = start + length < count ? keyCodec.read(input(offset(start + length))) : null;
+		if (region > 0 && promoted[region - 1]) {
+			TreeMap<K, K>.TreeMapCursor cursor = ranges.cursor();
+			if (cursor.seek(first) || cursor.isPositioned())
+				cursor.prev();
+			else
+				cursor.last();
+			first = cursor.getKey();
+		}
+		if (after != null && promoted[region + 1])
+			after = ranges.remove(after);
+
+		ranges.put(first, after);
+	}
+
+	/**
+	 * Copies the entries from <code>start</code>, inclusive, to <code>end</code>, exclusive, from the live tree, when
+	 * the provided region is promoted.
+	 *
+	 * @param region The region containing the entries.
+	 * @param start  The index of the first entry to copy, inclusive.
+	 * @param end    The index of the last entry to copy, exclusive.
+	 * @param result The list to add the entries to.
+	 *
+	 * @return <code>false</code> if the region is not promoted.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean copyPromoted(int region, long start, long end, List<Entry<K, V>> result) throws IOException
+	{
+		K first = keyCodec.read(input(offset(start)));
+		lock.lock();
+		try {
+			if (!promoted[region])
+				return false;
+
+			TreeMap<K, V>.TreeMapCursor cursor = live.cursor();
+			cursor.seek(first);
+			for (long x = start; x < end; x++) {
+				result.add(new AbstractMap.SimpleImmutableEntry<>(cursor.getKey(), cursor.getValue()));
+				cursor.next();
+			}
+
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the index of the first entry whose key is greater than or equal to the provided key, by binary searching
+	 * the offset table.
+	 *
+	 * @param key The key.
+	 *
+	 * @return The index of the entry, or the number of entries when all keys are smaller than the provided key.
+	 */
+	private long lowerBound(K key)
+	{
+		try {
+			long low  = 0;
+			long high = count;
+			while (low < high) {
+				long middle = (low + high) >>> 1;
+				if (comparator.compare(keyCodec.read(input(offset(middle))), key) < 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+
+			return low;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the offset of the entry with the provided index.
+	 *
+	 * @param index The index of the entry.
+	 *
+	 * @return The offset of the entry.
+	 */
+	private long offset(long index)
+	{
+		return readLong(tableOffset + index * Long.BYTES);
+	}
+
+	/**
+	 * Reads the <code>int</code> at the provided offset in the file.
+	 *
+	 * @param position The offset.
+	 *
+	 * @return The read value.
+	 */
+	private int readInt(long position)
+	{
+		int result = 0;
+		for (int x = 0; x < Integer.BYTES; x++)
+			result = result << 8 | readByte(position + x);
+
+		return result;
+	}
+
+	/**
+	 * Reads the <code>long</code> at the provided offset in the file. Values within a single segment are read
+	 * directly, values spanning two segments byte by byte.
+	 *
+	 * @param position The offset.
+	 *
+	 * @return The read value.
+	 */
+	private long readLong(long position)
+	{
+		int offset = (int) (position & SEGMENT_SIZE - 1);
+		if (offset <= SEGMENT_SIZE - Long.BYTES)
+			return segments[(int) (position >>> SEGMENT_SHIFT)].getLong(offset);
+
+		long result = 0;
+		for (int x = 0; x < Long.BYTES; x++)
+			result = result << 8 | readByte(position + x);
+
+		return result;
+	}
+
+	/**
+	 * Reads the unsigned byte at the provided offset in the file.
+	 *
+	 * @param position The offset.
+	 *
+	 * @return The read byte.
+	 */
+	private int readByte(long position)
+	{
+		return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_SIZE - 1)) & 0xff;
+	}
+
+	/**
+	 * Returns an input reading the mapped file from the provided offset. The input reads the segments using absolute
+	 * reads, so any number of inputs can read the file at the same time.
+	 *
+	 * @param from The offset to start reading from.
+	 *
+	 * @return The input.
+	 */
+	private DataInputStream input(long from)
+	{
+		return new DataInputStream(new InputStream()
+		{
+			private long position = from;
+
+			@Override public int read()
+			{
+				return position < fileSize ? readByte(position++) : -1;
+			}
+
+			@Override public int read(byte[] b, int off, int len)
+			{
+				if (position >= fileSize)
+					return -1;
+
+				int        offset  = (int) (position & SEGMENT_SIZE - 1);
+				ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+				int        read    = (int) Math.min(Math.min(len, segment.limit() - offset), fileSize - position);
+				segment.position(offset);
+				segment.get(b, off, read);
+				position += read;
+				return read;
+			}
+		});
+	}
+}
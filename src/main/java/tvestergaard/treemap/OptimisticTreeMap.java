@@ -0,0 +1,1417 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent AVL tree using optimistic concurrency control. Every node carries a version number that is changed
+ * whenever the key range of its subtree shrinks because of a rotation, or when the node is unlinked. Readers never
+ * block: they descend hand-over-hand, reading a child and then validating that the version of the parent is
+ * unchanged. When the validation fails, the search is retried from the deepest node whose version is still valid.
+ * Writers lock only the nodes they modify, always locking a parent before its child.
+ * <p>
+ * Removing an entry whose node has two children turns the node into a routing node without a value, instead of
+ * relinking its successor. Routing nodes are unlinked by the rebalancing once they have fewer than two children.
+ * <p>
+ * Keys and values cannot be <code>null</code>. Iterators are weakly consistent: they never throw {@link
+ * ConcurrentModificationException}, and reflect some, but not necessarily all, of the modifications made after their
+ * creation.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ * @see <a href="https://doi.org/10.1145/1693453.1693488">A Practical Concurrent Binary Search Tree</a>
+ */
+public class OptimisticTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
+{
+
+	/**
+	 * Version bit set when the node has been unlinked from the tree.
+	 */
+	private static final long UNLINKED = 1L;
+
+	/**
+	 * Version bit set while the subtree of the node is shrinking.
+	 */
+	private static final long SHRINKING = 2L;
+
+	/**
+	 * The amount added to the version of a node each time its subtree has shrunk.
+	 */
+	private static final long SHRINK_COUNT = 4L;
+
+	/**
+	 * Number of times a reader spins while waiting for a shrinking node, before blocking on the lock of the node.
+	 */
+	private static final int SPINS = 100;
+
+	/**
+	 * Returned by searches and updates when they must be retried from the parent.
+	 */
+	private static final Object RETRY = new Object();
+
+	/**
+	 * Condition of a node that must be unlinked.
+	 */
+	private static final int UNLINK_REQUIRED = -1;
+
+	/**
+	 * Condition of a node that must be rotated.
+	 */
+	private static final int REBALANCE_REQUIRED = -2;
+
+	/**
+	 * Condition of a node whose height is correct.
+	 */
+	private static final int NOTHING_REQUIRED = -3;
+
+	/**
+	 * Update that is always performed.
+	 */
+	private static final int UPDATE_ALWAYS = 0;
+
+	/**
+	 * Update that is only performed when the key is absent.
+	 */
+	private static final int UPDATE_IF_ABSENT = 1;
+
+	/**
+	 * Update that is only performed when the key is present.
+	 */
+	private static final int UPDATE_IF_PRESENT = 2;
+
+	/**
+	 * Update that is only performed when the key is mapped to an expected value.
+	 */
+	private static final int UPDATE_IF_EQUAL = 3;
+
+	/**
+	 * The comparator used when comparing the keys in the {@link OptimisticTreeMap}.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * Sentinel node whose right child is the root of the tree. The version of the holder never changes.
+	 */
+	private final Node<K, V> holder = new Node<>(null, null, null);
+
+	/**
+	 * The number of entries in the {@link OptimisticTreeMap}.
+	 */
+	private final LongAdder size = new LongAdder();
+
+	/**
+	 * Cached {@link OptimisticTreeMapEntrySet} that can be returned from the {@link #entrySet()} method.
+	 */
+	private OptimisticTreeMapEntrySet cacheEntrySet;
+
+	/**
+	 * Creates a new {@link OptimisticTreeMap} using the provided <code>comparator</code>.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link OptimisticTreeMap}.
+	 */
+	public OptimisticTreeMap(Comparator<K> comparator)
+	{
+		this.comparator = comparator;
+	}
+
+	/**
+	 * Node in the {@link OptimisticTreeMap}. All mutable fields are volatile, since readers access them without
+	 * locking. Writers modify a node only while holding its monitor.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 */
+	private static final class Node<K, V>
+	{
+
+		/**
+		 * The key of the {@link Node}.
+		 */
+		private final K key;
+
+		/**
+		 * The value of the {@link Node}. <code>null</code> when the node is a routing node.
+		 */
+		private volatile V value;
+
+		/**
+		 * The left (smaller) child {@link Node}.
+		 */
+		private volatile Node<K, V> left;
+
+		/**
+		 * The right (greater) child {@link Node}.
+		 */
+		private volatile Node<K, V> right;
+
+		/**
+		 * The parent of the {@link Node}.
+		 */
+		private volatile Node<K, V> parent;
+
+		/**
+		 * The height of the tree rooted in this node.
+		 */
+		private volatile int height = 1;
+
+		/**
+		 * The version of the {@link Node}, see {@link #UNLINKED}, {@link #SHRINKING} and {@link #SHRINK_COUNT}.
+		 */
+		private volatile long version;
+
+		/**
+		 * Creates a new {@link Node}.
+		 *
+		 * @param key    The key of the {@link Node}.
+		 * @param value  The value of the {@link Node}.
+		 * @param parent The parent of the {@link Node}.
+		 */
+		Node(K key, V value, Node<K, V> parent)
+		{
+			this.key = key;
+			this.value = value;
+			this.parent = parent;
+		}
+
+		/**
+		 * Returns the child in the provided direction.
+		 *
+		 * @param direction Negative for the left child, positive for the right child.
+		 *
+		 * @return The child in the provided direction.
+		 */
+		Node<K, V> child(int direction)
+		{
+			return direction < 0 ? left : right;
+		}
+
+		/**
+		 * Sets the child in the provided direction. The caller must hold the monitor of the node.
+		 *
+		 * @param direction Negative for the left child, positive for the right child.
+		 * @param child     The new child.
+		 */
+		void setChild(int direction, Node<K, V> child)
+		{
+			if (direction < 0)
+				left = child;
+			else
+				right = child;
+		}
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		long sum = size.sum();
+		return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(sum, 0);
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains no key-value mappings.
+	 *
+	 * @return <tt>true</tt> if this map contains no key-value mappings
+	 */
+	@Override public boolean isEmpty()
+	{
+		return firstEntry() == null;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key. Never blocks.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 * @throws ClassCastException   if the provided key is of an inappropriate type for this map
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		return get(key) != null;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key. Never blocks, unless the search meets a node in the middle of a rotation.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 * @throws ClassCastException   if the provided key is of an inappropriate type for this map
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V get(Object key)
+	{
+		K k = (K) Objects.requireNonNull(key);
+		while (true) {
+			Object result = attemptGet(k, holder, 1, holder.version);
+			if (result != RETRY)
+				return (V) result;
+		}
+	}
+
+	/**
+	 * Searches the subtree in the provided direction of the provided node for the provided key.
+	 *
+	 * @param key       The key to search for.
+	 * @param node      The node whose child subtree is searched.
+	 * @param direction The direction of the child subtree to search.
+	 * @param version   The version of the node when it was reached.
+	 *
+	 * @return The value mapped to the key, <code>null</code> when the key is absent, or {@link #RETRY} when the
+	 * version of the node changed.
+	 */
+	private Object attemptGet(K key, Node<K, V> node, int direction, long version)
+	{
+		while (true) {
+			Node<K, V> child = node.child(direction);
+			if (node.version != version)
+				return RETRY;
+
+			if (child == null)
+				return null;
+
+			int compare = comparator.compare(key, child.key);
+			if (compare == 0)
+				return child.value;
+
+			long childVersion = child.version;
+			if ((childVersion & SHRINKING) != 0) {
+				waitUntilNotShrinking(child);
+			} else if (childVersion != UNLINKED && child == node.child(direction)) {
+				if (node.version != version)
+					return RETRY;
+
+				Object result = attemptGet(key, child, compare, childVersion);
+				if (result != RETRY)
+					return result;
+			}
+		}
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 * @throws NullPointerException if the provided key or value is <code>null</code>
+	 */
+	@Override public V put(K key, V value)
+	{
+		return update(key, UPDATE_ALWAYS, null, Objects.requireNonNull(value));
+	}
+
+	/**
+	 * Associates the value with the key, if the key is not already associated with a value.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 * @throws NullPointerException if the provided key or value is <code>null</code>
+	 */
+	@Override public V putIfAbsent(K key, V value)
+	{
+		return update(key, UPDATE_IF_ABSENT, null, Objects.requireNonNull(value));
+	}
+
+	/**
+	 * Replaces the entry for a key only if currently mapped to some value.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 * @throws NullPointerException if the provided key or value is <code>null</code>
+	 */
+	@Override public V replace(K key, V value)
+	{
+		return update(key, UPDATE_IF_PRESENT, null, Objects.requireNonNull(value));
+	}
+
+	/**
+	 * Replaces the entry for a key only if currently mapped to a given value.
+	 *
+	 * @param key      key with which the specified value is associated
+	 * @param oldValue value expected to be associated with the specified key
+	 * @param newValue value to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was replaced
+	 * @throws NullPointerException if any of the arguments is <code>null</code>
+	 */
+	@Override public boolean replace(K key, V oldValue, V newValue)
+	{
+		Objects.requireNonNull(oldValue);
+		return oldValue.equals(update(key, UPDATE_IF_EQUAL, oldValue, Objects.requireNonNull(newValue)));
+	}
+
+	/**
+	 * Removes the mapping for the specified key from this map if present.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 * @throws ClassCastException   if the provided key is of an inappropriate type for this map
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V remove(Object key)
+	{
+		return update((K) key, UPDATE_ALWAYS, null, null);
+	}
+
+	/**
+	 * Removes the entry for a key only if currently mapped to a given value.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value expected to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was removed
+	 * @throws ClassCastException   if the provided key is of an inappropriate type for this map
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public boolean remove(Object key, Object value)
+	{
+		return value != null && value.equals(update((K) key, UPDATE_IF_EQUAL, value, null));
+	}
+
+	/**
+	 * Removes all of the mappings from this map. Concurrent insertions may or may not be removed.
+	 */
+	@Override public void clear()
+	{
+		Entry<K, V> entry;
+		while ((entry = firstEntry()) != null)
+			remove(entry.getKey());
+	}
+
+	/**
+	 * Returns a copy of the entry with the smallest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return A copy of the entry with the smallest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> firstEntry()
+	{
+		return navigate(null, true, true);
+	}
+
+	/**
+	 * Returns a copy of the entry with the greatest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return A copy of the entry with the greatest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> lastEntry()
+	{
+		return navigate(null, false, true);
+	}
+
+	/**
+	 * Returns a copy of the entry with the smallest key greater than or equal to the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	public Entry<K, V> ceilingEntry(K key)
+	{
+		return navigate(Objects.requireNonNull(key), true, true);
+	}
+
+	/**
+	 * Returns a copy of the entry with the smallest key strictly greater than the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	public Entry<K, V> higherEntry(K key)
+	{
+		return navigate(Objects.requireNonNull(key), true, false);
+	}
+
+	/**
+	 * Returns a copy of the entry with the greatest key less than or equal to the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	public Entry<K, V> floorEntry(K key)
+	{
+		return navigate(Objects.requireNonNull(key), false, true);
+	}
+
+	/**
+	 * Returns a copy of the entry with the greatest key strictly less than the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The entry, or <code>null</code> if there is no such entry.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	public Entry<K, V> lowerEntry(K key)
+	{
+		return navigate(Objects.requireNonNull(key), false, false);
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map. The iterators of the set are weakly
+	 * consistent, and return the entries in ascending order by key.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null)
+			cacheEntrySet = new OptimisticTreeMapEntrySet();
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Set view of the entries in the {@link OptimisticTreeMap}.
+	 */
+	private final class OptimisticTreeMapEntrySet extends AbstractSet<Entry<K, V>>
+	{
+
+		/**
+		 * Returns the number of entries in the {@link OptimisticTreeMap}.
+		 *
+		 * @return The number of entries in the {@link OptimisticTreeMap}.
+		 */
+		@Override public int size()
+		{
+			return OptimisticTreeMap.this.size();
+		}
+
+		/**
+		 * Returns <tt>true</tt> if the {@link OptimisticTreeMap} contains the specified entry.
+		 *
+		 * @param o entry whose presence is to be tested
+		 *
+		 * @return <tt>true</tt> if the {@link OptimisticTreeMap} contains the specified entry
+		 */
+		@Override public boolean contains(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			V           value = get(entry.getKey());
+			return value != null && value.equals(entry.getValue());
+		}
+
+		/**
+		 * Removes the specified entry from the {@link OptimisticTreeMap} if it is present.
+		 *
+		 * @param o entry to be removed, if present
+		 *
+		 * @return <tt>true</tt> if the {@link OptimisticTreeMap} contained the specified entry
+		 */
+		@Override public boolean remove(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			return OptimisticTreeMap.this.remove(entry.getKey(), entry.getValue());
+		}
+
+		/**
+		 * Returns a weakly consistent iterator over the entries, in ascending order by key.
+		 *
+		 * @return a weakly consistent iterator over the entries
+		 */
+		@Override public Iterator<Entry<K, V>> iterator()
+		{
+			return new OptimisticTreeMapEntryIterator();
+		}
+
+		/**
+		 * Removes all of the entries from the {@link OptimisticTreeMap}.
+		 */
+		@Override public void clear()
+		{
+			OptimisticTreeMap.this.clear();
+		}
+	}
+
+	/**
+	 * Weakly consistent iterator over the entries in the {@link OptimisticTreeMap}. Each entry is found by searching
+	 * for the smallest key greater than the previously returned key, so the iterator holds no references into the tree.
+	 */
+	private final class OptimisticTreeMapEntryIterator implements Iterator<Entry<K, V>>
+	{
+
+		/**
+		 * The next entry to return.
+		 */
+		private Entry<K, V> next = firstEntry();
+
+		/**
+		 * The previously returned entry.
+		 */
+		private Entry<K, V> previous;
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Entry<K, V> next()
+		{
+			if (next == null)
+				throw new NoSuchElementException();
+
+			previous = next;
+			next = higherEntry(next.getKey());
+			return previous;
+		}
+
+		/**
+		 * Removes the key of the previously returned entry from the {@link OptimisticTreeMap}.
+		 *
+		 * @throws IllegalStateException if the {@code next} method has not yet been called, or the {@code remove}
+		 *                               method has already been called after the last call to the {@code next} method
+		 */
+		@Override public void remove()
+		{
+			if (previous == null)
+				throw new IllegalStateException();
+
+			OptimisticTreeMap.this.remove(previous.getKey());
+			previous = null;
+		}
+	}
+
+	/**
+	 * Finds the entry closest to the provided key in the provided direction. Routing nodes found by the search are
+	 * skipped by searching again strictly past their key.
+	 *
+	 * @param key       The key to search from, or <code>null</code> to find the first or last entry.
+	 * @param ascending <code>true</code> to find the smallest key above the key, <code>false</code> to find the
+	 *                  greatest key below the key.
+	 * @param inclusive <code>true</code> if an entry with the key itself can be returned.
+	 *
+	 * @return A copy of the found entry, or <code>null</code> if there is no such entry.
+	 */
+	private Entry<K, V> navigate(K key, boolean ascending, boolean inclusive)
+	{
+		while (true) {
+			Object result = attemptNavigate(key, ascending, inclusive, holder, 1, holder.version);
+			if (result == RETRY)
+				continue;
+			if (result == null)
+				return null;
+
+			@SuppressWarnings("unchecked")
+			Node<K, V> node  = (Node<K, V>) result;
+			V          value = node.value;
+			if (value != null)
+				return new AbstractMap.SimpleImmutableEntry<>(node.key, value);
+
+			key = node.key;
+			inclusive = false;
+		}
+	}
+
+	/**
+	 * Searches the subtree in the provided direction of the provided node for the node closest to the provided key.
+	 *
+	 * @param key       The key to search from, or <code>null</code> to find the first or last node.
+	 * @param ascending <code>true</code> to find the smallest key above the key, <code>false</code> to find the
+	 *                  greatest key below the key.
+	 * @param inclusive <code>true</code> if the node with the key itself can be returned.
+	 * @param node      The node whose child subtree is searched.
+	 * @param direction The direction of the child subtree to search.
+	 * @param version   The version of the node when it was reached.
+	 *
+	 * @return The found node, <code>null</code> when the subtree contains no such node, or {@link #RETRY} when the
+	 * version of the node changed.
+	 */
+	private Object attemptNavigate(K key, boolean ascending, boolean inclusive, Node<K, V> node, int direction,
+								   long version)
+	{
+		int towards = ascending ? -1 : 1;
+		while (true) {
+			Node<K, V> child = node.child(direction);
+			if (node.version != version)
+				return RETRY;
+
+			if (child == null)
+				return null;
+
+			int compare = key == null ? towards : comparator.compare(key, child.key);
+			if (compare == 0) {
+				if (inclusive)
+					return child;
+				compare = -towards;
+			}
+
+			long childVersion = child.version;
+			if ((childVersion & SHRINKING) != 0) {
+				waitUntilNotShrinking(child);
+			} else if (childVersion != UNLINKED && child == node.child(direction)) {
+				if (node.version != version)
+					return RETRY;
+
+				Object result = attemptNavigate(key, ascending, inclusive, child, compare, childVersion);
+				if (result != RETRY)
+					return result == null && (compare < 0) == ascending ? child : result;
+			}
+		}
+	}
+
+	/**
+	 * Performs an update of the value mapped to the provided key.
+	 *
+	 * @param key      The key to update.
+	 * @param mode     When to perform the update, one of {@link #UPDATE_ALWAYS}, {@link #UPDATE_IF_ABSENT}, {@link
+	 *                 #UPDATE_IF_PRESENT} and {@link #UPDATE_IF_EQUAL}.
+	 * @param expected The expected value when the mode is {@link #UPDATE_IF_EQUAL}.
+	 * @param value    The new value, or <code>null</code> to remove the mapping.
+	 *
+	 * @return The previous value mapped to the key.
+	 */
+	@SuppressWarnings("unchecked")
+	private V update(K key, int mode, Object expected, V value)
+	{
+		Objects.requireNonNull(key);
+		while (true) {
+			Node<K, V> root = holder.right;
+			if (root == null) {
+				if (value == null || !shouldUpdate(mode, null, expected))
+					return null;
+
+				synchronized (holder) {
+					if (holder.right == null) {
+						holder.right = new Node<>(key, value, holder);
+						size.increment();
+						return null;
+					}
+				}
+			} else {
+				long rootVersion = root.version;
+				if ((rootVersion & SHRINKING) != 0) {
+					waitUntilNotShrinking(root);
+				} else if (rootVersion != UNLINKED && root == holder.right) {
+					Object result = attemptUpdate(key, mode, expected, value, holder, root, rootVersion);
+					if (result != RETRY)
+						return (V) result;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Performs an update in the subtree rooted in the provided node.
+	 *
+	 * @param key      The key to update.
+	 * @param mode     When to perform the update.
+	 * @param expected The expected value when the mode is {@link #UPDATE_IF_EQUAL}.
+	 * @param value    The new value, or <code>null</code> to remove the mapping.
+	 * @param parent   The parent of the node.
+	 * @param node     The root of the subtree.
+	 * @param version  The version of the node when it was reached.
+	 *
+	 * @return The previous value mapped to the key, or {@link #RETRY} when the version of the node changed.
+	 */
+	private Object attemptUpdate(K key, int mode, Object expected, V value, Node<K, V> parent, Node<K, V> node,
+								 long version)
+	{
+		int direction = comparator.compare(key, node.key);
+		if (direction == 0)
+			return attemptNodeUpdate(mode, expected, value, parent, node);
+
+		while (true) {
+			Node<K, V> child = node.child(direction);
+			if (node.version != version)
+				return RETRY;
+
+			if (child == null) {
+				if (value == null || !shouldUpdate(mode, null, expected))
+					return null;
+
+				Node<K, V> damaged;
+				synchronized (node) {
+					if (node.version != version)
+						return RETRY;
+					if (node.child(direction) != null)
+						continue;
+
+					node.setChild(direction, new Node<>(key, value, node));
+					size.increment();
+					damaged = fixHeight(node);
+				}
+
+				fixHeightAndRebalance(damaged);
+				return null;
+			}
+
+			long childVersion = child.version;
+			if ((childVersion & SHRINKING) != 0) {
+				waitUntilNotShrinking(child);
+			} else if (childVersion != UNLINKED && child == node.child(direction)) {
+				if (node.version != version)
+					return RETRY;
+
+				Object result = attemptUpdate(key, mode, expected, value, node, child, childVersion);
+				if (result != RETRY)
+					return result;
+			}
+		}
+	}
+
+	/**
+	 * Performs an update of the value of the provided node, which has the key being updated.
+	 *
+	 * @param mode     When to perform the update.
+	 * @param expected The expected value when the mode is {@link #UPDATE_IF_EQUAL}.
+	 * @param value    The new value, or <code>null</code> to remove the mapping.
+	 * @param parent   The parent of the node.
+	 * @param node     The node to update.
+	 *
+	 * @return The previous value of the node, or {@link #RETRY} when the node was moved or unlinked.
+	 */
+	private Object attemptNodeUpdate(int mode, Object expected, V value, Node<K, V> parent, Node<K, V> node)
+	{
+		if (value == null && node.value == null)
+			return null;
+
+		if (value == null && (node.left == null || node.right == null)) {
+			V          previous;
+			Node<K, V> damaged;
+			synchronized (parent) {
+				if ((parent.version & UNLINKED) != 0 || node.parent != parent)
+					return RETRY;
+
+				synchronized (node) {
+					previous = node.value;
+					if (previous == null || !shouldUpdate(mode, previous, expected))
+						return previous;
+					if (!attemptUnlink(parent, node))
+						return RETRY;
+				}
+
+				size.decrement();
+				damaged = fixHeight(parent);
+			}
+
+			fixHeightAndRebalance(damaged);
+			return previous;
+		}
+
+		synchronized (node) {
+			if ((node.version & UNLINKED) != 0)
+				return RETRY;
+
+			V previous = node.value;
+			if (!shouldUpdate(mode, previous, expected))
+				return previous;
+
+			// The node could now be unlinked instead of becoming a routing node
+			if (value == null && (node.left == null || node.right == null))
+				return RETRY;
+
+			node.value = value;
+			if (previous == null && value != null)
+				size.increment();
+			else if (previous != null && value == null)
+				size.decrement();
+			return previous;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if an update with the provided mode must be performed.
+	 *
+	 * @param mode     The mode of the update.
+	 * @param previous The current value, <code>null</code> when absent.
+	 * @param expected The expected value when the mode is {@link #UPDATE_IF_EQUAL}.
+	 *
+	 * @return <code>true</code> if the update must be performed.
+	 */
+	private static boolean shouldUpdate(int mode, Object previous, Object expected)
+	{
+		switch (mode) {
+			case UPDATE_IF_ABSENT:
+				return previous == null;
+			case UPDATE_IF_PRESENT:
+				return previous != null;
+			case UPDATE_IF_EQUAL:
+				return previous != null && previous.equals(expected);
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Unlinks the provided node, which must have at most one child. The caller must hold the monitors of both the
+	 * parent and the node.
+	 *
+	 * @param parent The parent of the node.
+	 * @param node   The node to unlink.
+	 *
+	 * @return <code>true</code> if the node was unlinked, <code>false</code> if the node gained a second child or is
+	 * no longer a child of the parent.
+	 */
+	private boolean attemptUnlink(Node<K, V> parent, Node<K, V> node)
+	{
+		Node<K, V> parentLeft  = parent.left;
+		Node<K, V> parentRight = parent.right;
+		if (parentLeft != node && parentRight != node)
+			return false;
+
+		Node<K, V> left  = node.left;
+		Node<K, V> right = node.right;
+		if (left != null && right != null)
+			return false;
+
+		Node<K, V> splice = left != null ? left : right;
+		if (parentLeft == node)
+			parent.left = splice;
+		else
+			parent.right = splice;
+		if (splice != null)
+			splice.parent = parent;
+
+		node.version = UNLINKED;
+		node.value = null;
+		return true;
+	}
+
+	/**
+	 * Waits until the provided node is no longer shrinking. Spins for a while, and then waits for the monitor of the
+	 * node, which is held by the thread performing the rotation.
+	 *
+	 * @param node The node to wait for.
+	 */
+	private static void waitUntilNotShrinking(Node<?, ?> node)
+	{
+		for (int x = 0; x < SPINS; x++)
+			if ((node.version & SHRINKING) == 0)
+				return;
+
+		synchronized (node) {
+			// The monitor is held while the node is shrinking
+		}
+	}
+
+	/**
+	 * Returns the height of the provided node.
+	 *
+	 * @param node The node. May be <code>null</code>.
+	 *
+	 * @return The height of the node, or <code>0</code> when the node is <code>null</code>.
+	 */
+	private static int height(Node<?, ?> node)
+	{
+		return node == null ? 0 : node.height;
+	}
+
+	/**
+	 * Returns what must be done to repair the provided node.
+	 *
+	 * @param node The node to examine.
+	 *
+	 * @return {@link #UNLINK_REQUIRED}, {@link #REBALANCE_REQUIRED}, {@link #NOTHING_REQUIRED}, or the new height of
+	 * the node when only its height must be updated.
+	 */
+	private int nodeCondition(Node<K, V> node)
+	{
+		Node<K, V> left  = node.left;
+		Node<K, V> right = node.right;
+
+		if ((left == null || right == null) && node.value == null)
+			return UNLINK_REQUIRED;
+
+		int height      = node.height;
+		int leftHeight  = height(left);
+		int rightHeight = height(right);
+		int repaired    = 1 + Math.max(leftHeight, rightHeight);
+		int balance     = leftHeight - rightHeight;
+
+		if (balance < -1 || balance > 1)
+			return REBALANCE_REQUIRED;
+
+		return height != repaired ? repaired : NOTHING_REQUIRED;
+	}
+
+	/**
+	 * Updates the height of the provided node. The caller must hold the monitor of the node.
+	 *
+	 * @param node The node to update.
+	 *
+	 * @return The node that must be repaired next, or <code>null</code> if nothing more must be repaired.
+	 */
+	private Node<K, V> fixHeight(Node<K, V> node)
+	{
+		int condition = nodeCondition(node);
+		switch (condition) {
+			case REBALANCE_REQUIRED:
+			case UNLINK_REQUIRED:
+				return node;
+			case NOTHING_REQUIRED:
+				return null;
+			default:
+				node.height = condition;
+				return node.parent;
+		}
+	}
+
+	/**
+	 * Repairs the provided node, and the nodes above it, until no more repairs are required. A rotation that leaves a
+	 * node below it damaged returns that node instead of repairing its own ancestors, so the ancestors of such nodes
+	 * are swept when the repairs are done.
+	 *
+	 * @param node The node to repair. May be <code>null</code>.
+	 */
+	private void fixHeightAndRebalance(Node<K, V> node)
+	{
+		Deque<Node<K, V>> deferred = null;
+		while (node != null && node.parent != null) {
+			int condition = nodeCondition(node);
+			if (condition == NOTHING_REQUIRED || (node.version & UNLINKED) != 0)
+				break;
+
+			if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+				synchronized (node) {
+					node = fixHeight(node);
+				}
+			} else {
+				Node<K, V> parent = node.parent;
+				synchronized (parent) {
+					if ((parent.version & UNLINKED) == 0 && node.parent == parent) {
+						Node<K, V> grandparent = parent.parent;
+						synchronized (node) {
+							node = rebalance(parent, node);
+						}
+						if (node != null && node != parent && node != grandparent) {
+							if (deferred == null)
+								deferred = new ArrayDeque<>();
+							deferred.push(node);
+						}
+					}
+				}
+			}
+		}
+
+		if (deferred != null)
+			while (!deferred.isEmpty())
+				repairAncestors(deferred.pop());
+	}
+
+	/**
+	 * Repairs every node from the provided node up to the root that requires it.
+	 *
+	 * @param node The node to start from.
+	 */
+	private void repairAncestors(Node<K, V> node)
+	{
+		for (; node != null && node.parent != null; node = node.parent)
+			if ((node.version & UNLINKED) == 0 && nodeCondition(node) != NOTHING_REQUIRED)
+				fixHeightAndRebalance(node);
+	}
+
+	/**
+	 * Repairs the provided node by unlinking it, rotating it, or updating its height. The caller must hold the
+	 * monitors of both the parent and the node.
+	 *
+	 * @param parent The parent of the node.
+	 * @param node   The node to repair.
+	 *
+	 * @return The node that must be repaired next, or <code>null</code> if nothing more must be repaired.
+	 */
+	private Node<K, V> rebalance(Node<K, V> parent, Node<K, V> node)
+	{
+		Node<K, V> left  = node.left;
+		Node<K, V> right = node.right;
+
+		if ((left == null || right == null) && node.value == null)
+			return attemptUnlink(parent, node) ? fixHeight(parent) : node;
+
+		int height      = node.height;
+		int leftHeight  = height(left);
+		int rightHeight = height(right);
+		int repaired    = 1 + Math.max(leftHeight, rightHeight);
+		int balance     = leftHeight - rightHeight;
+
+		if (balance > 1)
+			return rebalanceToRight(parent, node, left, rightHeight);
+		if (balance < -1)
+			return rebalanceToLeft(parent, node, right, leftHeight);
+		if (repaired != height) {
+			node.height = repaired;
+			return fixHeight(parent);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Rebalances the provided left heavy node by performing a right, or a left right, rotation. The caller must hold
+	 * the monitors of the parent and the node.
+	 *
+	 * @param parent      The parent of the node.
+	 * @param node        The node to rebalance.
+	 * @param left        The left child of the node.
+	 * @param rightHeight The height of the right child of the node.
+	 *
+	 * @return The node that must be repaired next.
+	 */
+	private Node<K, V> rebalanceToRight(Node<K, V> parent, Node<K, V> node, Node<K, V> left, int rightHeight)
+	{
+		synchronized (left) {
+			int leftHeight = left.height;
+			if (leftHeight - rightHeight <= 1)
+				return node;
+
+			Node<K, V> leftRight       = left.right;
+			int        leftLeftHeight  = height(left.left);
+			int        leftRightHeight = height(leftRight);
+			if (leftLeftHeight >= leftRightHeight)
+				return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightHeight);
+
+			synchronized (leftRight) {
+				leftRightHeight = leftRight.height;
+				if (leftLeftHeight >= leftRightHeight)
+					return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightHeight);
+
+				int leftRightLeftHeight = height(leftRight.left);
+				int balance             = leftLeftHeight - leftRightLeftHeight;
+				if (balance >= -1 && balance <= 1 &&
+					!((leftLeftHeight == 0 || leftRightLeftHeight == 0) && left.value == null)) {
+					return rotateRightOverLeft(parent, node, left, rightHeight, leftLeftHeight, leftRight,
+											   leftRightLeftHeight);
+				}
+
+				// Rotate the left child first, the node is rotated when it is repaired again
+				return rotateLeft(node, left, leftLeftHeight, leftRight, leftRight.left, leftRightLeftHeight,
+								  height(leftRight.right));
+			}
+		}
+	}
+
+	/**
+	 * Rebalances the provided right heavy node by performing a left, or a right left, rotation. The caller must hold
+	 * the monitors of the parent and the node.
+	 *
+	 * @param parent     The parent of the node.
+	 * @param node       The node to rebalance.
+	 * @param right      The right child of the node.
+	 * @param leftHeight The height of the left child of the node.
+	 *
+	 * @return The node that must be repaired next.
+	 */
+	private Node<K, V> rebalanceToLeft(Node<K, V> parent, Node<K, V> node, Node<K, V> right, int leftHeight)
+	{
+		synchronized (right) {
+			int rightHeight = right.height;
+			if (leftHeight - rightHeight >= -1)
+				return node;
+
+			Node<K, V> rightLeft        = right.left;
+			int        rightLeftHeight  = height(rightLeft);
+			int        rightRightHeight = height(right.right);
+			if (rightRightHeight >= rightLeftHeight)
+				return rotateLeft(parent, node, leftHeight, right, rightLeft, rightLeftHeight, rightRightHeight);
+
+			synchronized (rightLeft) {
+				rightLeftHeight = rightLeft.height;
+				if (rightRightHeight >= rightLeftHeight)
+					return rotateLeft(parent, node, leftHeight, right, rightLeft, rightLeftHeight, rightRightHeight);
+
+				int rightLeftRightHeight = height(rightLeft.right);
+				int balance              = rightRightHeight - rightLeftRightHeight;
+				if (balance >= -1 && balance <= 1 &&
+					!((rightRightHeight == 0 || rightLeftRightHeight == 0) && right.value == null)) {
+					return rotateLeftOverRight(parent, node, leftHeight, right, rightLeft, rightRightHeight,
+											   rightLeftRightHeight);
+				}
+
+				// Rotate the right child first, the node is rotated when it is repaired again
+				return rotateRight(node, right, rightLeft, rightRightHeight, height(rightLeft.left), rightLeft.right,
+								   rightLeftRightHeight);
+			}
+		}
+	}
+
+	/**
+	 * Performs a right rotation on the provided node. The caller must hold the monitors of the parent, the node and
+	 * its left child. The node loses its left subtree, so it is marked as shrinking during the rotation.
+	 *
+	 * @param parent          The parent of the node.
+	 * @param node            The node to rotate.
+	 * @param left            The left child of the node.
+	 * @param rightHeight     The height of the right child of the node.
+	 * @param leftLeftHeight  The height of the left child of the left child.
+	 * @param leftRight       The right child of the left child.
+	 * @param leftRightHeight The height of the right child of the left child.
+	 *
+	 * @return The node that must be repaired next.
+	 */
+	private Node<K, V> rotateRight(Node<K, V> parent, Node<K, V> node, Node<K, V> left, int rightHeight,
+								   int leftLeftHeight, Node<K, V> leftRight, int leftRightHeight)
+	{
+		long       version    = node.version;
+		Node<K, V> parentLeft = parent.left;
+
+		node.version = version | SHRINKING;
+
+		node.left = leftRight;
+		if (leftRight != null)
+			leftRight.parent = node;
+
+		left.right = node;
+		node.parent = left;
+
+		if (parentLeft == node)
+			parent.left = left;
+		else
+			parent.right = left;
+		left.parent = parent;
+
+		int nodeHeight = 1 + Math.max(leftRightHeight, rightHeight);
+		node.height = nodeHeight;
+		left.height = 1 + Math.max(leftLeftHeight, nodeHeight);
+
+		node.version = version + SHRINK_COUNT;
+
+		int nodeBalance = leftRightHeight - rightHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((leftRight == null || rightHeight == 0) && node.value == null)
+			return node;
+
+		int leftBalance = leftLeftHeight - nodeHeight;
+		if (leftBalance < -1 || leftBalance > 1)
+			return left;
+		if (leftLeftHeight == 0 && left.value == null)
+			return left;
+
+		return fixHeight(parent);
+	}
+
+	/**
+	 * Performs a left rotation on the provided node. The caller must hold the monitors of the parent, the node and its
+	 * right child. The node loses its right subtree, so it is marked as shrinking during the rotation.
+	 *
+	 * @param parent           The parent of the node.
+	 * @param node             The node to rotate.
+	 * @param leftHeight       The height of the left child of the node.
+	 * @param right            The right child of the node.
+	 * @param rightLeft        The left child of the right child.
+	 * @param rightLeftHeight  The height of the left child of the right child.
+	 * @param rightRightHeight The height of the right child of the right child.
+	 *
+	 * @return The node that must be repaired next.
+	 */
+	private Node<K, V> rotateLeft(Node<K, V> parent, Node<K, V> node, int leftHeight, Node<K, V> right,
+								  Node<K, V> rightLeft, int rightLeftHeight, int rightRightHeight)
+	{
+		long       version    = node.version;
+		Node<K, V> parentLeft = parent.left;
+
+		node.version = version | SHRINKING;
+
+		node.right = rightLeft;
+		if (rightLeft != null)
+			rightLeft.parent = node;
+
+		right.left = node;
+		node.parent = right;
+
+		if (parentLeft == node)
+			parent.left = right;
+		else
+			parent.right = right;
+		right.parent = parent;
+
+		int nodeHeight = 1 + Math.max(leftHeight, rightLeftHeight);
+		node.height = nodeHeight;
+		right.height = 1 + Math.max(nodeHeight, rightRightHeight);
+
+		node.version = version + SHRINK_COUNT;
+
+		int nodeBalance = rightLeftHeight - leftHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((rightLeft == null || leftHeight == 0) && node.value == null)
+			return node;
+
+		int rightBalance = rightRightHeight - nodeHeight;
+		if (rightBalance < -1 || rightBalance > 1)
+			return right;
+		if (rightRightHeight == 0 && right.value == null)
+			return right;
+
+		return fixHeight(parent);
+	}
+
+	/**
+	 * Performs a left right rotation on the provided node. The caller must hold the monitors of the parent, the node,
+	 * its left child and the right child of its left child. Both the node and its left child lose subtrees, so both are
+	 * marked as shrinking during the rotation.
+	 *
+	 * @param parent              The parent of the node.
+	 * @param node                The node to rotate.
+	 * @param left                The left child of the node.
+	 * @param rightHeight         The height of the right child of the node.
+	 * @param leftLeftHeight      The height of the left child of the left child.
+	 * @param leftRight           The right child of the left child.
+	 * @param leftRightLeftHeight The height of the left child of the right child of the left child.
+	 *
+	 * @return The node that must be repaired next.
+	 */
+	private Node<K, V> rotateRightOverLeft(Node<K, V> parent, Node<K, V> node, Node<K, V> left, int rightHeight,
+										   int leftLeftHeight, Node<K, V> leftRight, int leftRightLeftHeight)
+	{
+		long       version              = node.version;
+		long       leftVersion          = left.version;
+		Node<K, V> parentLeft           = parent.left;
+		Node<K, V> leftRightLeft        = leftRight.left;
+		Node<K, V> leftRightRight       = leftRight.right;
+		int        leftRightRightHeight = height(leftRightRight);
+
+		node.version = version | SHRINKING;
+		left.version = leftVersion | SHRINKING;
+
+		node.left = leftRightRight;
+		if (leftRightRight != null)
+			leftRightRight.parent = node;
+
+		left.right = leftRightLeft;
+		if (leftRightLeft != null)
+			leftRightLeft.parent = left;
+
+		leftRight.left = left;
+		left.parent = leftRight;
+		leftRight.right = node;
+		node.parent = leftRight;
+
+		if (parentLeft == node)
+			parent.left = leftRight;
+		else
+			parent.right = leftRight;
+		leftRight.parent = parent;
+
+		int nodeHeight = 1 + Math.max(leftRightRightHeight, rightHeight);
+		node.height = nodeHeight;
+		int leftHeight = 1 + Math.max(leftLeftHeight, leftRightLeftHeight);
+		left.height = leftHeight;
+		leftRight.height = 1 + Math.max(leftHeight, nodeHeight);
+
+		node.version = version + SHRINK_COUNT;
+		left.version = leftVersion + SHRINK_COUNT;
+
+		int nodeBalance = leftRightRightHeight - rightHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((leftRightRight == null || rightHeight == 0) && node.value == null)
+			return node;
+
+		int leftRightBalance = leftHeight - nodeHeight;
+		if (leftRightBalance < -1 || leftRightBalance > 1)
+			return leftRight;
+
+		return fixHeight(parent);
+	}
+
+	/**
+	 * Performs a right left rotation on the provided node. The caller must hold the monitors of the parent, the node,
+	 * its right child and the left child of its right child. Both the node and its right child lose subtrees, so both
+	 * are marked as shrinking during the rotation.
+	 *
+	 * @param parent               The parent of the node.
+	 * @param node                 The node to rotate.
+	 * @param leftHeight           The height of the left child of the node.
+	 * @param right                The right child of the node.
+	 * @param rightLeft            The left child of the right child.
+	 * @param rightRightHeight     The height of the right child of the right child.
+	 * @param rightLeftRightHeight The height of the right child of the left child of the right child.
+	 *
+	 * @return The node that must be repaired next.
+	 */
+	private Node<K, V> rotateLeftOverRight(Node<K, V> parent, Node<K, V> node, int leftHeight, Node<K, V> right,
+										   Node<K, V> rightLeft, int rightRightHeight, int rightLeftRightHeight)
+	{
+		long       version             = node.version;
+		long       rightVersion        = right.version;
+		Node<K, V> parentLeft          = parent.left;
+		Node<K, V> rightLeftLeft       = rightLeft.left;
+		Node<K, V> rightLeftRight      = rightLeft.right;
+		int        rightLeftLeftHeight = height(rightLeftLeft);
+
+		node.version = version | SHRINKING;
+		right.version = rightVersion | SHRINKING;
+
+		node.right = rightLeftLeft;
+		if (rightLeftLeft != null)
+			rightLeftLeft.parent = node;
+
+		right.left = rightLeftRight;
+		if (rightLeftRight != null)
+			rightLeftRight.parent = right;
+
+		rightLeft.right = right;
+		right.parent = rightLeft;
+		rightLeft.left = node;
+		node.parent = rightLeft;
+
+		if (parentLeft == node)
+			parent.left = rightLeft;
+		else
+			parent.right = rightLeft;
+		rightLeft.parent = parent;
+
+		int nodeHeight = 1 + Math.max(leftHeight, rightLeftLeftHeight);
+		node.height = nodeHeight;
+		int rightHeight = 1 + Math.max(rightLeftRightHeight, rightRightHeight);
+		right.height = rightHeight;
+		rightLeft.height = 1 + Math.max(nodeHeight, rightHeight);
+
+		node.version = version + SHRINK_COUNT;
+		right.version = rightVersion + SHRINK_COUNT;
+
+		int nodeBalance = rightLeftLeftHeight - leftHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((rightLeftLeft == null || leftHeight == 0) && node.value == null)
+			return node;
+
+		int rightLeftBalance = rightHeight - nodeHeight;
+		if (rightLeftBalance < -1 || rightLeftBalance > 1)
+			return rightLeft;
+
+		return fixHeight(parent);
+	}
+}
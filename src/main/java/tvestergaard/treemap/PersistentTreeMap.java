@@ -0,0 +1,593 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+
+/**
+ * Immutable AVL tree. The {@link #put(Object, Object)} and {@link #remove(Object)} methods return a new version of the
+ * map, which shares every node outside the path to the changed key with the previous version. An update therefore
+ * allocates O(log n) nodes, and every version remains a consistent snapshot for as long as it is referenced. Publishing
+ * versions through a <code>volatile</code> field gives readers wait-free access to consistent views.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public final class PersistentTreeMap<K, V> implements Iterable<Map.Entry<K, V>>
+{
+
+	/**
+	 * The comparator used when comparing the keys in the {@link PersistentTreeMap}.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * The root {@link Node} of the {@link PersistentTreeMap}.
+	 */
+	private final Node<K, V> root;
+
+	/**
+	 * The number of entries in the {@link PersistentTreeMap}.
+	 */
+	private final int size;
+
+	/**
+	 * Cached read-only {@link Map} view, returned from the {@link #asMap()} method.
+	 */
+	private Map<K, V> cacheMap;
+
+	/**
+	 * Creates a new empty {@link PersistentTreeMap} using the provided <code>comparator</code>.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link PersistentTreeMap}.
+	 */
+	public PersistentTreeMap(Comparator<K> comparator)
+	{
+		this(comparator, null, 0);
+	}
+
+	/**
+	 * Creates a new {@link PersistentTreeMap}.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link PersistentTreeMap}.
+	 * @param root       The root {@link Node} of the {@link PersistentTreeMap}.
+	 * @param size       The number of entries in the {@link PersistentTreeMap}.
+	 */
+	private PersistentTreeMap(Comparator<K> comparator, Node<K, V> root, int size)
+	{
+		this.comparator = comparator;
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Immutable node in the {@link PersistentTreeMap}. Nodes have no parent pointers, so they can be shared between
+	 * versions.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 */
+	private static final class Node<K, V> implements Map.Entry<K, V>
+	{
+
+		/**
+		 * The key of the {@link Node}.
+		 */
+		private final K key;
+
+		/**
+		 * The value of the {@link Node}.
+		 */
+		private final V value;
+
+		/**
+		 * The left (smaller) child {@link Node}.
+		 */
+		private final Node<K, V> left;
+
+		/**
+		 * The right (greater) child {@link Node}.
+		 */
+		private final Node<K, V> right;
+
+		/**
+		 * The height of the tree rooted in this node.
+		 */
+		private final int height;
+
+		/**
+		 * Creates a new {@link Node}.
+		 *
+		 * @param key   The key of the {@link Node}.
+		 * @param value The value of the {@link Node}.
+		 * @param left  The left child of the {@link Node}.
+		 * @param right The right child of the {@link Node}.
+		 */
+		Node(K key, V value, Node<K, V> left, Node<K, V> right)
+		{
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.height = 1 + Math.max(height(left), height(right));
+		}
+
+		/**
+		 * Returns the key of the {@link Node}.
+		 *
+		 * @return The key of the {@link Node}.
+		 */
+		@Override public K getKey()
+		{
+			return key;
+		}
+
+		/**
+		 * Returns the value of the {@link Node}.
+		 *
+		 * @return The value of the {@link Node}.
+		 */
+		@Override public V getValue()
+		{
+			return value;
+		}
+
+		/**
+		 * Always throws {@link UnsupportedOperationException}, since the {@link Node} is immutable.
+		 *
+		 * @param value The new value.
+		 *
+		 * @return Never returns.
+		 * @throws UnsupportedOperationException always
+		 */
+		@Override public V setValue(V value)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (!(o instanceof Map.Entry)) return false;
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			return Objects.equals(key, entry.getKey()) &&
+				   Objects.equals(value, entry.getValue());
+		}
+
+		@Override public int hashCode()
+		{
+			return Objects.hashCode(key) ^ Objects.hashCode(value);
+		}
+
+		@Override public String toString()
+		{
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * Returns the comparator used when comparing the keys in the {@link PersistentTreeMap}.
+	 *
+	 * @return The comparator used when comparing the keys in the {@link PersistentTreeMap}.
+	 */
+	public Comparator<K> comparator()
+	{
+		return comparator;
+	}
+
+	/**
+	 * Returns the number of entries in the {@link PersistentTreeMap}.
+	 *
+	 * @return The number of entries in the {@link PersistentTreeMap}.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns <code>true</code> if the {@link PersistentTreeMap} contains no entries.
+	 *
+	 * @return <code>true</code> if the {@link PersistentTreeMap} contains no entries.
+	 */
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Returns the value mapped to the provided key, or <code>null</code> if the key is not mapped to a value.
+	 *
+	 * @param key The key whose value to return.
+	 *
+	 * @return The value mapped to the provided key, or <code>null</code> if the key is not mapped to a value.
+	 */
+	public V get(K key)
+	{
+		Node<K, V> node = getNode(key);
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * Returns <code>true</code> if the provided key is mapped to a value.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return <code>true</code> if the provided key is mapped to a value.
+	 */
+	public boolean containsKey(K key)
+	{
+		return getNode(key) != null;
+	}
+
+	/**
+	 * Returns the entry with the smallest key, or <code>null</code> if the {@link PersistentTreeMap} is empty.
+	 *
+	 * @return The entry with the smallest key, or <code>null</code> if the {@link PersistentTreeMap} is empty.
+	 */
+	public Map.Entry<K, V> firstEntry()
+	{
+		if (root == null)
+			return null;
+
+		Node<K, V> node = root;
+		while (node.left != null)
+			node = node.left;
+
+		return node;
+	}
+
+	/**
+	 * Returns the entry with the greatest key, or <code>null</code> if the {@link PersistentTreeMap} is empty.
+	 *
+	 * @return The entry with the greatest key, or <code>null</code> if the {@link PersistentTreeMap} is empty.
+	 */
+	public Map.Entry<K, V> lastEntry()
+	{
+		if (root == null)
+			return null;
+
+		Node<K, V> node = root;
+		while (node.right != null)
+			node = node.right;
+
+		return node;
+	}
+
+	/**
+	 * Returns a version of the {@link PersistentTreeMap} where the provided key is mapped to the provided value. This
+	 * version is not modified.
+	 *
+	 * @param key   The key to map.
+	 * @param value The value to map the key to.
+	 *
+	 * @return The new version. Returns this version if the key is already mapped to the same value instance.
+	 */
+	public PersistentTreeMap<K, V> put(K key, V value)
+	{
+		Node<K, V>[] path     = newPath();
+		int[]        compares = new int[TreeMap.MAXIMUM_HEIGHT];
+		int          depth    = 0;
+		Node<K, V>   node     = root;
+
+		while (node != null) {
+			int compare = comparator.compare(key, node.key);
+			if (compare == 0) {
+				if (node.value == value)
+					return this;
+
+				Node<K, V> replacement = new Node<>(node.key, value, node.left, node.right);
+				return new PersistentTreeMap<>(comparator, copyPath(path, compares, depth, replacement), size);
+			}
+
+			path[depth] = node;
+			compares[depth++] = compare;
+			node = compare < 0 ? node.left : node.right;
+		}
+
+		Node<K, V> inserted = new Node<>(key, value, null, null);
+		return new PersistentTreeMap<>(comparator, copyPath(path, compares, depth, inserted), size + 1);
+	}
+
+	/**
+	 * Returns a version of the {@link PersistentTreeMap} where the provided key is not mapped to a value. This version
+	 * is not modified.
+	 *
+	 * @param key The key to remove.
+	 *
+	 * @return The new version. Returns this version if the key is not mapped to a value.
+	 */
+	public PersistentTreeMap<K, V> remove(K key)
+	{
+		Node<K, V>[] path     = newPath();
+		int[]        compares = new int[TreeMap.MAXIMUM_HEIGHT];
+		int          depth    = 0;
+		Node<K, V>   node     = root;
+
+		while (node != null) {
+			int compare = comparator.compare(key, node.key);
+			if (compare == 0)
+				break;
+
+			path[depth] = node;
+			compares[depth++] = compare;
+			node = compare < 0 ? node.left : node.right;
+		}
+
+		if (node == null)
+			return this;
+
+		Node<K, V> replacement;
+		if (node.left == null)
+			replacement = node.right;
+		else if (node.right == null)
+			replacement = node.left;
+		else {
+			Node<K, V> successor = node.right;
+			while (successor.left != null)
+				successor = successor.left;
+			replacement = balance(successor.key, successor.value, node.left, removeMinimum(node.right));
+		}
+
+		return new PersistentTreeMap<>(comparator, copyPath(path, compares, depth, replacement), size - 1);
+	}
+
+	/**
+	 * Returns an iterator over the entries of the {@link PersistentTreeMap}, in ascending order by key. The iterator
+	 * reads this version only, and is unaffected by the creation of new versions.
+	 *
+	 * @return An iterator over the entries of the {@link PersistentTreeMap}.
+	 */
+	@Override public Iterator<Map.Entry<K, V>> iterator()
+	{
+		return new PersistentTreeMapIterator();
+	}
+
+	/**
+	 * Returns a read-only {@link Map} view of this version. Since the version is immutable, the view is a snapshot,
+	 * and creating it takes constant time.
+	 *
+	 * @return A read-only {@link Map} view of this version.
+	 */
+	public Map<K, V> asMap()
+	{
+		if (cacheMap == null)
+			cacheMap = new PersistentTreeMapView();
+
+		return cacheMap;
+	}
+
+	/**
+	 * Iterator over the nodes in a {@link PersistentTreeMap}. Since the nodes have no parent pointers, the path to the
+	 * next node is kept on a stack.
+	 */
+	private final class PersistentTreeMapIterator implements Iterator<Map.Entry<K, V>>
+	{
+
+		/**
+		 * The nodes whose left subtrees have been visited, but which have not been returned themselves.
+		 */
+		private final Node<K, V>[] stack = newPath();
+
+		/**
+		 * The number of nodes on the stack.
+		 */
+		private int depth;
+
+		/**
+		 * Creates a new {@link PersistentTreeMapIterator}, positioned before the smallest key.
+		 */
+		PersistentTreeMapIterator()
+		{
+			pushLeft(root);
+		}
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			return depth > 0;
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Map.Entry<K, V> next()
+		{
+			if (depth == 0)
+				throw new NoSuchElementException();
+
+			Node<K, V> node = stack[--depth];
+			pushLeft(node.right);
+			return node;
+		}
+
+		/**
+		 * Pushes the provided node and its chain of left children onto the stack.
+		 *
+		 * @param node The node to push. May be <code>null</code>.
+		 */
+		private void pushLeft(Node<K, V> node)
+		{
+			while (node != null) {
+				stack[depth++] = node;
+				node = node.left;
+			}
+		}
+	}
+
+	/**
+	 * Read-only {@link Map} view of a {@link PersistentTreeMap}.
+	 */
+	private final class PersistentTreeMapView extends AbstractMap<K, V>
+	{
+
+		/**
+		 * Cached entry set, returned from the {@link #entrySet()} method.
+		 */
+		private Set<Entry<K, V>> cacheEntrySet;
+
+		@Override public int size()
+		{
+			return size;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override public boolean containsKey(Object key)
+		{
+			return PersistentTreeMap.this.containsKey((K) key);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override public V get(Object key)
+		{
+			return PersistentTreeMap.this.get((K) key);
+		}
+
+		@Override public Set<Entry<K, V>> entrySet()
+		{
+			if (cacheEntrySet == null) {
+				cacheEntrySet = new AbstractSet<Entry<K, V>>()
+				{
+					@Override public Iterator<Entry<K, V>> iterator()
+					{
+						return PersistentTreeMap.this.iterator();
+					}
+
+					@Override public int size()
+					{
+						return size;
+					}
+				};
+			}
+
+			return cacheEntrySet;
+		}
+	}
+
+	/**
+	 * Returns the node with the provided key.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The node with the provided key, or <code>null</code> if no such node exists.
+	 */
+	private Node<K, V> getNode(K key)
+	{
+		Node<K, V> node = root;
+		while (node != null) {
+			int compare = comparator.compare(key, node.key);
+			if (compare == 0)
+				return node;
+			node = compare < 0 ? node.left : node.right;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Copies the nodes on the provided search path, from the bottom up, rebalancing each copy.
+	 *
+	 * @param path     The nodes on the search path, starting from the root.
+	 * @param compares The result of comparing the key with each node on the path.
+	 * @param depth    The number of nodes on the path.
+	 * @param child    The new subtree replacing the subtree below the last node on the path.
+	 *
+	 * @return The new root.
+	 */
+	private static <K, V> Node<K, V> copyPath(Node<K, V>[] path, int[] compares, int depth, Node<K, V> child)
+	{
+		for (int x = depth - 1; x >= 0; x--) {
+			Node<K, V> node = path[x];
+			child = compares[x] < 0 ?
+					balance(node.key, node.value, child, node.right) :
+					balance(node.key, node.value, node.left, child);
+		}
+
+		return child;
+	}
+
+	/**
+	 * Returns a copy of the provided subtree without its smallest node.
+	 *
+	 * @param node The root of the subtree.
+	 *
+	 * @return The root of the copy.
+	 */
+	private static <K, V> Node<K, V> removeMinimum(Node<K, V> node)
+	{
+		if (node.left == null)
+			return node.right;
+
+		return balance(node.key, node.value, removeMinimum(node.left), node.right);
+	}
+
+	/**
+	 * Creates a new node with the provided key, value and children, performing a single or double rotation when the
+	 * heights of the children differ by more than one.
+	 *
+	 * @param key   The key of the node.
+	 * @param value The value of the node.
+	 * @param left  The left child of the node.
+	 * @param right The right child of the node.
+	 *
+	 * @return The root of the balanced subtree.
+	 */
+	private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right)
+	{
+		int leftHeight  = height(left);
+		int rightHeight = height(right);
+
+		if (leftHeight > rightHeight + 1) {
+			if (height(left.left) >= height(left.right))
+				return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+
+			Node<K, V> leftRight = left.right;
+			return new Node<>(leftRight.key, leftRight.value,
+							  new Node<>(left.key, left.value, left.left, leftRight.left),
+							  new Node<>(key, value, leftRight.right, right));
+		}
+
+		if (rightHeight > leftHeight + 1) {
+			if (height(right.right) >= height(right.left))
+				return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+
+			Node<K, V> rightLeft = right.left;
+			return new Node<>(rightLeft.key, rightLeft.value,
+							  new Node<>(key, value, left, rightLeft.left),
+							  new Node<>(right.key, right.value, rightLeft.right, right.right));
+		}
+
+		return new Node<>(key, value, left, right);
+	}
+
+	/**
+	 * Returns the height of the provided node.
+	 *
+	 * @param node The node. May be <code>null</code>.
+	 *
+	 * @return The height of the node, or <code>0</code> when the node is <code>null</code>.
+	 */
+	private static int height(Node<?, ?> node)
+	{
+		return node == null ? 0 : node.height;
+	}
+
+	/**
+	 * Returns an empty array able to hold a path of nodes from the root to a leaf.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 *
+	 * @return The array, with room for {@link TreeMap#MAXIMUM_HEIGHT} nodes.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V>[] newPath()
+	{
+		return (Node<K, V>[]) new Node<?, ?>[TreeMap.MAXIMUM_HEIGHT];
+	}
+}
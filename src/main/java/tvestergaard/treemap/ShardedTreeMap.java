@@ -0,0 +1,796 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.*;
+
+/**
+ * Thread-safe ordered map that partitions the key space into contiguous ranges, called shards. Every shard is backed by
+ * its own {@link TreeMap} and guarded by its own lock, so writers to different ranges never contend. Operations are
+ * routed to their shard by a binary search over the lower bounds of the shards, without locking.
+ * <p>
+ * A shard growing beyond the maximum shard size is split in two halves, and a shard shrinking below the minimum shard
+ * size is merged into its left neighbour. The shard directory is an immutable array, which is replaced while holding
+ * the directory lock. An operation that locks a shard after it was split or merged notices that the key is no longer
+ * within the range of the shard, and routes the key again.
+ * <p>
+ * Keys cannot be <code>null</code>. Iterators are weakly consistent: they copy the entries of one shard at a time,
+ * while holding the lock of that shard.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class ShardedTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
+{
+
+	/**
+	 * The default number of entries below which a shard is merged into its neighbour.
+	 */
+	public static final int DEFAULT_MINIMUM_SHARD_SIZE = 512;
+
+	/**
+	 * The default number of entries above which a shard is split.
+	 */
+	public static final int DEFAULT_MAXIMUM_SHARD_SIZE = 4096;
+
+	/**
+	 * The comparator used when comparing the keys in the {@link ShardedTreeMap}.
+	 */
+	private final Comparator<K> comparator;
+
+	/**
+	 * The number of entries below which a shard is merged into its neighbour.
+	 */
+	private final int minimumShardSize;
+
+	/**
+	 * The number of entries above which a shard is split.
+	 */
+	private final int maximumShardSize;
+
+	/**
+	 * The shards ordered by their lower bounds. The array is never modified, only replaced.
+	 */
+	private volatile Shard<K, V>[] shards;
+
+	/**
+	 * The lock held while replacing {@link #shards}. Never held while acquiring the lock of a shard.
+	 */
+	private final Object directoryLock = new Object();
+
+	/**
+	 * The number of entries in the {@link ShardedTreeMap}.
+	 */
+	private final LongAdder size = new LongAdder();
+
+	/**
+	 * Cached {@link ShardedTreeMapEntrySet} that can be returned from the {@link #entrySet()} method.
+	 */
+	private ShardedTreeMapEntrySet cacheEntrySet;
+
+	/**
+	 * Creates a new {@link ShardedTreeMap} using the provided <code>comparator</code>, and the default shard sizes.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link ShardedTreeMap}.
+	 */
+	public ShardedTreeMap(Comparator<K> comparator)
+	{
+		this(comparator, DEFAULT_MINIMUM_SHARD_SIZE, DEFAULT_MAXIMUM_SHARD_SIZE);
+	}
+
+	/**
+	 * Creates a new {@link ShardedTreeMap} using the provided <code>comparator</code>.
+	 *
+	 * @param comparator       The comparator used when comparing the keys in the {@link ShardedTreeMap}.
+	 * @param minimumShardSize The number of entries below which a shard is merged into its neighbour.
+	 * @param maximumShardSize The number of entries above which a shard is split.
+	 *
+	 * @throws IllegalArgumentException if <code>minimumShardSize</code> is negative, or not less than half of
+	 *                                  <code>maximumShardSize</code>
+	 */
+	public ShardedTreeMap(Comparator<K> comparator, int minimumShardSize, int maximumShardSize)
+	{
+		if (minimumShardSize < 0 || minimumShardSize >= maximumShardSize / 2)
+			throw new IllegalArgumentException("The minimum shard size must be less than half the maximum shard size.");
+
+		this.comparator = comparator;
+		this.minimumShardSize = minimumShardSize;
+		this.maximumShardSize = maximumShardSize;
+		Shard<K, V>[] shards = newShards(1);
+		shards[0] = new Shard<>(null, null, comparator);
+		this.shards = shards;
+	}
+
+	/**
+	 * Contiguous range of keys in the {@link ShardedTreeMap}. The lower bound of a shard never changes. The upper bound
+	 * and the retired flag are only changed while holding the lock of the shard.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 */
+	private static final class Shard<K, V>
+	{
+
+		/**
+		 * The smallest key that can be in the {@link Shard}. <code>null</code> for the first shard.
+		 */
+		private final K lowerBound;
+
+		/**
+		 * The smallest key greater than the keys in the {@link Shard}. <code>null</code> for the last shard.
+		 */
+		private volatile K upperBound;
+
+		/**
+		 * Whether the {@link Shard} has been merged into its neighbour.
+		 */
+		private volatile boolean retired;
+
+		/**
+		 * The entries in the {@link Shard}.
+		 */
+		private final TreeMap<K, V> map;
+
+		/**
+		 * The lock guarding the {@link Shard}.
+		 */
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * Creates a new {@link Shard}.
+		 *
+		 * @param lowerBound The smallest key that can be in the {@link Shard}.
+		 * @param upperBound The smallest key greater than the keys in the {@link Shard}.
+		 * @param comparator The comparator used when comparing the keys in the {@link Shard}.
+		 */
+		Shard(K lowerBound, K upperBound, Comparator<K> comparator)
+		{
+			this.lowerBound = lowerBound;
+			this.upperBound = upperBound;
+			this.map = new TreeMap<>(comparator);
+		}
+	}
+
+	/**
+	 * Returns the number of shards currently partitioning the key space.
+	 *
+	 * @return The number of shards currently partitioning the key space.
+	 */
+	public int shardCount()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		long sum = size.sum();
+		return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(sum, 0);
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains no key-value mappings.
+	 *
+	 * @return <tt>true</tt> if this map contains no key-value mappings
+	 */
+	@Override public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public boolean containsKey(Object key)
+	{
+		return locked((K) key, map -> map.containsKey(key));
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V get(Object key)
+	{
+		return locked((K) key, map -> map.get(key));
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@Override public V put(K key, V value)
+	{
+		return locked(key, map -> map.put(key, value));
+	}
+
+	/**
+	 * Removes the mapping for the specified key from this map if present.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V remove(Object key)
+	{
+		return locked((K) key, map -> map.remove(key));
+	}
+
+	/**
+	 * Copies all of the mappings from the specified map to this map, one at a time.
+	 *
+	 * @param m mappings to be stored in this map
+	 */
+	@Override public void putAll(Map<? extends K, ? extends V> m)
+	{
+		for (Entry<? extends K, ? extends V> entry : m.entrySet())
+			put(entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Removes all of the mappings from this map. The shards are emptied one at a time, and then merged into their left
+	 * neighbours.
+	 */
+	@Override public void clear()
+	{
+		for (Shard<K, V> shard : shards) {
+			int removed;
+			shard.lock.lock();
+			try {
+				removed = shard.map.size();
+				shard.map.clear();
+			} finally {
+				shard.lock.unlock();
+			}
+
+			size.add(-removed);
+		}
+
+		for (Shard<K, V> shard : shards)
+			merge(shard);
+	}
+
+	/**
+	 * Associates the value with the key while holding the lock of the shard, if the key is not already associated
+	 * with a value.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 */
+	@Override public V putIfAbsent(K key, V value)
+	{
+		return locked(key, map -> map.putIfAbsent(key, value));
+	}
+
+	/**
+	 * Removes the entry for a key while holding the lock of the shard, only if currently mapped to a given value.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value expected to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was removed
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public boolean remove(Object key, Object value)
+	{
+		return locked((K) key, map -> {
+			if (!map.containsKey(key) || !Objects.equals(map.get(key), value))
+				return false;
+
+			map.remove(key);
+			return true;
+		});
+	}
+
+	/**
+	 * Replaces the entry for a key while holding the lock of the shard, only if currently mapped to a given value.
+	 *
+	 * @param key      key with which the specified value is associated
+	 * @param oldValue value expected to be associated with the specified key
+	 * @param newValue value to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was replaced
+	 */
+	@Override public boolean replace(K key, V oldValue, V newValue)
+	{
+		return locked(key, map -> {
+			if (!map.containsKey(key) || !Objects.equals(map.get(key), oldValue))
+				return false;
+
+			map.put(key, newValue);
+			return true;
+		});
+	}
+
+	/**
+	 * Replaces the entry for a key while holding the lock of the shard, only if currently mapped to some value.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 */
+	@Override public V replace(K key, V value)
+	{
+		return locked(key, map -> map.containsKey(key) ? map.put(key, value) : null);
+	}
+
+	/**
+	 * Computes the value of an absent key while holding the lock of the shard. The mapping function must not access
+	 * this map.
+	 *
+	 * @param key             key with which the specified value is to be associated
+	 * @param mappingFunction the function to compute a value
+	 *
+	 * @return the current (existing or computed) value associated with the specified key, or null if the computed
+	 * value is null
+	 */
+	@Override public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+	{
+		return locked(key, map -> map.computeIfAbsent(key, mappingFunction));
+	}
+
+	/**
+	 * Computes the value of a present key while holding the lock of the shard. The remapping function must not access
+	 * this map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		return locked(key, map -> map.computeIfPresent(key, remappingFunction));
+	}
+
+	/**
+	 * Computes the value of a key while holding the lock of the shard. The remapping function must not access this
+	 * map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		return locked(key, map -> map.compute(key, remappingFunction));
+	}
+
+	/**
+	 * Merges the value of a key while holding the lock of the shard. The remapping function must not access this map.
+	 *
+	 * @param key               key with which the resulting value is to be associated
+	 * @param value             the non-null value to be merged with the existing value
+	 * @param remappingFunction the function to recompute a value if present
+	 *
+	 * @return the new value associated with the specified key, or null if no value is associated with the key
+	 */
+	@Override public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+	{
+		return locked(key, map -> map.merge(key, value, remappingFunction));
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map. The iterators of the set are weakly
+	 * consistent, and return the entries in ascending order by key.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null)
+			cacheEntrySet = new ShardedTreeMapEntrySet();
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Set view of the entries in the {@link ShardedTreeMap}.
+	 */
+	private final class ShardedTreeMapEntrySet extends AbstractSet<Entry<K, V>>
+	{
+
+		/**
+		 * Returns the number of entries in the {@link ShardedTreeMap}.
+		 *
+		 * @return The number of entries in the {@link ShardedTreeMap}.
+		 */
+		@Override public int size()
+		{
+			return ShardedTreeMap.this.size();
+		}
+
+		/**
+		 * Returns <tt>true</tt> if the {@link ShardedTreeMap} contains the specified entry.
+		 *
+		 * @param o entry whose presence is to be tested
+		 *
+		 * @return <tt>true</tt> if the {@link ShardedTreeMap} contains the specified entry
+		 */
+		@Override public boolean contains(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			@SuppressWarnings("unchecked")
+			K           key   = (K) entry.getKey();
+			return locked(key, map -> map.containsKey(entry.getKey()) &&
+									  Objects.equals(map.get(entry.getKey()), entry.getValue()));
+		}
+
+		/**
+		 * Removes the specified entry from the {@link ShardedTreeMap} if it is present.
+		 *
+		 * @param o entry to be removed, if present
+		 *
+		 * @return <tt>true</tt> if the {@link ShardedTreeMap} contained the specified entry
+		 */
+		@Override public boolean remove(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			return ShardedTreeMap.this.remove(entry.getKey(), entry.getValue());
+		}
+
+		/**
+		 * Returns a weakly consistent iterator over the entries, in ascending order by key.
+		 *
+		 * @return a weakly consistent iterator over the entries
+		 */
+		@Override public Iterator<Entry<K, V>> iterator()
+		{
+			return new ShardedTreeMapEntryIterator();
+		}
+
+		/**
+		 * Removes all of the entries from the {@link ShardedTreeMap}.
+		 */
+		@Override public void clear()
+		{
+			ShardedTreeMap.this.clear();
+		}
+	}
+
+	/**
+	 * Weakly consistent iterator over the entries in the {@link ShardedTreeMap}. The entries of one shard are copied
+	 * at a time, starting from the upper bound of the previously copied shard.
+	 */
+	private final class ShardedTreeMapEntryIterator implements Iterator<Entry<K, V>>
+	{
+
+		/**
+		 * The entries copied from the current shard.
+		 */
+		private final List<Entry<K, V>> batch = new ArrayList<>();
+
+		/**
+		 * The index of the next entry to return from the batch.
+		 */
+		private int next;
+
+		/**
+		 * The key from where the next batch is copied. <code>null</code> before the first batch is copied.
+		 */
+		private K from;
+
+		/**
+		 * Whether the current batch was copied from the last shard.
+		 */
+		private boolean last;
+
+		/**
+		 * The previously returned entry.
+		 */
+		private Entry<K, V> previous;
+
+		/**
+		 * Creates a new {@link ShardedTreeMapEntryIterator}, copying the first non-empty shard.
+		 */
+		ShardedTreeMapEntryIterator()
+		{
+			fill();
+		}
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			return next < batch.size();
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Entry<K, V> next()
+		{
+			if (next >= batch.size())
+				throw new NoSuchElementException();
+
+			previous = batch.get(next++);
+			if (next == batch.size() && !last)
+				fill();
+
+			return previous;
+		}
+
+		/**
+		 * Removes the key of the previously returned entry from the {@link ShardedTreeMap}.
+		 *
+		 * @throws IllegalStateException if the {@code next} method has not yet been called, or the {@code remove}
+		 *                               method has already been called after the last call to the {@code next} method
+		 */
+		@Override public void remove()
+		{
+			if (previous == null)
+				throw new IllegalStateException();
+
+			ShardedTreeMap.this.remove(previous.getKey());
+			previous = null;
+		}
+
+		/**
+		 * Copies the entries from the shard containing {@link #from}, skipping empty shards, until a non-empty batch
+		 * is copied or the last shard has been copied.
+		 */
+		private void fill()
+		{
+			do {
+				batch.clear();
+				next = 0;
+
+				Shard<K, V> shard = lockShard(from);
+				try {
+					TreeMap<K, V>.TreeMapCursor cursor = shard.map.cursor();
+					if (from == null)
+						cursor.first();
+					else
+						cursor.seek(from);
+
+					for (boolean positioned = cursor.isPositioned(); positioned; positioned = cursor.next())
+						batch.add(new AbstractMap.SimpleImmutableEntry<>(cursor.getKey(), cursor.getValue()));
+
+					from = shard.upperBound;
+					last = from == null;
+				} finally {
+					shard.lock.unlock();
+				}
+			} while (batch.isEmpty() && !last);
+		}
+	}
+
+	/**
+	 * Performs the provided operation on the {@link TreeMap} of the shard containing the provided key, while holding
+	 * the lock of the shard. Afterwards the shard is split when it has grown too large, or merged when it has shrunk
+	 * too small.
+	 *
+	 * @param key    The key to route by.
+	 * @param action The operation to perform.
+	 * @param <T>    The result type of the operation.
+	 *
+	 * @return The result of the operation.
+	 * @throws NullPointerException if the provided key is <code>null</code>
+	 */
+	private <T> T locked(K key, Function<TreeMap<K, V>, T> action)
+	{
+		Shard<K, V> shard = lockShard(Objects.requireNonNull(key));
+		int         before;
+		int         after;
+		T           result;
+		try {
+			before = shard.map.size();
+			result = action.apply(shard.map);
+			after = shard.map.size();
+			if (after > maximumShardSize)
+				split(shard);
+		} finally {
+			shard.lock.unlock();
+		}
+
+		if (after != before)
+			size.add(after - before);
+		if (after < before && after < minimumShardSize)
+			merge(shard);
+
+		return result;
+	}
+
+	/**
+	 * Locks and returns the shard containing the provided key. When the routed shard was split or merged before its
+	 * lock was acquired, the key is routed again.
+	 *
+	 * @param key The key to route by, or <code>null</code> for the first shard.
+	 *
+	 * @return The locked shard.
+	 */
+	private Shard<K, V> lockShard(K key)
+	{
+		while (true) {
+			Shard<K, V> shard = route(key);
+			shard.lock.lock();
+			K upperBound = shard.upperBound;
+			if (!shard.retired && (key == null || upperBound == null || comparator.compare(key, upperBound) < 0))
+				return shard;
+
+			shard.lock.unlock();
+		}
+	}
+
+	/**
+	 * Finds the shard with the greatest lower bound less than or equal to the provided key.
+	 *
+	 * @param key The key to route by, or <code>null</code> for the first shard.
+	 *
+	 * @return The shard.
+	 */
+	private Shard<K, V> route(K key)
+	{
+		Shard<K, V>[] shards = this.shards;
+		if (key == null)
+			return shards[0];
+
+		int low    = 1;
+		int high   = shards.length - 1;
+		int result = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (comparator.compare(shards[middle].lowerBound, key) <= 0) {
+				result = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+
+		return shards[result];
+	}
+
+	/**
+	 * Moves the upper half of the entries in the provided shard to a new shard. The caller must hold the lock of the
+	 * shard.
+	 *
+	 * @param shard The shard to split.
+	 */
+	private void split(Shard<K, V> shard)
+	{
+		List<Entry<K, V>> moved = shard.map.pollLast(shard.map.size() / 2);
+		Shard<K, V>       upper = new Shard<>(moved.get(moved.size() - 1).getKey(), shard.upperBound, comparator);
+		for (int x = moved.size() - 1; x >= 0; x--)
+			upper.map.put(moved.get(x).getKey(), moved.get(x).getValue());
+
+		synchronized (directoryLock) {
+			Shard<K, V>[] current = shards;
+			int           index   = indexOf(current, shard);
+			Shard<K, V>[] next    = newShards(current.length + 1);
+			System.arraycopy(current, 0, next, 0, index + 1);
+			next[index + 1] = upper;
+			System.arraycopy(current, index + 1, next, index + 2, current.length - index - 1);
+			shards = next;
+		}
+
+		shard.upperBound = upper.lowerBound;
+	}
+
+	/**
+	 * Merges the provided shard with its left neighbour, or with its right neighbour when it is the first shard, if
+	 * one of them is still below the minimum shard size and they fit in a single shard.
+	 *
+	 * @param shard The shard to merge.
+	 */
+	private void merge(Shard<K, V> shard)
+	{
+		Shard<K, V>[] current = shards;
+		int           index   = indexOf(current, shard);
+		if (index < 0 || current.length == 1)
+			return;
+
+		Shard<K, V> left  = index > 0 ? current[index - 1] : shard;
+		Shard<K, V> right = index > 0 ? shard : current[1];
+
+		left.lock.lock();
+		try {
+			right.lock.lock();
+			try {
+				if (left.retired || right.retired || left.upperBound != right.lowerBound)
+					return;
+				if (left.map.size() >= minimumShardSize && right.map.size() >= minimumShardSize)
+					return;
+				if (left.map.size() + right.map.size() > maximumShardSize)
+					return;
+
+				for (Entry<K, V> entry : right.map.entrySet())
+					left.map.put(entry.getKey(), entry.getValue());
+
+				synchronized (directoryLock) {
+					Shard<K, V>[] previous = shards;
+					int           removed  = indexOf(previous, right);
+					Shard<K, V>[] next     = newShards(previous.length - 1);
+					System.arraycopy(previous, 0, next, 0, removed);
+					System.arraycopy(previous, removed + 1, next, removed, previous.length - removed - 1);
+					shards = next;
+				}
+
+				left.upperBound = right.upperBound;
+				right.retired = true;
+				right.map.clear();
+			} finally {
+				right.lock.unlock();
+			}
+		} finally {
+			left.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the index of the provided shard in the provided directory.
+	 *
+	 * @param shards The directory to search.
+	 * @param shard  The shard to search for.
+	 *
+	 * @return The index of the shard, or <code>-1</code> if the shard is not in the directory.
+	 */
+	private static <K, V> int indexOf(Shard<K, V>[] shards, Shard<K, V> shard)
+	{
+		for (int x = 0; x < shards.length; x++)
+			if (shards[x] == shard)
+				return x;
+
+		return -1;
+	}
+
+	/**
+	 * Returns a new empty directory with room for the provided number of shards.
+	 *
+	 * @param length The number of shards.
+	 * @param <K>    The key type.
+	 * @param <V>    The value type.
+	 *
+	 * @return The new directory.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> Shard<K, V>[] newShards(int length)
+	{
+		return (Shard<K, V>[]) new Shard<?, ?>[length];
+	}
+}
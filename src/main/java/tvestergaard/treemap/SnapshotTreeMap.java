@@ -0,0 +1,478 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.*;
+
+/**
+ * Thread-safe ordered map giving readers consistent point-in-time views. The entries are held in a {@link
+ * PersistentTreeMap}, referenced from a <code>volatile</code> field. Writers are serialized by a lock, create a new
+ * version by path copying, and publish it by replacing the reference. Readers and iterators read the current version
+ * without locking, and an iterator keeps reading the version that was current when it was created, so it never
+ * observes concurrent writes and never blocks writers.
+ * <p>
+ * Versions that are no longer referenced by the map or by any reader are reclaimed by the garbage collector, which
+ * takes the role that epochs play in manually managed implementations.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class SnapshotTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
+{
+
+	/**
+	 * The current version of the entries.
+	 */
+	private volatile PersistentTreeMap<K, V> current;
+
+	/**
+	 * The lock serializing writers.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Cached {@link SnapshotTreeMapEntrySet} that can be returned from the {@link #entrySet()} method.
+	 */
+	private SnapshotTreeMapEntrySet cacheEntrySet;
+
+	/**
+	 * Creates a new {@link SnapshotTreeMap} using the provided <code>comparator</code>.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link SnapshotTreeMap}.
+	 */
+	public SnapshotTreeMap(Comparator<K> comparator)
+	{
+		this.current = new PersistentTreeMap<>(comparator);
+	}
+
+	/**
+	 * Returns the current version of the entries. The returned version never changes, and taking it costs constant
+	 * time.
+	 *
+	 * @return The current version of the entries.
+	 */
+	public PersistentTreeMap<K, V> snapshot()
+	{
+		return current;
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		return current.size();
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains no key-value mappings.
+	 *
+	 * @return <tt>true</tt> if this map contains no key-value mappings
+	 */
+	@Override public boolean isEmpty()
+	{
+		return current.isEmpty();
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key. Never blocks.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public boolean containsKey(Object key)
+	{
+		return current.containsKey((K) key);
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key. Never blocks.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @return the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V get(Object key)
+	{
+		return current.get((K) key);
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@Override public V put(K key, V value)
+	{
+		synchronized (writeLock) {
+			V previous = current.get(key);
+			current = current.put(key, value);
+			return previous;
+		}
+	}
+
+	/**
+	 * Removes the mapping for the specified key from this map if present.
+	 *
+	 * @param key key whose mapping is to be removed from the map
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public V remove(Object key)
+	{
+		synchronized (writeLock) {
+			V previous = current.get((K) key);
+			current = current.remove((K) key);
+			return previous;
+		}
+	}
+
+	/**
+	 * Copies all of the mappings from the specified map to this map, publishing a single new version.
+	 *
+	 * @param m mappings to be stored in this map
+	 */
+	@Override public void putAll(Map<? extends K, ? extends V> m)
+	{
+		synchronized (writeLock) {
+			PersistentTreeMap<K, V> next = current;
+			for (Entry<? extends K, ? extends V> entry : m.entrySet())
+				next = next.put(entry.getKey(), entry.getValue());
+			current = next;
+		}
+	}
+
+	/**
+	 * Removes all of the mappings from this map. Iterators that were created before remain unaffected.
+	 */
+	@Override public void clear()
+	{
+		synchronized (writeLock) {
+			current = new PersistentTreeMap<>(current.comparator());
+		}
+	}
+
+	/**
+	 * Associates the value with the key, if the key is not already associated with a value.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 */
+	@Override public V putIfAbsent(K key, V value)
+	{
+		synchronized (writeLock) {
+			V previous = current.get(key);
+			if (previous == null)
+				current = current.put(key, value);
+			return previous;
+		}
+	}
+
+	/**
+	 * Removes the entry for a key only if currently mapped to a given value.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value expected to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was removed
+	 */
+	@SuppressWarnings("unchecked")
+	@Override public boolean remove(Object key, Object value)
+	{
+		synchronized (writeLock) {
+			if (!current.containsKey((K) key) || !Objects.equals(current.get((K) key), value))
+				return false;
+
+			current = current.remove((K) key);
+			return true;
+		}
+	}
+
+	/**
+	 * Replaces the entry for a key only if currently mapped to a given value.
+	 *
+	 * @param key      key with which the specified value is associated
+	 * @param oldValue value expected to be associated with the specified key
+	 * @param newValue value to be associated with the specified key
+	 *
+	 * @return <tt>true</tt> if the value was replaced
+	 */
+	@Override public boolean replace(K key, V oldValue, V newValue)
+	{
+		synchronized (writeLock) {
+			if (!current.containsKey(key) || !Objects.equals(current.get(key), oldValue))
+				return false;
+
+			current = current.put(key, newValue);
+			return true;
+		}
+	}
+
+	/**
+	 * Replaces the entry for a key only if currently mapped to some value.
+	 *
+	 * @param key   key with which the specified value is associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 */
+	@Override public V replace(K key, V value)
+	{
+		synchronized (writeLock) {
+			if (!current.containsKey(key))
+				return null;
+
+			V previous = current.get(key);
+			current = current.put(key, value);
+			return previous;
+		}
+	}
+
+	/**
+	 * Computes the value of a key while holding the write lock. The remapping function must not write to this map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		synchronized (writeLock) {
+			V computed = remappingFunction.apply(key, current.get(key));
+			current = computed == null ? current.remove(key) : current.put(key, computed);
+			return computed;
+		}
+	}
+
+	/**
+	 * Computes the value of an absent key while holding the write lock. The mapping function must not write to this
+	 * map.
+	 *
+	 * @param key             key with which the specified value is to be associated
+	 * @param mappingFunction the function to compute a value
+	 *
+	 * @return the current (existing or computed) value associated with the specified key, or null if the computed
+	 * value is null
+	 */
+	@Override public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+	{
+		synchronized (writeLock) {
+			V value = current.get(key);
+			if (value != null)
+				return value;
+
+			V computed = mappingFunction.apply(key);
+			if (computed != null)
+				current = current.put(key, computed);
+			return computed;
+		}
+	}
+
+	/**
+	 * Computes the value of a present key while holding the write lock. The remapping function must not write to this
+	 * map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		synchronized (writeLock) {
+			V value = current.get(key);
+			if (value == null)
+				return null;
+
+			V computed = remappingFunction.apply(key, value);
+			current = computed == null ? current.remove(key) : current.put(key, computed);
+			return computed;
+		}
+	}
+
+	/**
+	 * Merges the value of a key while holding the write lock. The remapping function must not write to this map.
+	 *
+	 * @param key               key with which the resulting value is to be associated
+	 * @param value             the non-null value to be merged with the existing value
+	 * @param remappingFunction the function to recompute a value if present
+	 *
+	 * @return the new value associated with the specified key, or null if no value is associated with the key
+	 */
+	@Override public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+	{
+		synchronized (writeLock) {
+			V previous = current.get(key);
+			V merged   = previous == null ? value : remappingFunction.apply(previous, value);
+			current = merged == null ? current.remove(key) : current.put(key, merged);
+			return merged;
+		}
+	}
+
+	/**
+	 * Returns a {@link Set} view of the mappings contained in this map. Each iterator of the set reads the version
+	 * that was current when the iterator was created. Removing through an iterator removes the key from the map, but
+	 * not from the version being iterated.
+	 *
+	 * @return a set view of the mappings contained in this map
+	 */
+	@Override public Set<Entry<K, V>> entrySet()
+	{
+		if (cacheEntrySet == null)
+			cacheEntrySet = new SnapshotTreeMapEntrySet();
+
+		return cacheEntrySet;
+	}
+
+	/**
+	 * Set view of the entries in the {@link SnapshotTreeMap}.
+	 */
+	private final class SnapshotTreeMapEntrySet extends AbstractSet<Entry<K, V>>
+	{
+
+		/**
+		 * Returns the number of entries in the {@link SnapshotTreeMap}.
+		 *
+		 * @return The number of entries in the {@link SnapshotTreeMap}.
+		 */
+		@Override public int size()
+		{
+			return SnapshotTreeMap.this.size();
+		}
+
+		/**
+		 * Returns <tt>true</tt> if the {@link SnapshotTreeMap} contains the specified entry.
+		 *
+		 * @param o entry whose presence is to be tested
+		 *
+		 * @return <tt>true</tt> if the {@link SnapshotTreeMap} contains the specified entry
+		 */
+		@Override public boolean contains(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?>             entry   = (Entry<?, ?>) o;
+			@SuppressWarnings("unchecked")
+			K                       key     = (K) entry.getKey();
+			PersistentTreeMap<K, V> version = current;
+			return version.containsKey(key) && Objects.equals(version.get(key), entry.getValue());
+		}
+
+		/**
+		 * Removes the specified entry from the {@link SnapshotTreeMap} if it is present.
+		 *
+		 * @param o entry to be removed, if present
+		 *
+		 * @return <tt>true</tt> if the {@link SnapshotTreeMap} contained the specified entry
+		 */
+		@Override public boolean remove(Object o)
+		{
+			if (!(o instanceof Entry))
+				return false;
+
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			return SnapshotTreeMap.this.remove(entry.getKey(), entry.getValue());
+		}
+
+		/**
+		 * Returns an iterator over the current version of the entries, in ascending order by key.
+		 *
+		 * @return an iterator over the current version of the entries
+		 */
+		@Override public Iterator<Entry<K, V>> iterator()
+		{
+			return new SnapshotTreeMapEntryIterator(current);
+		}
+
+		/**
+		 * Removes all of the entries from the {@link SnapshotTreeMap}.
+		 */
+		@Override public void clear()
+		{
+			SnapshotTreeMap.this.clear();
+		}
+	}
+
+	/**
+	 * Iterator over a pinned version of the entries in the {@link SnapshotTreeMap}.
+	 */
+	private final class SnapshotTreeMapEntryIterator implements Iterator<Entry<K, V>>
+	{
+
+		/**
+		 * The iterator over the pinned version.
+		 */
+		private final Iterator<Entry<K, V>> iterator;
+
+		/**
+		 * The previously returned entry.
+		 */
+		private Entry<K, V> previous;
+
+		/**
+		 * Creates a new {@link SnapshotTreeMapEntryIterator}, iterating the provided version.
+		 *
+		 * @param version The version to iterate.
+		 */
+		SnapshotTreeMapEntryIterator(PersistentTreeMap<K, V> version)
+		{
+			this.iterator = version.iterator();
+		}
+
+		/**
+		 * Returns {@code true} if the iteration has more elements.
+		 *
+		 * @return {@code true} if the iteration has more elements
+		 */
+		@Override public boolean hasNext()
+		{
+			return iterator.hasNext();
+		}
+
+		/**
+		 * Returns the next entry in the iteration.
+		 *
+		 * @return the next entry in the iteration
+		 * @throws NoSuchElementException if the iteration has no more entries
+		 */
+		@Override public Entry<K, V> next()
+		{
+			previous = iterator.next();
+			return previous;
+		}
+
+		/**
+		 * Removes the key of the previously returned entry from the {@link SnapshotTreeMap}.
+		 *
+		 * @throws IllegalStateException if the {@code next} method has not yet been called, or the {@code remove}
+		 *                               method has already been called after the last call to the {@code next} method
+		 */
+		@Override public void remove()
+		{
+			if (previous == null)
+				throw new IllegalStateException();
+
+			SnapshotTreeMap.this.remove(previous.getKey());
+			previous = null;
+		}
+	}
+}
@@ -1,10 +1,48 @@
 package tvestergaard.treemap;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.*;
 
 public class TreeMap<K, V> implements Map<K, V>
 {
 
+	/**
+	 * Upper bound on the height of the tree. An AVL tree holding {@link Integer#MAX_VALUE} nodes is at most 45 high,
+	 * so a search visiting more nodes than this has been misled by a concurrent modification.
+	 */
+	static final int MAXIMUM_HEIGHT = 64;
+
+	/**
+	 * Operation looking up a key in {@link #applyAll(Object[], Object[], int[], Object[], int)}.
+	 */
+	static final int BATCH_GET = 0;
+
+	/**
+	 * Operation associating a value with a key in {@link #applyAll(Object[], Object[], int[], Object[], int)}.
+	 */
+	static final int BATCH_PUT = 1;
+
+	/**
+	 * Operation removing a key in {@link #applyAll(Object[], Object[], int[], Object[], int)}.
+	 */
+	static final int BATCH_REMOVE = 2;
+
+	/**
+	 * The number of nodes below which {@link #fromArrays(Comparator, Object[], Object[], BinaryOperator)} builds a
+	 * subtree on the current thread instead of splitting the work.
+	 */
+	static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+
+	/**
+	 * The first four bytes written by {@link #writeTo(DataOutput, Codec, Codec)}.
+	 */
+	static final int STREAM_MAGIC = 0x54524545;
+
 	/**
 	 * The comparator used when comparing the keys in the {@link TreeMap}. If <code>null</code> keys are not allowed in
 	 * the {@link TreeMap}, the comparator should throw a {@link NullPointerException} when the first argument is
@@ -12,6 +50,12 @@ public class TreeMap<K, V> implements Map<K, V>
 	 */
 	private Comparator<K> comparator;
 
+	/**
+	 * Computes the prefixes stored in {@link NormalizedNode#prefix}, or <code>null</code> when the keys are only
+	 * compared using the {@link #comparator}. When set, all nodes in the map are {@link NormalizedNode} instances.
+	 */
+	private KeyNormalizer<? super K> normalizer;
+
 	/**
 	 * The root {@link Node} of the {@link TreeMap}.
 	 */
@@ -22,6 +66,28 @@ public class TreeMap<K, V> implements Map<K, V>
 	 */
 	private int size;
 
+	/**
+	 * The {@link Node} with the smallest key in the {@link TreeMap}.
+	 */
+	private Node<K, V> first;
+
+	/**
+	 * The {@link Node} with the greatest key in the {@link TreeMap}.
+	 */
+	private Node<K, V> last;
+
+	/**
+	 * The keys removed since the changes were last drained, or <code>null</code> when removals are not tracked.
+	 *
+	 * @see #trackChanges()
+	 */
+	private List<K> removedKeys;
+
+	/**
+	 * Whether the map has been cleared since the changes were last drained, while removals are tracked.
+	 */
+	private boolean cleared;
+
 	/**
 	 * Cached {@link TreeMapValueCollection} that can be returned from the {@link TreeMap#values()} method.
 	 */
@@ -49,6 +115,22 @@ public class TreeMap<K, V> implements Map<K, V>
 		this.comparator = comparator;
 	}
 
+	/**
+	 * Creates a new {@link TreeMap} using the provided <code>comparator</code>, storing the prefix computed by the
+	 * provided <code>normalizer</code> in each node. Searches compute the prefix of the searched key once, and compare
+	 * it to the prefixes of the visited nodes before comparing the keys, so the comparator is only called when the
+	 * prefixes are equal. This pays off for keys that are expensive to compare, such as strings or composite keys,
+	 * whose order is mostly decided by their first bytes.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link TreeMap}.
+	 * @param normalizer The normalizer computing the prefixes of the keys. Must agree with the comparator.
+	 */
+	public TreeMap(Comparator<K> comparator, KeyNormalizer<? super K> normalizer)
+	{
+		this.comparator = comparator;
+		this.normalizer = Objects.requireNonNull(normalizer);
+	}
+
 	/**
 	 * Creates a new {@link TreeMap} using the provided <code>comparator</code>. The map is then filled with the
 	 * entries
@@ -65,6 +147,111 @@ public class TreeMap<K, V> implements Map<K, V>
 		putAll(map);
 	}
 
+	/**
+	 * Creates a new {@link TreeMap} from the provided unsorted entries, where <code>values[i]</code> is the value of
+	 * <code>keys[i]</code>. When a key occurs more than once, the value occurring last is kept.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link TreeMap}.
+	 * @param keys       The keys.
+	 * @param values     The values. Must be at least as long as <code>keys</code>.
+	 * @param <K>        The key type.
+	 * @param <V>        The value type.
+	 *
+	 * @return The new {@link TreeMap}.
+	 * @throws IllegalArgumentException if <code>values</code> is shorter than <code>keys</code>
+	 * @see #fromArrays(Comparator, Object[], Object[], BinaryOperator)
+	 */
+	public static <K, V> TreeMap<K, V> fromArrays(Comparator<K> comparator, K[] keys, V[] values)
+	{
+		return fromArrays(comparator, keys, values, (a, b) -> b);
+	}
+
+	/**
+	 * Creates a new {@link TreeMap} from the provided unsorted entries, where <code>values[i]</code> is the value of
+	 * <code>keys[i]</code>. The result is the same as calling {@link #merge(Object, Object, BiFunction)} for every
+	 * entry in order, but the map is built in bulk: the entries are sorted using {@link Arrays#parallelSort(Object[],
+	 * Comparator)}, the duplicate keys are merged in a single pass, and the balanced tree is linked from the sorted
+	 * nodes by splitting the ranges of nodes between the threads of the common {@link ForkJoinPool}. No rotations are
+	 * performed.
+	 *
+	 * @param comparator    The comparator used when comparing the keys in the {@link TreeMap}.
+	 * @param keys          The keys.
+	 * @param values        The values. Must be at least as long as <code>keys</code>.
+	 * @param mergeFunction The function combining the values of a duplicate key, in the order the values occur. When
+	 *                      the function returns <code>null</code>, the key is removed.
+	 * @param <K>           The key type.
+	 * @param <V>           The value type.
+	 *
+	 * @return The new {@link TreeMap}.
+	 * @throws IllegalArgumentException if <code>values</code> is shorter than <code>keys</code>
+	 */
+	public static <K, V> TreeMap<K, V> fromArrays(Comparator<K> comparator, K[] keys, V[] values,
+												  BinaryOperator<V> mergeFunction)
+	{
+		if (values.length < keys.length)
+			throw new IllegalArgumentException();
+
+		Node<K, V>[] nodes = newNodes(keys.length);
+		Arrays.parallelSetAll(nodes, x -> new Node<>(keys[x], values[x]));
+
+		// The sort is stable, so the values of a duplicate key stay in the order they occur
+		Arrays.parallelSort(nodes, (a, b) -> comparator.compare(a.key, b.key));
+
+		int count = 0;
+		for (Node<K, V> node : nodes) {
+			if (count > 0 && comparator.compare(nodes[count - 1].key, node.key) == 0) {
+				V merged = mergeFunction.apply(nodes[count - 1].value, node.value);
+				if (merged == null)
+					count--;
+				else
+					nodes[count - 1].value = merged;
+			} else
+				nodes[count++] = node;
+		}
+
+		return fromSortedNodes(comparator, nodes, count);
+	}
+
+	/**
+	 * Creates a new {@link TreeMap} from the provided nodes, which must be sorted in strictly ascending order by key.
+	 * The balanced tree is linked from the nodes without comparisons or rotations, splitting large ranges of nodes
+	 * between the threads of the common {@link ForkJoinPool}.
+	 *
+	 * @param comparator The comparator used when comparing the keys in the {@link TreeMap}.
+	 * @param nodes      The sorted nodes. Their children, parents and heights are replaced.
+	 * @param count      The number of nodes to use from the start of <code>nodes</code>.
+	 * @param <K>        The key type.
+	 * @param <V>        The value type.
+	 *
+	 * @return The new {@link TreeMap}.
+	 */
+	static <K, V> TreeMap<K, V> fromSortedNodes(Comparator<K> comparator, Node<K, V>[] nodes, int count)
+	{
+		TreeMap<K, V> map = new TreeMap<>(comparator);
+		map.root = count > PARALLEL_BUILD_THRESHOLD ?
+				   ForkJoinPool.commonPool().invoke(new BuildTask<>(nodes, 0, count, null)) :
+				   build(nodes, 0, count, null);
+		map.first = count == 0 ? null : nodes[0];
+		map.last = count == 0 ? null : nodes[count - 1];
+		map.size = count;
+		return map;
+	}
+
+	/**
+	 * Returns a new array of nodes with the provided length.
+	 *
+	 * @param length The length of the array.
+	 * @param <K>    The key type.
+	 * @param <V>    The value type.
+	 *
+	 * @return The new array.
+	 */
+	@SuppressWarnings("unchecked")
+	static <K, V> Node<K, V>[] newNodes(int length)
+	{
+		return (Node<K, V>[]) new Node<?, ?>[length];
+	}
+
 	/**
 	 * Represents a key-value node in the {@link TreeMap}.
 	 *
@@ -104,6 +291,18 @@ public class TreeMap<K, V> implements Map<K, V>
 		 */
 		private int height = 1;
 
+		/**
+		 * Whether the entry of the node was inserted or had its value replaced since the changes were last drained
+		 * using {@link TreeMap#drainChanges(List, List)}.
+		 */
+		private boolean changed;
+
+		/**
+		 * Whether this node, or any node in its subtree, has {@link #changed}. When set, it is also set on all
+		 * ancestors, so the changed nodes can be found by only visiting subtrees where it is set.
+		 */
+		private boolean subtreeChanged;
+
 		/**
 		 * Creates a new key-value {@link Node}.
 		 *
@@ -160,6 +359,7 @@ public class TreeMap<K, V> implements Map<K, V>
 		{
 			V before = this.value;
 			this.value = value;
+			markChanged();
 			return before;
 		}
 
@@ -171,6 +371,33 @@ public class TreeMap<K, V> implements Map<K, V>
 			height = 1 + Math.max(left == null ? 0 : left.height, right == null ? 0 : right.height);
 		}
 
+		/**
+		 * Marks the node as changed, and marks its ancestors up to the first ancestor that is already marked.
+		 */
+		private void markChanged()
+		{
+			changed = true;
+			markSubtreeChanged();
+		}
+
+		/**
+		 * Marks the subtree of the node as containing changes, along with the subtrees of its ancestors up to the first
+		 * ancestor that is already marked.
+		 */
+		private void markSubtreeChanged()
+		{
+			for (Node<K, V> node = this; node != null && !node.subtreeChanged; node = node.parent)
+				node.subtreeChanged = true;
+		}
+
+		/**
+		 * Recomputes {@link #subtreeChanged} from the node and its children, after the children have been replaced.
+		 */
+		private void updateSubtreeChanged()
+		{
+			subtreeChanged = changed || left != null && left.subtreeChanged || right != null && right.subtreeChanged;
+		}
+
 		@Override public boolean equals(Object o)
 		{
 			if (this == o) return true;
@@ -186,6 +413,129 @@ public class TreeMap<K, V> implements Map<K, V>
 		}
 	}
 
+	/**
+	 * {@link Node} storing the prefix of its key, used by maps with a {@link KeyNormalizer}. Maps without a normalizer
+	 * use plain nodes, so they do not pay for the prefix.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 */
+	private static final class NormalizedNode<K, V> extends Node<K, V>
+	{
+
+		/**
+		 * The prefix of the key, computed by the {@link KeyNormalizer} of the {@link TreeMap} containing the node.
+		 */
+		private final long prefix;
+
+		/**
+		 * Creates a new {@link NormalizedNode}.
+		 *
+		 * @param key    The key of the {@link Node}.
+		 * @param value  The value of the {@link Node}.
+		 * @param parent The parent of the {@link Node}.
+		 * @param prefix The prefix of the key.
+		 */
+		NormalizedNode(K key, V value, Node<K, V> parent, long prefix)
+		{
+			super(key, value, parent);
+			this.prefix = prefix;
+		}
+	}
+
+	/**
+	 * The outcome of a search made by {@link #getNodeOrParent(Object, long, Node, Search)} and the searches built on it,
+	 * besides the returned node. Each operation uses its own instance, so searches never share state, and read-only
+	 * operations can be called by concurrent readers.
+	 */
+	private static final class Search
+	{
+
+		/**
+		 * The result of the last comparison made by the search. Zero when the returned node has the searched key,
+		 * otherwise the side of the returned parent on which the key belongs.
+		 */
+		private int compare;
+
+		/**
+		 * The prefix of the searched key, as returned by {@link #prefix(Object)}, so a node inserted for the key does
+		 * not normalize the key again.
+		 */
+		private long prefix;
+	}
+
+	/**
+	 * Task building a balanced tree from a range of sorted nodes. The middle node becomes the root, and the subtrees on
+	 * either side are built by separate tasks, until the ranges are small enough to be built on a single thread.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 * @see #build(Node[], int, int, Node)
+	 */
+	@SuppressWarnings("serial")
+	private static final class BuildTask<K, V> extends RecursiveTask<Node<K, V>>
+	{
+
+		/**
+		 * The sorted nodes.
+		 */
+		private final Node<K, V>[] nodes;
+
+		/**
+		 * The index of the first node of the tree, inclusive.
+		 */
+		private final int from;
+
+		/**
+		 * The index of the last node of the tree, exclusive.
+		 */
+		private final int to;
+
+		/**
+		 * The parent of the root of the built tree.
+		 */
+		private final Node<K, V> parent;
+
+		/**
+		 * Creates a new {@link BuildTask}.
+		 *
+		 * @param nodes  The sorted nodes.
+		 * @param from   The index of the first node of the tree, inclusive.
+		 * @param to     The index of the last node of the tree, exclusive.
+		 * @param parent The parent of the root of the built tree.
+		 */
+		BuildTask(Node<K, V>[] nodes, int from, int to, Node<K, V> parent)
+		{
+			this.nodes = nodes;
+			this.from = from;
+			this.to = to;
+			this.parent = parent;
+		}
+
+		/**
+		 * Builds the tree.
+		 *
+		 * @return The root of the built tree.
+		 */
+		@Override protected Node<K, V> compute()
+		{
+			if (to - from <= PARALLEL_BUILD_THRESHOLD)
+				return build(nodes, from, to, parent);
+
+			int        middle = (from + to) >>> 1;
+			Node<K, V> node   = nodes[middle];
+			node.parent = parent;
+
+			BuildTask<K, V> left = new BuildTask<>(nodes, from, middle, node);
+			left.fork();
+			node.right = new BuildTask<>(nodes, middle + 1, to, node).compute();
+			node.left = left.join();
+			node.updateHeight();
+			node.updateSubtreeChanged();
+			return node;
+		}
+	}
+
 	/**
 	 * Abstract iterator, allows for iteration through the nodes in the {@link TreeMap} using the {@link
 	 * TreeMapIterator#nextNode()} method.
@@ -210,7 +560,7 @@ public class TreeMap<K, V> implements Map<K, V>
 		 */
 		TreeMapIterator()
 		{
-			next = minimum(root);
+			next = first;
 		}
 
 		/**
@@ -235,30 +585,9 @@ public class TreeMap<K, V> implements Map<K, V>
 				throw new NoSuchElementException();
 
 			Node<K, V> result = next;
-
-			if (next.right != null) {
-				next = next.right;
-				while (next.left != null)
-					next = next.left;
-				previous = result;
-				return result;
-			}
-
-			while (true) {
-
-				if (next.parent == null) {
-					next = null;
-					previous = result;
-					return result;
-				}
-
-				if (next.parent.left == next) {
-					next = next.parent;
-					previous = result;
-					return result;
-				}
-				next = next.parent;
-			}
+			next = successor(next);
+			previous = result;
+			return result;
 		}
 
 		/**
@@ -300,92 +629,304 @@ public class TreeMap<K, V> implements Map<K, V>
 	}
 
 	/**
-	 * Returns the number of key-value mappings in this map.
+	 * Returns a new {@link TreeMapCursor} positioned on the entry with the smallest key. The cursor is not positioned
+	 * when the {@link TreeMap} is empty.
 	 *
-	 * @return the number of key-value mappings in this map
+	 * @return The new {@link TreeMapCursor}.
 	 */
-	@Override public int size()
+	public TreeMapCursor cursor()
 	{
-		return size;
+		return new TreeMapCursor(first);
 	}
 
 	/**
-	 * Returns <tt>true</tt> if this map contains no key-value mappings.
+	 * Returns a new {@link TreeMapCursor} positioned on the provided node, which must belong to the {@link TreeMap}.
 	 *
-	 * @return <tt>true</tt> if this map contains no key-value mappings
+	 * @param node The node to position the cursor on, or <code>null</code> to leave the cursor unpositioned.
+	 *
+	 * @return The new {@link TreeMapCursor}.
 	 */
-	@Override public boolean isEmpty()
+	TreeMapCursor cursor(Node<K, V> node)
 	{
-		return size == 0;
+		return new TreeMapCursor(node);
 	}
 
 	/**
-	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
-	 *
-	 * @param key The key whose presence in this map is to be tested.
-	 *
-	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
-	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
+	 * Cursor holding a position in the {@link TreeMap}. Unlike {@link TreeMapIterator}, the cursor can move in both
+	 * directions, reposition itself and insert entries. All operations start from the current position instead of the
+	 * root, so operations on keys close to the current position only visit the nodes between them. The behavior of a
+	 * cursor is unspecified if the {@link TreeMap} is modified by other means than the cursor itself.
 	 */
-	@Override public boolean containsKey(Object key)
+	public final class TreeMapCursor
 	{
-		try {
-			return getNode((K) key, root) != null;
-		} catch (ClassCastException e) {
-			return false;
+
+		/**
+		 * The node the cursor is positioned on. <code>null</code> when the cursor is not positioned.
+		 */
+		private Node<K, V> node;
+
+		/**
+		 * Creates a new {@link TreeMapCursor} positioned on the provided node.
+		 *
+		 * @param node The node to position the cursor on, or <code>null</code> to leave the cursor unpositioned.
+		 */
+		TreeMapCursor(Node<K, V> node)
+		{
+			this.node = node;
 		}
-	}
 
-	/**
-	 * Returns <tt>true</tt> if this map maps one or more keys to the specified value.
-	 *
-	 * @param value The value whose presence in this map is to be tested.
-	 *
-	 * @return <tt>true</tt> if this map maps one or more keys to the specified value.
-	 */
-	@Override public boolean containsValue(Object value)
-	{
-		try {
-			return searchNode(value, root) != null;
-		} catch (ClassCastException e) {
-			return false;
+		/**
+		 * Returns <code>true</code> if the cursor is positioned on an entry.
+		 *
+		 * @return <code>true</code> if the cursor is positioned on an entry.
+		 */
+		public boolean isPositioned()
+		{
+			return node != null;
 		}
-	}
 
-	/**
-	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
-	 * key.
-	 * <p>
-	 * <p>More formally, if this map contains a mapping from a key {@code k} to a value {@code v} such that {@code
-	 * (key==null ? k==null : key.equals(k))}, then this method returns {@code v}; otherwise it returns {@code null}.
-	 * (There can be at most one such mapping.)
-	 * <p>
-	 * <p>A return value of {@code null} does not <i>necessarily</i> indicate that the map contains no mapping for the
-	 * key; it's also possible that the map explicitly maps the key to {@code null}. The {@link #containsKey
-	 * containsKey} operation may be used to distinguish these two cases.
-	 *
-	 * @param key the key whose associated value is to be returned
-	 *
-	 * @see #put(Object, Object)
-	 */
-	@Override public V get(Object key)
-	{
-		Node<K, V> node = getNode((K) key, root);
+		/**
+		 * Positions the cursor on the entry with the smallest key.
+		 *
+		 * @return <code>true</code> if the cursor is positioned on an entry afterwards.
+		 */
+		public boolean first()
+		{
+			node = TreeMap.this.first;
+			return node != null;
+		}
 
-		return node == null ? null : node.value;
-	}
+		/**
+		 * Positions the cursor on the entry with the greatest key.
+		 *
+		 * @return <code>true</code> if the cursor is positioned on an entry afterwards.
+		 */
+		public boolean last()
+		{
+			node = TreeMap.this.last;
+			return node != null;
+		}
 
-	/**
-	 * Associates the specified value with the specified key in this map. If the map previously contained a mapping for
-	 * the key, the old value is replaced.
-	 *
-	 * @param key   key with which the specified value is to be associated
-	 * @param value value to be associated with the specified key
-	 *
-	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
-	 * <tt>key</tt>. (A <tt>null</tt> return can also indicate that the map previously associated <tt>null</tt> with
-	 * <tt>key</tt>.)
-	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
+		/**
+		 * Positions the cursor on the entry with the provided key. When no such entry exists, the cursor is
+		 * positioned on the entry with the smallest key greater than the provided key, or is left unpositioned when
+		 * there is no such entry. The search starts from the current position.
+		 *
+		 * @param key The key to position the cursor on.
+		 *
+		 * @return <code>true</code> if an entry with the provided key exists.
+		 */
+		public boolean seek(K key)
+		{
+			Search     search = new Search();
+			Node<K, V> found  = getNodeOrParentNear(key, node, search);
+			if (found != null && search.compare == 0) {
+				node = found;
+				return true;
+			}
+
+			node = found == null || search.compare < 0 ? found : successor(found);
+			return false;
+		}
+
+		/**
+		 * Moves the cursor to the entry with the next greater key.
+		 *
+		 * @return <code>true</code> if the cursor is positioned on an entry afterwards.
+		 * @throws IllegalStateException if the cursor is not positioned
+		 */
+		public boolean next()
+		{
+			node = successor(current());
+			return node != null;
+		}
+
+		/**
+		 * Moves the cursor to the entry with the next smaller key.
+		 *
+		 * @return <code>true</code> if the cursor is positioned on an entry afterwards.
+		 * @throws IllegalStateException if the cursor is not positioned
+		 */
+		public boolean prev()
+		{
+			node = predecessor(current());
+			return node != null;
+		}
+
+		/**
+		 * Returns the key of the entry the cursor is positioned on.
+		 *
+		 * @return The key of the entry the cursor is positioned on.
+		 * @throws IllegalStateException if the cursor is not positioned
+		 */
+		public K getKey()
+		{
+			return current().key;
+		}
+
+		/**
+		 * Returns the value of the entry the cursor is positioned on.
+		 *
+		 * @return The value of the entry the cursor is positioned on.
+		 * @throws IllegalStateException if the cursor is not positioned
+		 */
+		public V getValue()
+		{
+			return current().value;
+		}
+
+		/**
+		 * Replaces the value of the entry the cursor is positioned on.
+		 *
+		 * @param value The new value of the entry.
+		 *
+		 * @return The old value of the entry.
+		 * @throws IllegalStateException if the cursor is not positioned
+		 */
+		public V setValue(V value)
+		{
+			return current().setValue(value);
+		}
+
+		/**
+		 * Removes the entry the cursor is positioned on. The cursor is moved to the entry with the next greater key.
+		 *
+		 * @return The value of the removed entry.
+		 * @throws IllegalStateException if the cursor is not positioned
+		 */
+		public V remove()
+		{
+			Node<K, V> removed = current();
+			node = successor(removed);
+			removeNode(removed);
+			return removed.value;
+		}
+
+		/**
+		 * Associates the provided value with the provided key, and positions the cursor on the entry. The search for
+		 * the position of the key starts from the current position.
+		 *
+		 * @param key   The key with which the value is to be associated.
+		 * @param value The value to be associated with the key.
+		 *
+		 * @return The previous value associated with the key, or <code>null</code> if there was no mapping for the
+		 * key.
+		 */
+		public V insertNear(K key, V value)
+		{
+			Search     search = new Search();
+			Node<K, V> found  = getNodeOrParentNear(key, node, search);
+			if (found != null && search.compare == 0) {
+				node = found;
+				return found.setValue(value);
+			}
+
+			node = insertNode(key, value, found, search);
+			return null;
+		}
+
+		/**
+		 * Returns the node the cursor is positioned on.
+		 *
+		 * @return The node the cursor is positioned on.
+		 * @throws IllegalStateException if the cursor is not positioned
+		 */
+		private Node<K, V> current()
+		{
+			if (node == null)
+				throw new IllegalStateException();
+
+			return node;
+		}
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map.
+	 *
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains no key-value mappings.
+	 *
+	 * @return <tt>true</tt> if this map contains no key-value mappings
+	 */
+	@Override public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+	 *
+	 * @param key The key whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map contains a mapping for the specified key.
+	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
+	 */
+	@Override public boolean containsKey(Object key)
+	{
+		try {
+			return getNode((K) key, root) != null;
+		} catch (ClassCastException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if this map maps one or more keys to the specified value.
+	 *
+	 * @param value The value whose presence in this map is to be tested.
+	 *
+	 * @return <tt>true</tt> if this map maps one or more keys to the specified value.
+	 */
+	@Override public boolean containsValue(Object value)
+	{
+		try {
+			return searchNode(value, root) != null;
+		} catch (ClassCastException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
+	 * key.
+	 * <p>
+	 * <p>More formally, if this map contains a mapping from a key {@code k} to a value {@code v} such that {@code
+	 * (key==null ? k==null : key.equals(k))}, then this method returns {@code v}; otherwise it returns {@code null}.
+	 * (There can be at most one such mapping.)
+	 * <p>
+	 * <p>A return value of {@code null} does not <i>necessarily</i> indicate that the map contains no mapping for the
+	 * key; it's also possible that the map explicitly maps the key to {@code null}. The {@link #containsKey
+	 * containsKey} operation may be used to distinguish these two cases.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 *
+	 * @see #put(Object, Object)
+	 */
+	@Override public V get(Object key)
+	{
+		Node<K, V> node = getNode((K) key, root);
+
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map. If the map previously contained a mapping for
+	 * the key, the old value is replaced.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
+	 * <tt>key</tt>. (A <tt>null</tt> return can also indicate that the map previously associated <tt>null</tt> with
+	 * <tt>key</tt>.)
+	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
 	 */
 	@Override public V put(K key, V value)
 	{
@@ -409,6 +950,185 @@ public class TreeMap<K, V> implements Map<K, V>
 		return removed == null ? null : removed.value;
 	}
 
+	/**
+	 * Returns the value to which the specified key is mapped, or <code>defaultValue</code> if this map contains no
+	 * mapping for the key. Unlike the default implementation, the tree is only searched once.
+	 *
+	 * @param key          the key whose associated value is to be returned
+	 * @param defaultValue the default mapping of the key
+	 *
+	 * @return the value to which the specified key is mapped, or <code>defaultValue</code> if this map contains no
+	 * mapping for the key
+	 * @throws ClassCastException if the provided key is of an inappropriate type for this map
+	 */
+	@Override public V getOrDefault(Object key, V defaultValue)
+	{
+		@SuppressWarnings("unchecked")
+		Node<K, V> node = getNode((K) key, root);
+
+		return node == null ? defaultValue : node.value;
+	}
+
+	/**
+	 * If the specified key is not already associated with a value (or is mapped to <code>null</code>) associates it
+	 * with the given value and returns <code>null</code>, else returns the current value. The tree is only searched
+	 * once, the new node is attached to the parent found by the search.
+	 *
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 *
+	 * @return the previous value associated with the specified key, or <tt>null</tt> if there was no mapping for the
+	 * key.
+	 */
+	@Override public V putIfAbsent(K key, V value)
+	{
+		Search     search = new Search();
+		Node<K, V> node   = getNodeOrParent(key, search);
+		if (node != null && search.compare == 0) {
+			V before = node.value;
+			if (before == null)
+				node.setValue(value);
+			return before;
+		}
+
+		insertNode(key, value, node, search);
+		return null;
+	}
+
+	/**
+	 * If the specified key is not already associated with a value (or is mapped to <code>null</code>), attempts to
+	 * compute its value using the given mapping function and enters it into this map unless <code>null</code>. The
+	 * tree is only searched once. The mapping function must not modify this map.
+	 *
+	 * @param key             key with which the specified value is to be associated
+	 * @param mappingFunction the function to compute a value
+	 *
+	 * @return the current (existing or computed) value associated with the specified key, or null if the computed
+	 * value is null
+	 */
+	@Override public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+	{
+		Objects.requireNonNull(mappingFunction);
+
+		Search     search = new Search();
+		Node<K, V> node   = getNodeOrParent(key, search);
+		boolean    found  = node != null && search.compare == 0;
+		if (found && node.value != null)
+			return node.value;
+
+		V value = mappingFunction.apply(key);
+		if (value == null)
+			return null;
+
+		if (found)
+			node.setValue(value);
+		else
+			insertNode(key, value, node, search);
+
+		return value;
+	}
+
+	/**
+	 * If the value for the specified key is present and non-null, attempts to compute a new mapping given the key and
+	 * its current mapped value. If the function returns <code>null</code>, the mapping is removed. The tree is only
+	 * searched once. The remapping function must not modify this map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		Objects.requireNonNull(remappingFunction);
+
+		Search     search = new Search();
+		Node<K, V> node   = getNodeOrParent(key, search);
+		if (node == null || search.compare != 0 || node.value == null)
+			return null;
+
+		V value = remappingFunction.apply(key, node.value);
+		if (value == null)
+			removeNode(node);
+		else
+			node.setValue(value);
+
+		return value;
+	}
+
+	/**
+	 * Attempts to compute a mapping for the specified key and its current mapped value (or <code>null</code> if there
+	 * is no current mapping). If the function returns <code>null</code>, the mapping is removed (or remains absent if
+	 * initially absent). The tree is only searched once. The remapping function must not modify this map.
+	 *
+	 * @param key               key with which the specified value is to be associated
+	 * @param remappingFunction the function to compute a value
+	 *
+	 * @return the new value associated with the specified key, or null if none
+	 */
+	@Override public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+	{
+		Objects.requireNonNull(remappingFunction);
+
+		Search     search = new Search();
+		Node<K, V> node   = getNodeOrParent(key, search);
+		boolean    found  = node != null && search.compare == 0;
+
+		V value = remappingFunction.apply(key, found ? node.value : null);
+		if (value == null) {
+			if (found)
+				removeNode(node);
+			return null;
+		}
+
+		if (found)
+			node.setValue(value);
+		else
+			insertNode(key, value, node, search);
+
+		return value;
+	}
+
+	/**
+	 * If the specified key is not already associated with a value or is associated with <code>null</code>,
+	 * associates it with the given non-null value. Otherwise, replaces the associated value with the results of the
+	 * given remapping function, or removes if the result is <code>null</code>. The tree is only searched once. The
+	 * remapping function must not modify this map.
+	 *
+	 * @param key               key with which the resulting value is to be associated
+	 * @param value             the non-null value to be merged with the existing value associated with the key or,
+	 *                          if no existing value or a null value is associated with the key, to be associated with
+	 *                          the key
+	 * @param remappingFunction the function to recompute a value if present
+	 *
+	 * @return the new value associated with the specified key, or null if no value is associated with the key
+	 */
+	@Override public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+	{
+		Objects.requireNonNull(value);
+		Objects.requireNonNull(remappingFunction);
+
+		Search     search = new Search();
+		Node<K, V> node   = getNodeOrParent(key, search);
+		if (node == null || search.compare != 0) {
+			insertNode(key, value, node, search);
+			return value;
+		}
+
+		if (node.value == null) {
+			node.setValue(value);
+			return value;
+		}
+
+		V merged = remappingFunction.apply(node.value, value);
+		if (merged == null)
+			removeNode(node);
+		else
+			node.setValue(merged);
+
+		return merged;
+	}
+
 	/**
 	 * Removed the provided <code>node</code> from the {@link TreeMap}.
 	 *
@@ -418,97 +1138,651 @@ public class TreeMap<K, V> implements Map<K, V>
 	 */
 	private Node<K, V> removeNode(Node<K, V> node)
 	{
-
 		if (node == null)
 			return null;
 
-		if (node.left == null && node.right == null) {
-			replaceNode(node, null);
-			size--;
-			return node;
-		}
+		if (node == first)
+			first = successor(node);
+		if (node == last)
+			last = predecessor(node);
+		if (removedKeys != null)
+			removedKeys.add(node.key);
+
+		Node<K, V> rebalanceFrom;
 
-		// Effective XOR because of the above &&
 		if (node.left == null || node.right == null) {
+			rebalanceFrom = node.parent;
+			replaceNode(node, node.left != null ? node.left : node.right);
+		} else {
+
+			// Move the successor into the position of the removed node, so that nodes referenced by iterators stay valid
+			Node<K, V> min = minimum(node.right);
+			if (min.parent == node) {
+				rebalanceFrom = min;
+			} else {
+				rebalanceFrom = min.parent;
+				replaceNode(min, min.right);
+				min.right = node.right;
+				min.right.parent = min;
+			}
 
-			if (node.left != null) {
-				replaceNode(node, node.left);
-				size--;
-				return node;
+			replaceNode(node, min);
+			min.left = node.left;
+			min.left.parent = min;
+			min.height = node.height;
+			min.subtreeChanged |= node.subtreeChanged;
+		}
+
+		size--;
+		rebalance(rebalanceFrom);
+		return node;
+	}
+
+	/**
+	 * Finds the smallest node in the tree headed by the provided <code>node</code>.
+	 *
+	 * @param head The head of the tree in which to find the smallest node.
+	 *
+	 * @return The smallest node in the tree. Returns <code>null</code> if no node could be found.
+	 */
+	private Node<K, V> minimum(Node<K, V> head)
+	{
+		while (head != null) {
+			if (head.left == null)
+				return head;
+			head = head.left;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Finds the greatest node in the tree headed by the provided <code>node</code>.
+	 *
+	 * @param head The head of the tree in which to find the greatest node.
+	 *
+	 * @return The greatest node in the tree. Returns <code>null</code> if no node could be found.
+	 */
+	private Node<K, V> maximum(Node<K, V> head)
+	{
+		while (head != null) {
+			if (head.right == null)
+				return head;
+			head = head.right;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the node with the smallest key greater than the key of the provided node.
+	 *
+	 * @param node The node to find the successor of.
+	 *
+	 * @return The successor of the provided node. Returns <code>null</code> if the provided node is the greatest node.
+	 */
+	private Node<K, V> successor(Node<K, V> node)
+	{
+		if (node.right != null)
+			return minimum(node.right);
+
+		while (node.parent != null && node.parent.right == node)
+			node = node.parent;
+
+		return node.parent;
+	}
+
+	/**
+	 * Returns the node with the greatest key smaller than the key of the provided node.
+	 *
+	 * @param node The node to find the predecessor of.
+	 *
+	 * @return The predecessor of the provided node. Returns <code>null</code> if the provided node is the smallest
+	 * node.
+	 */
+	private Node<K, V> predecessor(Node<K, V> node)
+	{
+		if (node.left != null)
+			return maximum(node.left);
+
+		while (node.parent != null && node.parent.left == node)
+			node = node.parent;
+
+		return node.parent;
+	}
+
+	/**
+	 * Replaces the provided node <code>target</code> with the provided node <code>replacement</code>.
+	 *
+	 * @param target      The node to replace.
+	 * @param replacement The replacement for the node to remove.
+	 */
+	private void replaceNode(Node<K, V> target, Node<K, V> replacement)
+	{
+		Node<K, V> parent = target.parent;
+
+		if (parent == null) {
+			root = replacement;
+			if (replacement != null)
+				replacement.parent = null;
+		} else if (parent.left == target) {
+			parent.left = replacement;
+			if (replacement != null)
+				replacement.parent = parent;
+		} else if (parent.right == target) {
+			parent.right = replacement;
+			if (replacement != null)
+				replacement.parent = parent;
+		}
+	}
+
+	/**
+	 * Copies all of the mappings from the specified map to this map.  The effect of this call is equivalent to that of
+	 * calling {@link #put(Object, Object) put(k, v)} on this map once for each mapping from key <tt>k</tt> to value
+	 * <tt>v</tt> in the specified map.  The behavior of this operation is undefined if the specified map is modified
+	 * while the operation is in progress.
+	 *
+	 * @param m mappings to be stored in this map.
+	 */
+	@Override public void putAll(Map<? extends K, ? extends V> m)
+	{
+		if (m != null) {
+			for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+				put(entry.getKey(), entry.getValue());
 			}
+		}
+	}
 
-			if (node.right != null) {
-				replaceNode(node, node.right);
-				size--;
-				return node;
+	/**
+	 * Looks up the values of the provided keys, storing the value of <code>keys[i]</code> in <code>values[i]</code>.
+	 * Keys without a mapping get the value <code>null</code>. Each search starts from the node found by the previous
+	 * search, so when the keys are sorted in ascending order the searches share the path through the tree instead of
+	 * each descending from the root. Unsorted keys are also supported, but are slower. The map is only read, so like
+	 * {@link #get(Object)} the method can be called by concurrent readers while no thread modifies the map.
+	 *
+	 * @param keys   The keys to look up, preferably sorted in ascending order.
+	 * @param values The array into which the values are stored. Must be at least as long as <code>keys</code>.
+	 *
+	 * @return The number of keys that had a mapping.
+	 * @throws IllegalArgumentException if <code>values</code> is shorter than <code>keys</code>
+	 */
+	public int getAll(K[] keys, V[] values)
+	{
+		if (values.length < keys.length)
+			throw new IllegalArgumentException();
+
+		Search     search = new Search();
+		Node<K, V> finger = null;
+		int        found  = 0;
+		for (int x = 0; x < keys.length; x++) {
+			finger = getNodeOrParentNear(keys[x], finger, search);
+			if (finger != null && search.compare == 0) {
+				values[x] = finger.value;
+				found++;
+			} else
+				values[x] = null;
+		}
+
+		return found;
+	}
+
+	/**
+	 * Associates <code>values[i]</code> with <code>keys[i]</code> for every provided key. Each search starts from the
+	 * node found or inserted by the previous search, so when the keys are sorted in ascending order the searches share
+	 * the path through the tree instead of each descending from the root. Unsorted keys are also supported, but are
+	 * slower.
+	 *
+	 * @param keys   The keys to associate the values with, preferably sorted in ascending order.
+	 * @param values The values to associate with the keys. Must be at least as long as <code>keys</code>.
+	 *
+	 * @return The number of keys that did not have a mapping before the call.
+	 * @throws IllegalArgumentException if <code>values</code> is shorter than <code>keys</code>
+	 */
+	public int putAll(K[] keys, V[] values)
+	{
+		if (values.length < keys.length)
+			throw new IllegalArgumentException();
+
+		Search     search   = new Search();
+		Node<K, V> finger   = null;
+		int        inserted = 0;
+		for (int x = 0; x < keys.length; x++) {
+			finger = getNodeOrParentNear(keys[x], finger, search);
+			if (finger != null && search.compare == 0) {
+				finger.setValue(values[x]);
+			} else {
+				finger = insertNode(keys[x], values[x], finger, search);
+				inserted++;
 			}
 		}
 
-		Node<K, V> min = minimum(node.right);
-		min.left = node.left;
-		replaceNode(node, min);
-		size--;
+		return inserted;
+	}
+
+	/**
+	 * Applies a batch of lookups, insertions and removals in a single pass over the tree. Like {@link
+	 * #putAll(Object[], Object[])}, each search starts from the node found by the previous operation, so the batch
+	 * should be sorted by key. Operations on the same key are applied in the order they appear in the batch. When an
+	 * operation throws, the operations before it have been applied.
+	 *
+	 * @param keys       The keys of the operations.
+	 * @param values     The values to associate with the keys of {@link #BATCH_PUT} operations.
+	 * @param operations The operations, one of {@link #BATCH_GET}, {@link #BATCH_PUT} and {@link #BATCH_REMOVE}.
+	 * @param results    The array into which the value mapped to each key before its operation is stored.
+	 * @param count      The number of operations in the batch.
+	 */
+	void applyAll(K[] keys, V[] values, int[] operations, V[] results, int count)
+	{
+		applyAll(keys, values, operations, results, null, count);
+	}
+
+	/**
+	 * Applies a batch of operations like {@link #applyAll(Object[], Object[], int[], Object[], int)}. When
+	 * <code>failures</code> is provided, an exception thrown by an operation, such as the comparator rejecting its key,
+	 * is stored at the index of the operation instead of being thrown, and the remaining operations are still applied.
+	 * Operations only throw while searching for their key, before modifying the tree, so a failed operation has no
+	 * effect.
+	 *
+	 * @param keys       The keys of the operations.
+	 * @param values     The values to associate with the keys of {@link #BATCH_PUT} operations.
+	 * @param operations The operations, one of {@link #BATCH_GET}, {@link #BATCH_PUT} and {@link #BATCH_REMOVE}.
+	 * @param results    The array into which the value mapped to each key before its operation is stored.
+	 * @param failures   The array into which the exception thrown by each operation, or <code>null</code>, is stored.
+	 *                   When <code>null</code>, exceptions are thrown.
+	 * @param count      The number of operations in the batch.
+	 */
+	void applyAll(K[] keys, V[] values, int[] operations, V[] results, Throwable[] failures, int count)
+	{
+		Search     search = new Search();
+		Node<K, V> finger = null;
+		for (int x = 0; x < count; x++) {
+			Node<K, V> node;
+			try {
+				node = getNodeOrParentNear(keys[x], finger, search);
+			} catch (RuntimeException | Error e) {
+				if (failures == null)
+					throw e;
+
+				failures[x] = e;
+				results[x] = null;
+				continue;
+			}
+
+			boolean found = node != null && search.compare == 0;
+			results[x] = found ? node.value : null;
+			if (failures != null)
+				failures[x] = null;
+
+			if (operations[x] == BATCH_PUT) {
+				if (found) {
+					node.setValue(values[x]);
+					finger = node;
+				} else
+					finger = insertNode(keys[x], values[x], node, search);
+			} else if (operations[x] == BATCH_REMOVE && found) {
+				finger = node.parent;
+				removeNode(node);
+			} else
+				finger = node;
+		}
+	}
+
+	/**
+	 * Moves all entries from the provided map into this map, leaving the provided map empty. The nodes are moved
+	 * instead of copied. When all keys of one map are smaller than the keys of the other map, the trees are joined in
+	 * <code>O(log n)</code> time. Otherwise the entries of both maps are merged in sorted order, and the tree is
+	 * rebuilt balanced from the merged nodes in <code>O(n + m)</code> time. Both maps must use the same ordering. When
+	 * this map has a {@link KeyNormalizer}, the entries are merged one at a time instead, as the moved nodes would not
+	 * hold the prefixes of their keys.
+	 *
+	 * @param other             The map whose entries are moved into this map.
+	 * @param remappingFunction The function computing the value of a key contained in both maps, from the value in this
+	 *                          map and the value in the provided map. When the function returns <code>null</code>, the
+	 *                          key is removed.
+	 */
+	void mergeAll(TreeMap<K, V> other, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+	{
+		if (other == this || other.root == null)
+			return;
+
+		if (removedKeys != null)
+			for (Node<K, V> node = other.first; node != null; node = successor(node))
+				node.changed = node.subtreeChanged = true;
+
+		if (normalizer != null) {
+			for (Node<K, V> node = other.first; node != null; node = successor(node))
+				merge(node.key, node.value, remappingFunction);
+		} else if (root == null) {
+			root = other.root;
+			first = other.first;
+			last = other.last;
+			size = other.size;
+		} else if (comparator.compare(last.key, other.first.key) < 0) {
+			Node<K, V> middle = other.removeNode(other.first);
+			root = join(root, middle, other.root);
+			last = other.root == null ? middle : other.last;
+			size += other.size + 1;
+		} else if (comparator.compare(other.last.key, first.key) < 0) {
+			Node<K, V> middle = other.removeNode(other.last);
+			root = join(other.root, middle, root);
+			first = other.root == null ? middle : other.first;
+			size += other.size + 1;
+		} else {
+			Node<K, V>[] nodes = newNodes(size + other.size);
+			int          count = 0;
+			Node<K, V>   a     = first;
+			Node<K, V>   b     = other.first;
+			while (a != null && b != null) {
+				int compare = comparator.compare(a.key, b.key);
+				if (compare < 0) {
+					nodes[count++] = a;
+					a = successor(a);
+				} else if (compare > 0) {
+					nodes[count++] = b;
+					b = successor(b);
+				} else {
+					a.setValue(remappingFunction.apply(a.value, b.value));
+					if (a.value != null)
+						nodes[count++] = a;
+					else if (removedKeys != null)
+						removedKeys.add(a.key);
+					a = successor(a);
+					b = successor(b);
+				}
+			}
+
+			for (; a != null; a = successor(a))
+				nodes[count++] = a;
+			for (; b != null; b = successor(b))
+				nodes[count++] = b;
+
+			root = build(nodes, 0, count, null);
+			first = count == 0 ? null : nodes[0];
+			last = count == 0 ? null : nodes[count - 1];
+			size = count;
+		}
+
+		other.clear();
+	}
+
+	/**
+	 * Starts tracking the changes made to the map, treating the current entries as unchanged. Changed entries are
+	 * found through flags on the nodes, which mark both the changed nodes and the subtrees containing them, so
+	 * {@link #drainChanges(List, List)} only visits the paths leading to changes. Removed keys are recorded in a list.
+	 */
+	void trackChanges()
+	{
+		removedKeys = new ArrayList<>();
+		cleared = false;
+		drainChanges(new ArrayList<>(), new ArrayList<>());
+	}
+
+	/**
+	 * Collects the changes made since tracking was started with {@link #trackChanges()}, or since the changes were
+	 * last drained, and resets them. Subtrees without changes are skipped, so the time taken is proportional to the
+	 * number of changes times the height of the tree, rather than to the size of the map.
+	 *
+	 * @param changed The list to add the inserted or updated nodes to, in ascending order by key.
+	 * @param removed The list to add the removed keys to, in ascending order. A key may be both removed and changed,
+	 *                when it was inserted again after being removed.
+	 *
+	 * @return <code>true</code> if the map was cleared before the changes were made, so the previous entries are all
+	 * removed.
+	 */
+	boolean drainChanges(List<Node<K, V>> changed, List<K> removed)
+	{
+		collectChanges(root, changed);
+		if (removedKeys != null) {
+			removedKeys.sort(comparator);
+			removed.addAll(removedKeys);
+			removedKeys.clear();
+		}
+
+		boolean result = cleared;
+		cleared = false;
+		return result;
+	}
+
+	/**
+	 * Adds the changed nodes in the provided subtree to the provided list in ascending order, and resets their flags.
+	 *
+	 * @param node    The root of the subtree. May be <code>null</code>.
+	 * @param changed The list to add the changed nodes to.
+	 */
+	private void collectChanges(Node<K, V> node, List<Node<K, V>> changed)
+	{
+		while (node != null && node.subtreeChanged) {
+			collectChanges(node.left, changed);
+			if (node.changed)
+				changed.add(node);
+			node.changed = false;
+			node.subtreeChanged = false;
+			node = node.right;
+		}
+	}
+
+	/**
+	 * Returns an immutable copy of the entries, laid out in an array for fast searching. Later modifications of this
+	 * map are not reflected in the copy.
+	 *
+	 * @return The immutable copy.
+	 * @see FrozenTreeMap
+	 */
+	public FrozenTreeMap<K, V> freeze()
+	{
+		@SuppressWarnings("unchecked")
+		K[] keys = (K[]) new Object[size];
+		@SuppressWarnings("unchecked")
+		V[] values = (V[]) new Object[size];
+		int index = 0;
+		for (Node<K, V> node = first; node != null; node = successor(node)) {
+			keys[index] = node.key;
+			values[index++] = node.value;
+		}
+
+		return new FrozenTreeMap<>(comparator, keys, values);
+	}
+
+	/**
+	 * Writes the entries of the map to the provided output, in ascending order by key. The output starts with a header
+	 * holding {@link #STREAM_MAGIC} and the number of entries, followed by the key and value of each entry, written
+	 * using the provided codecs. The map can be recreated using {@link #readFrom(DataInput, Comparator, Codec, Codec)}.
+	 *
+	 * @param out        The output to write to.
+	 * @param keyCodec   The codec writing the keys.
+	 * @param valueCodec The codec writing the values.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeTo(DataOutput out, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException
+	{
+		out.writeInt(STREAM_MAGIC);
+		out.writeInt(size);
+		for (Node<K, V> node = first; node != null; node = successor(node)) {
+			keyCodec.write(node.key, out);
+			valueCodec.write(node.value, out);
+		}
+	}
+
+	/**
+	 * Reads a map written by {@link #writeTo(DataOutput, Codec, Codec)} from the provided input. Since the entries are
+	 * stored in ascending order, and their number is known up front, the balanced tree is built while reading, in
+	 * <code>O(n)</code> time and without comparing any keys. The provided comparator must therefore order the keys the
+	 * same way as the comparator of the written map.
+	 *
+	 * @param in         The input to read from.
+	 * @param comparator The comparator used when comparing the keys in the {@link TreeMap}.
+	 * @param keyCodec   The codec reading the keys.
+	 * @param valueCodec The codec reading the values.
+	 * @param <K>        The key type.
+	 * @param <V>        The value type.
+	 *
+	 * @return The read map.
+	 * @throws IOException if an I/O error occurs, or if the input does not start with a valid header
+	 */
+	public static <K, V> TreeMap<K, V> readFrom(DataInput in, Comparator<K> comparator, Codec<K> keyCodec,
+												Codec<V> valueCodec) throws IOException
+	{
+		if (in.readInt() != STREAM_MAGIC)
+			throw new IOException("The input does not contain a serialized TreeMap.");
+
+		int size = in.readInt();
+		if (size < 0)
+			throw new IOException("Negative size: " + size);
+
+		TreeMap<K, V> map = new TreeMap<>(comparator);
+		map.root = map.read(in, size, null, keyCodec, valueCodec);
+		map.size = size;
+		return map;
+	}
+
+	/**
+	 * Reads the provided number of entries from the provided input, building a balanced tree in the same shape as
+	 * {@link #build(Node[], int, int, Node)}. The entries of the left subtree are read first, then the root, and then
+	 * the entries of the right subtree.
+	 *
+	 * @param in         The input to read from.
+	 * @param count      The number of entries to read.
+	 * @param parent     The parent of the root of the built tree.
+	 * @param keyCodec   The codec reading the keys.
+	 * @param valueCodec The codec reading the values.
+	 *
+	 * @return The root of the built tree, or <code>null</code> when the count is zero.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Node<K, V> read(DataInput in, int count, Node<K, V> parent, Codec<K> keyCodec, Codec<V> valueCodec)
+			throws IOException
+	{
+		if (count == 0)
+			return null;
+
+		int        leftCount = count >>> 1;
+		Node<K, V> left      = read(in, leftCount, null, keyCodec, valueCodec);
+		Node<K, V> node      = new Node<>(keyCodec.read(in), valueCodec.read(in), parent);
+		if (first == null)
+			first = node;
+		last = node;
+
+		link(node, left, read(in, count - leftCount - 1, node, keyCodec, valueCodec));
 		return node;
 	}
 
 	/**
-	 * Finds the smallest node in the tree headed by the provided <code>node</code>.
-	 *
-	 * @param head The head of the tree in which to find the smallest node.
+	 * Returns the entry with the smallest key, or <code>null</code> if the map is empty. The entry is backed by the
+	 * map.
+	 *
+	 * @return The entry with the smallest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> firstEntry()
+	{
+		return first;
+	}
+
+	/**
+	 * Returns the entry with the greatest key, or <code>null</code> if the map is empty. The entry is backed by the
+	 * map.
+	 *
+	 * @return The entry with the greatest key, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> lastEntry()
+	{
+		return last;
+	}
+
+	/**
+	 * Removes and returns the entry with the smallest key, or <code>null</code> if the map is empty.
 	 *
-	 * @return The smallest node in the tree. Returns <code>null</code> if no node could be found.
+	 * @return The removed entry, or <code>null</code> if the map is empty.
 	 */
-	private Node<K, V> minimum(Node<K, V> head)
+	public Entry<K, V> pollFirstEntry()
 	{
-		while (head != null) {
-			if (head.left == null)
-				return head;
-			head = head.left;
-		}
+		return removeNode(first);
+	}
 
-		return null;
+	/**
+	 * Removes and returns the entry with the greatest key, or <code>null</code> if the map is empty.
+	 *
+	 * @return The removed entry, or <code>null</code> if the map is empty.
+	 */
+	public Entry<K, V> pollLastEntry()
+	{
+		return removeNode(last);
 	}
 
 	/**
-	 * Replaces the provided node <code>target</code> with the provided node <code>replacement</code>.
+	 * Removes and returns the <code>n</code> entries with the smallest keys, in ascending order. The removed entries
+	 * are cut from the tree in a single split operation, instead of being removed and rebalanced one at a time.
 	 *
-	 * @param target      The node to replace.
-	 * @param replacement The replacement for the node to remove.
+	 * @param n The number of entries to remove. When greater than the size of the map, all entries are removed.
+	 *
+	 * @return The removed entries in ascending order.
+	 * @throws IllegalArgumentException if <code>n</code> is negative
 	 */
-	private void replaceNode(Node<K, V> target, Node<K, V> replacement)
+	public List<Entry<K, V>> pollFirst(int n)
 	{
-		Node<K, V> parent = target.parent;
+		if (n < 0)
+			throw new IllegalArgumentException();
 
-		if (parent == null) {
-			root = replacement;
-			if (replacement != null)
-				replacement.parent = null;
-		} else if (parent.left == target) {
-			parent.left = replacement;
-			if (replacement != null)
-				replacement.parent = parent;
-		} else if (parent.right == target) {
-			parent.right = replacement;
-			if (replacement != null)
-				replacement.parent = parent;
+		List<Entry<K, V>> result = new ArrayList<>(Math.min(n, size));
+		Node<K, V>        node   = first;
+		while (node != null && result.size() < n) {
+			result.add(node);
+			node = successor(node);
+		}
+
+		if (node == null) {
+			clear();
+			return result;
+		}
+
+		if (!result.isEmpty()) {
+			root = splitFrom(node);
+			first = node;
+			size -= result.size();
+			if (removedKeys != null)
+				for (Entry<K, V> entry : result)
+					removedKeys.add(entry.getKey());
 		}
+
+		return result;
 	}
 
 	/**
-	 * Copies all of the mappings from the specified map to this map.  The effect of this call is equivalent to that of
-	 * calling {@link #put(Object, Object) put(k, v)} on this map once for each mapping from key <tt>k</tt> to value
-	 * <tt>v</tt> in the specified map.  The behavior of this operation is undefined if the specified map is modified
-	 * while the operation is in progress.
+	 * Removes and returns the <code>n</code> entries with the greatest keys, in descending order. The removed entries
+	 * are cut from the tree in a single split operation, instead of being removed and rebalanced one at a time.
 	 *
-	 * @param m mappings to be stored in this map.
+	 * @param n The number of entries to remove. When greater than the size of the map, all entries are removed.
+	 *
+	 * @return The removed entries in descending order.
+	 * @throws IllegalArgumentException if <code>n</code> is negative
 	 */
-	@Override public void putAll(Map<? extends K, ? extends V> m)
+	public List<Entry<K, V>> pollLast(int n)
 	{
-		if (m != null) {
-			for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
-				put(entry.getKey(), entry.getValue());
-			}
+		if (n < 0)
+			throw new IllegalArgumentException();
+
+		List<Entry<K, V>> result = new ArrayList<>(Math.min(n, size));
+		Node<K, V>        node   = last;
+		while (node != null && result.size() < n) {
+			result.add(node);
+			node = predecessor(node);
+		}
+
+		if (node == null) {
+			clear();
+			return result;
+		}
+
+		if (!result.isEmpty()) {
+			root = splitTo(node);
+			last = node;
+			size -= result.size();
+			if (removedKeys != null)
+				for (Entry<K, V> entry : result)
+					removedKeys.add(entry.getKey());
 		}
+
+		return result;
 	}
 
 	/**
@@ -517,7 +1791,13 @@ public class TreeMap<K, V> implements Map<K, V>
 	@Override public void clear()
 	{
 		root = null;
+		first = null;
+		last = null;
 		size = 0;
+		if (removedKeys != null) {
+			removedKeys.clear();
+			cleared = true;
+		}
 	}
 
 	/**
@@ -1369,156 +2649,429 @@ public class TreeMap<K, V> implements Map<K, V>
 	 */
 	private V putNode(K key, V value)
 	{
-		if (root == null) {
-			root = new Node<>(key, value);
-			size++;
-			return null;
+		Search     search = new Search();
+		Node<K, V> node   = getNodeOrParent(key, search);
+		if (node != null && search.compare == 0) {
+			V before = node.value;
+			node.setValue(value);
+			return before;
 		}
 
-		return putNode(key, value, root);
+		insertNode(key, value, node, search);
+		return null;
 	}
 
 	/**
-	 * Recursive insert method. Ensures that the tree remains balanced.
+	 * Finds the node with the provided key in the {@link TreeMap}, or the node that would become its parent. Keys
+	 * greater than the greatest key are recognized by a single comparison with {@link #last}, so appending keys in
+	 * ascending order does not descend from the root, and the rebalancing only visits the right spine of the tree.
+	 * Behaves like {@link #getNodeOrParent(Object, long, Node, Search)}.
 	 *
-	 * @param key   The key of the node to insert.
-	 * @param value The value of the node to insert.
-	 * @param node  The node currently being looked at by the recursive method.
+	 * @param key    The key of the node to find.
+	 * @param search The search receiving the result of the last comparison and the prefix of the key.
 	 *
-	 * @return The value, if any, that was overwritten during the insertion of the node.
-	 * @see #putNode(Object, Object)
-	 * @see <a href="https://www.tutorialspoint.com/data_structures_algorithms/avl_tree_algorithm.htm">AVL</a>
+	 * @return The node with the provided key, or the parent of the position where the key would be inserted. Returns
+	 * <code>null</code> if the {@link TreeMap} is empty.
 	 */
-	private V putNode(K key, V value, Node<K, V> node)
+	private Node<K, V> getNodeOrParent(K key, Search search)
 	{
-		if (key == null ? key == node.key : key.equals(node.key)) {
-			V before = node.value;
-			node.value = value;
-			return before;
+		long prefix = prefix(key);
+		if (last != null) {
+			search.compare = compare(key, prefix, last);
+			search.prefix = prefix;
+			if (search.compare >= 0)
+				return last;
 		}
 
-		int compare = comparator.compare(key, node.key);
-		V   result  = null;
+		return getNodeOrParent(key, prefix, root, search);
+	}
 
-		if (compare < 0) {
-			if (node.left == null) {
-				node.left = new Node<>(key, value, node);
-				size++;
-			} else
-				result = putNode(key, value, node.left);
-		} else if (compare > 0) {
-			if (node.right == null) {
-				node.right = new Node<>(key, value, node);
-				size++;
-			} else
-				result = putNode(key, value, node.right);
+	/**
+	 * Finds the node with the provided key in the subtree rooted in the provided node. When no such node exists, the
+	 * node that would become the parent of a node with the provided key is returned instead. The result of the last
+	 * comparison is stored in the provided {@link Search}, so callers can tell the two cases apart without comparing
+	 * the keys again, along with the prefix of the key.
+	 *
+	 * @param key    The key of the node to find.
+	 * @param prefix The prefix of the key, as returned by {@link #prefix(Object)}.
+	 * @param node   The root of the subtree to search.
+	 * @param search The search receiving the result of the last comparison and the prefix.
+	 *
+	 * @return The node with the provided key, or the parent of the position where the key would be inserted. Returns
+	 * <code>null</code> if the subtree is empty.
+	 */
+	private Node<K, V> getNodeOrParent(K key, long prefix, Node<K, V> node, Search search)
+	{
+		Node<K, V> parent  = null;
+		int        compare = 0;
+		while (node != null) {
+			compare = compare(key, prefix, node);
+			if (compare == 0)
+				break;
+
+			parent = node;
+			node = compare < 0 ? node.left : node.right;
 		}
 
-		node.updateHeight();
+		search.compare = compare;
+		search.prefix = prefix;
+		return node != null ? node : parent;
+	}
 
-		int balanceFactor = balanceFactor(node.parent);
+	/**
+	 * Finds the node with the provided key, starting the search from the provided <code>finger</code> instead of the
+	 * root. The search climbs from the finger until it reaches a subtree whose key range contains the key, and
+	 * descends from there, so the cost depends on the distance between the finger and the key rather than on the size
+	 * of the tree. The prefix of the key is computed once and compared before the keys, both while climbing and while
+	 * descending. Behaves like {@link #getNodeOrParent(Object, long, Node, Search)}.
+	 *
+	 * @param key    The key of the node to find.
+	 * @param finger The node to start the search from. When <code>null</code> the search starts from the root.
+	 * @param search The search receiving the result of the last comparison and the prefix of the key.
+	 *
+	 * @return The node with the provided key, or the parent of the position where the key would be inserted. Returns
+	 * <code>null</code> if the tree is empty.
+	 */
+	private Node<K, V> getNodeOrParentNear(K key, Node<K, V> finger, Search search)
+	{
+		if (finger == null)
+			return getNodeOrParent(key, search);
+
+		long       prefix  = prefix(key);
+		Node<K, V> node    = finger;
+		int        compare = compare(key, prefix, node);
+		if (compare == 0) {
+			search.compare = 0;
+			search.prefix = prefix;
+			return node;
+		}
 
-		// Balance when inserting rr by performing left rotation
-		if (balanceFactor < -1 && compare > 0)
-			rotateLeft(node);
+		while (node.parent != null) {
+			Node<K, V> parent = node.parent;
 
-		// Balance when inserting ll by performing right rotation
-		if (balanceFactor > 1 && compare < 0)
-			rotateRight(node);
+			// The parent bounds the subtree on the side of the key
+			if ((compare > 0) == (parent.left == node)) {
+				int parentCompare = compare(key, prefix, parent);
+				if (parentCompare == 0) {
+					search.compare = 0;
+					search.prefix = prefix;
+					return parent;
+				}
 
-		// Balance when inserting lr by performing left right rotation
-		if (balanceFactor > 1 && compare > 0)
-			rotateLeftRight(node);
+				if ((parentCompare > 0) != (compare > 0))
+					break;
+			}
 
-		// Balance when inserting rl by performing right left rotation
-		if (balanceFactor < -1 && compare < 0)
-			rotateRightLeft(node);
+			node = parent;
+		}
 
-		return result;
+		return getNodeOrParent(key, prefix, node, search);
+	}
+
+	/**
+	 * Attaches a new node with the provided key and value as a child of the provided parent, and rebalances the tree
+	 * afterwards.
+	 *
+	 * @param key    The key of the node to insert.
+	 * @param value  The value of the node to insert.
+	 * @param parent The parent of the new node. When <code>null</code> the new node becomes the root.
+	 * @param search The search that returned the parent. A negative result of its last comparison attaches the node
+	 *               as the left child, a positive result as the right child. The prefix it computed for the key is
+	 *               stored in the node, so the key is not normalized again.
+	 *
+	 * @return The inserted node.
+	 */
+	private Node<K, V> insertNode(K key, V value, Node<K, V> parent, Search search)
+	{
+		int        compare = search.compare;
+		Node<K, V> node    = normalizer == null ? new Node<>(key, value, parent) :
+							 new NormalizedNode<>(key, value, parent, search.prefix);
+
+		if (parent == null) {
+			root = node;
+			first = node;
+			last = node;
+		} else if (compare < 0) {
+			parent.left = node;
+			if (parent == first)
+				first = node;
+		} else {
+			parent.right = node;
+			if (parent == last)
+				last = node;
+		}
+
+		size++;
+		node.markChanged();
+		rebalance(parent);
+		return node;
+	}
+
+	/**
+	 * Walks from the provided node towards the root, updating the heights of the nodes and performing rotations on
+	 * the nodes that are out of balance. The walk stops as soon as the height of a subtree is unchanged, since the
+	 * nodes above it are then unaffected.
+	 *
+	 * @param node The lowest node whose subtree has changed.
+	 *
+	 * @see <a href="https://en.wikipedia.org/wiki/AVL_tree#Rebalancing">Rebalancing</a>
+	 */
+	private void rebalance(Node<K, V> node)
+	{
+		while (node != null) {
+			int before = node.height;
+			node.updateHeight();
+
+			int balanceFactor = balanceFactor(node);
+
+			// Left heavy, perform right or left right rotation
+			if (balanceFactor > 1)
+				node = balanceFactor(node.left) < 0 ? rotateLeftRight(node) : rotateRight(node);
+
+			// Right heavy, perform left or right left rotation
+			else if (balanceFactor < -1)
+				node = balanceFactor(node.right) > 0 ? rotateRightLeft(node) : rotateLeft(node);
+
+			if (node.height == before)
+				return;
+
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Splits the tree, keeping the provided node and all nodes with greater keys. The kept nodes are the right
+	 * subtrees on the path from the provided node to the root, which are joined bottom up. Since the heights of the
+	 * joined trees grow along the path, the split takes <code>O(log n)</code> time.
+	 *
+	 * @param node The node with the smallest key to keep.
+	 *
+	 * @return The root of the tree containing the kept nodes.
+	 */
+	private Node<K, V> splitFrom(Node<K, V> node)
+	{
+		Node<K, V> child  = node;
+		Node<K, V> parent = node.parent;
+		Node<K, V> tree   = join(null, node, detach(node.right));
+		while (parent != null) {
+			Node<K, V> next = parent.parent;
+			if (parent.left == child)
+				tree = join(tree, parent, detach(parent.right));
+			child = parent;
+			parent = next;
+		}
+
+		return tree;
+	}
+
+	/**
+	 * Splits the tree, keeping the provided node and all nodes with smaller keys. The kept nodes are the left subtrees
+	 * on the path from the provided node to the root, which are joined bottom up.
+	 *
+	 * @param node The node with the greatest key to keep.
+	 *
+	 * @return The root of the tree containing the kept nodes.
+	 * @see #splitFrom(Node)
+	 */
+	private Node<K, V> splitTo(Node<K, V> node)
+	{
+		Node<K, V> child  = node;
+		Node<K, V> parent = node.parent;
+		Node<K, V> tree   = join(detach(node.left), node, null);
+		while (parent != null) {
+			Node<K, V> next = parent.parent;
+			if (parent.right == child)
+				tree = join(detach(parent.left), parent, tree);
+			child = parent;
+			parent = next;
+		}
+
+		return tree;
+	}
+
+	/**
+	 * Joins the two provided trees using the provided node as the middle node. All keys in <code>left</code> must be
+	 * smaller than the key of the node, and all keys in <code>right</code> greater. The node is attached to the spine
+	 * of the taller tree where the heights match, and the tree is rebalanced from there, so the join takes time
+	 * proportional to the difference in height.
+	 *
+	 * @param left  The root of the tree with the smaller keys. May be <code>null</code>.
+	 * @param node  The middle node. Its children are replaced.
+	 * @param right The root of the tree with the greater keys. May be <code>null</code>.
+	 *
+	 * @return The root of the joined tree.
+	 * @see <a href="https://en.wikipedia.org/wiki/AVL_tree#Set_operations_and_bulk_operations">Join</a>
+	 */
+	private Node<K, V> join(Node<K, V> left, Node<K, V> node, Node<K, V> right)
+	{
+		int leftHeight  = height(left);
+		int rightHeight = height(right);
+
+		if (leftHeight > rightHeight + 1) {
+			Node<K, V> parent = left;
+			while (height(parent.right) > rightHeight + 1)
+				parent = parent.right;
+			link(node, parent.right, right);
+			parent.right = node;
+			node.parent = parent;
+			if (node.subtreeChanged)
+				parent.markSubtreeChanged();
+			rebalance(parent);
+			return left.parent == null ? left : left.parent;
+		}
+
+		if (rightHeight > leftHeight + 1) {
+			Node<K, V> parent = right;
+			while (height(parent.left) > leftHeight + 1)
+				parent = parent.left;
+			link(node, left, parent.left);
+			parent.left = node;
+			node.parent = parent;
+			if (node.subtreeChanged)
+				parent.markSubtreeChanged();
+			rebalance(parent);
+			return right.parent == null ? right : right.parent;
+		}
+
+		link(node, left, right);
+		node.parent = null;
+		return node;
+	}
+
+	/**
+	 * Builds a balanced tree from the provided nodes, which must be sorted in ascending order by key. The middle node
+	 * becomes the root, and the nodes on either side become its subtrees, so no comparisons or rotations are needed.
+	 *
+	 * @param nodes  The sorted nodes. Their children, parents and heights are replaced.
+	 * @param from   The index of the first node of the tree, inclusive.
+	 * @param to     The index of the last node of the tree, exclusive.
+	 * @param parent The parent of the root of the built tree.
+	 *
+	 * @return The root of the built tree, or <code>null</code> when the range is empty.
+	 */
+	private static <K, V> Node<K, V> build(Node<K, V>[] nodes, int from, int to, Node<K, V> parent)
+	{
+		if (from >= to)
+			return null;
+
+		int        middle = (from + to) >>> 1;
+		Node<K, V> node   = nodes[middle];
+		node.parent = parent;
+		node.left = build(nodes, from, middle, node);
+		node.right = build(nodes, middle + 1, to, node);
+		node.updateHeight();
+		node.updateSubtreeChanged();
+		return node;
+	}
+
+	/**
+	 * Sets the children of the provided node, and updates its height.
+	 *
+	 * @param node  The node to set the children of.
+	 * @param left  The new left child. May be <code>null</code>.
+	 * @param right The new right child. May be <code>null</code>.
+	 */
+	private void link(Node<K, V> node, Node<K, V> left, Node<K, V> right)
+	{
+		node.left = left;
+		node.right = right;
+		if (left != null)
+			left.parent = node;
+		if (right != null)
+			right.parent = node;
+		node.updateHeight();
+		node.updateSubtreeChanged();
+	}
+
+	/**
+	 * Detaches the provided node from its parent, making it the root of its own tree.
+	 *
+	 * @param node The node to detach. May be <code>null</code>.
+	 *
+	 * @return The provided node.
+	 */
+	private Node<K, V> detach(Node<K, V> node)
+	{
+		if (node != null)
+			node.parent = null;
+
+		return node;
 	}
 
 	/**
-	 * Performs a left rotation on the parent of the provided node.
+	 * Performs a left rotation on the provided node.
 	 *
-	 * @param b The child of the root of the unbalanced subtree.
+	 * @param a The root of the unbalanced subtree.
 	 *
+	 * @return The new root of the subtree.
 	 * @see <a href="https://www.tutorialspoint.com/data_structures_algorithms/avl_tree_algorithm.htm">AVL</a>
 	 */
-	private void rotateLeft(Node<K, V> b)
+	private Node<K, V> rotateLeft(Node<K, V> a)
 	{
-		Node<K, V> a = b.parent;
+		Node<K, V> b = a.right;
 		replaceNode(a, b);
+		a.right = b.left;
+		if (b.left != null)
+			b.left.parent = a;
 		b.left = a;
-		a.right = null;
 		a.parent = b;
 		a.updateHeight();
 		b.updateHeight();
+		a.updateSubtreeChanged();
+		b.updateSubtreeChanged();
+		return b;
 	}
 
 	/**
-	 * Performs a right rotation on the parent of the provided node.
+	 * Performs a right rotation on the provided node.
 	 *
-	 * @param b The child of the root of the unbalanced subtree.
+	 * @param c The root of the unbalanced subtree.
 	 *
+	 * @return The new root of the subtree.
 	 * @see <a href="https://www.tutorialspoint.com/data_structures_algorithms/avl_tree_algorithm.htm">AVL</a>
 	 */
-	private void rotateRight(Node<K, V> b)
+	private Node<K, V> rotateRight(Node<K, V> c)
 	{
-		Node<K, V> c = b.parent;
+		Node<K, V> b = c.left;
 		replaceNode(c, b);
+		c.left = b.right;
+		if (b.right != null)
+			b.right.parent = c;
 		b.right = c;
-		c.left = null;
 		c.parent = b;
 		c.updateHeight();
 		b.updateHeight();
+		c.updateSubtreeChanged();
+		b.updateSubtreeChanged();
+		return b;
 	}
 
 	/**
-	 * Performs a left right rotation on the parent of the provided node.
+	 * Performs a left right rotation on the provided node.
 	 *
-	 * @param a The child of the root of the unbalanced subtree.
+	 * @param c The root of the unbalanced subtree.
 	 *
+	 * @return The new root of the subtree.
 	 * @see <a href="https://www.tutorialspoint.com/data_structures_algorithms/avl_tree_algorithm.htm">AVL</a>
 	 */
-	private void rotateLeftRight(Node<K, V> a)
+	private Node<K, V> rotateLeftRight(Node<K, V> c)
 	{
-		Node<K, V> c = a.parent;
-		Node<K, V> b = a.right;
-
-		c.left = b;
-		b.left = a;
-		a.right = null;
-		b.parent = c;
-		a.parent = b;
-
-		a.updateHeight();
-		b.updateHeight();
-
-		rotateRight(b);
+		rotateLeft(c.left);
+		return rotateRight(c);
 	}
 
 	/**
-	 * Performs a right left rotation on the parent of the provided node.
+	 * Performs a right left rotation on the provided node.
 	 *
-	 * @param c The child of the root of the unbalanced subtree.
+	 * @param a The root of the unbalanced subtree.
 	 *
+	 * @return The new root of the subtree.
 	 * @see <a href="https://www.tutorialspoint.com/data_structures_algorithms/avl_tree_algorithm.htm">AVL</a>
 	 */
-	private void rotateRightLeft(Node<K, V> c)
+	private Node<K, V> rotateRightLeft(Node<K, V> a)
 	{
-		Node<K, V> a = c.parent;
-		Node<K, V> b = c.left;
-
-		a.right = b;
-		b.right = c;
-		c.left = null;
-		b.parent = a;
-		c.parent = b;
-
-		c.updateHeight();
-		b.updateHeight();
-
-		rotateLeft(b);
+		rotateRight(a.right);
+		return rotateLeft(a);
 	}
 
 	/**
@@ -1564,6 +3117,9 @@ public class TreeMap<K, V> implements Map<K, V>
 	 */
 	private Node<K, V> getNode(K key, Node<K, V> node)
 	{
+		if (normalizer != null)
+			return getNodeNormalized(key, normalizer.normalize(key), node);
+
 		if (node == null)
 			return null;
 
@@ -1581,6 +3137,152 @@ public class TreeMap<K, V> implements Map<K, V>
 		return null;
 	}
 
+	/**
+	 * Finds and returns the node with the provided key, visiting at most {@link #MAXIMUM_HEIGHT} nodes. Intended for
+	 * optimistic readers that search the tree while it may be modified by another thread. Such a reader may observe
+	 * half applied rotations and must validate the result afterwards; the bound ensures that the search terminates
+	 * even when the observed child pointers form a cycle.
+	 *
+	 * @param key The key of the node to find and return.
+	 *
+	 * @return The node with the provided key. Returns <code>null</code> if no such node could be found within the
+	 * bound.
+	 */
+	Node<K, V> getNodeBounded(K key)
+	{
+		Node<K, V> node = root;
+		for (int steps = 0; node != null && steps < MAXIMUM_HEIGHT; steps++) {
+			int compare = comparator.compare(key, node.key);
+			if (compare == 0)
+				return node;
+
+			node = compare < 0 ? node.left : node.right;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Behaves like {@link #getNode(Object, Node)}, comparing the prefixes of the keys first. Nodes with a different
+	 * prefix cannot hold the key, so neither {@link Object#equals(Object)} nor the comparator is called for them.
+	 *
+	 * @param key    The key of the node to find and return.
+	 * @param prefix The prefix of the key.
+	 * @param node   The root of the subtree to search.
+	 *
+	 * @return The node with the provided key. Returns <code>null</code> if no such node could be found.
+	 */
+	private Node<K, V> getNodeNormalized(K key, long prefix, Node<K, V> node)
+	{
+		while (node != null) {
+			long nodePrefix = ((NormalizedNode<K, V>) node).prefix;
+			if (prefix != nodePrefix) {
+				node = Long.compareUnsigned(prefix, nodePrefix) < 0 ? node.left : node.right;
+				continue;
+			}
+
+			if (key == null ? key == node.key : key.equals(node.key))
+				return node;
+
+			int compare = comparator.compare(key, node.key);
+			if (compare == 0)
+				return null;
+
+			node = compare < 0 ? node.left : node.right;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Compares the provided key to the key of the provided node. When the map has a {@link #normalizer} and the
+	 * prefixes of the keys differ, the prefixes decide the order, otherwise the {@link #comparator} is called.
+	 *
+	 * @param key    The key to compare.
+	 * @param prefix The prefix of the key, as returned by {@link #prefix(Object)}.
+	 * @param node   The node to compare the key to.
+	 *
+	 * @return A negative number, zero or a positive number if the key is less than, equal to or greater than the key
+	 * of the node.
+	 */
+	private int compare(K key, long prefix, Node<K, V> node)
+	{
+		if (normalizer != null) {
+			long nodePrefix = ((NormalizedNode<K, V>) node).prefix;
+			if (prefix != nodePrefix)
+				return Long.compareUnsigned(prefix, nodePrefix);
+		}
+
+		return comparator.compare(key, node.key);
+	}
+
+	/**
+	 * Returns the prefix of the provided key, or zero when the map has no {@link #normalizer}.
+	 *
+	 * @param key The key.
+	 *
+	 * @return The prefix of the key.
+	 */
+	private long prefix(K key)
+	{
+		return normalizer == null ? 0 : normalizer.normalize(key);
+	}
+
+	/**
+	 * Finds and returns the node whose key the comparator considers equal to the provided key. Unlike {@link
+	 * #getNode(Object, Node)}, the keys are not also compared using {@link Object#equals(Object)}, so keys without
+	 * value equality, such as arrays, and probe objects of another type accepted by the comparator can be looked up.
+	 * The search only uses local variables, so concurrent readers do not interfere with each other.
+	 *
+	 * @param key The key of the node to find and return.
+	 *
+	 * @return The node with the provided key. Returns <code>null</code> if no such node could be found.
+	 */
+	Node<K, V> getNodeByComparator(K key)
+	{
+		long       prefix = prefix(key);
+		Node<K, V> node   = root;
+		while (node != null) {
+			int compare = compare(key, prefix, node);
+			if (compare == 0)
+				return node;
+
+			node = compare < 0 ? node.left : node.right;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Finds and returns the node with the smallest key greater than or equal to the provided key, comparing the keys
+	 * like {@link #getNodeByComparator(Object)}. The search only uses local variables, so concurrent readers do not
+	 * interfere with each other.
+	 *
+	 * @param key The key to search for.
+	 *
+	 * @return The node with the smallest key greater than or equal to the provided key. Returns <code>null</code> if
+	 * no such node could be found.
+	 */
+	Node<K, V> getCeilingNodeByComparator(K key)
+	{
+		long       prefix  = prefix(key);
+		Node<K, V> ceiling = null;
+		Node<K, V> node    = root;
+		while (node != null) {
+			int compare = compare(key, prefix, node);
+			if (compare == 0)
+				return node;
+
+			if (compare < 0) {
+				ceiling = node;
+				node = node.left;
+			} else
+				node = node.right;
+		}
+
+		return ceiling;
+	}
+
 	/**
 	 * Finds and returns the node with the matching provided key and value.
 	 *
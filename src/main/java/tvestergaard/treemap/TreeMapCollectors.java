@@ -0,0 +1,85 @@
+package tvestergaard.treemap;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.Collector;
+
+/**
+ * {@link Collector} implementations accumulating stream elements into a {@link TreeMap}. When a parallel stream is
+ * collected, every thread accumulates into its own {@link TreeMap}, and the partial maps are combined by moving their
+ * nodes, instead of inserting the entries of one map into the other one at a time. Partial maps covering separate key
+ * ranges, which is the case when collecting a sorted stream, are joined in <code>O(log n)</code> time. Overlapping
+ * partial maps are merged in sorted order and rebuilt balanced in linear time.
+ */
+public final class TreeMapCollectors
+{
+
+	/**
+	 * {@link TreeMapCollectors} only contains static methods.
+	 */
+	private TreeMapCollectors()
+	{
+
+	}
+
+	/**
+	 * Returns a {@link Collector} accumulating elements into a {@link TreeMap}, whose keys and values are the result
+	 * of applying the provided mapping functions to the elements.
+	 *
+	 * @param comparator  The comparator of the created {@link TreeMap}.
+	 * @param keyMapper   The function producing the keys.
+	 * @param valueMapper The function producing the values.
+	 * @param <T>         The type of the elements.
+	 * @param <K>         The key type.
+	 * @param <V>         The value type.
+	 *
+	 * @return The {@link Collector}. The collector throws {@link IllegalStateException} when two elements are mapped
+	 * to the same key.
+	 */
+	public static <T, K, V> Collector<T, ?, TreeMap<K, V>> toTreeMap(
+			Comparator<K> comparator,
+			Function<? super T, ? extends K> keyMapper,
+			Function<? super T, ? extends V> valueMapper)
+	{
+		return toTreeMap(comparator, keyMapper, valueMapper, (a, b) -> {
+			throw new IllegalStateException(String.format("Duplicate key (values %s and %s)", a, b));
+		});
+	}
+
+	/**
+	 * Returns a {@link Collector} accumulating elements into a {@link TreeMap}, whose keys and values are the result
+	 * of applying the provided mapping functions to the elements. When two elements are mapped to the same key, the
+	 * values are combined using the provided merge function.
+	 *
+	 * @param comparator    The comparator of the created {@link TreeMap}.
+	 * @param keyMapper     The function producing the keys.
+	 * @param valueMapper   The function producing the values.
+	 * @param mergeFunction The function combining the values of elements mapped to the same key. The value of the
+	 *                      element encountered first is the first argument.
+	 * @param <T>           The type of the elements.
+	 * @param <K>           The key type.
+	 * @param <V>           The value type.
+	 *
+	 * @return The {@link Collector}.
+	 */
+	public static <T, K, V> Collector<T, ?, TreeMap<K, V>> toTreeMap(
+			Comparator<K> comparator,
+			Function<? super T, ? extends K> keyMapper,
+			Function<? super T, ? extends V> valueMapper,
+			BinaryOperator<V> mergeFunction)
+	{
+		Objects.requireNonNull(comparator);
+		Objects.requireNonNull(keyMapper);
+		Objects.requireNonNull(valueMapper);
+		Objects.requireNonNull(mergeFunction);
+
+		return Collector.of(
+				() -> new TreeMap<>(comparator),
+				(map, element) -> map.merge(keyMapper.apply(element), valueMapper.apply(element), mergeFunction),
+				(left, right) -> {
+					left.mergeAll(right, mergeFunction);
+					return left;
+				},
+				Collector.Characteristics.IDENTITY_FINISH);
+	}
+}
@@ -0,0 +1,220 @@
+package tvestergaard.treemap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.Map.Entry;
+
+import static org.junit.Assert.*;
+
+public class ByteKeyTreeMapTest
+{
+
+	private static int reference(byte[] a, byte[] b)
+	{
+		for (int x = 0; x < Math.min(a.length, b.length); x++)
+			if (a[x] != b[x])
+				return Integer.compare(a[x] & 0xFF, b[x] & 0xFF);
+
+		return Integer.compare(a.length, b.length);
+	}
+
+	private static byte[] key(Random random)
+	{
+		byte[] key = new byte[random.nextInt(24)];
+		random.nextBytes(key);
+		if (key.length > 0 && random.nextBoolean())
+			Arrays.fill(key, 0, random.nextInt(key.length), (byte) 0x7F);
+		return key;
+	}
+
+	@Test
+	public void compare() throws Exception
+	{
+		Random random = new Random(1);
+		for (int x = 0; x < 100000; x++) {
+			byte[] a = key(random);
+			byte[] b = random.nextInt(4) == 0 ? a.clone() : key(random);
+			if (b.length > 0 && random.nextInt(4) == 0)
+				b[random.nextInt(b.length)] ^= 0x80;
+
+			int expected = Integer.signum(reference(a, b));
+			assertEquals(expected, Integer.signum(ByteKeyTreeMap.compare(a, b)));
+			assertEquals(expected, Integer.signum(ByteKeyTreeMap.compare(a, ByteBuffer.wrap(b))));
+			assertEquals(expected, Integer.signum(ByteKeyTreeMap.compare(a,
+					ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN))));
+		}
+	}
+
+	@Test
+	public void compareUnsigned() throws Exception
+	{
+		byte[] small = {0, 0, 0, 0, 0, 0, 0, 0x7F, 1};
+		byte[] large = {0, 0, 0, 0, 0, 0, 0, (byte) 0x80};
+		assertTrue(ByteKeyTreeMap.compare(small, large) < 0);
+		assertTrue(ByteKeyTreeMap.compare(large, small) > 0);
+		assertTrue(ByteKeyTreeMap.compare(new byte[]{1}, new byte[]{1, 0}) < 0);
+		assertEquals(0, ByteKeyTreeMap.compare(new byte[0], ByteBuffer.allocate(0)));
+	}
+
+	@Test
+	public void mismatch() throws Exception
+	{
+		byte[] a = new byte[20];
+		byte[] b = new byte[20];
+		assertEquals(-1, ByteKeyTreeMap.mismatch(a, b));
+		for (int x = 0; x < 20; x++) {
+			b[x] = 1;
+			assertEquals(x, ByteKeyTreeMap.mismatch(a, b));
+			b[x] = 0;
+		}
+		assertEquals(13, ByteKeyTreeMap.mismatch(a, Arrays.copyOf(b, 13)));
+	}
+
+	@Test
+	public void randomOperations() throws Exception
+	{
+		Random                             random   = new Random(2);
+		ByteKeyTreeMap<Integer>            map      = new ByteKeyTreeMap<>();
+		java.util.TreeMap<byte[], Integer> expected = new java.util.TreeMap<>(ByteKeyTreeMapTest::reference);
+		for (int x = 0; x < 20000; x++) {
+			byte[] key = key(random);
+			if (random.nextInt(3) > 0)
+				assertEquals(expected.put(key, x), map.put(key, x));
+			else
+				assertEquals(expected.remove(key), map.remove(key.clone()));
+		}
+
+		assertEquals(expected.size(), map.size());
+		List<byte[]> keys = new ArrayList<>();
+		for (Entry<byte[], Integer> entry : map.entrySet()) {
+			keys.add(entry.getKey());
+			assertEquals(expected.get(entry.getKey()), entry.getValue());
+		}
+		assertArrayEquals(expected.keySet().toArray(), keys.toArray());
+		assertArrayEquals(expected.firstKey(), map.firstEntry().getKey());
+		assertArrayEquals(expected.lastKey(), map.lastEntry().getKey());
+	}
+
+	@Test
+	public void getByteBuffer() throws Exception
+	{
+		ByteKeyTreeMap<String> map = new ByteKeyTreeMap<>();
+		for (int x = 0; x < 1000; x++)
+			map.put(("key-" + x).getBytes("UTF-8"), "v" + x);
+
+		ByteBuffer heap   = ByteBuffer.allocate(64);
+		ByteBuffer direct = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+		for (int x = 0; x < 1100; x++) {
+			byte[] key   = ("key-" + x).getBytes("UTF-8");
+			String value = x < 1000 ? "v" + x : null;
+			for (ByteBuffer buffer : Arrays.asList(heap, direct)) {
+				buffer.clear();
+				buffer.put(new byte[7]).put(key).put(new byte[3]);
+				buffer.position(7).limit(7 + key.length);
+
+				ByteBuffer slice = buffer.slice();
+				assertEquals(value, map.get(buffer));
+				assertEquals(value, map.get(slice));
+				assertEquals(value, map.get((Object) slice));
+				assertEquals(value != null, map.containsKey(buffer));
+				assertEquals(7, buffer.position());
+				assertEquals(0, slice.position());
+			}
+			assertEquals(value, map.get(key));
+		}
+	}
+
+	@Test
+	public void concurrentReaders() throws Exception
+	{
+		ByteKeyTreeMap<Integer> map = new ByteKeyTreeMap<>();
+		for (int x = 0; x < 1000; x += 2)
+			map.put(ByteBuffer.allocate(4).putInt(x).array(), x);
+
+		List<Thread>         threads  = new ArrayList<>();
+		List<AssertionError> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				for (int round = 0; round < 200; round++) {
+					for (int x = 0; x < 1000; x++) {
+						byte[]  key      = ByteBuffer.allocate(4).putInt(x).array();
+						Integer expected = x % 2 == 0 ? x : null;
+						try {
+							assertEquals(expected, map.get(key));
+							assertEquals(expected != null, map.containsKey(ByteBuffer.wrap(key)));
+						} catch (AssertionError e) {
+							failures.add(e);
+							return;
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	@Test
+	public void range() throws Exception
+	{
+		ByteKeyTreeMap<Integer> map = new ByteKeyTreeMap<>();
+		for (int x = 0; x < 256; x++)
+			map.put(new byte[]{(byte) x, 0}, x);
+
+		List<Entry<byte[], Integer>> range = map.range(ByteBuffer.wrap(new byte[]{0x7F}),
+													   ByteBuffer.wrap(new byte[]{(byte) 0x82, 0}));
+		List<Integer>                values = new ArrayList<>();
+		for (Entry<byte[], Integer> entry : range)
+			values.add(entry.getValue());
+		assertEquals(Arrays.asList(0x7F, 0x80, 0x81), values);
+		assertTrue(map.range(ByteBuffer.wrap(new byte[]{(byte) 0xFF, 1}), ByteBuffer.allocate(0)).isEmpty());
+	}
+
+	@Test
+	public void concurrentRanges() throws Exception
+	{
+		ByteKeyTreeMap<Integer> map = new ByteKeyTreeMap<>();
+		for (int x = 0; x < 1000; x += 2)
+			map.put(ByteBuffer.allocate(4).putInt(x).array(), x);
+
+		List<Thread>         threads  = new ArrayList<>();
+		List<AssertionError> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				Random random = new Random();
+				for (int round = 0; round < 20000; round++) {
+					int                          from  = random.nextInt(1000);
+					List<Entry<byte[], Integer>> range = map.range(ByteBuffer.allocate(4).putInt(0, from),
+																   ByteBuffer.allocate(4).putInt(0, from + 8));
+					try {
+						assertEquals(Math.min(from + 8, 1000) - (from + 1) / 2 * 2 + 1 >> 1, range.size());
+						for (int x = 0; x < range.size(); x++)
+							assertEquals((from + 1) / 2 * 2 + 2 * x, (int) range.get(x).getValue());
+					} catch (AssertionError e) {
+						failures.add(e);
+						return;
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putThrowsNullPointerException() throws Exception
+	{
+		new ByteKeyTreeMap<String>().put(null, "a");
+	}
+}
@@ -0,0 +1,199 @@
+package tvestergaard.treemap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CheckpointerTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path                          directory;
+	private Checkpointer<Integer, String> checkpointer;
+
+	private Checkpointer<Integer, String> open() throws IOException
+	{
+		return new Checkpointer<>(directory, Integer::compare, Codec.integers(), Codec.strings());
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		directory = folder.getRoot().toPath().resolve("checkpoints");
+		checkpointer = open();
+	}
+
+	@Test
+	public void restore() throws Exception
+	{
+		TreeMap<Integer, String> map = checkpointer.map();
+		for (int x = 0; x < 1000; x++)
+			map.put(x, "a" + x);
+		assertTrue(checkpointer.checkpoint());
+
+		for (int x = 0; x < 1000; x += 2)
+			map.remove(x);
+		for (int x = 1; x < 1000; x += 4)
+			map.put(x, "b" + x);
+		map.put(2000, "c");
+		assertTrue(checkpointer.checkpoint());
+		assertFalse(checkpointer.checkpoint());
+		assertEquals(2, checkpointer.deltas());
+
+		assertEquals(new ArrayList<>(map.entrySet()), new ArrayList<>(open().map().entrySet()));
+	}
+
+	@Test
+	public void removedAndInsertedAgain() throws Exception
+	{
+		TreeMap<Integer, String> map = checkpointer.map();
+		map.put(1, "a");
+		map.put(2, "b");
+		checkpointer.checkpoint();
+
+		map.remove(1);
+		map.put(1, "c");
+		map.remove(2);
+		map.put(3, "d");
+		map.remove(3);
+		checkpointer.checkpoint();
+
+		Map<Integer, String> restored = open().map();
+		assertEquals(1, restored.size());
+		assertEquals("c", restored.get(1));
+	}
+
+	@Test
+	public void clear() throws Exception
+	{
+		TreeMap<Integer, String> map = checkpointer.map();
+		for (int x = 0; x < 100; x++)
+			map.put(x, "a");
+		checkpointer.checkpoint();
+
+		map.clear();
+		map.put(5, "b");
+		checkpointer.checkpoint();
+
+		Map<Integer, String> restored = open().map();
+		assertEquals(1, restored.size());
+		assertEquals("b", restored.get(5));
+	}
+
+	@Test
+	public void compact() throws Exception
+	{
+		TreeMap<Integer, String> map = checkpointer.map();
+		for (int round = 0; round < 5; round++) {
+			for (int x = 0; x < 100; x++)
+				map.put(x, "v" + round);
+			checkpointer.checkpoint();
+		}
+		assertEquals(5, checkpointer.deltas());
+
+		map.remove(0);
+		checkpointer.compact();
+		assertEquals(0, checkpointer.deltas());
+		try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+			assertEquals(1, files.count());
+		}
+
+		map.put(1000, "w");
+		checkpointer.checkpoint();
+		assertEquals(1, checkpointer.deltas());
+
+		Checkpointer<Integer, String> restored = open();
+		assertEquals(new ArrayList<>(map.entrySet()), new ArrayList<>(restored.map().entrySet()));
+		assertEquals(1, restored.deltas());
+	}
+
+	@Test
+	public void randomOperations() throws Exception
+	{
+		Random                             random   = new Random(3);
+		java.util.TreeMap<Integer, String> expected = new java.util.TreeMap<>();
+		for (int round = 0; round < 20; round++) {
+			TreeMap<Integer, String> map = checkpointer.map();
+			for (int x = 0; x < 500; x++) {
+				int key = random.nextInt(1000);
+				if (random.nextBoolean())
+					assertEquals(expected.put(key, "v" + x), map.put(key, "v" + x));
+				else
+					assertEquals(expected.remove(key), map.remove(key));
+			}
+			map.pollFirst(random.nextInt(10)).forEach(entry -> expected.remove(entry.getKey()));
+			map.pollLast(random.nextInt(10)).forEach(entry -> expected.remove(entry.getKey()));
+
+			if (round % 7 == 6)
+				checkpointer.compact();
+			else
+				checkpointer.checkpoint();
+			checkpointer = open();
+			assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(checkpointer.map().entrySet()));
+		}
+	}
+
+	@Test
+	public void temporaryFilesAreDeleted() throws Exception
+	{
+		checkpointer.map().put(1, "a");
+		checkpointer.checkpoint();
+		Files.write(directory.resolve("delta-0000000000000002.tmp"), new byte[3]);
+
+		assertEquals("a", open().map().get(1));
+		assertFalse(Files.exists(directory.resolve("delta-0000000000000002.tmp")));
+	}
+
+	@Test
+	public void missingDeltaFailsOpen() throws Exception
+	{
+		TreeMap<Integer, String> map = checkpointer.map();
+		for (int x = 0; x < 3; x++) {
+			map.put(x, "a" + x);
+			checkpointer.checkpoint();
+		}
+		Files.delete(directory.resolve("delta-0000000000000002"));
+
+		try {
+			open();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("delta-0000000000000002"));
+		}
+	}
+
+	@Test
+	public void deltasIncludedInImageAreIgnored() throws Exception
+	{
+		TreeMap<Integer, String> map = checkpointer.map();
+		map.put(1, "a");
+		checkpointer.checkpoint();
+		byte[] delta = Files.readAllBytes(directory.resolve("delta-0000000000000001"));
+		map.put(1, "b");
+		checkpointer.compact();
+		Files.write(directory.resolve("delta-0000000000000001"), delta);
+		map.put(2, "c");
+		checkpointer.checkpoint();
+
+		Checkpointer<Integer, String> restored = open();
+		assertEquals(new ArrayList<>(map.entrySet()), new ArrayList<>(restored.map().entrySet()));
+		assertEquals(1, restored.deltas());
+	}
+
+	@Test(expected = IOException.class)
+	public void openThrowsIOException() throws Exception
+	{
+		Files.write(directory.resolve("image"), new byte[16]);
+		open();
+	}
+}
@@ -0,0 +1,52 @@
+package tvestergaard.treemap;
+
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+public class CodecTest
+{
+
+	private static <T> T roundTrip(Codec<T> codec, T value) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		codec.write(value, new DataOutputStream(bytes));
+		DataInputStream in   = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		T               read = codec.read(in);
+		assertEquals(-1, in.read());
+		return read;
+	}
+
+	@Test
+	public void integers() throws Exception
+	{
+		for (int value : new int[]{0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE})
+			assertEquals(value, (int) roundTrip(Codec.integers(), value));
+	}
+
+	@Test
+	public void longs() throws Exception
+	{
+		for (long value : new long[]{0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE})
+			assertEquals(value, (long) roundTrip(Codec.longs(), value));
+	}
+
+	@Test
+	public void strings() throws Exception
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int x = 0; x < 70000; x++)
+			builder.append((char) ('a' + x % 26));
+
+		for (String value : new String[]{"", "tree", "æøå 🌳", builder.toString()})
+			assertEquals(value, roundTrip(Codec.strings(), value));
+	}
+
+	@Test(expected = IOException.class)
+	public void stringsThrowsIOException() throws Exception
+	{
+		Codec.strings().read(new DataInputStream(new ByteArrayInputStream(new byte[]{-1, -1, -1, -1})));
+	}
+}
@@ -0,0 +1,182 @@
+package tvestergaard.treemap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class CombiningTreeMapTest
+{
+
+	private CombiningTreeMap<Integer, Integer> map;
+
+	@Before
+	public void setUp()
+	{
+		map = new CombiningTreeMap<>(Integer::compare);
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		assertNull(map.put(0, 15));
+		assertEquals(15, (long) map.get(0));
+		assertEquals(15, (long) map.put(0, 16));
+		assertTrue(map.containsKey(0));
+		assertFalse(map.containsKey(1));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void remove() throws Exception
+	{
+		map.put(0, 1);
+		map.put(1, 2);
+		assertEquals(1, (long) map.remove(0));
+		assertNull(map.remove(0));
+		assertEquals(1, map.size());
+		map.clear();
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void entrySet() throws Exception
+	{
+		for (int x = 9; x >= 0; x--)
+			map.put(x, x * 2);
+
+		int expected = 0;
+		for (Entry<Integer, Integer> entry : map.entrySet()) {
+			assertEquals(expected, (long) entry.getKey());
+			assertEquals(expected * 2, (long) entry.getValue());
+			expected++;
+		}
+
+		Iterator<Entry<Integer, Integer>> iterator = map.entrySet().iterator();
+		iterator.next();
+		iterator.remove();
+		assertFalse(map.containsKey(0));
+		assertEquals(9, map.size());
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception
+	{
+		int             threads = 8;
+		AtomicBoolean   failed  = new AtomicBoolean();
+		ExecutorService pool    = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int thread = 0; thread < threads; thread++) {
+			int worker = thread;
+			futures.add(pool.submit(() -> {
+				Random random = new Random(worker);
+				for (int x = 0; x < 20000; x++) {
+					int key = random.nextInt(512);
+					switch (random.nextInt(3)) {
+						case 0:
+							map.put(key, key * 2);
+							break;
+						case 1:
+							map.remove(key);
+							break;
+						default:
+							Integer value = map.get(key);
+							if (value != null && value != key * 2)
+								failed.set(true);
+					}
+				}
+
+				// Keys owned by a single thread must observe every write of that thread
+				for (int x = 0; x < 1000; x++) {
+					int key = 1000 + worker * 1000 + x;
+					if (map.put(key, x) != null || map.get(key) != x || map.remove(key) != x)
+						failed.set(true);
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertFalse(failed.get());
+		int previous = -1;
+		for (Integer key : map.keySet()) {
+			assertTrue(key > previous && key < 512);
+			assertEquals(key * 2, (long) map.get(key));
+			previous = key;
+		}
+	}
+
+	@Test
+	public void rejectedKey() throws Exception
+	{
+		CombiningTreeMap<Integer, Integer> map = new CombiningTreeMap<>(CombiningTreeMapTest::rejectNegative);
+		map.put(0, 0);
+		try {
+			map.put(-1, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("bad key", e.getMessage());
+		}
+
+		assertNull(map.put(7, 7));
+		assertEquals(7, (long) map.get(7));
+		assertEquals(2, map.size());
+	}
+
+	@Test
+	public void rejectedKeyConcurrentWriters() throws Exception
+	{
+		CombiningTreeMap<Integer, Integer> map     = new CombiningTreeMap<>(CombiningTreeMapTest::rejectNegative);
+		int                                threads = 4;
+		AtomicBoolean                      failed  = new AtomicBoolean();
+		ExecutorService                    pool    = Executors.newFixedThreadPool(threads + 1);
+		List<Future<?>>                    futures = new ArrayList<>();
+
+		// The first key is inserted without comparing it, so the map must not be empty when the rejected keys arrive
+		map.put(Integer.MAX_VALUE, 0);
+		futures.add(pool.submit(() -> {
+			for (int x = 0; x < 2000; x++) {
+				try {
+					map.put(-1 - x, x);
+					failed.set(true);
+				} catch (IllegalArgumentException e) {
+					// Expected, only this operation fails
+				}
+			}
+		}));
+		for (int thread = 0; thread < threads; thread++) {
+			int worker = thread;
+			futures.add(pool.submit(() -> {
+				for (int x = 0; x < 2000; x++) {
+					int key = worker * 2000 + x;
+					if (map.put(key, x) != null || map.get(key) != x)
+						failed.set(true);
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertFalse(failed.get());
+		assertEquals(threads * 2000 + 1, map.size());
+	}
+
+	private static int rejectNegative(Integer a, Integer b)
+	{
+		if (a < 0 || b < 0)
+			throw new IllegalArgumentException("bad key");
+
+		return Integer.compare(a, b);
+	}
+}
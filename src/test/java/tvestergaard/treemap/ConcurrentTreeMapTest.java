@@ -0,0 +1,152 @@
+package tvestergaard.treemap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentTreeMapTest
+{
+
+	private ConcurrentTreeMap<Integer, Integer> map;
+
+	@Before
+	public void setUp()
+	{
+		map = new ConcurrentTreeMap<>(Integer::compare);
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		map.put(0, 15);
+		assertEquals(15, (long) map.get(0));
+		assertEquals(15, (long) map.getOrDefault(0, 5));
+		assertEquals(5, (long) map.getOrDefault(1, 5));
+		assertTrue(map.containsKey(0));
+		assertFalse(map.containsKey(1));
+		assertTrue(map.containsValue(15));
+	}
+
+	@Test
+	public void remove() throws Exception
+	{
+		map.put(0, 1);
+		map.put(1, 2);
+		assertEquals(1, (long) map.remove(0));
+		assertNull(map.remove(0));
+		assertFalse(map.remove(1, 3));
+		assertTrue(map.remove(1, 2));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void replace() throws Exception
+	{
+		assertNull(map.replace(0, 1));
+		assertFalse(map.containsKey(0));
+		map.put(0, 1);
+		assertEquals(1, (long) map.replace(0, 2));
+		assertFalse(map.replace(0, 1, 3));
+		assertTrue(map.replace(0, 2, 3));
+		assertEquals(3, (long) map.get(0));
+	}
+
+	@Test
+	public void merge() throws Exception
+	{
+		for (int x = 0; x < 100; x++)
+			map.merge(x % 10, 1, Integer::sum);
+
+		assertEquals(10, map.size());
+		assertEquals(10, (long) map.get(3));
+		assertNull(map.putIfAbsent(10, 1));
+		assertEquals(1, (long) map.putIfAbsent(10, 2));
+	}
+
+	@Test
+	public void firstEntry() throws Exception
+	{
+		assertNull(map.firstEntry());
+		assertNull(map.pollFirstEntry());
+		map.put(5, 5);
+		map.put(1, 1);
+		map.put(9, 9);
+		assertEquals(1, (long) map.firstEntry().getKey());
+		assertEquals(9, (long) map.lastEntry().getKey());
+		assertEquals(1, (long) map.pollFirstEntry().getKey());
+		assertEquals(9, (long) map.pollLastEntry().getKey());
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void entrySet() throws Exception
+	{
+		for (int x = 9; x >= 0; x--)
+			map.put(x, x * 2);
+
+		int expected = 0;
+		for (Entry<Integer, Integer> entry : map.entrySet()) {
+			assertEquals(expected, (long) entry.getKey());
+			assertEquals(expected * 2, (long) entry.getValue());
+			expected++;
+		}
+
+		assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<>(3, 6)));
+		assertFalse(map.entrySet().contains(new AbstractMap.SimpleEntry<>(3, 7)));
+
+		Iterator<Entry<Integer, Integer>> iterator = map.entrySet().iterator();
+		iterator.next();
+		iterator.remove();
+		assertFalse(map.containsKey(0));
+		assertEquals(9, map.entrySet().size());
+		assertEquals(9, map.keySet().size());
+	}
+
+	@Test
+	public void concurrentReadersAndWriters() throws Exception
+	{
+		int             threads = 8;
+		AtomicBoolean   failed  = new AtomicBoolean();
+		ExecutorService pool    = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int thread = 0; thread < threads; thread++) {
+			int writer = thread;
+			futures.add(pool.submit(() -> {
+				Random random = new Random(writer);
+				for (int x = 0; x < 20000; x++) {
+					int key = random.nextInt(512);
+					if (writer % 2 == 0) {
+						if (random.nextBoolean())
+							map.put(key, key * 2);
+						else
+							map.remove(key);
+					} else {
+						Integer value = map.get(key);
+						if (value != null && value != key * 2)
+							failed.set(true);
+					}
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertFalse(failed.get());
+		int previous = -1;
+		for (Integer key : map.keySet()) {
+			assertTrue(key > previous);
+			assertEquals(key * 2, (long) map.get(key));
+			previous = key;
+		}
+	}
+}
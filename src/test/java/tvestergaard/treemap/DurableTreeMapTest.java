@@ -0,0 +1,190 @@
+package tvestergaard.treemap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class DurableTreeMapTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path                            log;
+	private DurableTreeMap<Integer, String> map;
+
+	private DurableTreeMap<Integer, String> open() throws IOException
+	{
+		return new DurableTreeMap<>(log, Integer::compare, Codec.integers(), Codec.strings());
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		log = folder.getRoot().toPath().resolve("map.log");
+		map = open();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		map.close();
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		assertNull(map.put(0, "a"));
+		assertEquals("a", map.get(0));
+		assertEquals("a", map.put(0, "b"));
+		assertTrue(map.containsKey(0));
+		assertEquals("b", map.remove(0));
+		assertNull(map.remove(0));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void replay() throws Exception
+	{
+		for (int x = 0; x < 100; x++)
+			map.put(x, "a" + x);
+		map.clear();
+		for (int x = 0; x < 100; x++)
+			map.put(x, "b" + x);
+		for (int x = 0; x < 100; x += 2)
+			map.remove(x);
+		Map<Integer, String> batch = new HashMap<>();
+		batch.put(1000, "c");
+		batch.put(1001, "d");
+		map.putAll(batch);
+		map.close();
+
+		map = open();
+		assertEquals(52, map.size());
+		for (int x = 1; x < 100; x += 2)
+			assertEquals("b" + x, map.get(x));
+		assertEquals("c", map.get(1000));
+		assertEquals("d", map.get(1001));
+	}
+
+	@Test
+	public void rejectedKeyIsNotLogged() throws Exception
+	{
+		map.close();
+		Comparator<Integer> comparator = (a, b) -> {
+			if (a < 0 || b < 0)
+				throw new IllegalArgumentException("negative");
+			return Integer.compare(a, b);
+		};
+		map = new DurableTreeMap<>(log, comparator, Codec.integers(), Codec.strings());
+		map.put(1, "a");
+		try {
+			map.put(-1, "b");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		map.put(2, "c");
+
+		Map<Integer, String> batch = new LinkedHashMap<>();
+		batch.put(3, "d");
+		batch.put(-4, "e");
+		batch.put(5, "f");
+		try {
+			map.putAll(batch);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		map.put(6, "g");
+		map.close();
+
+		map = new DurableTreeMap<>(log, comparator, Codec.integers(), Codec.strings());
+		Map<Integer, String> expected = new java.util.TreeMap<>();
+		expected.put(1, "a");
+		expected.put(2, "c");
+		expected.put(3, "d");
+		expected.put(6, "g");
+		assertEquals(expected, new java.util.TreeMap<>(map));
+	}
+
+	@Test
+	public void tornRecordIsTruncated() throws Exception
+	{
+		map.put(1, "one");
+		map.put(2, "two");
+		map.close();
+
+		long size = Files.size(log);
+		try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+			channel.truncate(size - 2);
+		}
+
+		map = open();
+		assertEquals(1, map.size());
+		assertEquals("one", map.get(1));
+		map.put(3, "three");
+		map.close();
+
+		map = open();
+		assertEquals(2, map.size());
+		assertEquals("three", map.get(3));
+	}
+
+	@Test
+	public void iteratorRemove() throws Exception
+	{
+		for (int x = 0; x < 10; x++)
+			map.put(x, "");
+
+		Iterator<Entry<Integer, String>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().getKey() % 2 == 0)
+				iterator.remove();
+		map.close();
+
+		map = open();
+		assertArrayEquals(new Integer[]{1, 3, 5, 7, 9}, map.keySet().toArray());
+	}
+
+	@Test
+	public void groupCommit() throws Exception
+	{
+		int             threads = 8;
+		int             writes  = 200;
+		ExecutorService pool    = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int thread = 0; thread < threads; thread++) {
+			int offset = thread * writes;
+			futures.add(pool.submit(() -> {
+				for (int x = 0; x < writes; x++)
+					map.put(offset + x, "value");
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertEquals(threads * writes, map.size());
+		assertTrue(map.syncs() <= threads * writes);
+		map.close();
+
+		map = open();
+		assertEquals(threads * writes, map.size());
+	}
+}
@@ -0,0 +1,180 @@
+package tvestergaard.treemap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BinaryOperator;
+
+import static org.junit.Assert.*;
+
+public class ExternalTreeMapBuilderTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ExternalTreeMapBuilder<Integer, Integer> builder(int memoryBudget) throws Exception
+	{
+		return new ExternalTreeMapBuilder<>(folder.newFolder().toPath(), Integer::compare, Codec.integers(),
+											Codec.integers(), memoryBudget, Integer::sum);
+	}
+
+	private long files(Path directory) throws Exception
+	{
+		try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	@Test
+	public void toTreeMapInMemory() throws Exception
+	{
+		ExternalTreeMapBuilder<Integer, Integer> builder  = builder(1000);
+		Map<Integer, Integer>                    expected = new java.util.TreeMap<>();
+		Random                                   random   = new Random(1);
+		for (int x = 0; x < 1000; x++) {
+			int key = random.nextInt(300);
+			builder.add(key, x);
+			expected.merge(key, x, Integer::sum);
+		}
+
+		Map<Integer, Integer> map = builder.build(folder.getRoot().toPath().resolve("unused"));
+		assertTrue(map instanceof TreeMap);
+		assertEquals(expected, map);
+		assertEquals(0, builder.progress().runs());
+		assertEquals(ExternalTreeMapBuilder.Phase.DONE, builder.progress().phase());
+	}
+
+	@Test
+	public void toTreeMapFromRuns() throws Exception
+	{
+		ExternalTreeMapBuilder<Integer, Integer> builder  = builder(100);
+		Map<Integer, Integer>                    expected = new java.util.TreeMap<>();
+		Random                                   random   = new Random(2);
+		for (int x = 0; x < 5000; x++) {
+			int key = random.nextInt(2000);
+			builder.add(key, x);
+			expected.merge(key, x, Integer::sum);
+		}
+
+		TreeMap<Integer, Integer> map = builder.toTreeMap();
+		assertEquals(expected, map);
+		assertEquals(expected.size(), builder.progress().merged());
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+	}
+
+	@Test
+	public void toSnapshot() throws Exception
+	{
+		Path                                     directory = folder.newFolder().toPath();
+		ExternalTreeMapBuilder<Integer, Integer> builder   = new ExternalTreeMapBuilder<>(
+				directory, Integer::compare, Codec.integers(), Codec.integers(), 10);
+		Map<Integer, Integer>                    expected  = new java.util.TreeMap<>();
+		Random                                   random    = new Random(3);
+		for (int x = 0; x < 2000; x++) {
+			int key = random.nextInt(1000);
+			builder.add(key, x);
+			expected.put(key, x);
+		}
+
+		// More runs than the fan-in, so the oldest runs are merged first
+		assertTrue(builder.progress().runs() > ExternalTreeMapBuilder.FAN_IN);
+
+		Path file = folder.getRoot().toPath().resolve("map.snapshot");
+		try (MappedSnapshot<Integer, Integer> snapshot = (MappedSnapshot<Integer, Integer>) builder.build(file)) {
+			assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(snapshot.entrySet()));
+		}
+
+		assertEquals(0, files(directory));
+	}
+
+	@Test
+	public void mergeFunctionRemovesKeys() throws Exception
+	{
+		ExternalTreeMapBuilder<Integer, Integer> builder = new ExternalTreeMapBuilder<>(
+				folder.newFolder().toPath(), Integer::compare, Codec.integers(), Codec.integers(), 2, (a, b) -> null);
+		builder.add(1, 1);
+		builder.add(2, 2);
+		builder.add(1, 3);
+		builder.add(3, 4);
+		builder.add(1, 5);
+
+		TreeMap<Integer, Integer> map = builder.toTreeMap();
+		assertEquals(3, map.size());
+		assertEquals(5, (long) map.get(1));
+		assertEquals(2, (long) map.get(2));
+		assertEquals(4, (long) map.get(3));
+	}
+
+	@Test
+	public void mergeFunctionFoldsInOrder() throws Exception
+	{
+		ExternalTreeMapBuilder<Integer, Integer> builder = new ExternalTreeMapBuilder<>(
+				folder.newFolder().toPath(), Integer::compare, Codec.integers(), Codec.integers(), 2, (a, b) -> null);
+		builder.add(1, 1);
+		builder.add(2, 2);
+		builder.add(1, 3);
+		builder.add(1, 5);
+
+		TreeMap<Integer, Integer> map = builder.toTreeMap();
+		assertEquals(2, map.size());
+		assertEquals(5, (long) map.get(1));
+		assertEquals(2, (long) map.get(2));
+	}
+
+	@Test
+	public void mergeFunctionNotAssociative() throws Exception
+	{
+		BinaryOperator<Integer> function = (a, b) -> (a * 31 + b) % 7 == 0 ? null : a * 2 - b;
+		for (int budget : new int[]{10, 100, 5000}) {
+			ExternalTreeMapBuilder<Integer, Integer> builder = new ExternalTreeMapBuilder<>(
+					folder.newFolder().toPath(), Integer::compare, Codec.integers(), Codec.integers(), budget,
+					function);
+			Map<Integer, Integer> expected = new java.util.TreeMap<>();
+			Random                random   = new Random(budget);
+			for (int x = 0; x < 2000; x++) {
+				int key   = random.nextInt(50);
+				int value = random.nextInt(1000);
+				builder.add(key, value);
+				expected.merge(key, value, function);
+			}
+
+			assertEquals(expected, new HashMap<>(builder.toTreeMap()));
+		}
+	}
+
+	@Test
+	public void progress() throws Exception
+	{
+		ExternalTreeMapBuilder<Integer, Integer> builder = builder(100);
+		for (int x = 0; x < 1000; x++)
+			builder.add(x, x);
+
+		ExternalTreeMapBuilder.Progress progress = builder.progress();
+		assertEquals(ExternalTreeMapBuilder.Phase.ADDING, progress.phase());
+		assertEquals(1000, progress.added());
+		assertEquals(9, progress.runs());
+		assertTrue(progress.spilledBytes() > 900 * 8);
+		assertEquals(0, progress.mergeFraction(), 0);
+		assertTrue(progress.addedPerSecond() > 0);
+
+		builder.toTreeMap();
+		progress = builder.progress();
+		assertEquals(1000, progress.merged());
+		assertEquals(1, progress.mergeFraction(), 0);
+		assertTrue(progress.mergedPerSecond() > 0);
+		assertNotNull(progress.toString());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void addThrowsIllegalStateException() throws Exception
+	{
+		ExternalTreeMapBuilder<Integer, Integer> builder = builder(10);
+		builder.toTreeMap();
+		builder.add(0, 0);
+	}
+}
@@ -0,0 +1,187 @@
+package tvestergaard.treemap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.Map.Entry;
+
+import static org.junit.Assert.*;
+
+public class FileTreeMapTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path                             file;
+	private FileTreeMap<Integer, String> map;
+
+	private FileTreeMap<Integer, String> open() throws IOException
+	{
+		return new FileTreeMap<>(file, Integer::compare, Codec.integers(), Codec.strings(), 256, 8);
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = folder.getRoot().toPath().resolve("map.db");
+		map = open();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		map.close();
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		assertNull(map.put(0, "a"));
+		assertEquals("a", map.get(0));
+		assertEquals("a", map.put(0, "b"));
+		assertTrue(map.containsKey(0));
+		assertEquals("b", map.remove(0));
+		assertNull(map.remove(0));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void randomOperations() throws Exception
+	{
+		Random                             random   = new Random(7);
+		java.util.TreeMap<Integer, String> expected = new java.util.TreeMap<>();
+		for (int x = 0; x < 20000; x++) {
+			int key = random.nextInt(3000);
+			if (random.nextInt(3) > 0) {
+				String value = "v" + x;
+				assertEquals(expected.put(key, value), map.put(key, value));
+			} else
+				assertEquals(expected.remove(key), map.remove(key));
+
+			if (x % 1000 == 0)
+				map.commit();
+		}
+
+		assertEquals(expected.size(), map.size());
+		assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(map.entrySet()));
+		for (int x = -1; x <= 3000; x++)
+			assertEquals(expected.get(x), map.get(x));
+
+		for (Integer key : new ArrayList<>(expected.keySet())) {
+			assertEquals(expected.remove(key), map.remove(key));
+			assertEquals(expected.size(), map.size());
+		}
+		assertTrue(map.entrySet().isEmpty());
+	}
+
+	@Test
+	public void reopen() throws Exception
+	{
+		for (int x = 0; x < 5000; x++)
+			map.put(x, String.valueOf(x));
+		for (int x = 0; x < 5000; x += 2)
+			map.remove(x);
+		map.close();
+
+		map = open();
+		assertEquals(2500, map.size());
+		int expected = 1;
+		for (Entry<Integer, String> entry : map.entrySet()) {
+			assertEquals(expected, (long) entry.getKey());
+			assertEquals(String.valueOf(expected), entry.getValue());
+			expected += 2;
+		}
+		assertEquals(5001, expected);
+	}
+
+	@Test
+	public void uncommittedChangesAreNotVisibleAfterCrash() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.put(x, "committed");
+		map.commit();
+
+		for (int x = 0; x < 1000; x++)
+			map.put(x, "uncommitted");
+		for (int x = 1000; x < 2000; x++)
+			map.put(x, "uncommitted");
+
+		// A second instance only sees the committed version, as after a crash
+		try (FileTreeMap<Integer, String> recovered = open()) {
+			assertEquals(1000, recovered.size());
+			for (Entry<Integer, String> entry : recovered.entrySet())
+				assertEquals("committed", entry.getValue());
+		}
+	}
+
+	@Test
+	public void pagesAreReused() throws Exception
+	{
+		for (int round = 0; round < 20; round++) {
+			for (int x = 0; x < 2000; x++)
+				map.put(x, "value");
+			map.commit();
+			map.clear();
+			map.commit();
+		}
+
+		long size = Files.size(file);
+		for (int x = 0; x < 2000; x++)
+			map.put(x, "value");
+		map.commit();
+		assertEquals(size, Files.size(file));
+	}
+
+	@Test
+	public void iteratorRemove() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.put(x, "");
+
+		Iterator<Entry<Integer, String>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().getKey() % 3 != 0)
+				iterator.remove();
+
+		assertEquals(334, map.size());
+		int expected = 0;
+		for (Integer key : map.keySet()) {
+			assertEquals(expected, (long) key);
+			expected += 3;
+		}
+	}
+
+	@Test(expected = ConcurrentModificationException.class)
+	public void iteratorThrowsConcurrentModificationException() throws Exception
+	{
+		map.put(0, "");
+		map.put(1, "");
+		Iterator<Entry<Integer, String>> iterator = map.entrySet().iterator();
+		iterator.next();
+		map.put(2, "");
+		iterator.next();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void putThrowsIllegalArgumentException() throws Exception
+	{
+		map.put(0, new String(new char[100]));
+	}
+
+	@Test(expected = IOException.class)
+	public void openThrowsIOException() throws Exception
+	{
+		Path other = folder.newFile().toPath();
+		Files.write(other, new byte[512]);
+		new FileTreeMap<>(other, Integer::compare, Codec.integers(), Codec.integers());
+	}
+}
@@ -0,0 +1,105 @@
+package tvestergaard.treemap;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+import static org.junit.Assert.*;
+
+public class FrontCodedTreeMapTest
+{
+
+	private static TreeMap<String, Integer> paths(Random random, int size)
+	{
+		String[]                 parts = {"", "a", "ab", "usr", "usr/lib", "😀", "￿", "\u0000"};
+		TreeMap<String, Integer> map   = new TreeMap<>(String::compareTo);
+		for (int x = 0; x < size; x++) {
+			StringBuilder key = new StringBuilder("/");
+			for (int y = random.nextInt(5); y > 0; y--)
+				key.append(parts[random.nextInt(parts.length)]).append('/');
+			if (random.nextBoolean())
+				key.append(random.nextInt(1000));
+			map.put(key.toString(), x);
+		}
+
+		return map;
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		Random random = new Random(1);
+		for (int size : new int[]{0, 1, 15, 16, 17, 100, 5000}) {
+			TreeMap<String, Integer>           source = paths(random, size);
+			FrontCodedTreeMap<Integer>         map    = new FrontCodedTreeMap<>(source);
+			java.util.TreeMap<String, Integer> other  = new java.util.TreeMap<>(paths(random, size));
+			assertEquals(source.size(), map.size());
+			for (Entry<String, Integer> entry : source.entrySet()) {
+				assertEquals(entry.getValue(), map.get(entry.getKey()));
+				assertTrue(map.containsKey(entry.getKey()));
+			}
+			for (String key : other.keySet())
+				assertEquals(source.get(key), map.get(key));
+			for (String key : Arrays.asList("", "/", "//", "0", "￿￿"))
+				assertEquals(source.get(key), map.get(key));
+		}
+	}
+
+	@Test
+	public void entrySet() throws Exception
+	{
+		TreeMap<String, Integer>   source = paths(new Random(2), 3000);
+		FrontCodedTreeMap<Integer> map    = new FrontCodedTreeMap<>(source);
+		assertEquals(new java.util.TreeMap<>(source), map);
+		assertEquals(new ArrayList<>(new java.util.TreeMap<>(source).entrySet()), new ArrayList<>(map.entrySet()));
+		assertEquals(source.firstEntry().getKey(), map.firstEntry().getKey());
+		assertEquals(source.lastEntry().getKey(), map.lastEntry().getKey());
+		assertEquals(source.lastEntry().getValue(), map.lastEntry().getValue());
+	}
+
+	@Test
+	public void longKeys() throws Exception
+	{
+		char[] chars = new char[70000];
+		Arrays.fill(chars, 'x');
+		String                   prefix = new String(chars);
+		TreeMap<String, Integer> source = new TreeMap<>(String::compareTo);
+		for (int x = 0; x < 40; x++)
+			source.put(prefix + x, x);
+		source.put("y", -1);
+
+		FrontCodedTreeMap<Integer> map = new FrontCodedTreeMap<>(source);
+		for (Entry<String, Integer> entry : source.entrySet())
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		assertNull(map.get(prefix));
+		assertEquals(new ArrayList<>(source.keySet()), new ArrayList<>(map.keySet()));
+		assertTrue(map.keyBytes() < 2 * 70000 * 4);
+	}
+
+	@Test
+	public void empty() throws Exception
+	{
+		FrontCodedTreeMap<Integer> map = new FrontCodedTreeMap<>(new TreeMap<>(String::compareTo));
+		assertTrue(map.isEmpty());
+		assertNull(map.get("a"));
+		assertNull(map.firstEntry());
+		assertNull(map.lastEntry());
+		assertFalse(map.entrySet().iterator().hasNext());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorThrowsIllegalArgumentException() throws Exception
+	{
+		TreeMap<String, Integer> source = new TreeMap<>((String a, String b) -> b.compareTo(a));
+		source.put("a", 1);
+		source.put("b", 2);
+		new FrontCodedTreeMap<>(source);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void putThrowsUnsupportedOperationException() throws Exception
+	{
+		new FrontCodedTreeMap<>(paths(new Random(3), 10)).put("a", 1);
+	}
+}
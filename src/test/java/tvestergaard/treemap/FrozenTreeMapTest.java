@@ -0,0 +1,107 @@
+package tvestergaard.treemap;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+import static org.junit.Assert.*;
+
+public class FrozenTreeMapTest
+{
+
+	private static FrozenTreeMap<Integer, Integer> freeze(int size)
+	{
+		TreeMap<Integer, Integer> map = new TreeMap<>(Integer::compare);
+		for (int x = 0; x < size; x++)
+			map.put(x * 2, x);
+
+		return map.freeze();
+	}
+
+	private static Integer key(Entry<Integer, Integer> entry)
+	{
+		return entry == null ? null : entry.getKey();
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		for (int size = 0; size < 70; size++) {
+			FrozenTreeMap<Integer, Integer> frozen = freeze(size);
+			assertEquals(size, frozen.size());
+			for (int x = -1; x <= size * 2; x++) {
+				assertEquals(x >= 0 && x < size * 2 && x % 2 == 0 ? (Integer) (x / 2) : null, frozen.get(x));
+				assertEquals(x >= 0 && x < size * 2 && x % 2 == 0, frozen.containsKey(x));
+			}
+		}
+	}
+
+	@Test
+	public void navigation() throws Exception
+	{
+		for (int size = 0; size < 70; size++) {
+			FrozenTreeMap<Integer, Integer>     frozen   = freeze(size);
+			java.util.TreeMap<Integer, Integer> expected = new java.util.TreeMap<>();
+			for (int x = 0; x < size; x++)
+				expected.put(x * 2, x);
+
+			assertEquals(expected.isEmpty() ? null : expected.firstKey(), key(frozen.firstEntry()));
+			assertEquals(expected.isEmpty() ? null : expected.lastKey(), key(frozen.lastEntry()));
+			for (int x = -1; x <= size * 2; x++) {
+				assertEquals(expected.ceilingKey(x), key(frozen.ceilingEntry(x)));
+				assertEquals(expected.higherKey(x), key(frozen.higherEntry(x)));
+				assertEquals(expected.floorKey(x), key(frozen.floorEntry(x)));
+				assertEquals(expected.lowerKey(x), key(frozen.lowerEntry(x)));
+			}
+		}
+	}
+
+	@Test
+	public void entrySet() throws Exception
+	{
+		FrozenTreeMap<Integer, Integer> frozen   = freeze(100);
+		int                             expected = 0;
+		for (Entry<Integer, Integer> entry : frozen.entrySet()) {
+			assertEquals(expected * 2, (long) entry.getKey());
+			assertEquals(expected, (long) entry.getValue());
+			expected++;
+		}
+
+		assertEquals(100, expected);
+		assertFalse(freeze(0).entrySet().iterator().hasNext());
+	}
+
+	@Test
+	public void range() throws Exception
+	{
+		FrozenTreeMap<Integer, Integer> frozen = freeze(50);
+		List<Integer>                   keys   = new ArrayList<>();
+		frozen.range(10, true, 20, false).forEachRemaining(entry -> keys.add(entry.getKey()));
+		assertEquals(Arrays.asList(10, 12, 14, 16, 18), keys);
+
+		keys.clear();
+		frozen.range(9, false, 21, true).forEachRemaining(entry -> keys.add(entry.getKey()));
+		assertEquals(Arrays.asList(10, 12, 14, 16, 18, 20), keys);
+
+		assertFalse(frozen.range(11, true, 11, true).hasNext());
+		assertFalse(frozen.range(30, true, 20, true).hasNext());
+	}
+
+	@Test
+	public void freezeIsIndependent() throws Exception
+	{
+		TreeMap<Integer, Integer> map = new TreeMap<>(Integer::compare);
+		map.put(1, 1);
+		FrozenTreeMap<Integer, Integer> frozen = map.freeze();
+		map.put(2, 2);
+		assertEquals(1, frozen.size());
+		assertFalse(frozen.containsKey(2));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void putThrowsUnsupportedOperationException() throws Exception
+	{
+		freeze(1).put(5, 5);
+	}
+}
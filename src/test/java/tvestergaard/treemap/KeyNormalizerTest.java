@@ -0,0 +1,55 @@
+package tvestergaard.treemap;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class KeyNormalizerTest
+{
+
+	private static <K> void assertAgrees(KeyNormalizer<K> normalizer, Comparator<K> comparator, List<K> keys)
+	{
+		for (K a : keys) {
+			for (K b : keys) {
+				int prefixes = Long.compareUnsigned(normalizer.normalize(a), normalizer.normalize(b));
+				int compare  = comparator.compare(a, b);
+				if (prefixes != 0)
+					assertEquals(Integer.signum(prefixes), Integer.signum(compare));
+				if (compare == 0)
+					assertEquals(0, prefixes);
+			}
+		}
+	}
+
+	@Test
+	public void strings() throws Exception
+	{
+		List<String> keys = new ArrayList<>(Arrays.asList("", "a", "a\u0000", "ab", "abcd", "abcde", "abcdf", "b",
+														   "￿", "￿￿￿￿￿"));
+		Random random = new Random(1);
+		for (int x = 0; x < 200; x++) {
+			char[] chars = new char[random.nextInt(7)];
+			for (int y = 0; y < chars.length; y++)
+				chars[y] = (char) (random.nextBoolean() ? 'a' + random.nextInt(3) : random.nextInt(65536));
+			keys.add(new String(chars));
+		}
+
+		assertAgrees(KeyNormalizer.strings(), String::compareTo, keys);
+	}
+
+	@Test
+	public void integers() throws Exception
+	{
+		List<Integer> keys = Arrays.asList(Integer.MIN_VALUE, -100, -1, 0, 1, 100, Integer.MAX_VALUE);
+		assertAgrees(KeyNormalizer.integers(), Integer::compare, keys);
+	}
+
+	@Test
+	public void longs() throws Exception
+	{
+		List<Long> keys = Arrays.asList(Long.MIN_VALUE, -100L, -1L, 0L, 1L, 100L, Long.MAX_VALUE);
+		assertAgrees(KeyNormalizer.longs(), Long::compare, keys);
+	}
+}
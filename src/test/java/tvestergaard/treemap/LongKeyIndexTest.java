@@ -0,0 +1,79 @@
+package tvestergaard.treemap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LongKeyIndexTest
+{
+
+	private static LongKeyIndex<Integer> index(int size)
+	{
+		TreeMap<Long, Integer> map = new TreeMap<>(Long::compare);
+		for (int x = 0; x < size; x++)
+			map.put(x * 2L, x);
+
+		return new LongKeyIndex<>(map);
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		for (int size = 0; size < 600; size += size < 40 ? 1 : 37) {
+			LongKeyIndex<Integer> index = index(size);
+			assertEquals(size, index.size());
+			for (int x = -1; x <= size * 2; x++) {
+				assertEquals(x >= 0 && x < size * 2 && x % 2 == 0 ? (Integer) (x / 2) : null, index.get(x));
+				assertEquals(x >= 0 && x < size * 2 && x % 2 == 0, index.containsKey(x));
+			}
+		}
+	}
+
+	@Test
+	public void lowerBound() throws Exception
+	{
+		for (int size = 0; size < 600; size += size < 40 ? 1 : 37) {
+			LongKeyIndex<Integer> index = index(size);
+			for (int x = -1; x <= size * 2; x++) {
+				int rank = index.lowerBound(x);
+				assertEquals(Math.min((x + 1) / 2, size), rank);
+				if (rank < size) {
+					assertEquals(rank * 2, index.keyAt(rank));
+					assertEquals(rank, (long) index.valueAt(rank));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void extremeKeys() throws Exception
+	{
+		TreeMap<Long, Integer> map = new TreeMap<>(Long::compare);
+		map.put(Long.MIN_VALUE, 1);
+		map.put(0L, 2);
+		map.put(Long.MAX_VALUE, 3);
+		LongKeyIndex<Integer> index = new LongKeyIndex<>(map);
+
+		assertEquals(1, (long) index.get(Long.MIN_VALUE));
+		assertEquals(3, (long) index.get(Long.MAX_VALUE));
+		assertEquals(2, index.lowerBound(Long.MAX_VALUE));
+		assertEquals(2, index.lowerBound(Long.MAX_VALUE - 1));
+		assertFalse(index(3).containsKey(Long.MAX_VALUE));
+		assertEquals(3, index(3).lowerBound(Long.MAX_VALUE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void descendingKeysThrowsIllegalArgumentException() throws Exception
+	{
+		TreeMap<Long, Integer> map = new TreeMap<>((a, b) -> Long.compare(b, a));
+		map.put(1L, 1);
+		map.put(2L, 2);
+		new LongKeyIndex<>(map);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void keyAtThrowsIndexOutOfBoundsException() throws Exception
+	{
+		index(5).keyAt(5);
+	}
+}
@@ -0,0 +1,246 @@
+package tvestergaard.treemap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class LsmTreeMapTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path                        directory;
+	private LsmTreeMap<Integer, String> map;
+
+	private LsmTreeMap<Integer, String> open() throws IOException
+	{
+		return new LsmTreeMap<>(directory, Integer::compare, Codec.integers(), Codec.strings(), 100, 3);
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		directory = folder.getRoot().toPath().resolve("lsm");
+		map = open();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		map.close();
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		assertNull(map.put(0, "a"));
+		assertEquals("a", map.get(0));
+		assertEquals("a", map.put(0, "b"));
+		assertTrue(map.containsKey(0));
+		assertEquals("b", map.remove(0));
+		assertNull(map.remove(0));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void flushAndCompact() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.write(x, "a" + x);
+		map.flush();
+		assertTrue(map.runs() <= 4);
+
+		for (int x = 0; x < 1000; x += 2)
+			map.delete(x);
+		map.compact();
+		assertEquals(1, map.runs());
+		assertEquals(500, map.size());
+		for (int x = 0; x < 1000; x++)
+			assertEquals(x % 2 == 0 ? null : "a" + x, map.get(x));
+	}
+
+	@Test
+	public void reopen() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.write(x, "a" + x);
+		for (int x = 0; x < 1000; x += 3)
+			map.delete(x);
+		for (int x = 0; x < 1000; x += 5)
+			map.write(x, "b" + x);
+		map.close();
+
+		map = open();
+		for (int x = 0; x < 1000; x++) {
+			String expected = x % 5 == 0 ? "b" + x : x % 3 == 0 ? null : "a" + x;
+			assertEquals(expected, map.get(x));
+		}
+	}
+
+	@Test
+	public void range() throws Exception
+	{
+		for (int x = 0; x < 500; x++)
+			map.write(x * 2, String.valueOf(x * 2));
+		map.flush();
+		map.delete(100);
+		map.write(101, "odd");
+
+		List<Entry<Integer, String>> range = map.range(95, 106);
+		List<Integer>                keys  = new ArrayList<>();
+		for (Entry<Integer, String> entry : range)
+			keys.add(entry.getKey());
+		assertEquals(Arrays.asList(96, 98, 101, 102, 104), keys);
+		assertEquals("odd", range.get(2).getValue());
+		assertTrue(map.range(1000, 2000).isEmpty());
+	}
+
+	@Test
+	public void randomOperations() throws Exception
+	{
+		Random                             random   = new Random(5);
+		java.util.TreeMap<Integer, String> expected = new java.util.TreeMap<>();
+		for (int x = 0; x < 20000; x++) {
+			int key = random.nextInt(2000);
+			if (random.nextInt(3) > 0) {
+				String value = "v" + x;
+				assertEquals(expected.put(key, value), map.put(key, value));
+			} else
+				assertEquals(expected.remove(key), map.remove(key));
+
+			if (x % 5000 == 4999) {
+				map.close();
+				map = open();
+			}
+		}
+
+		assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(map.entrySet()));
+		for (int x = -1; x <= 2000; x++)
+			assertEquals(expected.get(x), map.get(x));
+	}
+
+	@Test
+	public void iteratorRemove() throws Exception
+	{
+		for (int x = 0; x < 300; x++)
+			map.write(x, "");
+
+		Iterator<Entry<Integer, String>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().getKey() % 3 != 0)
+				iterator.remove();
+
+		assertEquals(100, map.size());
+		map.clear();
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void concurrentWrites() throws Exception
+	{
+		int             threads = 4;
+		int             writes  = 2000;
+		ExecutorService pool    = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int thread = 0; thread < threads; thread++) {
+			int offset = thread * writes;
+			futures.add(pool.submit(() -> {
+				for (int x = 0; x < writes; x++) {
+					map.write(offset + x, "value");
+					assertEquals("value", map.get(offset + x));
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertEquals(threads * writes, map.size());
+		map.close();
+
+		map = open();
+		assertEquals(threads * writes, map.size());
+	}
+
+	@Test
+	public void replacedRunsAreDeleted() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.write(x, "a");
+		map.compact();
+
+		try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+			assertEquals(1, files.count());
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void throwingCodecFailsWriters() throws Exception
+	{
+		Codec<String> strings = Codec.strings();
+		Codec<String> codec   = new Codec<String>()
+		{
+			@Override public void write(String value, DataOutput out) throws IOException
+			{
+				if (value.equals("bad"))
+					throw new IllegalStateException("bad value");
+				strings.write(value, out);
+			}
+
+			@Override public String read(DataInput in) throws IOException
+			{
+				return strings.read(in);
+			}
+		};
+
+		map.close();
+		map = new LsmTreeMap<>(directory, Integer::compare, Codec.integers(), codec, 100, 3);
+		map.write(0, "bad");
+		try {
+			for (int x = 1; x < 1000; x++)
+				map.write(x, "good");
+			fail();
+		} catch (UncheckedIOException e) {
+			assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+		}
+
+		try {
+			map.flush();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		try {
+			map.close();
+			fail();
+		} catch (IOException e) {
+			// Expected, the map is closed anyway
+		}
+		map = open();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putThrowsNullPointerException() throws Exception
+	{
+		map.write(0, null);
+	}
+}
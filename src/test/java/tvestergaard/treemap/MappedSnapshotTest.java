@@ -0,0 +1,140 @@
+package tvestergaard.treemap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.Map.Entry;
+
+import static org.junit.Assert.*;
+
+public class MappedSnapshotTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path                            file;
+	private TreeMap<Integer, String>        source;
+	private MappedSnapshot<Integer, String> snapshot;
+
+	private MappedSnapshot<Integer, String> open(int promoteAfter) throws IOException
+	{
+		return new MappedSnapshot<>(file, Integer::compare, Codec.integers(), Codec.strings(), promoteAfter);
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = folder.getRoot().toPath().resolve("map.snapshot");
+		source = new TreeMap<>(Integer::compare);
+		for (int x = 0; x < 10000; x++)
+			source.put(x * 2, "v" + x * 2);
+		MappedSnapshot.write(file, source, Codec.integers(), Codec.strings());
+		snapshot = open(Integer.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		snapshot.close();
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertEquals(10000, snapshot.size());
+		for (int x = -1; x <= 20000; x++)
+			assertEquals(source.get(x), snapshot.get(x));
+		assertEquals(0, snapshot.promoted());
+	}
+
+	@Test
+	public void entrySet() throws Exception
+	{
+		assertEquals(new ArrayList<>(new java.util.TreeMap<>(source).entrySet()), new ArrayList<>(snapshot.entrySet()));
+	}
+
+	@Test
+	public void range() throws Exception
+	{
+		List<Entry<Integer, String>> range = snapshot.range(1001, 5000);
+		assertEquals(1999, range.size());
+		assertEquals(1002, (long) range.get(0).getKey());
+		assertEquals(4998, (long) range.get(range.size() - 1).getKey());
+		assertTrue(snapshot.range(5000, 1001).isEmpty());
+		assertTrue(snapshot.range(30000, 40000).isEmpty());
+	}
+
+	@Test
+	public void promote() throws Exception
+	{
+		snapshot.promote(3000, 9000);
+		int regionSize = MappedSnapshot.REGION_SIZE;
+		assertEquals(0, snapshot.promoted() % regionSize);
+		assertTrue(snapshot.promoted() >= 3000);
+
+		List<Entry<Integer, String>> expected = new ArrayList<>();
+		for (int x = 0; x < 20000; x += 2)
+			if (x >= 1000 && x < 12000)
+				expected.add(new AbstractMap.SimpleImmutableEntry<>(x, "v" + x));
+		assertEquals(expected, snapshot.range(1000, 12000));
+
+		for (int x = -1; x <= 20000; x++)
+			assertEquals(source.get(x), snapshot.get(x));
+	}
+
+	@Test
+	public void promoteAfterHits() throws Exception
+	{
+		snapshot.close();
+		snapshot = open(3);
+
+		for (int round = 0; round < 2; round++)
+			assertEquals("v100", snapshot.get(100));
+		assertEquals(0, snapshot.promoted());
+		assertEquals("v100", snapshot.get(100));
+		assertEquals(MappedSnapshot.REGION_SIZE, snapshot.promoted());
+
+		Random random = new Random(1);
+		for (int x = 0; x < 5000; x++) {
+			int key = random.nextInt(20002) - 1;
+			assertEquals(source.get(key), snapshot.get(key));
+		}
+		for (int x = 0; x < 20; x++) {
+			int                          from     = random.nextInt(20000);
+			int                          to       = from + random.nextInt(5000);
+			List<Entry<Integer, String>> expected = new ArrayList<>();
+			for (Entry<Integer, String> entry : source.entrySet())
+				if (entry.getKey() >= from && entry.getKey() < to)
+					expected.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+			assertEquals(expected, snapshot.range(from, to));
+		}
+		assertEquals(source.size(), snapshot.promoted());
+	}
+
+	@Test
+	public void empty() throws Exception
+	{
+		MappedSnapshot.write(file, new TreeMap<>(Integer::compare), Codec.integers(), Codec.strings());
+		try (MappedSnapshot<Integer, String> empty = open(1)) {
+			assertTrue(empty.isEmpty());
+			assertNull(empty.get(0));
+			assertTrue(empty.range(0, 10).isEmpty());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void openThrowsIOException() throws Exception
+	{
+		Path other = folder.newFile().toPath();
+		Files.write(other, new byte[64]);
+		new MappedSnapshot<>(other, Integer::compare, Codec.integers(), Codec.strings());
+	}
+}
@@ -0,0 +1,185 @@
+package tvestergaard.treemap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class OptimisticTreeMapTest
+{
+
+	private OptimisticTreeMap<Integer, Integer> map;
+
+	@Before
+	public void setUp()
+	{
+		map = new OptimisticTreeMap<>(Integer::compare);
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		map.put(0, 15);
+		assertEquals(15, (long) map.get(0));
+		assertEquals(15, (long) map.getOrDefault(0, 5));
+		assertEquals(5, (long) map.getOrDefault(1, 5));
+		assertTrue(map.containsKey(0));
+		assertFalse(map.containsKey(1));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putThrowsNullPointerException() throws Exception
+	{
+		map.put(0, null);
+	}
+
+	@Test
+	public void remove() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.put(x, x);
+
+		for (int x = 0; x < 1000; x += 2)
+			assertEquals(x, (long) map.remove(x));
+
+		assertEquals(500, map.size());
+		for (int x = 0; x < 1000; x++)
+			assertEquals(x % 2 == 0 ? null : x, map.get(x));
+
+		assertNull(map.remove(0));
+		assertFalse(map.remove(1, 2));
+		assertTrue(map.remove(1, 1));
+		assertEquals(499, map.size());
+	}
+
+	@Test
+	public void replace() throws Exception
+	{
+		assertNull(map.replace(0, 1));
+		assertFalse(map.containsKey(0));
+		map.put(0, 1);
+		assertEquals(1, (long) map.replace(0, 2));
+		assertFalse(map.replace(0, 1, 3));
+		assertTrue(map.replace(0, 2, 3));
+		assertEquals(3, (long) map.get(0));
+		assertNull(map.putIfAbsent(1, 1));
+		assertEquals(1, (long) map.putIfAbsent(1, 2));
+	}
+
+	@Test
+	public void merge() throws Exception
+	{
+		for (int x = 0; x < 100; x++)
+			map.merge(x % 10, 1, Integer::sum);
+
+		assertEquals(10, map.size());
+		assertEquals(10, (long) map.get(3));
+	}
+
+	@Test
+	public void navigation() throws Exception
+	{
+		assertNull(map.firstEntry());
+		assertNull(map.lastEntry());
+
+		for (int x = 0; x < 100; x += 10)
+			map.put(x, x);
+
+		assertEquals(0, (long) map.firstEntry().getKey());
+		assertEquals(90, (long) map.lastEntry().getKey());
+		assertEquals(20, (long) map.ceilingEntry(20).getKey());
+		assertEquals(30, (long) map.ceilingEntry(21).getKey());
+		assertEquals(30, (long) map.higherEntry(20).getKey());
+		assertEquals(20, (long) map.floorEntry(20).getKey());
+		assertEquals(20, (long) map.floorEntry(29).getKey());
+		assertEquals(10, (long) map.lowerEntry(20).getKey());
+		assertNull(map.higherEntry(90));
+		assertNull(map.lowerEntry(0));
+
+		map.remove(30);
+		assertEquals(40, (long) map.ceilingEntry(30).getKey());
+		assertEquals(20, (long) map.lowerEntry(40).getKey());
+	}
+
+	@Test
+	public void entrySet() throws Exception
+	{
+		for (int x = 9; x >= 0; x--)
+			map.put(x, x * 2);
+
+		int expected = 0;
+		for (Entry<Integer, Integer> entry : map.entrySet()) {
+			assertEquals(expected, (long) entry.getKey());
+			assertEquals(expected * 2, (long) entry.getValue());
+			expected++;
+		}
+
+		assertEquals(10, expected);
+		assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<>(3, 6)));
+		assertFalse(map.entrySet().contains(new AbstractMap.SimpleEntry<>(3, 7)));
+
+		Iterator<Entry<Integer, Integer>> iterator = map.entrySet().iterator();
+		iterator.next();
+		iterator.remove();
+		assertFalse(map.containsKey(0));
+		assertEquals(9, map.keySet().size());
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void concurrentReadersAndWriters() throws Exception
+	{
+		int             threads = 8;
+		AtomicBoolean   failed  = new AtomicBoolean();
+		ExecutorService pool    = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int thread = 0; thread < threads; thread++) {
+			int worker = thread;
+			futures.add(pool.submit(() -> {
+				Random random = new Random(worker);
+				for (int x = 0; x < 50000; x++) {
+					int key = random.nextInt(1024);
+					if (worker % 2 == 0) {
+						if (random.nextBoolean())
+							map.put(key, key * 2);
+						else
+							map.remove(key);
+					} else {
+						Integer value = map.get(key);
+						if (value != null && value != key * 2)
+							failed.set(true);
+						Entry<Integer, Integer> ceiling = map.ceilingEntry(key);
+						if (ceiling != null && (ceiling.getKey() < key || ceiling.getValue() != ceiling.getKey() * 2))
+							failed.set(true);
+					}
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertFalse(failed.get());
+		int previous = -1;
+		int count    = 0;
+		for (Integer key : map.keySet()) {
+			assertTrue(key > previous);
+			assertEquals(key * 2, (long) map.get(key));
+			previous = key;
+			count++;
+		}
+
+		assertEquals(count, map.size());
+	}
+}
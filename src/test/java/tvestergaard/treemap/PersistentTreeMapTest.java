@@ -0,0 +1,147 @@
+package tvestergaard.treemap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+import static org.junit.Assert.*;
+
+public class PersistentTreeMapTest
+{
+
+	private PersistentTreeMap<Integer, Integer> empty;
+
+	@Before
+	public void setUp()
+	{
+		empty = new PersistentTreeMap<>(Integer::compare);
+	}
+
+	@Test
+	public void put() throws Exception
+	{
+		PersistentTreeMap<Integer, Integer> one = empty.put(1, 10);
+		PersistentTreeMap<Integer, Integer> two = one.put(2, 20);
+		assertEquals(0, empty.size());
+		assertEquals(1, one.size());
+		assertEquals(2, two.size());
+		assertNull(one.get(2));
+		assertEquals(20, (long) two.get(2));
+
+		PersistentTreeMap<Integer, Integer> replaced = two.put(1, 15);
+		assertEquals(2, replaced.size());
+		assertEquals(15, (long) replaced.get(1));
+		assertEquals(10, (long) two.get(1));
+	}
+
+	@Test
+	public void putSameValueReturnsSameVersion() throws Exception
+	{
+		Integer                             value = 1000;
+		PersistentTreeMap<Integer, Integer> map   = empty.put(1, value);
+		assertSame(map, map.put(1, value));
+	}
+
+	@Test
+	public void remove() throws Exception
+	{
+		PersistentTreeMap<Integer, Integer> map = empty;
+		for (int x = 0; x < 100; x++)
+			map = map.put(x, x);
+
+		PersistentTreeMap<Integer, Integer> removed = map;
+		for (int x = 0; x < 100; x += 3)
+			removed = removed.remove(x);
+
+		assertSame(removed, removed.remove(0));
+		assertEquals(100, map.size());
+		assertEquals(66, removed.size());
+		for (int x = 0; x < 100; x++) {
+			assertEquals(x, (long) map.get(x));
+			assertEquals(x % 3 != 0, removed.containsKey(x));
+		}
+	}
+
+	@Test
+	public void firstEntry() throws Exception
+	{
+		assertNull(empty.firstEntry());
+		assertNull(empty.lastEntry());
+
+		PersistentTreeMap<Integer, Integer> map = empty.put(5, 5).put(1, 1).put(9, 9);
+		assertEquals(1, (long) map.firstEntry().getKey());
+		assertEquals(9, (long) map.lastEntry().getKey());
+	}
+
+	@Test
+	public void iterator() throws Exception
+	{
+		PersistentTreeMap<Integer, Integer> map = empty;
+		for (int x = 99; x >= 0; x--)
+			map = map.put(x, x * 2);
+
+		Iterator<Entry<Integer, Integer>> iterator = map.iterator();
+		PersistentTreeMap<Integer, Integer> cleared = map;
+		for (int x = 0; x < 100; x++)
+			cleared = cleared.remove(x);
+
+		int expected = 0;
+		while (iterator.hasNext()) {
+			Entry<Integer, Integer> entry = iterator.next();
+			assertEquals(expected, (long) entry.getKey());
+			assertEquals(expected * 2, (long) entry.getValue());
+			expected++;
+		}
+
+		assertEquals(100, expected);
+		assertTrue(cleared.isEmpty());
+		assertFalse(cleared.iterator().hasNext());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void asMapThrowsUnsupportedOperationException() throws Exception
+	{
+		empty.put(1, 1).asMap().put(2, 2);
+	}
+
+	@Test
+	public void asMap() throws Exception
+	{
+		PersistentTreeMap<Integer, Integer> map = empty.put(2, 4).put(1, 2);
+		Map<Integer, Integer>               view = map.asMap();
+		Map<Integer, Integer>               expected = new HashMap<>();
+		expected.put(1, 2);
+		expected.put(2, 4);
+
+		assertEquals(expected, view);
+		assertEquals(new ArrayList<>(Arrays.asList(1, 2)), new ArrayList<>(view.keySet()));
+		map.put(3, 6);
+		assertEquals(2, view.size());
+		assertFalse(view.containsKey(3));
+	}
+
+	@Test
+	public void randomOperations() throws Exception
+	{
+		Random                              random   = new Random(0);
+		java.util.TreeMap<Integer, Integer> expected = new java.util.TreeMap<>();
+		PersistentTreeMap<Integer, Integer> map      = empty;
+
+		for (int x = 0; x < 20000; x++) {
+			int key = random.nextInt(500);
+			if (random.nextBoolean()) {
+				expected.put(key, x);
+				map = map.put(key, x);
+			} else {
+				expected.remove(key);
+				map = map.remove(key);
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, map.asMap());
+		assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(map.asMap().keySet()));
+	}
+}
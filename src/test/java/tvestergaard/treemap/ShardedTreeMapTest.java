@@ -0,0 +1,163 @@
+package tvestergaard.treemap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ShardedTreeMapTest
+{
+
+	private ShardedTreeMap<Integer, Integer> map;
+
+	@Before
+	public void setUp()
+	{
+		map = new ShardedTreeMap<>(Integer::compare, 4, 16);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorThrowsIllegalArgumentException() throws Exception
+	{
+		new ShardedTreeMap<Integer, Integer>(Integer::compare, 8, 16);
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		map.put(0, 15);
+		assertEquals(15, (long) map.get(0));
+		assertEquals(15, (long) map.getOrDefault(0, 5));
+		assertEquals(5, (long) map.getOrDefault(1, 5));
+		assertTrue(map.containsKey(0));
+		assertFalse(map.containsKey(1));
+	}
+
+	@Test
+	public void split() throws Exception
+	{
+		assertEquals(1, map.shardCount());
+		for (int x = 0; x < 1000; x++)
+			map.put(x, x);
+
+		assertEquals(1000, map.size());
+		assertTrue(map.shardCount() > 1000 / 16);
+		for (int x = 0; x < 1000; x++)
+			assertEquals(x, (long) map.get(x));
+	}
+
+	@Test
+	public void merge() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.put(x, x);
+
+		for (int x = 0; x < 1000; x++)
+			if (x % 50 != 0)
+				assertEquals(x, (long) map.remove(x));
+
+		assertEquals(20, map.size());
+		assertTrue(map.shardCount() <= 5);
+		for (int x = 0; x < 1000; x++)
+			assertEquals(x % 50 == 0, map.containsKey(x));
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertEquals(1, map.shardCount());
+	}
+
+	@Test
+	public void replace() throws Exception
+	{
+		assertNull(map.replace(0, 1));
+		assertFalse(map.containsKey(0));
+		map.put(0, 1);
+		assertEquals(1, (long) map.replace(0, 2));
+		assertFalse(map.replace(0, 1, 3));
+		assertTrue(map.replace(0, 2, 3));
+		assertFalse(map.remove(0, 2));
+		assertTrue(map.remove(0, 3));
+		assertNull(map.putIfAbsent(1, 1));
+		assertEquals(1, (long) map.putIfAbsent(1, 2));
+	}
+
+	@Test
+	public void entrySet() throws Exception
+	{
+		for (int x = 99; x >= 0; x--)
+			map.put(x, x * 2);
+
+		int expected = 0;
+		for (Entry<Integer, Integer> entry : map.entrySet()) {
+			assertEquals(expected, (long) entry.getKey());
+			assertEquals(expected * 2, (long) entry.getValue());
+			expected++;
+		}
+
+		assertEquals(100, expected);
+		assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<>(3, 6)));
+		assertFalse(map.entrySet().contains(new AbstractMap.SimpleEntry<>(3, 7)));
+
+		Iterator<Entry<Integer, Integer>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().getKey() % 2 == 0)
+				iterator.remove();
+
+		assertEquals(50, map.size());
+		assertEquals(50, map.keySet().size());
+		assertFalse(map.containsKey(0));
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception
+	{
+		int             threads = 8;
+		AtomicBoolean   failed  = new AtomicBoolean();
+		ExecutorService pool    = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int thread = 0; thread < threads; thread++) {
+			int worker = thread;
+			futures.add(pool.submit(() -> {
+				Random random = new Random(worker);
+				for (int x = 0; x < 50000; x++) {
+					int key = random.nextInt(2048);
+					switch (random.nextInt(3)) {
+						case 0:
+							map.put(key, key * 2);
+							break;
+						case 1:
+							map.remove(key);
+							break;
+						default:
+							Integer value = map.get(key);
+							if (value != null && value != key * 2)
+								failed.set(true);
+					}
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertFalse(failed.get());
+		int previous = -1;
+		int count    = 0;
+		for (Integer key : map.keySet()) {
+			assertTrue(key > previous);
+			assertEquals(key * 2, (long) map.get(key));
+			previous = key;
+			count++;
+		}
+
+		assertEquals(count, map.size());
+	}
+}
@@ -0,0 +1,135 @@
+package tvestergaard.treemap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTreeMapTest
+{
+
+	private SnapshotTreeMap<Integer, Integer> map;
+
+	@Before
+	public void setUp()
+	{
+		map = new SnapshotTreeMap<>(Integer::compare);
+	}
+
+	@Test
+	public void get() throws Exception
+	{
+		assertNull(map.get(0));
+		assertNull(map.put(0, 15));
+		assertEquals(15, (long) map.get(0));
+		assertEquals(15, (long) map.put(0, 16));
+		assertTrue(map.containsKey(0));
+		assertEquals(16, (long) map.remove(0));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void conditionalUpdates() throws Exception
+	{
+		assertNull(map.replace(0, 1));
+		assertNull(map.putIfAbsent(0, 1));
+		assertEquals(1, (long) map.putIfAbsent(0, 2));
+		assertFalse(map.replace(0, 2, 3));
+		assertTrue(map.replace(0, 1, 3));
+		assertFalse(map.remove(0, 1));
+		assertTrue(map.remove(0, 3));
+
+		for (int x = 0; x < 100; x++)
+			map.merge(x % 10, 1, Integer::sum);
+		assertEquals(10, (long) map.get(3));
+		assertNull(map.computeIfPresent(3, (key, value) -> null));
+		assertFalse(map.containsKey(3));
+		assertEquals(9, map.size());
+	}
+
+	@Test
+	public void snapshot() throws Exception
+	{
+		for (int x = 0; x < 10; x++)
+			map.put(x, x);
+
+		PersistentTreeMap<Integer, Integer> snapshot = map.snapshot();
+		Iterator<Entry<Integer, Integer>>   iterator = map.entrySet().iterator();
+		map.clear();
+		map.put(100, 100);
+
+		assertEquals(10, snapshot.size());
+		assertEquals(1, map.size());
+		int expected = 0;
+		while (iterator.hasNext())
+			assertEquals(expected++, (long) iterator.next().getKey());
+		assertEquals(10, expected);
+	}
+
+	@Test
+	public void iteratorRemove() throws Exception
+	{
+		for (int x = 0; x < 10; x++)
+			map.put(x, x);
+
+		Iterator<Entry<Integer, Integer>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().getKey() % 2 == 0)
+				iterator.remove();
+
+		assertEquals(5, map.size());
+		assertArrayEquals(new Integer[]{1, 3, 5, 7, 9}, map.keySet().toArray());
+	}
+
+	@Test
+	public void scansAreConsistent() throws Exception
+	{
+		int             keys    = 256;
+		AtomicBoolean   failed  = new AtomicBoolean();
+		AtomicBoolean   done    = new AtomicBoolean();
+		ExecutorService pool    = Executors.newFixedThreadPool(3);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int x = 0; x < keys; x++)
+			map.put(x, 0);
+
+		// Every write increments all values, so a consistent scan sees a single value
+		futures.add(pool.submit(() -> {
+			for (int round = 1; round <= 200; round++) {
+				Map<Integer, Integer> update = new HashMap<>();
+				for (int x = 0; x < keys; x++)
+					update.put(x, round);
+				map.putAll(update);
+			}
+			done.set(true);
+		}));
+
+		for (int reader = 0; reader < 2; reader++) {
+			futures.add(pool.submit(() -> {
+				while (!done.get()) {
+					Integer seen  = null;
+					int     count = 0;
+					for (Entry<Integer, Integer> entry : map.entrySet()) {
+						if (seen != null && !seen.equals(entry.getValue()))
+							failed.set(true);
+						seen = entry.getValue();
+						count++;
+					}
+					if (count != keys)
+						failed.set(true);
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+
+		assertFalse(failed.get());
+		assertEquals(200, (long) map.get(0));
+	}
+}
@@ -0,0 +1,74 @@
+package tvestergaard.treemap;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class TreeMapCollectorsTest
+{
+
+	@Test
+	public void toTreeMap() throws Exception
+	{
+		TreeMap<Integer, Integer> map = IntStream.range(0, 100000).boxed().parallel()
+												 .collect(TreeMapCollectors.toTreeMap(Integer::compare,
+																					  Function.identity(),
+																					  x -> x * 2));
+
+		assertEquals(100000, map.size());
+		int expected = 0;
+		for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+			assertEquals(expected, (long) entry.getKey());
+			assertEquals(expected * 2, (long) entry.getValue());
+			expected++;
+		}
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+	}
+
+	@Test
+	public void toTreeMapMergesDuplicates() throws Exception
+	{
+		Random    random = new Random(3);
+		Integer[] keys   = new Integer[200000];
+		for (int x = 0; x < keys.length; x++)
+			keys[x] = random.nextInt(5000);
+
+		TreeMap<Integer, Integer> map = Arrays.stream(keys).parallel()
+											  .collect(TreeMapCollectors.toTreeMap(Integer::compare,
+																				   Function.identity(),
+																				   x -> 1,
+																				   Integer::sum));
+
+		Map<Integer, Long> expected = Arrays.stream(keys).collect(Collectors.groupingBy(Function.identity(),
+																						 Collectors.counting()));
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Integer, Long> entry : expected.entrySet())
+			assertEquals((long) entry.getValue(), (long) map.get(entry.getKey()));
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+	}
+
+	@Test
+	public void toTreeMapKeepsEncounterOrderOfDuplicates() throws Exception
+	{
+		TreeMap<Integer, String> map = IntStream.range(0, 10000).boxed().parallel()
+												.collect(TreeMapCollectors.toTreeMap(Integer::compare,
+																					 x -> x % 10,
+																					 String::valueOf,
+																					 (a, b) -> a));
+
+		for (int x = 0; x < 10; x++)
+			assertEquals(String.valueOf(x), map.get(x));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void toTreeMapThrowsIllegalStateException() throws Exception
+	{
+		IntStream.range(0, 1000).boxed().parallel()
+				 .collect(TreeMapCollectors.toTreeMap(Integer::compare, x -> x % 500, Function.identity()));
+	}
+}
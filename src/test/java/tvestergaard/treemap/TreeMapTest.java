@@ -5,6 +5,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -263,6 +264,623 @@ public class TreeMapTest
 		assertEquals(3, map.size());
 	}
 
+	@Test
+	public void getAll() throws Exception
+	{
+		for (int x = 0; x < 1000; x += 3)
+			map.put(x, -x);
+
+		Integer[] keys   = new Integer[500];
+		Integer[] values = new Integer[500];
+		for (int x = 0; x < keys.length; x++)
+			keys[x] = x * 2;
+
+		assertEquals(167, map.getAll(keys, values));
+		for (int x = 0; x < keys.length; x++)
+			assertEquals(map.get(keys[x]), values[x]);
+
+		Collections.shuffle(Arrays.asList(keys), new Random(3));
+		assertEquals(167, map.getAll(keys, values));
+		for (int x = 0; x < keys.length; x++)
+			assertEquals(map.get(keys[x]), values[x]);
+	}
+
+	@Test
+	public void getAllConcurrentReaders() throws Exception
+	{
+		for (int x = 0; x < 2000; x += 2)
+			map.put(x, x);
+
+		List<Thread>         threads  = new ArrayList<>();
+		List<AssertionError> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 4; t++) {
+			Random random = new Random(t);
+			threads.add(new Thread(() -> {
+				Integer[] keys   = new Integer[256];
+				Integer[] values = new Integer[keys.length];
+				for (int round = 0; round < 2000 && failures.isEmpty(); round++) {
+					int start = random.nextInt(2000);
+					for (int x = 0; x < keys.length; x++)
+						keys[x] = start + x;
+					map.getAll(keys, values);
+					try {
+						for (int x = 0; x < keys.length; x++)
+							assertEquals(keys[x] % 2 == 0 && keys[x] < 2000 ? keys[x] : null, values[x]);
+					} catch (AssertionError e) {
+						failures.add(e);
+					}
+				}
+			}));
+		}
+
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void getAllThrowsIllegalArgumentException() throws Exception
+	{
+		map.getAll(new Integer[2], new Integer[1]);
+	}
+
+	@Test
+	public void putAllArrays() throws Exception
+	{
+		Integer[] keys   = new Integer[1000];
+		Integer[] values = new Integer[1000];
+		for (int x = 0; x < keys.length; x++) {
+			keys[x] = x;
+			values[x] = x * 2;
+		}
+
+		assertEquals(1000, map.putAll(keys, values));
+		assertEquals(1000, map.size());
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+
+		Collections.shuffle(Arrays.asList(keys), new Random(5));
+		assertEquals(0, map.putAll(keys, values));
+		for (int x = 0; x < keys.length; x++)
+			assertEquals(values[x], map.get(keys[x]));
+
+		Integer[] expected = new Integer[1000];
+		for (int x = 0; x < expected.length; x++)
+			expected[x] = x;
+		assertArrayEquals(expected, map.keySet().toArray());
+	}
+
+	@Test
+	public void applyAll() throws Exception
+	{
+		map.put(1, 10);
+		map.put(3, 30);
+
+		Integer[] keys       = {0, 1, 1, 2, 3, 3, 4};
+		Integer[] values     = {0, null, 11, 20, null, null, 40};
+		int[]     operations = {TreeMap.BATCH_PUT, TreeMap.BATCH_GET, TreeMap.BATCH_PUT, TreeMap.BATCH_PUT,
+								TreeMap.BATCH_REMOVE, TreeMap.BATCH_REMOVE, TreeMap.BATCH_GET};
+		Integer[] results    = new Integer[keys.length];
+		map.applyAll(keys, values, operations, results, keys.length);
+
+		assertArrayEquals(new Integer[]{null, 10, 10, null, 30, null, null}, results);
+		assertArrayEquals(new Integer[]{0, 1, 2}, map.keySet().toArray());
+		assertEquals(11, (long) map.get(1));
+		assertEquals(20, (long) map.get(2));
+	}
+
+	@Test
+	public void putAscending() throws Exception
+	{
+		for (int x = 0; x < 10000; x++)
+			assertNull(map.put(x, x));
+
+		assertEquals(10000, map.size());
+		assertEquals(0, (long) map.put(0, -1));
+		assertEquals(9999, (long) map.put(9999, -1));
+		assertEquals(14, map.height());
+
+		for (int x = 0; x < 100; x++) {
+			map.remove(x);
+			map.remove(9999 - x);
+		}
+
+		for (int x = 10000; x < 10100; x++)
+			map.put(x, x);
+		map.put(-1, -1);
+
+		Iterator<Integer> keys     = map.keySet().iterator();
+		Integer           expected = -1;
+		assertEquals(expected, keys.next());
+		for (expected = 100; keys.hasNext(); expected++) {
+			if (expected == 9900)
+				expected = 10000;
+			assertEquals(expected, keys.next());
+		}
+		assertEquals(10100, (long) expected);
+	}
+
+	@Test
+	public void firstEntry() throws Exception
+	{
+		assertNull(map.firstEntry());
+		map.put(5, 50);
+		map.put(3, 30);
+		map.put(8, 80);
+		assertEquals(3, (long) map.firstEntry().getKey());
+		assertEquals(30, (long) map.firstEntry().getValue());
+		map.remove(3);
+		assertEquals(5, (long) map.firstEntry().getKey());
+	}
+
+	@Test
+	public void lastEntry() throws Exception
+	{
+		assertNull(map.lastEntry());
+		map.put(5, 50);
+		map.put(3, 30);
+		map.put(8, 80);
+		assertEquals(8, (long) map.lastEntry().getKey());
+		assertEquals(80, (long) map.lastEntry().getValue());
+		map.remove(8);
+		assertEquals(5, (long) map.lastEntry().getKey());
+	}
+
+	@Test
+	public void pollFirstEntry() throws Exception
+	{
+		assertNull(map.pollFirstEntry());
+		for (int x = 9; x >= 0; x--)
+			map.put(x, x);
+		for (int x = 0; x < 10; x++)
+			assertEquals(x, (long) map.pollFirstEntry().getKey());
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void pollLastEntry() throws Exception
+	{
+		assertNull(map.pollLastEntry());
+		for (int x = 0; x < 10; x++)
+			map.put(x, x);
+		for (int x = 9; x >= 0; x--)
+			assertEquals(x, (long) map.pollLastEntry().getKey());
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void pollFirst() throws Exception
+	{
+		List<Integer> keys = new ArrayList<>();
+		for (int x = 0; x < 2000; x++)
+			keys.add(x);
+		Collections.shuffle(keys, new Random(11));
+		for (Integer key : keys)
+			map.put(key, key);
+
+		int expected = 0;
+		for (int n : new int[]{0, 1, 7, 64, 500, 1}) {
+			List<Entry<Integer, Integer>> polled = map.pollFirst(n);
+			assertEquals(n, polled.size());
+			for (Entry<Integer, Integer> entry : polled)
+				assertEquals(expected++, (long) entry.getKey());
+			assertEquals(2000 - expected, map.size());
+			assertEquals(expected, (long) map.firstEntry().getKey());
+			assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+		}
+
+		Integer[] remaining = new Integer[2000 - expected];
+		for (int x = 0; x < remaining.length; x++)
+			remaining[x] = expected + x;
+		assertArrayEquals(remaining, map.keySet().toArray());
+
+		map.put(0, 0);
+		assertEquals(remaining.length + 1, map.pollFirst(5000).size());
+		assertTrue(map.isEmpty());
+		assertNull(map.firstEntry());
+	}
+
+	@Test
+	public void pollLast() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.put(x * 7 % 1000, x);
+
+		List<Entry<Integer, Integer>> polled = map.pollLast(300);
+		assertEquals(300, polled.size());
+		for (int x = 0; x < polled.size(); x++)
+			assertEquals(999 - x, (long) polled.get(x).getKey());
+
+		assertEquals(700, map.size());
+		assertEquals(699, (long) map.lastEntry().getKey());
+		assertEquals(0, (long) map.firstEntry().getKey());
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+		for (int x = 0; x < 700; x++)
+			assertTrue(map.containsKey(x));
+
+		map.put(5000, 0);
+		assertEquals(5000, (long) map.lastEntry().getKey());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void pollFirstThrowsIllegalArgumentException() throws Exception
+	{
+		map.pollFirst(-1);
+	}
+
+	@Test
+	public void mergeAll() throws Exception
+	{
+		java.util.TreeMap<Integer, Integer> expected = new java.util.TreeMap<>();
+		TreeMap<Integer, Integer>           other    = new TreeMap<>(comparator);
+		for (int x = 0; x < 1000; x++) {
+			map.put(x * 3, x);
+			other.put(x * 5, x);
+			expected.merge(x * 3, x, Integer::sum);
+		}
+		for (int x = 0; x < 1000; x++)
+			expected.merge(x * 5, x, Integer::sum);
+
+		map.mergeAll(other, Integer::sum);
+		assertTrue(other.isEmpty());
+		assertEquals(expected, map);
+		assertEquals(0, (long) map.firstEntry().getKey());
+		assertEquals(4995, (long) map.lastEntry().getKey());
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+
+		// Disjoint key ranges are joined on either side
+		for (int x = 10000; x < 10100; x++)
+			other.put(x, x);
+		map.mergeAll(other, Integer::sum);
+		for (int x = -300; x < 0; x++)
+			other.put(x, x);
+		map.mergeAll(other, Integer::sum);
+		assertEquals(expected.size() + 400, map.size());
+		assertEquals(-300, (long) map.firstEntry().getKey());
+		assertEquals(10099, (long) map.lastEntry().getKey());
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+
+		// Removing the keys of duplicates
+		for (int x = 0; x < 100; x++)
+			other.put(x * 15, 0);
+		map.mergeAll(other, (a, b) -> null);
+		for (int x = 0; x < 100; x++)
+			assertFalse(map.containsKey(x * 15));
+		assertEquals(expected.size() + 300, map.size());
+
+		map.remove(10099);
+		map.put(20000, 0);
+		assertEquals(20000, (long) map.lastEntry().getKey());
+	}
+
+	@Test
+	public void drainChanges() throws Exception
+	{
+		for (int x = 0; x < 1000; x++)
+			map.put(x, x);
+		map.trackChanges();
+
+		List<TreeMap.Node<Integer, Integer>> changed = new ArrayList<>();
+		List<Integer>                        removed = new ArrayList<>();
+		assertFalse(map.drainChanges(changed, removed));
+		assertTrue(changed.isEmpty());
+		assertTrue(removed.isEmpty());
+
+		map.put(500, -1);
+		map.put(2000, 2000);
+		map.remove(100);
+		map.remove(-5);
+		map.firstEntry().setValue(-1);
+		map.pollLast(2);
+		map.put(999, 0);
+		TreeMap<Integer, Integer> other = new TreeMap<>(comparator);
+		other.put(1500, 0);
+		map.mergeAll(other, Integer::sum);
+
+		assertFalse(map.drainChanges(changed, removed));
+		List<Integer> keys = new ArrayList<>();
+		for (TreeMap.Node<Integer, Integer> node : changed)
+			keys.add(node.getKey());
+		assertEquals(Arrays.asList(0, 500, 999, 1500), keys);
+		assertEquals(Arrays.asList(100, 999, 2000), removed);
+
+		changed.clear();
+		removed.clear();
+		map.clear();
+		map.put(7, 7);
+		assertTrue(map.drainChanges(changed, removed));
+		assertEquals(1, changed.size());
+		assertTrue(removed.isEmpty());
+		assertFalse(map.drainChanges(changed, removed));
+	}
+
+	@Test
+	public void keyNormalizer() throws Exception
+	{
+		long[]                             calls      = new long[1];
+		Comparator<String>                 counting   = (a, b) -> {
+			calls[0]++;
+			return a.compareTo(b);
+		};
+		Random                             random     = new Random(7);
+		TreeMap<String, Integer>           normalized = new TreeMap<>(counting, KeyNormalizer.strings());
+		java.util.TreeMap<String, Integer> expected   = new java.util.TreeMap<>();
+		for (int x = 0; x < 20000; x++) {
+			String key = "/path/" + random.nextInt(100) + "/" + random.nextInt(100);
+			if (random.nextInt(4) > 0)
+				assertEquals(expected.put(key, x), normalized.put(key, x));
+			else
+				assertEquals(expected.remove(key), normalized.remove(key));
+		}
+
+		TreeMap<String, Integer> other = new TreeMap<>(String::compareTo);
+		for (int x = 0; x < 1000; x++) {
+			String key = "p" + random.nextInt(5000);
+			other.merge(key, x, Integer::sum);
+			expected.merge(key, x, Integer::sum);
+		}
+		normalized.mergeAll(other, Integer::sum);
+
+		assertEquals(expected, new java.util.TreeMap<>(normalized));
+		for (String key : expected.keySet()) {
+			assertTrue(normalized.containsKey(key));
+			assertEquals(expected.get(key), normalized.get(key));
+		}
+		assertNull(normalized.get("/path/100/0"));
+		assertNull(normalized.get("p"));
+
+		TreeMap<String, Integer> plain = new TreeMap<>(counting, expected);
+		calls[0] = 0;
+		for (String key : expected.keySet())
+			normalized.put(key, 0);
+		long normalizedCalls = calls[0];
+		calls[0] = 0;
+		for (String key : expected.keySet())
+			plain.put(key, 0);
+		assertTrue(normalizedCalls < calls[0]);
+	}
+
+	@Test
+	public void keyNormalizerBatches() throws Exception
+	{
+		long[]                   normalizations = new long[1];
+		long[]                   calls          = new long[1];
+		Comparator<String>       counting       = (a, b) -> {
+			calls[0]++;
+			return a.compareTo(b);
+		};
+		KeyNormalizer<String>    strings        = KeyNormalizer.strings();
+		TreeMap<String, Integer> normalized     = new TreeMap<>(counting, key -> {
+			normalizations[0]++;
+			return strings.normalize(key);
+		});
+		TreeMap<String, Integer> plain          = new TreeMap<>(counting);
+
+		normalized.put("/path/1", 1);
+		normalized.put("/path/0", 0);
+		assertEquals(2, normalizations[0]);
+
+		String[]  keys   = new String[2000];
+		Integer[] values = new Integer[keys.length];
+		for (int x = 0; x < keys.length; x++) {
+			keys[x] = String.format("%04d/path", x);
+			values[x] = x;
+		}
+
+		calls[0] = 0;
+		normalized.putAll(keys, values);
+		long normalizedCalls = calls[0];
+		calls[0] = 0;
+		plain.putAll(keys, values);
+		assertTrue(normalizedCalls < calls[0]);
+
+		Integer[] found = new Integer[keys.length];
+		calls[0] = 0;
+		assertEquals(keys.length, normalized.getAll(keys, found));
+		normalizedCalls = calls[0];
+		calls[0] = 0;
+		assertEquals(keys.length, plain.getAll(keys, found));
+		assertTrue(normalizedCalls < calls[0]);
+		assertArrayEquals(values, found);
+
+		TreeMap<String, Integer>.TreeMapCursor normalizedCursor = normalized.cursor();
+		TreeMap<String, Integer>.TreeMapCursor plainCursor      = plain.cursor();
+		calls[0] = 0;
+		for (String key : keys)
+			assertTrue(normalizedCursor.seek(key));
+		normalizedCalls = calls[0];
+		calls[0] = 0;
+		for (String key : keys)
+			assertTrue(plainCursor.seek(key));
+		assertTrue(normalizedCalls < calls[0]);
+	}
+
+	@Test
+	public void fromArrays() throws Exception
+	{
+		Random                              random   = new Random(5);
+		java.util.TreeMap<Integer, Integer> expected = new java.util.TreeMap<>();
+		Integer[]                           keys     = new Integer[100000];
+		Integer[]                           values   = new Integer[keys.length];
+		for (int x = 0; x < keys.length; x++) {
+			keys[x] = random.nextInt(60000);
+			values[x] = x;
+			expected.merge(keys[x], values[x], Math::max);
+		}
+
+		TreeMap<Integer, Integer> built = TreeMap.fromArrays(comparator, keys, values);
+		assertEquals(expected, built);
+		assertEquals(expected.firstKey(), built.firstEntry().getKey());
+		assertEquals(expected.lastKey(), built.lastEntry().getKey());
+		assertTrue(built.height() <= 1.45 * (Math.log(built.size() + 2) / Math.log(2)));
+
+		built.remove(expected.firstKey());
+		built.put(-1, -1);
+		built.put(70000, 0);
+		assertEquals(-1, (long) built.firstEntry().getKey());
+		assertEquals(70000, (long) built.lastEntry().getKey());
+		assertEquals(expected.size() + 1, built.size());
+	}
+
+	@Test
+	public void fromArraysMergesDuplicates() throws Exception
+	{
+		Integer[] keys   = {3, 1, 3, 2, 3, 1, 3};
+		Integer[] values = {1, 2, 3, 4, 5, 6, 7};
+
+		TreeMap<Integer, Integer> built = TreeMap.fromArrays(comparator, keys, values, (a, b) -> a * 10 + b);
+		assertArrayEquals(new Integer[]{1, 2, 3}, built.keySet().toArray());
+		assertEquals(26, (long) built.get(1));
+		assertEquals(1357, (long) built.get(3));
+
+		// A removed key is added again by its next occurrence
+		built = TreeMap.fromArrays(comparator, new Integer[]{3, 1, 3, 2, 3}, values, (a, b) -> null);
+		assertArrayEquals(new Integer[]{1, 2, 3}, built.keySet().toArray());
+		assertEquals(5, (long) built.get(3));
+
+		assertTrue(TreeMap.fromArrays(comparator, new Integer[0], new Integer[0]).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void fromArraysThrowsIllegalArgumentException() throws Exception
+	{
+		TreeMap.fromArrays(comparator, new Integer[2], new Integer[1]);
+	}
+
+	@Test
+	public void writeToAndReadFrom() throws Exception
+	{
+		for (int size : new int[]{0, 1, 2, 3, 100, 1023}) {
+			map.clear();
+			for (int x = 0; x < size; x++)
+				map.put(x * 7 % size, x);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			map.writeTo(new DataOutputStream(bytes), Codec.integers(), Codec.integers());
+			assertEquals(8 + size * 8, bytes.size());
+
+			DataInputStream           in   = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			TreeMap<Integer, Integer> read = TreeMap.readFrom(in, comparator, Codec.integers(), Codec.integers());
+			assertEquals(-1, in.read());
+			assertEquals(size, read.size());
+			assertArrayEquals(map.keySet().toArray(), read.keySet().toArray());
+			assertArrayEquals(map.values().toArray(), read.values().toArray());
+			assertTrue(read.height() <= 1.45 * (Math.log(read.size() + 2) / Math.log(2)));
+
+			read.put(-1, -1);
+			read.put(size, size);
+			assertEquals(-1, (long) read.firstEntry().getKey());
+			assertEquals(size, (long) read.lastEntry().getKey());
+			for (int x = 0; x < size; x++)
+				assertEquals(map.get(x), read.remove(x));
+			assertEquals(2, read.size());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void readFromThrowsIOException() throws Exception
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 0, 0, 0, 0}));
+		TreeMap.readFrom(in, comparator, Codec.integers(), Codec.integers());
+	}
+
+	@Test
+	public void removeKeepsOrderAndBalance() throws Exception
+	{
+		Random random = new Random(17);
+		java.util.TreeMap<Integer, Integer> expected = new java.util.TreeMap<>();
+		for (int x = 0; x < 5000; x++) {
+			int key = random.nextInt(2000);
+			if (random.nextBoolean()) {
+				assertEquals(expected.put(key, x), map.put(key, x));
+			} else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+		assertArrayEquals(expected.keySet().toArray(), map.keySet().toArray());
+		assertTrue(map.height() <= 1.45 * (Math.log(map.size() + 2) / Math.log(2)));
+	}
+
+	@Test
+	public void getOrDefault() throws Exception
+	{
+		assertEquals(5, (long) map.getOrDefault(0, 5));
+		map.put(0, 1);
+		map.put(1, null);
+		assertEquals(1, (long) map.getOrDefault(0, 5));
+		assertNull(map.getOrDefault(1, 5));
+	}
+
+	@Test
+	public void putIfAbsent() throws Exception
+	{
+		assertNull(map.putIfAbsent(0, 1));
+		assertEquals(1, (long) map.putIfAbsent(0, 2));
+		assertEquals(1, (long) map.get(0));
+
+		map.put(1, null);
+		assertNull(map.putIfAbsent(1, 3));
+		assertEquals(3, (long) map.get(1));
+		assertEquals(2, map.size());
+	}
+
+	@Test
+	public void computeIfAbsent() throws Exception
+	{
+		assertEquals(10, (long) map.computeIfAbsent(5, key -> key * 2));
+		assertEquals(10, (long) map.computeIfAbsent(5, key -> key * 3));
+		assertNull(map.computeIfAbsent(6, key -> null));
+		assertFalse(map.containsKey(6));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void computeIfPresent() throws Exception
+	{
+		assertNull(map.computeIfPresent(0, (key, value) -> value + 1));
+		assertFalse(map.containsKey(0));
+
+		map.put(0, 1);
+		assertEquals(2, (long) map.computeIfPresent(0, (key, value) -> value + 1));
+		assertNull(map.computeIfPresent(0, (key, value) -> null));
+		assertFalse(map.containsKey(0));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void compute() throws Exception
+	{
+		for (int x = 0; x < 100; x++)
+			map.compute(x % 10, (key, value) -> value == null ? 1 : value + 1);
+
+		assertEquals(10, map.size());
+		for (int x = 0; x < 10; x++)
+			assertEquals(10, (long) map.get(x));
+
+		assertNull(map.compute(3, (key, value) -> null));
+		assertFalse(map.containsKey(3));
+		assertNull(map.compute(30, (key, value) -> null));
+		assertEquals(9, map.size());
+	}
+
+	@Test
+	public void merge() throws Exception
+	{
+		for (int x = 0; x < 100; x++)
+			map.merge(x % 10, 1, Integer::sum);
+
+		assertEquals(10, map.size());
+		for (int x = 0; x < 10; x++)
+			assertEquals(10, (long) map.get(x));
+
+		assertNull(map.merge(0, 1, (a, b) -> null));
+		assertFalse(map.containsKey(0));
+		assertEquals(9, map.size());
+	}
+
 	@Test
 	public void clear() throws Exception
 	{
@@ -1118,4 +1736,131 @@ public class TreeMapTest
 			assertEquals(0, set.size());
 		}
 	}
+
+	public static class TreeMapCursorTest
+	{
+
+		private TreeMap<Integer, Integer>               map;
+		private TreeMap<Integer, Integer>.TreeMapCursor cursor;
+
+		@Before
+		public void setUp()
+		{
+			map = new TreeMap<Integer, Integer>(new IntegerComparator());
+			for (int x = 0; x < 100; x += 2)
+				map.put(x, x);
+			cursor = map.cursor();
+		}
+
+		@Test
+		public void first() throws Exception
+		{
+			assertTrue(cursor.isPositioned());
+			assertEquals(0, (long) cursor.getKey());
+			cursor.last();
+			assertTrue(cursor.first());
+			assertEquals(0, (long) cursor.getKey());
+			assertFalse(new TreeMap<Integer, Integer>(new IntegerComparator()).cursor().isPositioned());
+		}
+
+		@Test
+		public void last() throws Exception
+		{
+			assertTrue(cursor.last());
+			assertEquals(98, (long) cursor.getKey());
+		}
+
+		@Test
+		public void seek() throws Exception
+		{
+			assertTrue(cursor.seek(50));
+			assertEquals(50, (long) cursor.getKey());
+			assertFalse(cursor.seek(51));
+			assertEquals(52, (long) cursor.getKey());
+			assertFalse(cursor.seek(-5));
+			assertEquals(0, (long) cursor.getKey());
+			assertTrue(cursor.seek(98));
+			assertEquals(98, (long) cursor.getKey());
+			assertFalse(cursor.seek(99));
+			assertFalse(cursor.isPositioned());
+			assertTrue(cursor.seek(10));
+			assertEquals(10, (long) cursor.getKey());
+		}
+
+		@Test
+		public void next() throws Exception
+		{
+			for (int x = 0; x < 98; x += 2) {
+				assertEquals(x, (long) cursor.getKey());
+				assertTrue(cursor.next());
+			}
+
+			assertFalse(cursor.next());
+			assertFalse(cursor.isPositioned());
+		}
+
+		@Test
+		public void prev() throws Exception
+		{
+			cursor.last();
+			for (int x = 98; x > 0; x -= 2) {
+				assertEquals(x, (long) cursor.getKey());
+				assertTrue(cursor.prev());
+			}
+
+			assertFalse(cursor.prev());
+		}
+
+		@Test(expected = IllegalStateException.class)
+		public void nextThrowsIllegalStateException() throws Exception
+		{
+			cursor.seek(1000);
+			cursor.next();
+		}
+
+		@Test
+		public void setValue() throws Exception
+		{
+			cursor.seek(20);
+			assertEquals(20, (long) cursor.setValue(200));
+			assertEquals(200, (long) cursor.getValue());
+			assertEquals(200, (long) map.get(20));
+		}
+
+		@Test
+		public void remove() throws Exception
+		{
+			cursor.seek(20);
+			while (cursor.isPositioned() && cursor.getKey() < 60)
+				assertEquals(cursor.getKey(), cursor.remove());
+
+			assertEquals(60, (long) cursor.getKey());
+			assertEquals(30, map.size());
+			assertFalse(map.containsKey(20));
+			assertFalse(map.containsKey(58));
+			assertTrue(map.containsKey(18));
+			assertTrue(map.containsKey(60));
+		}
+
+		@Test
+		public void insertNear() throws Exception
+		{
+			Set<Integer> expected = new java.util.TreeSet<>(map.keySet());
+
+			cursor.seek(40);
+			for (int x = 41; x < 60; x += 2) {
+				assertNull(cursor.insertNear(x, -x));
+				assertEquals(x, (long) cursor.getKey());
+				expected.add(x);
+			}
+
+			assertEquals(42, (long) cursor.insertNear(42, 0));
+			assertEquals(0, (long) map.get(42));
+			assertNull(cursor.insertNear(-1, -1));
+			expected.add(-1);
+
+			assertEquals(expected.size(), map.size());
+			assertArrayEquals(expected.toArray(), map.keySet().toArray());
+		}
+	}
 }
\ No newline at end of file